@@ -25,7 +25,7 @@ import org.midonet.cluster.data.storage.{Storage, ZookeeperObjectMapper}
 import org.midonet.cluster.models.C3PO.StorageManagerState
 import org.midonet.cluster.models.Neutron.NeutronNetwork
 import org.midonet.cluster.models.Topology.Network
-import org.midonet.config.{ConfigGroup, ConfigInt, ConfigProvider, ConfigString}
+import org.midonet.config.{ConfigBool, ConfigGroup, ConfigInt, ConfigProvider, ConfigString}
 
 class StorageModule(cfgProvider: ConfigProvider) extends AbstractModule {
 
@@ -48,7 +48,8 @@ class StorageModule(cfgProvider: ConfigProvider) extends AbstractModule {
     }
 
     def initStorage(curator: CuratorFramework, basePath: String): Storage = {
-        val storage = new ZookeeperObjectMapper(basePath, curator)
+        val storage = new ZookeeperObjectMapper(
+            basePath, curator, curatorCfg.optimisticTransactions)
         List(classOf[Network],
              classOf[NeutronNetwork],
              classOf[StorageManagerState]).foreach(storage.registerClass)
@@ -70,4 +71,7 @@ trait CuratorConfig {
 
     @ConfigInt(key = "max_retries", defaultValue = 10)
     def maxRetries: Int
+
+    @ConfigBool(key = "optimistic_transactions", defaultValue = false)
+    def optimisticTransactions: Boolean
 }
@@ -15,12 +15,13 @@
  */
 package org.midonet.cluster.data.storage
 
-import java.io.StringWriter
+import java.io.ByteArrayOutputStream
 import java.lang.{Long => JLong}
 import java.util.concurrent.Executors
 import java.util.concurrent.atomic.AtomicLong
 import java.util.{ConcurrentModificationException, List => JList}
 
+import scala.annotation.tailrec
 import scala.async.Async.async
 import scala.collection.JavaConverters._
 import scala.collection.concurrent.TrieMap
@@ -29,7 +30,7 @@ import scala.concurrent.{ExecutionContext, Future, Promise}
 
 import com.google.common.annotations.VisibleForTesting
 import com.google.common.collect.ArrayListMultimap
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
 import org.apache.curator.framework.api.{BackgroundCallback, CuratorEvent, CuratorEventType}
@@ -41,6 +42,7 @@ import org.apache.zookeeper.data.Stat
 import org.apache.zookeeper.{CreateMode, KeeperException, WatchedEvent, Watcher}
 import org.codehaus.jackson.JsonFactory
 import org.codehaus.jackson.map.ObjectMapper
+import org.codehaus.jackson.smile.SmileFactory
 import org.slf4j.LoggerFactory
 import rx.Observable
 
@@ -106,10 +108,28 @@ import org.midonet.util.reactivex._
  * off. In addition, upon initialization a ZOOM sets a watcher to the version
  * number node and it'd be notified if another ZOOM instances bumps the version
  * number to switch to the new version.
+ *
+ * SERIALIZATION:
+ * Protobuf messages are stored in their binary wire format and POJOs as Smile,
+ * the binary encoding of JSON, both after a short header identifying the
+ * format and the version of the encoding. Nodes holding the protobuf text
+ * format or JSON, as written by earlier versions, are still read.
+ *
+ * OPTIMISTIC TRANSACTIONS:
+ * By default, a multi() creates an ephemeral sequential node to learn the
+ * current ZXID, and fails with a ConcurrentModificationException when any node
+ * it reads was modified after it. In optimistic mode, the transaction skips the
+ * node and relies on the version checks of its commit, which cover every node
+ * it read, retrying the whole multi() from the start up to
+ * MAX_OPTIMISTIC_ATTEMPTS times when a node changed before the commit.
  */
 class ZookeeperObjectMapper(
     private val basePathPrefix: String,
-    private val curator: CuratorFramework) extends Storage {
+    private val curator: CuratorFramework,
+    private val optimistic: Boolean) extends Storage {
+
+    def this(basePathPrefix: String, curator: CuratorFramework) =
+        this(basePathPrefix, curator, false)
 
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
     @volatile private var built = false
@@ -152,7 +172,8 @@ class ZookeeperObjectMapper(
      * added. Since updates are not incremental, the first backreference will
      * be lost.
      */
-    private class TransactionManager(val version: Long) {
+    private class TransactionManager(val version: Long,
+                                     val optimistic: Boolean) {
         private final val NEW_OBJ_VERSION = -1
         private val objCache = new mutable.HashMap[Key[_], ObjWithVersion[_]]()
         private val objsToDelete = new mutable.HashMap[Key[_], Int]()
@@ -160,8 +181,10 @@ class ZookeeperObjectMapper(
         // Create an ephemeral node so that we can get Zookeeper's current
         // ZXID. This will allow us to determine if any of the nodes we read
         // have been modified since the TransactionManager was created, allowing
-        // us to ensure a consistent read across multiple nodes.
-        private val (lockPath: String, zxid: Long) = try {
+        // us to ensure a consistent read across multiple nodes. Optimistic
+        // transactions don't, their commit fails on any such modification.
+        private val (lockPath: String, zxid: Long) =
+            if (optimistic) (null, Long.MaxValue) else try {
             val path = curator.create().creatingParentsIfNeeded()
                               .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
                               .forPath(locksPath(version))
@@ -409,7 +432,7 @@ class ZookeeperObjectMapper(
             }
         }
 
-        def releaseLock(): Unit = try {
+        def releaseLock(): Unit = if (lockPath ne null) try {
             curator.delete().forPath(lockPath)
         } catch {
             // Not much we can do. Fortunately, it's ephemeral.
@@ -753,16 +776,31 @@ class ZookeeperObjectMapper(
     override def multi(ops: Seq[PersistenceOp]): Unit = {
         assertBuilt()
         if (ops.isEmpty) return
+        multi(ops, 1)
+    }
 
-        val manager = new TransactionManager(version.longValue())
-        ops.foreach {
-            case CreateOp(obj) => manager.create(obj)
-            case UpdateOp(obj, validator) => manager.update(obj, validator)
-            case DeleteOp(clazz, id, ignores) =>
-                manager.delete(clazz, id, ignores)
+    @tailrec
+    private def multi(ops: Seq[PersistenceOp], attempt: Int): Unit = {
+        val manager = new TransactionManager(version.longValue(), optimistic)
+        val committed = try {
+            ops.foreach {
+                case CreateOp(obj) => manager.create(obj)
+                case UpdateOp(obj, validator) => manager.update(obj, validator)
+                case DeleteOp(clazz, id, ignores) =>
+                    manager.delete(clazz, id, ignores)
+            }
+            manager.commit()
+            true
+        } catch {
+            case ex: ConcurrentModificationException
+                if optimistic && attempt < MAX_OPTIMISTIC_ATTEMPTS =>
+                log.debug(s"Optimistic transaction attempt $attempt failed, " +
+                          "retrying.", ex)
+                false
+        } finally {
+            manager.releaseLock()
         }
-
-        try manager.commit() finally { manager.releaseLock() }
+        if (!committed) multi(ops, attempt + 1)
     }
 
     /**
@@ -868,6 +906,7 @@ class ZookeeperObjectMapper(
 object ZookeeperObjectMapper {
     private val VERSION_NODE = "dataset_version"
     private val INITIAL_ZOOM_DATA_SET_VERSION = 1
+    private[storage] val MAX_OPTIMISTIC_ATTEMPTS = 10
 
     private[storage] trait IdGetter {
         def idOf(obj: Obj): ObjId
@@ -917,6 +956,19 @@ object ZookeeperObjectMapper {
         }
     }
 
+    /* Binary encodings start with a header of HEADER_SIZE bytes: a zero
+     * byte, which can't start the text format of a protobuf or a JSON
+     * document written by earlier versions, the format of the payload and the
+     * version of the encoding. */
+    private[storage] val HEADER_SIZE = 3
+    private[storage] val HEADER_MAGIC: Byte = 0
+    private[storage] val FORMAT_PROTOBUF: Byte = 1
+    private[storage] val FORMAT_SMILE: Byte = 2
+    private[storage] val ENCODING_VERSION: Byte = 1
+
+    private val smileFactory = new SmileFactory(new ObjectMapper())
+    private val prototypes = new TrieMap[Class[_], Message]
+
     private[storage] def serialize(obj: Obj): Array[Byte] ={
         obj match {
             case msg: Message => serializeMessage(msg)
@@ -924,12 +976,21 @@ object ZookeeperObjectMapper {
         }
     }
 
-    private def serializeMessage(msg: Message) = msg.toString.getBytes
+    private def serializeMessage(msg: Message): Array[Byte] = {
+        val size = msg.getSerializedSize
+        val data = new Array[Byte](HEADER_SIZE + size)
+        writeHeader(data, FORMAT_PROTOBUF)
+        val out = CodedOutputStream.newInstance(data, HEADER_SIZE, size)
+        msg.writeTo(out)
+        out.checkNoSpaceLeft()
+        data
+    }
 
     private def serializePojo(obj: Obj): Array[Byte] = {
-        val writer = new StringWriter()
+        val out = new ByteArrayOutputStream(256)
+        out.write(Array(HEADER_MAGIC, FORMAT_SMILE, ENCODING_VERSION))
         try {
-            val generator = jsonFactory.createJsonGenerator(writer)
+            val generator = smileFactory.createJsonGenerator(out)
             generator.writeObject(obj)
             generator.close()
         } catch {
@@ -937,34 +998,80 @@ object ZookeeperObjectMapper {
                 throw new InternalObjectMapperException(
                     "Could not serialize " + obj, ex)
         }
+        out.toByteArray
+    }
 
-        writer.toString.trim.getBytes
+    private def writeHeader(data: Array[Byte], format: Byte): Unit = {
+        data(0) = HEADER_MAGIC
+        data(1) = format
+        data(2) = ENCODING_VERSION
     }
 
+    /* Whether the data was written with a binary encoding, rather than as
+     * the protobuf text format or JSON. */
+    private def isBinary(data: Array[Byte]) =
+        data.length >= HEADER_SIZE && data(0) == HEADER_MAGIC
+
     private[storage] def deserialize[T](data: Array[Byte],
                                         clazz: Class[T]): T = {
         try {
-            if (classOf[Message].isAssignableFrom(clazz)) {
-                deserializeMessage(data, clazz)
+            val isMessage = classOf[Message].isAssignableFrom(clazz)
+            if (isBinary(data)) {
+                checkHeader(data, if (isMessage) FORMAT_PROTOBUF
+                                  else FORMAT_SMILE)
+                if (isMessage) deserializeMessage(data, clazz)
+                else deserializePojo(data, clazz)
             } else {
-                deserializePojo(data, clazz)
+                if (isMessage) deserializeTextMessage(data, clazz)
+                else deserializeJsonPojo(data, clazz)
             }
         } catch {
+            case ex: InternalObjectMapperException => throw ex
             case ex: Exception =>
                 throw new InternalObjectMapperException(
-                    "Could not parse data from Zookeeper: " + new String(data),
-                    ex)
+                    s"Could not parse ${data.length} bytes of data from " +
+                    s"Zookeeper as $clazz", ex)
         }
     }
 
+    private def checkHeader(data: Array[Byte], format: Byte): Unit = {
+        if (data(1) != format || data(2) != ENCODING_VERSION)
+            throw new InternalObjectMapperException(
+                s"Unsupported encoding in Zookeeper data: format ${data(1)}, " +
+                s"version ${data(2)}, expected format $format, version " +
+                s"$ENCODING_VERSION", null)
+    }
+
+    private def prototype(clazz: Class[_]): Message = {
+        prototypes.getOrElseUpdate(clazz,
+            clazz.getMethod("getDefaultInstance").invoke(null)
+                .asInstanceOf[Message])
+    }
+
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
-        val builderObj = clazz.getMethod("newBuilder").invoke(null)
-        val builder = builderObj.asInstanceOf[Message.Builder]
+        prototype(clazz).getParserForType
+            .parseFrom(data, HEADER_SIZE, data.length - HEADER_SIZE)
+            .asInstanceOf[T]
+    }
+
+    private def deserializePojo[T](data: Array[Byte], clazz: Class[T]): T = {
+        val parser = smileFactory.createJsonParser(data, HEADER_SIZE,
+                                                   data.length - HEADER_SIZE)
+        val t = parser.readValueAs(clazz)
+        parser.close()
+        t
+    }
+
+    /* Reads the protobuf text format written by earlier versions. */
+    private def deserializeTextMessage[T](data: Array[Byte],
+                                          clazz: Class[T]): T = {
+        val builder = prototype(clazz).newBuilderForType()
         TextFormat.merge(new String(data), builder)
         builder.build().asInstanceOf[T]
     }
 
-    private def deserializePojo[T](json: Array[Byte], clazz: Class[T]): T = {
+    /* Reads the JSON documents written by earlier versions. */
+    private def deserializeJsonPojo[T](json: Array[Byte], clazz: Class[T]): T = {
         val parser = jsonFactory.createJsonParser(json)
         val t = parser.readValueAs(clazz)
         parser.close()
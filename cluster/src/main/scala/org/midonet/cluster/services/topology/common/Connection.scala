@@ -20,7 +20,7 @@ import scala.util.Success
 
 import com.google.protobuf.Message
 
-import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.{ChannelFuture, ChannelFutureListener, ChannelHandlerContext}
 import org.slf4j.LoggerFactory
 import rx.Subscriber
 import rx.subjects.{PublishSubject, Subject}
@@ -44,6 +44,16 @@ class Connection(private val ctx: ChannelHandlerContext,
     extends Subscriber[Message] {
     private val log = LoggerFactory.getLogger(classOf[Connection])
 
+    // Tells the protocol state when a message has been written, if it
+    // applies back-pressure
+    private val writeListener = new ChannelFutureListener {
+        override def operationComplete(future: ChannelFuture): Unit =
+            state match {
+                case s: FlowControl => s.written()
+                case _ =>
+            }
+    }
+
     // Stream of messages to be sent back through the communication channel;
     // this object 'subscribes' to this stream to actually send out the
     // outgoing messages
@@ -52,8 +62,11 @@ class Connection(private val ctx: ChannelHandlerContext,
     outgoing.subscribe(this)
 
     // Send a message through the low level channel
-    // TODO: some backpressure mechanism is probably needed here
-    private def send(rsp: Message) = ctx.writeAndFlush(rsp)
+    private def send(rsp: Message) = {
+        val future = ctx.writeAndFlush(rsp)
+        if (future ne null)
+            future.addListener(writeListener)
+    }
 
     // Terminate this connection
     private def terminate() = {
@@ -74,7 +87,10 @@ class Connection(private val ctx: ChannelHandlerContext,
     // State engine
     // TODO: This is not thread-safe, which is currently fine
     // as each channel is currently handled by a single thread at most.
-    private var (state, backendSubscription) = protocol.start(outgoing)
+    // The state is volatile as the write listener reads it from the
+    // channel's event loop.
+    private val (initialState, backendSubscription) = protocol.start(outgoing)
+    @volatile private var state: State = initialState
     def disconnect() = {
         state = state.process(Interruption)
         // in case protocol does not honor the disconnect request:
@@ -41,6 +41,16 @@ trait State {
     def process(msg: Any): State
 }
 
+/**
+ * A protocol state that wants to be told when each message sent through the
+ * connection has been written to the channel, e.g. to bound the number of
+ * messages queued in it. Note that this is called from the channel's event
+ * loop, which may not be the thread processing the incoming messages.
+ */
+trait FlowControl {
+    def written(): Unit
+}
+
 /**
  * Used to signal the protocol that the underlying connection has been
  * interrupted
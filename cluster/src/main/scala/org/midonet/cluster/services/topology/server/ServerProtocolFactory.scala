@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.util.{Failure, Success}
+
+import com.google.protobuf.Message
+
+import org.slf4j.LoggerFactory
+import rx.{Observer, Subscription}
+
+import org.midonet.cluster.data.storage.Storage
+import org.midonet.cluster.rpc.Commands
+import org.midonet.cluster.services.topology.common._
+import org.midonet.cluster.util.UUIDUtil
+import org.midonet.util.concurrent._
+
+/**
+ * The server side of the topology API protocol (see topology_api.proto).
+ *
+ * A connection starts in the Ready state, and moves to the Active state once
+ * the handshake claims the session of the client. Subscriptions and their
+ * updates belong to the session, which survives the connection, so that
+ * a client reconnecting with the same connection id resumes receiving the
+ * updates of the objects it subscribed to. One-off requests for objects
+ * that are not watched already are read from the storage.
+ */
+class ServerProtocolFactory(store: Storage, fanout: TopologyFanout,
+                            sessions: SessionInventory)
+        extends ProtocolFactory {
+    import Session._
+
+    private val log = LoggerFactory.getLogger(classOf[ServerProtocolFactory])
+
+    private implicit val ec: ExecutionContext = ExecutionContext.callingThread
+
+    override def start(output: Observer[Message])
+    : (State, Future[Option[Subscription]]) =
+        (new Ready(output), Promise[Option[Subscription]]().success(None).future)
+
+    /** Waiting for the handshake. */
+    private class Ready(output: Observer[Message]) extends State {
+        override def process(msg: Any): State = msg match {
+            case req: Commands.Request if req.hasHandshake =>
+                val handshake = req.getHandshake
+                val cnxnId = UUIDUtil.fromProto(handshake.getCnxnId)
+                sessions.claim(cnxnId, output) match {
+                    case Some(session) =>
+                        log.debug(s"Session $cnxnId started")
+                        session.reply(ack(handshake.getReqId))
+                        new Active(session, output)
+                    case None =>
+                        log.debug(s"Session $cnxnId is already in use")
+                        output.onNext(nack(handshake.getReqId))
+                        this
+                }
+            case req: Commands.Request =>
+                reqIdOf(req) foreach { id => output.onNext(nack(id)) }
+                this
+            case Interruption =>
+                Closed
+            case _ =>
+                this
+        }
+    }
+
+    /** Serving the requests of the session's client. */
+    private class Active(session: Session, output: Observer[Message])
+            extends State with FlowControl {
+
+        override def written(): Unit = session.written()
+
+        override def process(msg: Any): State = msg match {
+            case req: Commands.Request if req.hasGet =>
+                get(req.getGet)
+                this
+            case req: Commands.Request if req.hasUnsubscribe =>
+                val unsub = req.getUnsubscribe
+                if (unsub.hasId)
+                    session.unsubscribe(ObjectKey(unsub.getType,
+                                                  fromId(unsub.getId)))
+                else
+                    session.unsubscribe(unsub.getType)
+                session.reply(ack(unsub.getReqId))
+                this
+            case req: Commands.Request if req.hasBye =>
+                // Once terminated, the session doesn't send anything else
+                sessions.terminate(session)
+                output.onNext(ack(req.getBye.getReqId))
+                log.debug(s"Session ${session.id} terminated")
+                Closed
+            case req: Commands.Request =>
+                reqIdOf(req) foreach { id => session.reply(nack(id)) }
+                this
+            case Interruption =>
+                sessions.release(session)
+                Closed
+            case e: Throwable =>
+                log.warn(s"Error in the connection of session ${session.id}", e)
+                this
+            case _ =>
+                this
+        }
+
+        private def get(get: Commands.Request.Get): Unit = {
+            val reqId = get.getReqId
+            val clazz = TopologyMappings.klassOf(get.getType) match {
+                case Some(c) => c.asInstanceOf[Class[Message]]
+                case None =>
+                    session.reply(nack(reqId))
+                    return
+            }
+            if (get.hasId) {
+                val key = ObjectKey(get.getType, fromId(get.getId))
+                if (get.getSubscribe) {
+                    session.subscribe(key, reqId)
+                } else fanout.latest(key) match {
+                    case Some(obj) =>
+                        session.reply(update(key.t, obj))
+                    case None =>
+                        store.get(clazz, key.id).onComplete {
+                            case Success(obj) =>
+                                session.reply(update(key.t, obj))
+                            case Failure(_) =>
+                                session.reply(nack(reqId))
+                        }
+                }
+            } else if (get.getSubscribe) {
+                session.subscribe(get.getType, reqId)
+            } else {
+                store.getAll(clazz).onComplete {
+                    case Success(objs) =>
+                        objs foreach { _.onSuccess {
+                            case obj => session.reply(update(get.getType, obj))
+                        }}
+                    case Failure(_) =>
+                        session.reply(nack(reqId))
+                }
+            }
+        }
+    }
+
+    /** The connection is gone, or the client said goodbye. */
+    private object Closed extends State {
+        override def process(msg: Any): State = this
+    }
+
+    private def reqIdOf(req: Commands.Request) =
+        if (req.hasGet) Some(req.getGet.getReqId)
+        else if (req.hasUnsubscribe) Some(req.getUnsubscribe.getReqId)
+        else if (req.hasBye) Some(req.getBye.getReqId)
+        else if (req.hasHandshake) Some(req.getHandshake.getReqId)
+        else None
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import java.util.{LinkedHashMap => JLinkedHashMap, UUID}
+
+import scala.collection.concurrent.TrieMap
+
+import com.google.protobuf.Message
+
+import org.slf4j.LoggerFactory
+import rx.{Observer, Subscription}
+
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology
+import org.midonet.cluster.rpc.Commands.{ID, Response}
+
+object Session {
+    /** The most messages written to a client's channel and not yet flushed
+     *  out, before further messages are held back in the session. */
+    val DefaultWindow = 64
+
+    /** The response carrying the state of an object. */
+    def update(t: Topology.Type, msg: Message): Response = {
+        val update = Response.Update.newBuilder()
+        update.setField(Response.Update.getDescriptor
+                            .findFieldByName(t.name.toLowerCase), msg)
+        Response.newBuilder().setUpdate(update).build()
+    }
+
+    /** The response telling that an object was deleted. */
+    def deletion(key: ObjectKey): Response =
+        Response.newBuilder().setDeletion(
+            Response.Deletion.newBuilder().setType(key.t).setId(toId(key.id)))
+            .build()
+
+    def ack(reqId: Commons.UUID): Response =
+        Response.newBuilder().setAck(
+            Response.Ack.newBuilder().setReqId(reqId)).build()
+
+    def nack(reqId: Commons.UUID): Response =
+        Response.newBuilder().setNack(
+            Response.NAck.newBuilder().setReqId(reqId)).build()
+
+    /** The storage id of the object identified by a request id. */
+    def fromId(id: ID): Any =
+        if (id.hasUuid) id.getUuid
+        else if (id.hasStrId) id.getStrId
+        else id.getName
+
+    def toId(id: Any): ID = id match {
+        case uuid: Commons.UUID => ID.newBuilder().setUuid(uuid).build()
+        case other => ID.newBuilder().setStrId(other.toString).build()
+    }
+}
+
+/**
+ * The state of a client of the topology service, which outlives the
+ * connections the client makes: the objects it subscribed to, and the
+ * messages waiting to be sent to it.
+ *
+ * The session subscribes to the objects through the TopologyFanout. Updates
+ * are queued by object, and an update replaces the one of the same object
+ * that wasn't sent yet, keeping its place in the queue. A slow client thus
+ * receives the latest state of each object it subscribed to, rather than
+ * every intermediate state, and the queue never holds more than one message
+ * per object, plus the responses to the requests of the client.
+ *
+ * At most window messages are written to the connection and not yet
+ * reported as written by the written() method. The rest wait in the queue,
+ * as do all the messages while the client is disconnected. When the client
+ * reconnects, the latest state of every object it subscribed to is sent
+ * again, since the messages in flight when the connection broke may have
+ * been lost.
+ */
+class Session(val id: UUID, fanout: TopologyFanout,
+              window: Int = Session.DefaultWindow) {
+    import Session._
+
+    private val log = LoggerFactory.getLogger(classOf[Session])
+
+    /* The subscriptions to single objects, and to the objects of a type. */
+    private val objects = new TrieMap[ObjectKey, ObjectSubscription]()
+    private val types = new TrieMap[Topology.Type, TypeSubscription]()
+
+    /* The messages to send, keyed by object for updates and deletions, and
+     * by a sequence number otherwise. Guarded by the session's lock. */
+    private val pending = new JLinkedHashMap[Any, Message]()
+    private var sequence = 0L
+    private var output: Observer[Message] = null
+    private var inFlight = 0
+    private var attachCount = 0
+    @volatile private var terminated = false
+
+    /** Starts sending the messages of the session through a connection. */
+    def attach(out: Observer[Message]): Unit = {
+        // An update queued while detached is newer than the snapshot
+        val snapshots = objects.keys.flatMap(k => fanout.latest(k).map(k -> _))
+        synchronized {
+            for ((key, msg) <- snapshots if !pending.containsKey(key))
+                pending.put(key, update(key.t, msg))
+            output = out
+            inFlight = 0
+            attachCount += 1
+            drain()
+        }
+    }
+
+    /** Stops sending messages, keeping them until the client reconnects. */
+    def detach(): Unit = synchronized { output = null }
+
+    def isAttached: Boolean = synchronized { output ne null }
+
+    /** The number of times the session was attached to a connection. */
+    def attachments: Int = synchronized { attachCount }
+
+    def isTerminated: Boolean = terminated
+
+    /**
+     * Marks the session as terminated if it wasn't attached again since it
+     * had been attached the given number of times, so that it can't be
+     * claimed while it is terminated.
+     */
+    def expire(attachments: Int): Boolean = synchronized {
+        if (terminated || (output ne null) || attachCount != attachments) {
+            false
+        } else {
+            terminated = true
+            true
+        }
+    }
+
+    /** The number of messages waiting to be sent. */
+    def backlog: Int = synchronized { pending.size }
+
+    /** Called when a message sent to the client was written out. */
+    def written(): Unit = synchronized {
+        if (inFlight > 0)
+            inFlight -= 1
+        drain()
+    }
+
+    /** Sends the response to a request, after the pending messages. */
+    def reply(msg: Message): Unit = synchronized {
+        sequence += 1
+        pending.put(sequence, msg)
+        drain()
+    }
+
+    private def send(key: ObjectKey, msg: Message): Unit = synchronized {
+        if (!terminated) {
+            pending.put(key, msg)
+            drain()
+        }
+    }
+
+    private def drain(): Unit = {
+        while ((output ne null) && inFlight < window && !pending.isEmpty) {
+            val it = pending.values.iterator
+            val msg = it.next()
+            it.remove()
+            inFlight += 1
+            output.onNext(msg)
+        }
+    }
+
+    /**
+     * Subscribes to an object, sending its current state followed by its
+     * updates, or a NAck for the request if it doesn't exist. Subscribing
+     * again to an object has no effect.
+     */
+    def subscribe(key: ObjectKey, reqId: Commons.UUID): Unit =
+        subscribe(key, reqId, viaType = false)
+
+    private def subscribe(key: ObjectKey, reqId: Commons.UUID,
+                          viaType: Boolean): Unit = {
+        if (!terminated && !objects.contains(key)) {
+            val sub = new ObjectSubscription(key, reqId, viaType)
+            if (objects.putIfAbsent(key, sub).isEmpty)
+                sub.start()
+        }
+    }
+
+    /**
+     * Subscribes to all the objects of a type, sending the current state and
+     * the updates of the existing objects and of those created later.
+     */
+    def subscribe(t: Topology.Type, reqId: Commons.UUID): Unit = {
+        if (!terminated && !types.contains(t)) {
+            val sub = new TypeSubscription(t, reqId)
+            if (types.putIfAbsent(t, sub).isEmpty)
+                sub.start()
+        }
+    }
+
+    /** Stops sending updates about an object. */
+    def unsubscribe(key: ObjectKey): Unit = {
+        objects.remove(key) foreach { _.cancel() }
+        synchronized { pending.remove(key) }
+    }
+
+    /** Stops sending updates about the objects of a type, as well as about
+     *  the objects subscribed to through the type. */
+    def unsubscribe(t: Topology.Type): Unit = {
+        types.remove(t) foreach { _.cancel() }
+        for ((key, sub) <- objects if key.t == t && sub.viaType)
+            unsubscribe(key)
+    }
+
+    def isSubscribed(key: ObjectKey): Boolean = objects.contains(key)
+
+    /** Cancels every subscription and drops the pending messages. */
+    def terminate(): Unit = {
+        synchronized {
+            terminated = true
+            pending.clear()
+            output = null
+        }
+        types.keys foreach { t => unsubscribe(t) }
+        objects.keys foreach { key => unsubscribe(key) }
+    }
+
+    private class ObjectSubscription(key: ObjectKey, reqId: Commons.UUID,
+                                     val viaType: Boolean)
+            extends Observer[Message] {
+        @volatile private var subscription: Subscription = null
+        @volatile private var cancelled = false
+
+        def start(): Unit = {
+            subscription = fanout.subscribe(key, this)
+            if (cancelled)
+                subscription.unsubscribe()
+        }
+
+        def cancel(): Unit = {
+            cancelled = true
+            val sub = subscription
+            if (sub ne null)
+                sub.unsubscribe()
+        }
+
+        override def onNext(msg: Message): Unit =
+            if (!cancelled) send(key, update(key.t, msg))
+
+        override def onCompleted(): Unit = {
+            if (objects.remove(key, this))
+                send(key, deletion(key))
+        }
+
+        override def onError(e: Throwable): Unit = {
+            if (objects.remove(key, this) && !viaType)
+                reply(nack(reqId))
+        }
+    }
+
+    private class TypeSubscription(t: Topology.Type, reqId: Commons.UUID)
+            extends Observer[ObjectKey] {
+        @volatile private var subscription: Subscription = null
+        @volatile private var cancelled = false
+
+        def start(): Unit = {
+            subscription = fanout.subscribe(t, this)
+            if (cancelled)
+                subscription.unsubscribe()
+        }
+
+        def cancel(): Unit = {
+            cancelled = true
+            val sub = subscription
+            if (sub ne null)
+                sub.unsubscribe()
+        }
+
+        override def onNext(key: ObjectKey): Unit =
+            if (!cancelled) subscribe(key, reqId, viaType = true)
+
+        override def onCompleted(): Unit = types.remove(t, this)
+
+        override def onError(e: Throwable): Unit = {
+            if (types.remove(t, this)) {
+                log.warn(s"Session $id lost the subscription to type $t", e)
+                reply(nack(reqId))
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.concurrent.TrieMap
+import scala.concurrent.duration._
+
+import com.google.protobuf.Message
+
+import org.slf4j.LoggerFactory
+import rx.schedulers.Schedulers
+import rx.{Observer, Scheduler}
+
+import org.midonet.util.functors.makeAction0
+
+/**
+ * The sessions of the clients of the topology service, by connection id.
+ *
+ * A client claims its session on handshake. A session can only be claimed
+ * by one connection at a time. When the connection breaks, the session is
+ * kept for the grace period, so that the client can reconnect and resume
+ * it; after that, the session is terminated and its subscriptions dropped.
+ */
+class SessionInventory(fanout: TopologyFanout,
+                       gracePeriod: Duration = SessionInventory.GracePeriod,
+                       window: Int = Session.DefaultWindow,
+                       scheduler: Scheduler = Schedulers.computation()) {
+    private val log = LoggerFactory.getLogger(classOf[SessionInventory])
+
+    private val sessions = new TrieMap[UUID, Session]()
+    private val worker = scheduler.createWorker()
+
+    /**
+     * Attaches the session with the given id to a connection, creating it if
+     * needed. Returns None if the session is in use by another connection.
+     */
+    def claim(id: UUID, out: Observer[Message]): Option[Session] = {
+        while (true) {
+            val session = sessions.getOrElse(id, {
+                val session = new Session(id, fanout, window)
+                sessions.putIfAbsent(id, session).getOrElse(session)
+            })
+            session.synchronized {
+                if (session.isAttached) {
+                    return None
+                } else if (!session.isTerminated) {
+                    session.attach(out)
+                    return Some(session)
+                }
+            }
+            // The session expired after we got it
+            sessions.remove(id, session)
+        }
+        None
+    }
+
+    /** Detaches a session from its connection, and schedules its
+     *  termination unless it is claimed again within the grace period. */
+    def release(session: Session): Unit = {
+        val attachments = session.synchronized {
+            session.detach()
+            session.attachments
+        }
+        worker.schedule(makeAction0 {
+            if (session.expire(attachments)) {
+                log.debug(s"Session ${session.id} expired")
+                sessions.remove(session.id, session)
+                session.terminate()
+            }
+        }, gracePeriod.toMillis, TimeUnit.MILLISECONDS)
+    }
+
+    /** Terminates a session at the request of its client. */
+    def terminate(session: Session): Unit = {
+        sessions.remove(session.id, session)
+        session.terminate()
+    }
+
+    def get(id: UUID): Option[Session] = sessions.get(id)
+
+    def size: Int = sessions.size
+}
+
+object SessionInventory {
+    /** How long the session of a disconnected client is kept. */
+    val GracePeriod = 2 minutes
+}
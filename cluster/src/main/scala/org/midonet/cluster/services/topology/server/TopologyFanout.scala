@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import scala.collection.concurrent.TrieMap
+
+import com.google.protobuf.Message
+
+import org.slf4j.LoggerFactory
+import rx.subscriptions.Subscriptions
+import rx.{Observable, Observer, Subscription}
+
+import org.midonet.cluster.data.storage.Storage
+import org.midonet.cluster.models.Topology
+import org.midonet.cluster.services.topology.common.TopologyMappings
+import org.midonet.util.functors.{makeAction0, makeFunc1}
+
+/** Identifies a topology object: its type and its storage id. */
+case class ObjectKey(t: Topology.Type, id: Any)
+
+/**
+ * Shares the storage subscriptions of the topology objects among the clients
+ * of the topology service.
+ *
+ * Each object watched by at least one client has a single subscription to its
+ * storage observable, which is dropped when the last client unsubscribes. The
+ * latest state of the object is kept, so that a new subscriber receives it
+ * right away, without reading it from the storage. Subscribers are then told
+ * of every update, and of the deletion of the object via onCompleted. An
+ * object that doesn't exist results in onError.
+ *
+ * Likewise, there is a single subscription to the objects of each type that
+ * some client wants to discover, which tells subscribers the key of every
+ * object of the type, whether it existed when they subscribed or was
+ * created later. Objects are forgotten once their deletion is seen through
+ * the feed of the object.
+ *
+ * Subscribers are called while the feed of the object is locked, so that they
+ * see the updates in order, and must not block.
+ */
+class TopologyFanout(store: Storage) {
+    private val log = LoggerFactory.getLogger(classOf[TopologyFanout])
+
+    private val objectFeeds = new TrieMap[ObjectKey, ObjectFeed]()
+    private val typeFeeds = new TrieMap[Topology.Type, TypeFeed]()
+
+    /** Subscribes to the updates of an object. */
+    def subscribe(key: ObjectKey, observer: Observer[Message]): Subscription = {
+        while (true) {
+            val feed = objectFeeds.getOrElse(key, {
+                val feed = new ObjectFeed(key)
+                objectFeeds.putIfAbsent(key, feed).getOrElse(feed)
+            })
+            if (feed.add(observer)) {
+                feed.start()
+                return Subscriptions.create(makeAction0 { feed.remove(observer) })
+            }
+            // The feed was closed after we got it
+            objectFeeds.remove(key, feed)
+        }
+        null
+    }
+
+    /** Subscribes to the keys of the objects of the given type. */
+    def subscribe(t: Topology.Type, observer: Observer[ObjectKey]): Subscription = {
+        while (true) {
+            val feed = typeFeeds.getOrElse(t, {
+                val feed = new TypeFeed(t)
+                typeFeeds.putIfAbsent(t, feed).getOrElse(feed)
+            })
+            if (feed.add(observer)) {
+                feed.start()
+                return Subscriptions.create(makeAction0 { feed.remove(observer) })
+            }
+            typeFeeds.remove(t, feed)
+        }
+        null
+    }
+
+    /** The latest known state of an object watched by some client. */
+    def latest(key: ObjectKey): Option[Message] =
+        objectFeeds.get(key).flatMap(f => Option(f.latest))
+
+    /** The number of objects currently watched in the storage. */
+    def watchedObjects: Int = objectFeeds.size
+
+    /** The number of types whose objects are currently watched for. */
+    def watchedTypes: Int = typeFeeds.size
+
+    /**
+     * The common behaviour of the feeds: a set of subscribers, and a single
+     * storage subscription made when the first subscriber is added and
+     * dropped with the last one. Once closed, a feed is not used again.
+     */
+    private abstract class Feed[T] extends Observer[T] {
+        protected var observers = Set.empty[Observer[T]]
+        private var closed = false
+        private var started = false
+        private var subscription: Subscription = null
+
+        protected def observable: Observable[T]
+
+        protected def forget(): Unit
+
+        def add(observer: Observer[T]): Boolean = synchronized {
+            if (closed) {
+                false
+            } else {
+                observers += observer
+                added(observer)
+                true
+            }
+        }
+
+        /** Called when an observer is added, with the feed locked. */
+        protected def added(observer: Observer[T]): Unit = { }
+
+        def start(): Unit = {
+            val doStart = synchronized {
+                val first = !started && !closed
+                started = true
+                first
+            }
+            if (doStart) {
+                val sub = observable.subscribe(this)
+                val stale = synchronized {
+                    subscription = sub
+                    closed
+                }
+                if (stale)
+                    sub.unsubscribe()
+            }
+        }
+
+        def remove(observer: Observer[T]): Unit = {
+            val sub = synchronized {
+                observers -= observer
+                if (observers.isEmpty && !closed) close() else null
+            }
+            if (sub ne null)
+                sub.unsubscribe()
+        }
+
+        /* Closes the feed, with the feed locked, returning the storage
+         * subscription to drop. */
+        protected def close(): Subscription = {
+            closed = true
+            forget()
+            subscription
+        }
+
+        override def onCompleted(): Unit = {
+            val sub = synchronized {
+                val sub = if (!closed) close() else null
+                observers foreach { _.onCompleted() }
+                observers = Set.empty
+                sub
+            }
+            if (sub ne null)
+                sub.unsubscribe()
+        }
+
+        override def onError(e: Throwable): Unit = {
+            val sub = synchronized {
+                val sub = if (!closed) close() else null
+                observers foreach { _.onError(e) }
+                observers = Set.empty
+                sub
+            }
+            if (sub ne null)
+                sub.unsubscribe()
+        }
+    }
+
+    private class ObjectFeed(key: ObjectKey) extends Feed[Message] {
+        @volatile var latest: Message = null
+
+        override protected def observable = {
+            val clazz = TopologyMappings.klassOf(key.t).get
+            store.observable(clazz, key.id).asInstanceOf[Observable[Message]]
+        }
+
+        override protected def forget(): Unit = objectFeeds.remove(key, this)
+
+        override protected def added(observer: Observer[Message]): Unit =
+            if (latest ne null)
+                observer.onNext(latest)
+
+        override def onNext(msg: Message): Unit = synchronized {
+            latest = msg
+            observers foreach { _.onNext(msg) }
+        }
+
+        override def onCompleted(): Unit = {
+            super.onCompleted()
+            typeFeeds.get(key.t) foreach { _.removeKey(key) }
+        }
+
+        override def onError(e: Throwable): Unit = {
+            log.debug(s"Subscription to $key failed", e)
+            super.onError(e)
+            typeFeeds.get(key.t) foreach { _.removeKey(key) }
+        }
+    }
+
+    private class TypeFeed(t: Topology.Type) extends Feed[ObjectKey] {
+        private var keys = Set.empty[ObjectKey]
+
+        override protected def observable = {
+            val clazz = TopologyMappings.klassOf(t).get
+            store.observable(clazz)
+                 .asInstanceOf[Observable[Observable[Message]]]
+                 .flatMap(makeFunc1 { (o: Observable[Message]) =>
+                     o.take(1).onErrorResumeNext(Observable.empty[Message]()) })
+                 .map[ObjectKey](makeFunc1 { (m: Message) =>
+                     ObjectKey(t, TopologyFanout.idOf(m)) })
+        }
+
+        override protected def forget(): Unit = typeFeeds.remove(t, this)
+
+        override protected def added(observer: Observer[ObjectKey]): Unit =
+            keys foreach observer.onNext
+
+        override def onNext(key: ObjectKey): Unit = synchronized {
+            keys += key
+            observers foreach { _.onNext(key) }
+        }
+
+        /** Forgets a deleted object. */
+        def removeKey(key: ObjectKey): Unit = synchronized { keys -= key }
+
+        override def onError(e: Throwable): Unit = {
+            log.warn(s"Subscription to objects of type $t failed", e)
+            super.onError(e)
+        }
+    }
+}
+
+object TopologyFanout {
+    /** The storage id of a topology object. */
+    def idOf(msg: Message): Any =
+        msg.getField(msg.getDescriptorForType.findFieldByName("id"))
+}
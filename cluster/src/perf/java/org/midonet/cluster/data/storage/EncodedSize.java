@@ -0,0 +1,47 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The bytes written by the serialization benchmarks of
+ * ZoomSerializationBenchmark in an iteration. JMH reports the counter in
+ * the mode of the benchmark, as time per byte for the average time, so the
+ * size of one encoded object is the time per operation divided by the time
+ * per byte.
+ */
+@State(Scope.Thread)
+@AuxCounters
+public class EncodedSize {
+
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+
+    public byte[] count(byte[] encoded) {
+        bytes += encoded.length;
+        return encoded;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.codehaus.jackson.map.ObjectMapper
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapperTest.PojoBridge
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.util.UUIDUtil._
+
+/**
+ * Compares the cost of serializing and deserializing the objects stored by
+ * ZOOM in their binary encodings against the protobuf text format and the
+ * JSON documents written by earlier versions. The serialization benchmarks
+ * also report the size of each encoding through EncodedSize.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class ZoomSerializationBenchmark {
+
+    val jsonMapper = new ObjectMapper()
+
+    val network = Network.newBuilder()
+                         .setId(UUID.randomUUID())
+                         .setTenantId("tenant")
+                         .setName("network")
+                         .setAdminStateUp(true)
+                         .setTunnelKey(42)
+                         .setInboundFilterId(UUID.randomUUID())
+                         .setOutboundFilterId(UUID.randomUUID())
+                         .build()
+    val bridge = new PojoBridge(UUID.randomUUID(), "bridge", UUID.randomUUID(),
+                                UUID.randomUUID())
+
+    var binaryNetwork: Array[Byte] = _
+    var textNetwork: Array[Byte] = _
+    var binaryBridge: Array[Byte] = _
+    var jsonBridge: Array[Byte] = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        binaryNetwork = ZookeeperObjectMapper.serialize(network)
+        textNetwork = network.toString.getBytes
+        binaryBridge = ZookeeperObjectMapper.serialize(bridge)
+        jsonBridge = jsonMapper.writeValueAsBytes(bridge)
+    }
+
+    @Benchmark
+    def serializeProtobuf(size: EncodedSize): Array[Byte] =
+        size.count(ZookeeperObjectMapper.serialize(network))
+
+    @Benchmark
+    def serializeText(size: EncodedSize): Array[Byte] =
+        size.count(network.toString.getBytes)
+
+    @Benchmark
+    def deserializeProtobuf(): Network =
+        ZookeeperObjectMapper.deserialize(binaryNetwork, classOf[Network])
+
+    @Benchmark
+    def deserializeText(): Network =
+        ZookeeperObjectMapper.deserialize(textNetwork, classOf[Network])
+
+    @Benchmark
+    def serializeSmile(size: EncodedSize): Array[Byte] =
+        size.count(ZookeeperObjectMapper.serialize(bridge))
+
+    @Benchmark
+    def serializeJson(size: EncodedSize): Array[Byte] =
+        size.count(jsonMapper.writeValueAsBytes(bridge))
+
+    @Benchmark
+    def deserializeSmile(): PojoBridge =
+        ZookeeperObjectMapper.deserialize(binaryBridge, classOf[PojoBridge])
+
+    @Benchmark
+    def deserializeJson(): PojoBridge =
+        ZookeeperObjectMapper.deserialize(jsonBridge, classOf[PojoBridge])
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown, Param, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+
+import org.midonet.cluster.data.storage.FieldBinding.DeleteAction.{CLEAR, ERROR}
+import org.midonet.cluster.data.storage.ZookeeperObjectMapperTest.{PojoBridge, PojoPort}
+
+object ZoomTransactionBenchmark {
+    val ZK_ROOT = "/zoom-benchmark"
+
+    /* The in-process Zookeeper server all the clients of a fork connect to. */
+    lazy val server = new TestingServer()
+}
+
+/**
+ * Measures the write throughput of ZOOM transactions against an in-process
+ * Zookeeper server, with and without optimistic transactions. Each JMH thread
+ * is a client with its own Zookeeper session, updating its own object, so the
+ * scaling with the number of clients is measured by varying the number of
+ * threads, e.g.
+ * ./gradlew :cluster:benchmarks '-Pjmh=.*ZoomTransaction.* -t 8'
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class ZoomTransactionBenchmark {
+    import ZoomTransactionBenchmark._
+
+    @Param(Array("false", "true"))
+    var optimistic: Boolean = _
+
+    var curator: CuratorFramework = _
+    var zom: ZookeeperObjectMapper = _
+    var bridge: PojoBridge = _
+    var updates = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        curator = CuratorFrameworkFactory.newClient(server.getConnectString,
+                                                    new RetryOneTime(1000))
+        curator.start()
+        zom = new ZookeeperObjectMapper(ZK_ROOT, curator, optimistic)
+        zom.registerClass(classOf[PojoBridge])
+        zom.registerClass(classOf[PojoPort])
+        zom.declareBinding(classOf[PojoPort], "bridgeId", CLEAR,
+                           classOf[PojoBridge], "portIds", ERROR)
+        zom.build()
+
+        bridge = new PojoBridge("bridge", null, null)
+        zom.create(bridge)
+    }
+
+    @TearDown
+    def tearDown(): Unit = {
+        curator.close()
+    }
+
+    @Benchmark
+    def updateObject(): Unit = {
+        updates += 1
+        bridge.name = s"bridge-$updates"
+        zom.update(bridge)
+    }
+
+    @Benchmark
+    def createAndDeleteReferencingObject(): Unit = {
+        val port = new PojoPort("port", bridge.id, null)
+        zom.create(port)
+        zom.delete(classOf[PojoPort], port.id)
+    }
+}
@@ -195,6 +195,30 @@ class ZookeeperObjectMapperTests extends Suite
         twoChains.map(_.name) should equal(List("chain0", "chain1"))
     }
 
+    def testOptimisticConcurrentCreates() {
+        val zom2 = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                             optimistic = true)
+        initAndBuildZoom(zom2)
+        val bridge = PojoBridge()
+        zom2.create(bridge)
+
+        // Every port adds a back reference to the same bridge, so that the
+        // concurrent transactions conflict and must be retried.
+        val clients = 8
+        val executor = Executors.newFixedThreadPool(clients)
+        implicit val ec = ExecutionContext.fromExecutor(executor)
+        val ports = for (i <- 0 until clients) yield PojoPort(bridgeId = bridge.id)
+        try {
+            Await.result(Future.sequence(ports.map(p => Future(zom2.create(p)))),
+                         Duration.create(10, TimeUnit.SECONDS))
+        } finally {
+            executor.shutdown()
+        }
+
+        val updatedBridge = await(zom.get(classOf[PojoBridge], bridge.id))
+        updatedBridge.portIds.asScala.toSet should equal(ports.map(_.id).toSet)
+    }
+
     def testDeleteIfExists() {
         zom.deleteIfExists(classOf[PojoBridge], UUID.randomUUID)
     }
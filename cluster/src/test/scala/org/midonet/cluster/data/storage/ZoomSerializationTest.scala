@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+
+import org.codehaus.jackson.map.ObjectMapper
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
+import org.midonet.cluster.data.storage.ZookeeperObjectMapperTest.PojoBridge
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.util.UUIDUtil._
+
+@RunWith(classOf[JUnitRunner])
+class ZoomSerializationTest extends FeatureSpec with Matchers {
+
+    val network = Network.newBuilder()
+                         .setId(UUID.randomUUID())
+                         .setName("network")
+                         .setAdminStateUp(true)
+                         .setTunnelKey(42)
+                         .setInboundFilterId(UUID.randomUUID())
+                         .build()
+
+    val bridge = new PojoBridge(UUID.randomUUID(), "bridge", UUID.randomUUID(),
+                                null)
+
+    def checkBridge(other: PojoBridge): Unit = {
+        other.id should be (bridge.id)
+        other.name should be (bridge.name)
+        other.inChainId should be (bridge.inChainId)
+        other.outChainId should be (null)
+    }
+
+    feature("Objects are stored in a binary encoding") {
+        scenario("protobuf messages") {
+            val data = serialize(network)
+            data.take(HEADER_SIZE) should be (
+                Array(HEADER_MAGIC, FORMAT_PROTOBUF, ENCODING_VERSION))
+            data.length should be (HEADER_SIZE + network.getSerializedSize)
+            deserialize(data, classOf[Network]) should be (network)
+        }
+
+        scenario("POJOs") {
+            val data = serialize(bridge)
+            data.take(HEADER_SIZE) should be (
+                Array(HEADER_MAGIC, FORMAT_SMILE, ENCODING_VERSION))
+            checkBridge(deserialize(data, classOf[PojoBridge]))
+        }
+
+        scenario("an empty message") {
+            val empty = Network.getDefaultInstance
+            deserialize(serialize(empty), classOf[Network]) should be (empty)
+        }
+
+        scenario("unknown encodings are rejected") {
+            val data = serialize(network)
+            data(2) = (ENCODING_VERSION + 1).toByte
+            intercept[InternalObjectMapperException] {
+                deserialize(data, classOf[Network])
+            }
+            intercept[InternalObjectMapperException] {
+                deserialize(serialize(bridge), classOf[Network])
+            }
+        }
+    }
+
+    feature("Objects written by earlier versions are read") {
+        scenario("protobuf messages in the text format") {
+            deserialize(network.toString.getBytes,
+                        classOf[Network]) should be (network)
+        }
+
+        scenario("POJOs as JSON") {
+            val json = new ObjectMapper().writeValueAsBytes(bridge)
+            checkBridge(deserialize(json, classOf[PojoBridge]))
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.server
+
+import java.util.UUID
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ExecutorService, Executors}
+
+import scala.collection.concurrent.TrieMap
+
+import com.google.protobuf.Message
+
+import org.junit.runner.RunWith
+import org.scalatest.concurrent.Eventually._
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.time.{Seconds, Span}
+import org.scalatest.{FeatureSpec, Matchers}
+
+import rx.Observer
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.rpc.Commands
+import org.midonet.cluster.rpc.Commands.{ID, Response}
+import org.midonet.cluster.services.topology.common.{FlowControl, Interruption, State}
+import org.midonet.cluster.util.CuratorTestFramework
+import org.midonet.cluster.util.UUIDUtil.{randomUuidProto, toProto}
+import org.midonet.util.functors.makeRunnable
+
+/**
+ * Runs many simulated clients of the topology service against a local
+ * Zookeeper server, checking that they all converge to the latest state of
+ * the topology while the service keeps a single storage subscription per
+ * object.
+ */
+@RunWith(classOf[JUnitRunner])
+class TopologyServiceLoadTest extends FeatureSpec
+                              with CuratorTestFramework
+                              with Matchers {
+
+    implicit val patience = PatienceConfig(timeout = Span(30, Seconds))
+
+    val NumNetworks = 20
+    val NumClients = 200
+    val NumUpdates = 10
+
+    var zoom: ZookeeperObjectMapper = _
+    var fanout: TopologyFanout = _
+    var flusher: ExecutorService = _
+
+    override protected def setup(): Unit = {
+        zoom = new ZookeeperObjectMapper(ZK_ROOT, curator)
+        zoom.registerClass(classOf[Network])
+        zoom.build()
+        fanout = new TopologyFanout(zoom)
+        flusher = Executors.newSingleThreadExecutor()
+    }
+
+    override protected def teardown(): Unit = {
+        flusher.shutdown()
+    }
+
+    def network(id: Commons.UUID, version: Int) =
+        Network.newBuilder().setId(id).setName(s"v$version").build()
+
+    def createNetworks(): Seq[Commons.UUID] =
+        (1 to NumNetworks) map { _ =>
+            val id = randomUuidProto
+            zoom.create(network(id, 0))
+            id
+        }
+
+    def updateNetworks(ids: Seq[Commons.UUID]): Unit =
+        for (version <- 1 to NumUpdates; id <- ids)
+            zoom.update(network(id, version))
+
+    def request = Commands.Request.newBuilder()
+
+    def handshake(cnxnId: UUID) = request.setHandshake(
+        Commands.Request.Handshake.newBuilder()
+            .setReqId(randomUuidProto).setCnxnId(toProto(cnxnId))).build()
+
+    def get(id: Option[Commons.UUID], subscribe: Boolean = true) = {
+        val get = Commands.Request.Get.newBuilder()
+            .setReqId(randomUuidProto)
+            .setType(Topology.Type.NETWORK)
+            .setSubscribe(subscribe)
+        id foreach { uuid => get.setId(ID.newBuilder().setUuid(uuid)) }
+        request.setGet(get).build()
+    }
+
+    def bye = request.setBye(
+        Commands.Request.Bye.newBuilder().setReqId(randomUuidProto)).build()
+
+    /**
+     * A simulated client, recording the latest state it received for each
+     * network. A fast client reports each message as written right away, from
+     * another thread, while a slow one only does so when flushed.
+     */
+    class Client(protocol: ServerProtocolFactory, fast: Boolean = true,
+                 val cnxnId: UUID = UUID.randomUUID())
+            extends Observer[Message] {
+        val networks = new TrieMap[Commons.UUID, Network]()
+        val deleted = new TrieMap[Commons.UUID, Boolean]()
+        val received = new AtomicInteger()
+        val acks = new AtomicInteger()
+        val nacks = new AtomicInteger()
+        val unflushed = new AtomicInteger()
+        @volatile var state: State = _
+
+        def connect(): Unit = {
+            state = protocol.start(this)._1
+            send(handshake(cnxnId))
+        }
+
+        def send(req: Any): Unit = synchronized { state = state.process(req) }
+
+        def disconnect(): Unit = send(Interruption)
+
+        def flush(): Unit = {
+            var n = unflushed.getAndSet(0)
+            while (n > 0) {
+                state match {
+                    case s: FlowControl => s.written()
+                    case _ =>
+                }
+                n -= 1
+            }
+        }
+
+        def hasLatest(ids: Seq[Commons.UUID]) = ids forall { id =>
+            networks.get(id).exists(_.getName == s"v$NumUpdates")
+        }
+
+        override def onNext(msg: Message): Unit = {
+            val rsp = msg.asInstanceOf[Response]
+            received.incrementAndGet()
+            if (rsp.hasUpdate) {
+                val net = rsp.getUpdate.getNetwork
+                networks(net.getId) = net
+            } else if (rsp.hasDeletion) {
+                deleted(rsp.getDeletion.getId.getUuid) = true
+            } else if (rsp.hasAck) {
+                acks.incrementAndGet()
+            } else if (rsp.hasNack) {
+                nacks.incrementAndGet()
+            }
+            unflushed.incrementAndGet()
+            if (fast)
+                flusher.execute(makeRunnable { flush() })
+        }
+
+        override def onCompleted(): Unit = { }
+        override def onError(e: Throwable): Unit = { }
+    }
+
+    feature("Many clients subscribe to the same objects") {
+        scenario("Clients converge with one storage subscription per object") {
+            val sessions = new SessionInventory(fanout)
+            val protocol = new ServerProtocolFactory(zoom, fanout, sessions)
+            val ids = createNetworks()
+
+            val clients = (1 to NumClients) map { i =>
+                val client = new Client(protocol)
+                client.connect()
+                if (i % 2 == 0)
+                    client.send(get(None))
+                else
+                    ids foreach { id => client.send(get(Some(id))) }
+                client
+            }
+
+            eventually {
+                clients foreach { _.networks should have size NumNetworks }
+            }
+            fanout.watchedObjects shouldBe NumNetworks
+            fanout.watchedTypes shouldBe 1
+
+            updateNetworks(ids)
+
+            eventually {
+                clients foreach { _.hasLatest(ids) shouldBe true }
+            }
+            fanout.watchedObjects shouldBe NumNetworks
+            clients foreach { _.nacks.get shouldBe 0 }
+
+            clients foreach { _.send(bye) }
+            sessions.size shouldBe 0
+            eventually {
+                fanout.watchedObjects shouldBe 0
+                fanout.watchedTypes shouldBe 0
+            }
+        }
+
+        scenario("Deletions reach the subscribers") {
+            val sessions = new SessionInventory(fanout)
+            val protocol = new ServerProtocolFactory(zoom, fanout, sessions)
+            val ids = createNetworks()
+            val clients = (1 to 10) map { i =>
+                val client = new Client(protocol)
+                client.connect()
+                client.send(get(if (i % 2 == 0) None else Some(ids.head)))
+                client
+            }
+            eventually {
+                clients foreach { _.networks.contains(ids.head) shouldBe true }
+            }
+
+            zoom.delete(classOf[Network], ids.head)
+
+            eventually {
+                clients foreach { _.deleted.contains(ids.head) shouldBe true }
+                fanout.latest(ObjectKey(Topology.Type.NETWORK, ids.head)) shouldBe None
+            }
+        }
+
+        scenario("Missing objects are NAcked") {
+            val sessions = new SessionInventory(fanout)
+            val protocol = new ServerProtocolFactory(zoom, fanout, sessions)
+            val client = new Client(protocol)
+            client.connect()
+
+            client.send(get(Some(randomUuidProto)))
+            client.send(get(Some(randomUuidProto), subscribe = false))
+
+            eventually { client.nacks.get shouldBe 2 }
+            fanout.watchedObjects shouldBe 0
+        }
+    }
+
+    feature("Slow clients") {
+        scenario("Updates to a slow client are coalesced") {
+            val window = 4
+            val sessions = new SessionInventory(fanout, window = window)
+            val protocol = new ServerProtocolFactory(zoom, fanout, sessions)
+            val ids = createNetworks()
+
+            val slow = new Client(protocol, fast = false)
+            slow.connect()
+            slow.send(get(None))
+            val fast = new Client(protocol)
+            fast.connect()
+            fast.send(get(None))
+
+            updateNetworks(ids)
+            eventually { fast.hasLatest(ids) shouldBe true }
+
+            // The slow client only got the messages of its window, and the
+            // session holds at most one message per object
+            slow.received.get shouldBe window
+            sessions.get(slow.cnxnId).get.backlog should be <= NumNetworks
+
+            while (!slow.hasLatest(ids)) {
+                slow.flush()
+                Thread.sleep(10)
+            }
+            slow.received.get should be < (NumNetworks * (NumUpdates + 1))
+        }
+    }
+
+    feature("Sessions survive their connections") {
+        scenario("A reconnecting client resumes its subscriptions") {
+            val sessions = new SessionInventory(fanout)
+            val protocol = new ServerProtocolFactory(zoom, fanout, sessions)
+            val ids = createNetworks()
+
+            val client = new Client(protocol)
+            client.connect()
+            ids foreach { id => client.send(get(Some(id))) }
+            eventually { client.networks should have size NumNetworks }
+
+            client.disconnect()
+            updateNetworks(ids)
+
+            val reconnected = new Client(protocol, cnxnId = client.cnxnId)
+            reconnected.connect()
+            eventually { reconnected.hasLatest(ids) shouldBe true }
+            fanout.watchedObjects shouldBe NumNetworks
+
+            val intruder = new Client(protocol, cnxnId = client.cnxnId)
+            intruder.connect()
+            intruder.nacks.get shouldBe 1
+        }
+    }
+}
@@ -64,4 +64,10 @@ public interface Client {
     void getHealthMonitor(UUID uuid, HealthMonitorBuilder builder);
 
     void subscribeBgp(UUID portID, BGPListBuilder builder);
+
+    /**
+     * Stops feeding the builder given for a port, chain, IP address group,
+     * load balancer, pool or port group, whose ZooKeeper watches are dropped.
+     */
+    void unsubscribeDevice(UUID id);
 }
@@ -64,16 +64,25 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
         ruleMgr.getRuleIdListAsync(chainId, ruleListCB, ruleListCB);
     }
 
-    private void requestRule(UUID ruleID) {
-        RuleCallback ruleCallback = new RuleCallback(ruleID);
+    @Override
+    protected void onBuilderUnregistered(UUID chainId) {
+        chainIdToRuleMap.remove(chainId);
+        chainToRuleIds.remove(chainId);
+        chainToMissingRuleIds.removeAll(chainId);
+    }
+
+    private void requestRule(UUID chainId, ChainBuilder builder, UUID ruleID) {
+        RuleCallback ruleCallback = new RuleCallback(chainId, builder, ruleID);
         ruleMgr.getAsync(ruleID, ruleCallback, ruleCallback);
     }
 
     private class ChainNameCallback extends CallbackWithWatcher<String> {
         private UUID chainId;
+        private ChainBuilder builder;
 
         private ChainNameCallback(UUID chainId) {
             this.chainId = chainId;
+            this.builder = getBuilder(chainId);
         }
 
         @Override
@@ -83,12 +92,14 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
 
         @Override
         public void onSuccess(String data) {
-            getBuilder(chainId).setName(data);
+            if (isRegistered(chainId, builder))
+                builder.setName(data);
         }
 
         @Override
         public void pathDataChanged(String path) {
-            chainMgr.getNameAsync(chainId, this, this);
+            if (isRegistered(chainId, builder))
+                chainMgr.getNameAsync(chainId, this, this);
         }
 
         @Override
@@ -102,9 +113,11 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
 
     private class RuleListCallback extends CallbackWithWatcher<List<UUID>> {
         private UUID chainId;
+        private ChainBuilder builder;
 
         private RuleListCallback(UUID chainId) {
             this.chainId = chainId;
+            this.builder = getBuilder(chainId);
         }
 
         @Override
@@ -116,6 +129,10 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
         public void onSuccess(List<UUID> curRuleIds) {
             // curlRuleIds is an ordered list of the UUIDs of current rules
 
+            // Not for the builder registered now, if any
+            if (!isRegistered(chainId, builder))
+                return;
+
             // UUID to actual rule for each rule in chain
             Map<UUID, Rule> ruleMap = chainIdToRuleMap.get(chainId);
 
@@ -141,7 +158,7 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
             // If we have all the rules in the new ordered list, we're
             // ready to call the chainbuilder
             if (oldRuleIds.size() == curRuleIds.size()) {
-                getBuilder(chainId).setRules(curRuleIds, ruleMap);
+                builder.setRules(curRuleIds, ruleMap);
                 return;
             }
             // Otherwise, we have to fetch some rules.
@@ -157,13 +174,14 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
              */
             for (UUID ruleId : curRuleIds) {
                 if (!ruleMap.containsKey(ruleId))
-                    requestRule(ruleId);
+                    requestRule(chainId, builder, ruleId);
             }
         }
 
         @Override
         public void pathDataChanged(String path) {
-            ruleMgr.getRuleIdListAsync(chainId, this, this);
+            if (isRegistered(chainId, builder))
+                ruleMgr.getRuleIdListAsync(chainId, this, this);
         }
 
         @Override
@@ -171,7 +189,8 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
             return new Runnable() {
                 @Override
                 public void run() {
-                    ruleMgr.getRuleIdListAsync(chainId,
+                    if (isRegistered(chainId, builder))
+                        ruleMgr.getRuleIdListAsync(chainId,
                             RuleListCallback.this, RuleListCallback.this);
                 }
             };
@@ -180,9 +199,13 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
     }
 
     private class RuleCallback extends CallbackWithWatcher<Rule> {
+        private UUID chainId;
+        private ChainBuilder builder;
         private UUID ruleId;
 
-        private RuleCallback(UUID ruleId) {
+        private RuleCallback(UUID chainId, ChainBuilder builder, UUID ruleId) {
+            this.chainId = chainId;
+            this.builder = builder;
             this.ruleId = ruleId;
         }
 
@@ -193,6 +216,8 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
 
         @Override
         public void onSuccess(Rule rule) {
+            if (!isRegistered(chainId, builder))
+                return;
             Collection<UUID> missingRuleIds =
                     chainToMissingRuleIds.get(rule.chainId);
             List<UUID> ruleIds = chainToRuleIds.get(rule.chainId);
@@ -205,13 +230,14 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
             ruleMap.put(ruleId, rule);
 
             if ((missingRuleIds.isEmpty())) {
-                getBuilder(rule.chainId).setRules(ruleIds, ruleMap);
+                builder.setRules(ruleIds, ruleMap);
             }
         }
 
         @Override
         public void pathDataChanged(String path) {
-            ruleMgr.getAsync(ruleId, this, this);
+            if (isRegistered(chainId, builder))
+                ruleMgr.getAsync(ruleId, this, this);
         }
 
         @Override
@@ -219,8 +245,9 @@ public class ClusterChainManager extends ClusterManager<ChainBuilder> {
             return new Runnable() {
                 @Override
                 public void run() {
-                    ruleMgr.getAsync(ruleId,
-                        RuleCallback.this, RuleCallback.this);
+                    if (isRegistered(chainId, builder))
+                        ruleMgr.getAsync(ruleId,
+                            RuleCallback.this, RuleCallback.this);
                 }
             };
         }
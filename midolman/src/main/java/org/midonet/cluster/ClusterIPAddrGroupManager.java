@@ -44,9 +44,11 @@ public class ClusterIPAddrGroupManager
     private class IPAddrSetCallback extends CallbackWithWatcher<Set<String>> {
 
         private UUID ipAddrGroupId;
+        private IPAddrGroupBuilder builder;
 
         private IPAddrSetCallback(UUID ipAddrGroupId) {
             this.ipAddrGroupId = ipAddrGroupId;
+            this.builder = getBuilder(ipAddrGroupId);
         }
 
         @Override
@@ -67,7 +69,8 @@ public class ClusterIPAddrGroupManager
                               new Object[]{strAddr, ipAddrGroupId, ex});
                 }
             }
-            getBuilder(ipAddrGroupId).setAddrs(ipAddrs);
+            if (isRegistered(ipAddrGroupId, builder))
+                builder.setAddrs(ipAddrs);
         }
 
         @Override
@@ -75,7 +78,8 @@ public class ClusterIPAddrGroupManager
             return new Runnable() {
                 @Override
                 public void run() {
-                    ipAddrGroupManager.getAddrsAsync(ipAddrGroupId,
+                    if (isRegistered(ipAddrGroupId, builder))
+                        ipAddrGroupManager.getAddrsAsync(ipAddrGroupId,
                             IPAddrSetCallback.this, IPAddrSetCallback.this);
                 }
             };
@@ -84,12 +88,14 @@ public class ClusterIPAddrGroupManager
         // TODO: Is this needed? Can the data ever change?
         @Override
         public void pathDataChanged(String path) {
-            ipAddrGroupManager.getAddrsAsync(ipAddrGroupId, this, this);
+            if (isRegistered(ipAddrGroupId, builder))
+                ipAddrGroupManager.getAddrsAsync(ipAddrGroupId, this, this);
         }
 
         @Override
         public void pathChildrenUpdated(String path) {
-            ipAddrGroupManager.getAddrsAsync(ipAddrGroupId, this, this);
+            if (isRegistered(ipAddrGroupId, builder))
+                ipAddrGroupManager.getAddrsAsync(ipAddrGroupId, this, this);
         }
     }
 }
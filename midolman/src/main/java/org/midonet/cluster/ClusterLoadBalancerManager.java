@@ -116,24 +116,37 @@ public class ClusterLoadBalancerManager
     }
 
     Runnable watchLoadBalancer(final UUID id, final boolean isUpdate) {
+        final LoadBalancerBuilder builder = getBuilder(id);
         return new Runnable() {
             @Override
             public void run() {
-                getLoadBalancerConf(id, isUpdate);
+                if (isRegistered(id, builder))
+                    getLoadBalancerConf(id, isUpdate);
             }
         };
     }
 
-    private void requestVip(UUID vipID) {
-        VipCallback vipCallback = new VipCallback(vipID);
+    @Override
+    protected void onBuilderUnregistered(UUID loadBalancerId) {
+        loadBalancerIdToVipMap.remove(loadBalancerId);
+        loadBalancerToVipIds.remove(loadBalancerId);
+        loadBalancerToMissingVipIds.removeAll(loadBalancerId);
+    }
+
+    private void requestVip(UUID loadBalancerId, LoadBalancerBuilder builder,
+                            UUID vipID) {
+        VipCallback vipCallback =
+            new VipCallback(loadBalancerId, builder, vipID);
         vipZkMgr.getAsync(vipID, vipCallback, vipCallback);
     }
 
     private class VipListCallback extends CallbackWithWatcher<Set<UUID>> {
         private UUID loadBalancerId;
+        private LoadBalancerBuilder builder;
 
         private VipListCallback(UUID loadBalancerId) {
             this.loadBalancerId = loadBalancerId;
+            this.builder = getBuilder(loadBalancerId);
         }
 
         @Override
@@ -145,6 +158,10 @@ public class ClusterLoadBalancerManager
         public void onSuccess(Set<UUID> curVipIds) {
             // curVipIds is a set of the UUIDs of current VIPs
 
+            // Not for the builder registered now, if any
+            if (!isRegistered(loadBalancerId, builder))
+                return;
+
             // UUID to actual VIP for each vip in LoadBalancer
             Map<UUID, VIP> vipMap = loadBalancerIdToVipMap.get(loadBalancerId);
 
@@ -175,7 +192,6 @@ public class ClusterLoadBalancerManager
             // If we have all the vips in the new ordered list, we're
             // ready to call the LoadBalancerBuilder
             if (vipsToRequest.isEmpty()) {
-                LoadBalancerBuilder builder = getBuilder(loadBalancerId);
                 builder.setVips(vipMap);
                 return;
             }
@@ -189,14 +205,15 @@ public class ClusterLoadBalancerManager
             // missing VIPs) to avoid race condition where a VIP request returns
             // before we've marked all missing VIPs
             for(UUID vipId : vipsToRequest) {
-                requestVip(vipId);
+                requestVip(loadBalancerId, builder, vipId);
             }
 
         }
 
         @Override
         public void pathChildrenUpdated(String path) {
-            loadBalancerZkMgr.getVipIdListAsync(loadBalancerId, this, this);
+            if (isRegistered(loadBalancerId, builder))
+                loadBalancerZkMgr.getVipIdListAsync(loadBalancerId, this, this);
         }
 
         @Override
@@ -204,7 +221,8 @@ public class ClusterLoadBalancerManager
             return new Runnable() {
                 @Override
                 public void run() {
-                    loadBalancerZkMgr.getVipIdListAsync(loadBalancerId,
+                    if (isRegistered(loadBalancerId, builder))
+                        loadBalancerZkMgr.getVipIdListAsync(loadBalancerId,
                             VipListCallback.this, VipListCallback.this);
                 }
             };
@@ -214,9 +232,14 @@ public class ClusterLoadBalancerManager
 
 
     private class VipCallback extends CallbackWithWatcher<VipZkManager.VipConfig> {
+        private UUID loadBalancerId;
+        private LoadBalancerBuilder builder;
         private UUID vipId;
 
-        private VipCallback(UUID vipId) {
+        private VipCallback(UUID loadBalancerId, LoadBalancerBuilder builder,
+                            UUID vipId) {
+            this.loadBalancerId = loadBalancerId;
+            this.builder = builder;
             this.vipId = vipId;
         }
 
@@ -227,6 +250,8 @@ public class ClusterLoadBalancerManager
 
         @Override
         public void onSuccess(VipZkManager.VipConfig vipConfig) {
+            if (!isRegistered(loadBalancerId, builder))
+                return;
             VIP vip = Converter.fromVipConfig(vipConfig);
             vip.setId(vipId);
 
@@ -242,14 +267,14 @@ public class ClusterLoadBalancerManager
             vipMap.put(vipId, vip);
 
             if (missingVipIds.size() == 0) {
-                LoadBalancerBuilder builder = getBuilder(vip.getLoadBalancerId());
                 builder.setVips(vipMap);
             }
         }
 
         @Override
         public void pathDataChanged(String path) {
-            vipZkMgr.getAsync(vipId, this, this);
+            if (isRegistered(loadBalancerId, builder))
+                vipZkMgr.getAsync(vipId, this, this);
         }
 
         @Override
@@ -257,7 +282,8 @@ public class ClusterLoadBalancerManager
             return new Runnable() {
                 @Override
                 public void run() {
-                    vipZkMgr.getAsync(vipId,
+                    if (isRegistered(loadBalancerId, builder))
+                        vipZkMgr.getAsync(vipId,
                             VipCallback.this, VipCallback.this);
                 }
             };
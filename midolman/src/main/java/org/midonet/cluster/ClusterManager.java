@@ -68,14 +68,47 @@ abstract class ClusterManager<T> {
         });
     }
 
+    /**
+     * Forgets the builder of a device, which won't be called anymore. The
+     * ZooKeeper watches set for the device can't be removed, so they are
+     * dropped instead of being set again the next time they fire: callbacks
+     * and watchers must check isRegistered() with the builder they were
+     * created for before doing so.
+     */
+    public void unregisterBuilder(final UUID id) {
+        reactorLoop.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (builderMap.remove(id) != null) {
+                    log.debug("Unregistered builder for device {}", id);
+                    onBuilderUnregistered(id);
+                }
+            }
+        });
+    }
+
     protected void onNewBuilder(final UUID id) {
         // default: do nothing
     }
 
+    protected void onBuilderUnregistered(final UUID id) {
+        // default: do nothing
+    }
+
     protected T getBuilder(UUID id){
         return builderMap.get(id);
     }
 
+    /**
+     * Whether the given builder is still the one registered for a device.
+     * Once a device is unregistered and requested again, the callbacks and
+     * watchers created for its earlier builder find another one registered
+     * and stop, instead of adding a chain of watches per registration.
+     */
+    protected boolean isRegistered(UUID id, T builder) {
+        return builder != null && builderMap.get(id) == builder;
+    }
+
     abstract protected void getConfig(UUID id);
 
     /* The following classes provide base implementations for callbacks/watchers
@@ -70,16 +70,27 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
         poolZkMgr.getAsync(poolId, poolConfigCB, poolConfigCB);
     }
 
-    private void requestPoolMember(UUID poolMemberID) {
-        PoolMemberCallback poolMemberCallback = new PoolMemberCallback(poolMemberID);
+    @Override
+    protected void onBuilderUnregistered(UUID poolId) {
+        poolIdToPoolMemberMap.remove(poolId);
+        poolToPoolMemberIds.remove(poolId);
+        poolToMissingPoolMemberIds.removeAll(poolId);
+    }
+
+    private void requestPoolMember(UUID poolId, PoolBuilder builder,
+                                   UUID poolMemberID) {
+        PoolMemberCallback poolMemberCallback =
+            new PoolMemberCallback(poolId, builder, poolMemberID);
         poolMemberZkMgr.getAsync(poolMemberID, poolMemberCallback, poolMemberCallback);
     }
 
     private class PoolConfigCallback extends CallbackWithWatcher<PoolConfig> {
         private UUID poolId;
+        private PoolBuilder builder;
 
         private PoolConfigCallback(UUID poolId) {
             this.poolId = poolId;
+            this.builder = getBuilder(poolId);
         }
 
         @Override
@@ -91,12 +102,14 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
         public void onSuccess(PoolConfig conf) {
             Pool pool = Converter.fromPoolConfig(conf);
             pool.setId(poolId);
-            getBuilder(poolId).setPoolConfig(pool);
+            if (isRegistered(poolId, builder))
+                builder.setPoolConfig(pool);
         }
 
         @Override
         public void pathDataChanged(String path) {
-            poolZkMgr.getAsync(poolId, this, this);
+            if (isRegistered(poolId, builder))
+                poolZkMgr.getAsync(poolId, this, this);
         }
 
         @Override
@@ -104,7 +117,8 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
             return new Runnable() {
                 @Override
                 public void run() {
-                    poolZkMgr.getAsync(poolId,
+                    if (isRegistered(poolId, builder))
+                        poolZkMgr.getAsync(poolId,
                             PoolConfigCallback.this, PoolConfigCallback.this);
                 }
             };
@@ -113,9 +127,11 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
 
     private class PoolMemberListCallback extends CallbackWithWatcher<Set<UUID>> {
         private UUID poolId;
+        private PoolBuilder builder;
 
         private PoolMemberListCallback(UUID PoolId) {
             this.poolId = PoolId;
+            this.builder = getBuilder(PoolId);
         }
 
         @Override
@@ -130,6 +146,11 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
             // UUID to actual PoolMember for each PoolMember in Pool
             Map<UUID, PoolMember> poolMemberMap = poolIdToPoolMemberMap.get(poolId);
 
+            // If null, or not for the builder registered now, we no longer
+            // care about this poolId.
+            if (null == poolMemberMap || !isRegistered(poolId, builder))
+                return;
+
             poolToPoolMemberIds.put(poolId, curPoolMemberIds);
 
             // Set of old PoolMember IDs from Pool
@@ -151,7 +172,7 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
             // If we have all the PoolMembers in the new set, we're
             // ready to call the PoolBuilder
             if (poolMembersToRequest.isEmpty()) {
-                getBuilder(poolId).setPoolMembers(poolMemberMap);
+                builder.setPoolMembers(poolMemberMap);
                 return;
             }
 
@@ -164,13 +185,14 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
             // missing) to avoid race condition where a pool member request
             // returns before we've marked all missing Vpool members
             for(UUID poolMemberId : poolMembersToRequest) {
-                requestPoolMember(poolMemberId);
+                requestPoolMember(poolId, builder, poolMemberId);
             }
         }
 
         @Override
         public void pathChildrenUpdated(String path) {
-            poolZkMgr.getPoolMemberIdListAsync(poolId, this, this);
+            if (isRegistered(poolId, builder))
+                poolZkMgr.getPoolMemberIdListAsync(poolId, this, this);
         }
 
         @Override
@@ -178,7 +200,8 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
             return new Runnable() {
                 @Override
                 public void run() {
-                    poolZkMgr.getPoolMemberIdListAsync(poolId,
+                    if (isRegistered(poolId, builder))
+                        poolZkMgr.getPoolMemberIdListAsync(poolId,
                             PoolMemberListCallback.this, PoolMemberListCallback.this);
                 }
             };
@@ -189,9 +212,14 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
 
     private class PoolMemberCallback
             extends CallbackWithWatcher<PoolMemberConfig> {
+        private UUID poolId;
+        private PoolBuilder builder;
         private UUID poolMemberId;
 
-        private PoolMemberCallback(UUID PoolMemberId) {
+        private PoolMemberCallback(UUID poolId, PoolBuilder builder,
+                                   UUID PoolMemberId) {
+            this.poolId = poolId;
+            this.builder = builder;
             this.poolMemberId = PoolMemberId;
         }
 
@@ -202,6 +230,8 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
 
         @Override
         public void onSuccess(PoolMemberConfig memberConf) {
+            if (!isRegistered(poolId, builder))
+                return;
             PoolMember poolMember = Converter.fromPoolMemberConfig(memberConf);
             poolMember.setId(poolMemberId);
 
@@ -218,13 +248,14 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
             poolMemberMap.put(poolMemberId, poolMember);
 
             if ((missingPoolMemberIds.size() == 0)) {
-                getBuilder(poolMember.getPoolId()).setPoolMembers(poolMemberMap);
+                builder.setPoolMembers(poolMemberMap);
             }
         }
 
         @Override
         public void pathDataChanged(String path) {
-            poolMemberZkMgr.getAsync(poolMemberId, this, this);
+            if (isRegistered(poolId, builder))
+                poolMemberZkMgr.getAsync(poolMemberId, this, this);
         }
 
         @Override
@@ -232,7 +263,8 @@ public class ClusterPoolManager extends ClusterManager<PoolBuilder> {
             return new Runnable() {
                 @Override
                 public void run() {
-                    poolMemberZkMgr.getAsync(poolMemberId,
+                    if (isRegistered(poolId, builder))
+                        poolMemberZkMgr.getAsync(poolMemberId,
                             PoolMemberCallback.this, PoolMemberCallback.this);
                 }
             };
@@ -47,11 +47,14 @@ public class ClusterPortGroupManager extends ClusterManager<PortGroupBuilder> {
 
     @Override
     protected void getConfig(final UUID id) {
+        PortGroupBuilder builder = getBuilder(id);
+        if (builder == null)
+            return;
+
         PortGroupZkManager.PortGroupConfig config = cache.get(id);
         if (config == null)
             return;
 
-        PortGroupBuilder builder = getBuilder(id);
         PortGroup group = new PortGroup();
 
         group.setName(config.name);
@@ -97,7 +100,8 @@ public class ClusterPortGroupManager extends ClusterManager<PortGroupBuilder> {
         @Override
         public void onSuccess(Set<UUID> uuids) {
             log.debug("MembersCallback - begin");
-            builder.setMembers(uuids);
+            if (isRegistered(id, builder))
+                builder.setMembers(uuids);
         }
 
         /*
@@ -106,7 +110,8 @@ public class ClusterPortGroupManager extends ClusterManager<PortGroupBuilder> {
         @Override
         public void pathChildrenUpdated(String path) {
             log.debug("MembersCallback - begin");
-            portGroupMgr.getMembersAsync(id, this, this);
+            if (isRegistered(id, builder))
+                portGroupMgr.getMembersAsync(id, this, this);
         }
 
         @Override
@@ -114,8 +119,9 @@ public class ClusterPortGroupManager extends ClusterManager<PortGroupBuilder> {
             return new Runnable() {
                 @Override
                 public void run() {
-                    portGroupMgr.getMembersAsync(id,
-                            MembersCallback.this, MembersCallback.this);
+                    if (isRegistered(id, builder))
+                        portGroupMgr.getMembersAsync(id,
+                                MembersCallback.this, MembersCallback.this);
                 }
             };
         }
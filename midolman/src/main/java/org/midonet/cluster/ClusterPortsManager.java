@@ -158,6 +158,8 @@ public class ClusterPortsManager extends ClusterManager<PortBuilder> {
             @Override
             public void run() {
                 log.debug("Port liveness changed: {}", portId);
+                if (!isRegistered(portId, builder))
+                    return;
                 builder.setActive(isActive(portId, this));
                 builder.build();
             }
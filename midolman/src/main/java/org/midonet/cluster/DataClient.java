@@ -828,6 +828,17 @@ public interface DataClient {
     UUID routesCreateEphemeral(@Nonnull Route route)
             throws StateAccessException, SerializationException;
 
+    /**
+     * Creates several ephemeral routes in one write to the cluster, returning
+     * their ids in the same order. Either all the routes are created, or none.
+     */
+    List<UUID> routesCreateEphemeral(@Nonnull List<Route> routes)
+            throws StateAccessException, SerializationException;
+
+    /** Deletes several routes in one write to the cluster. */
+    void routesDelete(@Nonnull List<UUID> ids)
+            throws StateAccessException, SerializationException;
+
     List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException;
 
@@ -177,6 +177,17 @@ public class LocalClientImpl implements Client {
         portsManager.registerNewBuilder(portID, builder);
     }
 
+    @Override
+    public void unsubscribeDevice(UUID id) {
+        log.debug("unsubscribeDevice {}", id);
+        portsManager.unregisterBuilder(id);
+        chainManager.unregisterBuilder(id);
+        ipAddrGroupManager.unregisterBuilder(id);
+        loadBalancerManager.unregisterBuilder(id);
+        poolManager.unregisterBuilder(id);
+        portGroupManager.unregisterBuilder(id);
+    }
+
     @Override
     public void getHost(final UUID hostID, final HostBuilder builder) {
         log.debug("getHost {}", hostID);
@@ -571,12 +571,13 @@ public class LocalDataClientImpl implements DataClient {
         log.debug("bridgesGetAll entered");
         List<Bridge> bridges = new ArrayList<>();
 
-        for (UUID id :
-            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath())) {
-            Bridge bridge = bridgesGet(id);
-            if (bridge != null) {
-                bridges.add(bridge);
-            }
+        List<UUID> ids =
+            bridgeZkManager.getUuidList(pathBuilder.getBridgesPath());
+        for (Map.Entry<UUID, BridgeConfig> entry :
+                bridgeZkManager.getAll(ids).entrySet()) {
+            Bridge bridge = Converter.fromBridgeConfig(entry.getValue());
+            bridge.setId(entry.getKey());
+            bridges.add(bridge);
         }
 
         log.debug("bridgesGetAll exiting: {} bridges found", bridges.size());
@@ -1383,18 +1384,17 @@ public class LocalDataClientImpl implements DataClient {
 
         Collection<UUID> ids = portZkManager.getBridgePortIDs(bridgeId);
         List<BridgePort> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            Port<?, ?> port = portsGet(id);
+        for (Port<?, ?> port : portsGet(ids)) {
             if (port instanceof BridgePort) {
                 // Skip the VxLanPort, since it's not really a
                 // BridgePort and is accessible in other ways.
-                ports.add((BridgePort) portsGet(id));
+                ports.add((BridgePort) port);
             }
         }
 
         ids = portZkManager.getBridgeLogicalPortIDs(bridgeId);
-        for (UUID id : ids) {
-            ports.add((BridgePort) portsGet(id));
+        for (Port<?, ?> port : portsGet(ids)) {
+            ports.add((BridgePort) port);
         }
 
         return ports;
@@ -1405,15 +1405,7 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
 
         Collection<UUID> ids = portZkManager.getBridgeLogicalPortIDs(bridgeId);
-        List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            Port<?, ?> portData = portsGet(id);
-            if (portData.getPeerId() != null) {
-                ports.add(portsGet(portData.getPeerId()));
-            }
-        }
-
-        return ports;
+        return portsGet(peerIds(portsGet(ids)));
     }
 
     @Override
@@ -1421,12 +1413,7 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
 
         Collection<UUID> ids = portZkManager.getRouterPortIDs(routerId);
-        List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            ports.add(portsGet(id));
-        }
-
-        return ports;
+        return portsGet(ids);
     }
 
     @Override
@@ -1434,15 +1421,17 @@ public class LocalDataClientImpl implements DataClient {
             throws StateAccessException, SerializationException {
 
         Collection<UUID> ids = portZkManager.getRouterPortIDs(routerId);
-        List<Port<?, ?>> ports = new ArrayList<>();
-        for (UUID id : ids) {
-            Port<?, ?> portData = portsGet(id);
-            if (portData.getPeerId() != null) {
-                ports.add(portsGet(portData.getPeerId()));
+        return portsGet(peerIds(portsGet(ids)));
+    }
+
+    private static List<UUID> peerIds(List<Port<?, ?>> ports) {
+        List<UUID> ids = new ArrayList<>(ports.size());
+        for (Port<?, ?> port : ports) {
+            if (port.getPeerId() != null) {
+                ids.add(port.getPeerId());
             }
         }
-
-        return ports;
+        return ids;
     }
 
     @Override
@@ -1460,12 +1449,11 @@ public class LocalDataClientImpl implements DataClient {
         String path = pathBuilder.getPortsPath();
         if (zkManager.exists(path)) {
             Set<String> portIds = zkManager.getChildren(path);
+            List<UUID> ids = new ArrayList<>(portIds.size());
             for (String id : portIds) {
-                Port<?, ?> port = portsGet(UUID.fromString(id));
-                if (port != null) {
-                    ports.add(port);
-                }
+                ids.add(UUID.fromString(id));
             }
+            ports = portsGet(ids);
         }
 
         log.debug("portsGetAll exiting: {} routers found", ports.size());
@@ -1484,6 +1472,22 @@ public class LocalDataClientImpl implements DataClient {
         return port;
     }
 
+    /**
+     * Gets the ports with the given IDs with pipelined reads, leaving out
+     * those that don't exist.
+     */
+    private List<Port<?, ?>> portsGet(Collection<UUID> ids)
+            throws StateAccessException, SerializationException {
+        List<Port<?, ?>> ports = new ArrayList<>(ids.size());
+        for (Map.Entry<UUID, PortConfig> entry :
+                portZkManager.getAll(ids).entrySet()) {
+            Port<?, ?> port = Converter.fromPortConfig(entry.getValue());
+            port.setId(entry.getKey());
+            ports.add(port);
+        }
+        return ports;
+    }
+
     @Override
     public void portsUpdate(@Nonnull Port<?,?> port)
             throws StateAccessException, SerializationException {
@@ -1514,12 +1518,7 @@ public class LocalDataClientImpl implements DataClient {
     public List<Port<?, ?>> portsFindByPortGroup(UUID portGroupId)
             throws StateAccessException, SerializationException {
         Set<UUID> portIds = portZkManager.getPortGroupPortIds(portGroupId);
-        List<Port<?, ?>> ports = new ArrayList<>(portIds.size());
-        for (UUID portId : portIds) {
-            ports.add(portsGet(portId));
-        }
-
-        return ports;
+        return portsGet(portIds);
     }
 
     @Override
@@ -2863,14 +2862,34 @@ public class LocalDataClientImpl implements DataClient {
         return routeZkManager.create(Converter.toRouteConfig(route), false);
     }
 
+    @Override
+    public List<UUID> routesCreateEphemeral(@Nonnull List<Route> routes)
+            throws StateAccessException, SerializationException {
+        List<org.midonet.midolman.layer3.Route> configs =
+            new ArrayList<>(routes.size());
+        for (Route route : routes) {
+            configs.add(Converter.toRouteConfig(route));
+        }
+        return routeZkManager.create(configs, false);
+    }
+
+    @Override
+    public void routesDelete(@Nonnull List<UUID> ids)
+            throws StateAccessException, SerializationException {
+        routeZkManager.delete(ids);
+    }
+
     @Override
     public List<Route> routesFindByRouter(UUID routerId)
             throws StateAccessException, SerializationException {
 
         List<UUID> routeIds = routeZkManager.list(routerId);
-        List<Route> routes = new ArrayList<>();
-        for (UUID id : routeIds) {
-            routes.add(routesGet(id));
+        List<Route> routes = new ArrayList<>(routeIds.size());
+        for (Map.Entry<UUID, org.midonet.midolman.layer3.Route> entry :
+                routeZkManager.getAll(routeIds).entrySet()) {
+            Route route = Converter.fromRouteConfig(entry.getValue());
+            route.setId(entry.getKey());
+            routes.add(route);
         }
         return routes;
 
@@ -2890,11 +2909,15 @@ public class LocalDataClientImpl implements DataClient {
         String path = pathBuilder.getRoutersPath();
         if (zkManager.exists(path)) {
             Set<String> routerIds = zkManager.getChildren(path);
+            List<UUID> ids = new ArrayList<>(routerIds.size());
             for (String id : routerIds) {
-                Router router = routersGet(UUID.fromString(id));
-                if (router != null) {
-                    routers.add(router);
-                }
+                ids.add(UUID.fromString(id));
+            }
+            for (Map.Entry<UUID, RouterZkManager.RouterConfig> entry :
+                    routerZkManager.getAll(ids).entrySet()) {
+                Router router = Converter.fromRouterConfig(entry.getValue());
+                router.setId(entry.getKey());
+                routers.add(router);
             }
         }
 
@@ -37,6 +37,9 @@ public interface DatapathConfig {
     @ConfigInt(key = "msgs_per_batch", defaultValue = 200)
     public int getMaxMessagesPerBatch();
 
+    @ConfigInt(key = "datagrams_per_read", defaultValue = 16)
+    public int getDatagramsPerRead();
+
     /**
      * The wildcard flows have idle times, so the table should take care of itself. Having a smaller table (a limited
      * size table) means that the system would be potentially evicting valid flows often, causing more simulations and
@@ -77,6 +77,15 @@ public interface MidolmanConfig
     @ConfigInt(key = "idle_flow_tolerance_interval", defaultValue = 10000)
     public int getIdleFlowToleranceInterval();
 
+    @ConfigBool(key = "idle_flow_expiration_by_dump", defaultValue = false)
+    public boolean getIdleFlowExpirationByDump();
+
+    @ConfigInt(key = "check_idle_devices_interval_seconds", defaultValue = 60)
+    public int getCheckIdleDevicesInterval();
+
+    @ConfigInt(key = "idle_device_expiration_seconds", defaultValue = 600)
+    public int getIdleDeviceExpiration();
+
     @ConfigBool(key = "enable_dashboard", defaultValue = false)
     public boolean getDashboardEnabled();
 
@@ -90,9 +99,43 @@ public interface MidolmanConfig
     @ConfigInt(key = "simulation_threads", defaultValue = 1)
     public int getSimulationThreads();
 
+    @ConfigInt(key = "simulation_queue_capacity", defaultValue = 1024)
+    public int getSimulationQueueCapacity();
+
+    @ConfigString(key = "simulation_queue_wait_strategy", defaultValue = "parking")
+    public String getSimulationQueueWaitStrategy();
+
+    @ConfigInt(key = "simulation_rebalance_interval_millis", defaultValue = 100)
+    public int getSimulationRebalanceIntervalMillis();
+
+    @ConfigInt(key = "simulation_rebalance_min_backlog", defaultValue = 64)
+    public int getSimulationRebalanceMinBacklog();
+
     @ConfigInt(key = "output_channels", defaultValue = 1)
     public int getNumOutputChannels();
 
     @ConfigString(key = "input_channel_threading", defaultValue = "one_to_many")
     public String getInputChannelThreading();
+
+    @ConfigString(key = "flow_state_tables", defaultValue = "on_heap")
+    public String getFlowStateTables();
+
+    @ConfigInt(key = "flow_state_table_initial_capacity", defaultValue = 65536)
+    public int getFlowStateTableInitialCapacity();
+
+    @ConfigInt(key = "flow_state_max_pending_writes", defaultValue = 50000)
+    public int getFlowStateMaxPendingWrites();
+
+    @ConfigInt(key = "flow_state_max_in_flight_batches", defaultValue = 64)
+    public int getFlowStateMaxInFlightBatches();
+
+    @ConfigInt(key = "flow_state_snapshot_interval_seconds", defaultValue = 0)
+    public int getFlowStateSnapshotInterval();
+
+    @ConfigString(key = "flow_state_snapshot_dir",
+                  defaultValue = "/var/lib/midolman")
+    public String getFlowStateSnapshotDir();
+
+    @ConfigInt(key = "flow_state_snapshot_max_age_seconds", defaultValue = 300)
+    public int getFlowStateSnapshotMaxAge();
 }
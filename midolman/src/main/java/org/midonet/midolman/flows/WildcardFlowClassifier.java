@@ -0,0 +1,406 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.midonet.sdn.flows.ManagedWildcardFlow;
+import org.midonet.sdn.flows.WildcardMatch;
+import org.midonet.util.StatisticalCounter;
+
+/**
+ * A tuple space classifier for wildcard flows. There is one table per
+ * wildcard pattern (the set of fields used by the flows it contains), like
+ * in the plain per-pattern scan it replaces, with two refinements:
+ *
+ * - Staged lookups. The fields of a pattern are split into cumulative stages
+ *   (input port and tunnel, then L2, L3 and L4). For every stage but the last
+ *   each table keeps a counting index of the hashes of its flows' matches
+ *   restricted to that stage's fields. A lookup bails out of a table as soon
+ *   as a stage hash is absent, before hashing the higher layer fields and
+ *   probing the table itself.
+ *
+ * - Priority ordering. Tables are kept sorted by the best (lowest) priority
+ *   of the flows they contain, so the lookup can stop as soon as no remaining
+ *   table can beat the best candidate found so far.
+ *
+ * Patterns and stages are handled as WildcardMatch field bitmasks, and
+ * tables are probed through a per thread ProbeKey that hashes and compares
+ * the packet's match restricted to the table's pattern in place, so a lookup
+ * doesn't allocate.
+ *
+ * Lookups can happen concurrently from any thread. Modifications must be
+ * performed by a single thread, which in practice is the FlowController.
+ */
+public class WildcardFlowClassifier implements WildcardTablesProvider {
+
+    private static final int INITIAL_TABLE_CAPACITY = 65536;
+    private static final int INITIAL_STAGE_INDEX_SIZE = 256;
+    private static final int MAX_STAGE_INDEX_SIZE = 1 << 20;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int CONCURRENCY_LEVEL = 1;
+    private static final int COUNTER_STRIPES = 16;
+
+    private static final Comparator<PatternTable> BY_PRIORITY =
+        new Comparator<PatternTable>() {
+            @Override
+            public int compare(PatternTable a, PatternTable b) {
+                return Integer.compare(a.bestPriority, b.bestPriority);
+            }
+        };
+
+    private final Map<Set<WildcardMatch.Field>,
+                      Map<WildcardMatch, ManagedWildcardFlow>> tables =
+        new ConcurrentHashMap<>(256, LOAD_FACTOR, CONCURRENCY_LEVEL);
+
+    /* The tables in ascending order of their best priority, rebuilt by the
+     * writer whenever a table appears, disappears or changes priority. */
+    private volatile PatternTable[] ordered = new PatternTable[0];
+
+    private final StatisticalCounter lookups =
+        new StatisticalCounter(COUNTER_STRIPES);
+    private final StatisticalCounter tablesProbed =
+        new StatisticalCounter(COUNTER_STRIPES);
+    private final StatisticalCounter tableMisses =
+        new StatisticalCounter(COUNTER_STRIPES);
+
+    @Override
+    public Map<WildcardMatch, ManagedWildcardFlow> addTable(
+            Set<WildcardMatch.Field> pattern) {
+        Map<WildcardMatch, ManagedWildcardFlow> table = tables.get(pattern);
+        if (table == null) {
+            PatternTable newTable = new PatternTable(pattern);
+            tables.put(pattern, newTable);
+            reorder();
+            table = newTable;
+        }
+        return table;
+    }
+
+    @Override
+    public Map<WildcardMatch, ManagedWildcardFlow> removeTable(
+            Set<WildcardMatch.Field> pattern) {
+        Map<WildcardMatch, ManagedWildcardFlow> table = tables.remove(pattern);
+        if (table != null)
+            reorder();
+        return table;
+    }
+
+    @Override
+    public Map<Set<WildcardMatch.Field>,
+               Map<WildcardMatch, ManagedWildcardFlow>> tables() {
+        return Collections.unmodifiableMap(tables);
+    }
+
+    public void clear() {
+        tables.clear();
+        reorder();
+    }
+
+    /**
+     * Finds the wildcard flow with the best (lowest) priority that matches
+     * the given match, or null if there is none.
+     */
+    public ManagedWildcardFlow lookup(WildcardMatch wildMatch) {
+        PatternTable[] snapshot = ordered;
+        ManagedWildcardFlow best = null;
+        int probed = 0;
+        int misses = 0;
+        for (PatternTable table : snapshot) {
+            if (best != null && table.bestPriority >= best.getPriority())
+                break;
+            probed++;
+            ManagedWildcardFlow candidate = table.lookup(wildMatch);
+            if (candidate == null) {
+                misses++;
+            } else if (best == null ||
+                       candidate.getPriority() < best.getPriority()) {
+                best = candidate;
+            }
+        }
+
+        int stripe = (int) (Thread.currentThread().getId() % COUNTER_STRIPES);
+        lookups.addAndGetAtomic(stripe, 1);
+        tablesProbed.addAndGetAtomic(stripe, probed);
+        tableMisses.addAndGetAtomic(stripe, misses);
+        return best;
+    }
+
+    public int getNumTables() {
+        return tables.size();
+    }
+
+    public long getLookups() {
+        return lookups.getValue();
+    }
+
+    /**
+     * @return The number of tables visited across all lookups.
+     */
+    public long getTablesProbed() {
+        return tablesProbed.getValue();
+    }
+
+    /**
+     * @return The number of visited tables that didn't yield a candidate,
+     *         either because a stage index ruled them out or because the
+     *         final probe missed.
+     */
+    public long getTableMisses() {
+        return tableMisses.getValue();
+    }
+
+    private void reorder() {
+        List<PatternTable> sorted = new ArrayList<>(tables.size());
+        for (Map<WildcardMatch, ManagedWildcardFlow> t : tables.values())
+            sorted.add((PatternTable) t);
+        Collections.sort(sorted, BY_PRIORITY);
+        ordered = sorted.toArray(new PatternTable[sorted.size()]);
+    }
+
+    /**
+     * Splits a pattern into cumulative stages, one per layer that
+     * contributes fields, as field bitmasks. The last stage always holds the
+     * full pattern.
+     */
+    private static int[] stagesOf(Set<WildcardMatch.Field> pattern) {
+        int[] stages = new int[4];
+        int numStages = 0;
+        int cumulative = 0;
+        for (short layer = 1; layer <= 4; layer++) {
+            int grown = cumulative;
+            for (WildcardMatch.Field field : pattern) {
+                if (WildcardMatch.getLayer(field) == layer)
+                    grown |= field.mask();
+            }
+            if (grown != cumulative) {
+                cumulative = grown;
+                stages[numStages++] = cumulative;
+            }
+        }
+        return Arrays.copyOf(stages, numStages);
+    }
+
+    /**
+     * A reusable key that stands for the projection of a match over a
+     * table's pattern. Its hash code and equality are those of a match that
+     * uses exactly the pattern's fields, so it finds the flows stored in the
+     * table without having to build the projection.
+     */
+    private static final class ProbeKey {
+        private WildcardMatch source;
+        private int pattern;
+
+        ProbeKey reset(WildcardMatch source, int pattern) {
+            this.source = source;
+            this.pattern = pattern;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return source.projectionHashCode(pattern);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WildcardMatch &&
+                   source.projectionEquals(pattern, (WildcardMatch) o);
+        }
+    }
+
+    private static final ThreadLocal<ProbeKey> probeKeys =
+        new ThreadLocal<ProbeKey>() {
+            @Override
+            protected ProbeKey initialValue() {
+                return new ProbeKey();
+            }
+        };
+
+    /**
+     * The flows for a single wildcard pattern. Writes go through put() and
+     * remove() so that the stage indices and the best priority are kept up
+     * to date.
+     */
+    private final class PatternTable
+            extends AbstractMap<WildcardMatch, ManagedWildcardFlow> {
+
+        private final Set<WildcardMatch.Field> pattern;
+        private final int patternMask;
+        private final ConcurrentHashMap<WildcardMatch, ManagedWildcardFlow> flows =
+            new ConcurrentHashMap<>(INITIAL_TABLE_CAPACITY, LOAD_FACTOR,
+                                    CONCURRENCY_LEVEL);
+
+        /* All stages except the last one, which is the table itself. */
+        private final int[] stages;
+        private volatile AtomicIntegerArray[] stageIndices;
+
+        private final TreeMap<Short, Integer> priorities = new TreeMap<>();
+        volatile int bestPriority = Integer.MAX_VALUE;
+
+        PatternTable(Set<WildcardMatch.Field> pattern) {
+            this.pattern = pattern;
+            this.patternMask = WildcardMatch.maskOf(pattern);
+            int[] all = stagesOf(pattern);
+            this.stages = all.length > 0 ? Arrays.copyOf(all, all.length - 1)
+                                         : all;
+            this.stageIndices = newIndices(INITIAL_STAGE_INDEX_SIZE);
+        }
+
+        ManagedWildcardFlow lookup(WildcardMatch wildMatch) {
+            if ((wildMatch.getUsedFieldsMask() & patternMask) != patternMask)
+                return null;
+
+            AtomicIntegerArray[] indices = stageIndices;
+            for (int i = 0; i < stages.length; i++) {
+                AtomicIntegerArray index = indices[i];
+                int slot = wildMatch.hashCodeOf(stages[i]) & (index.length() - 1);
+                if (index.get(slot) == 0)
+                    return null;
+            }
+
+            ProbeKey probe = probeKeys.get().reset(wildMatch, patternMask);
+            ManagedWildcardFlow flow = flows.get(probe);
+            probe.reset(null, 0);
+            return flow;
+        }
+
+        @Override
+        public ManagedWildcardFlow get(Object key) {
+            return flows.get(key);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return flows.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return flows.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return flows.isEmpty();
+        }
+
+        @Override
+        public Set<Entry<WildcardMatch, ManagedWildcardFlow>> entrySet() {
+            return Collections.unmodifiableSet(flows.entrySet());
+        }
+
+        @Override
+        public ManagedWildcardFlow put(WildcardMatch key,
+                                       ManagedWildcardFlow flow) {
+            AtomicIntegerArray[] indices = stageIndices;
+            if (stages.length > 0 && flows.size() + 1 > indices[0].length() / 2
+                    && indices[0].length() < MAX_STAGE_INDEX_SIZE) {
+                indices = rebuildIndices(indices[0].length() * 2);
+            }
+            // Index the stages before publishing the flow so that a
+            // concurrent lookup that can see the flow also finds its stages.
+            updateStages(indices, key, 1);
+            ManagedWildcardFlow old = flows.put(key, flow);
+            if (old != null) {
+                updateStages(indices, key, -1);
+                forgetPriority(old.getPriority());
+            }
+            rememberPriority(flow.getPriority());
+            return old;
+        }
+
+        @Override
+        public ManagedWildcardFlow remove(Object key) {
+            ManagedWildcardFlow old = flows.remove(key);
+            if (old != null) {
+                updateStages(stageIndices, (WildcardMatch) key, -1);
+                forgetPriority(old.getPriority());
+            }
+            return old;
+        }
+
+        @Override
+        public void clear() {
+            flows.clear();
+            priorities.clear();
+            stageIndices = newIndices(INITIAL_STAGE_INDEX_SIZE);
+            updateBestPriority();
+        }
+
+        private void updateStages(AtomicIntegerArray[] indices,
+                                  WildcardMatch key, int delta) {
+            for (int i = 0; i < stages.length; i++) {
+                AtomicIntegerArray index = indices[i];
+                int slot = key.hashCodeOf(stages[i]) & (index.length() - 1);
+                index.addAndGet(slot, delta);
+            }
+        }
+
+        private AtomicIntegerArray[] newIndices(int size) {
+            AtomicIntegerArray[] indices = new AtomicIntegerArray[stages.length];
+            for (int i = 0; i < stages.length; i++)
+                indices[i] = new AtomicIntegerArray(size);
+            return indices;
+        }
+
+        private AtomicIntegerArray[] rebuildIndices(int size) {
+            AtomicIntegerArray[] indices = newIndices(size);
+            for (WildcardMatch key : flows.keySet())
+                updateStages(indices, key, 1);
+            stageIndices = indices;
+            return indices;
+        }
+
+        private void rememberPriority(short priority) {
+            Integer count = priorities.get(priority);
+            priorities.put(priority, count == null ? 1 : count + 1);
+            updateBestPriority();
+        }
+
+        private void forgetPriority(short priority) {
+            Integer count = priorities.get(priority);
+            if (count == null)
+                return;
+            if (count == 1)
+                priorities.remove(priority);
+            else
+                priorities.put(priority, count - 1);
+            updateBestPriority();
+        }
+
+        private void updateBestPriority() {
+            int best = priorities.isEmpty() ? Integer.MAX_VALUE
+                                            : priorities.firstKey();
+            if (best != bestPriority) {
+                bestPriority = best;
+                if (tables.get(pattern) == this)
+                    reorder();
+            }
+        }
+    }
+}
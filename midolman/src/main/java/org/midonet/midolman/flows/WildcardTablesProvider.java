@@ -25,5 +25,7 @@ import org.midonet.sdn.flows.WildcardMatch;
 public interface WildcardTablesProvider {
     Map<WildcardMatch, ManagedWildcardFlow> addTable(Set<WildcardMatch.Field> pattern);
 
+    Map<WildcardMatch, ManagedWildcardFlow> removeTable(Set<WildcardMatch.Field> pattern);
+
     Map<Set<WildcardMatch.Field>, Map<WildcardMatch, ManagedWildcardFlow>> tables();
 }
@@ -17,6 +17,7 @@ package org.midonet.midolman.guice.datapath;
 
 import javax.inject.Singleton;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.Inject;
 import com.google.inject.PrivateModule;
 import com.google.inject.Provider;
@@ -36,6 +37,7 @@ public class DatapathModule extends PrivateModule {
     protected void configure() {
         binder().requireExplicitBindings();
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
 
         bindDatapathConnectionPool();
         bindUpcallDatapathConnectionManager();
@@ -69,14 +71,19 @@ public class DatapathModule extends PrivateModule {
         @Inject
         TokenBucketPolicy tbPolicy;
 
+        @Inject
+        MetricRegistry metricRegistry;
+
         @Override
         public UpcallDatapathConnectionManager get() {
             String val = config.getInputChannelThreading();
             switch (val) {
                 case "one_to_many":
-                    return new OneToManyDpConnManager(config, tbPolicy);
+                    return new OneToManyDpConnManager(config, tbPolicy,
+                                                      metricRegistry);
                 case "one_to_one":
-                    return new OneToOneDpConnManager(config, tbPolicy);
+                    return new OneToOneDpConnManager(config, tbPolicy,
+                                                     metricRegistry);
                 default:
                     throw new IllegalArgumentException(
                         "Unknown value for input_channel_threading: " + val);
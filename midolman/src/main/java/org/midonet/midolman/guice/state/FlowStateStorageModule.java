@@ -15,6 +15,7 @@
  */
 package org.midonet.midolman.guice.state;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.*;
 import com.google.inject.name.Named;
 import com.google.inject.name.Names;
@@ -22,6 +23,7 @@ import com.google.inject.name.Names;
 import org.midonet.cassandra.CassandraClient;
 import org.midonet.midolman.config.MidolmanConfig;
 import org.midonet.midolman.guice.zookeeper.ZKConnectionProvider;
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics;
 import org.midonet.midolman.state.FlowStateStorage;
 import org.midonet.midolman.state.FlowStateStorage$;
 import org.midonet.midolman.state.FlowStateStorageFactory;
@@ -34,6 +36,7 @@ public class FlowStateStorageModule extends PrivateModule {
         binder().requireExplicitBindings();
 
         requireBinding(MidolmanConfig.class);
+        requireBinding(MetricRegistry.class);
         requireBinding(Key.get(Reactor.class, Names.named(
                 ZKConnectionProvider.DIRECTORY_REACTOR_TAG)));
 
@@ -50,6 +53,9 @@ public class FlowStateStorageModule extends PrivateModule {
         @Named(ZKConnectionProvider.DIRECTORY_REACTOR_TAG)
         Reactor reactor;
 
+        @Inject
+        MetricRegistry metricRegistry;
+
         @Override
         public FlowStateStorageFactory get() {
             CassandraClient cass = new CassandraClient(
@@ -57,20 +63,34 @@ public class FlowStateStorageModule extends PrivateModule {
                     "MidonetFlowState", config.getCassandraReplicationFactor(),
                     FlowStateStorage$.MODULE$.SCHEMA(), reactor);
             cass.connect();
-            return new FlowStateStorageFactoryImpl(cass);
+            return new FlowStateStorageFactoryImpl(
+                    cass, new FlowStateStorageMetrics(metricRegistry),
+                    config.getFlowStateMaxPendingWrites(),
+                    config.getFlowStateMaxInFlightBatches());
         }
     }
 
     private static class FlowStateStorageFactoryImpl implements FlowStateStorageFactory {
         CassandraClient cass;
+        FlowStateStorageMetrics metrics;
+        int maxPendingWrites;
+        int maxInFlightBatches;
 
-        public FlowStateStorageFactoryImpl(CassandraClient cass) {
+        public FlowStateStorageFactoryImpl(CassandraClient cass,
+                                           FlowStateStorageMetrics metrics,
+                                           int maxPendingWrites,
+                                           int maxInFlightBatches) {
             this.cass = cass;
+            this.metrics = metrics;
+            this.maxPendingWrites = maxPendingWrites;
+            this.maxInFlightBatches = maxInFlightBatches;
         }
 
         @Override
         public FlowStateStorage create() {
-            return FlowStateStorage$.MODULE$.apply(cass);
+            return FlowStateStorage$.MODULE$.apply(cass, metrics,
+                                                   maxPendingWrites,
+                                                   maxInFlightBatches);
         }
     }
 }
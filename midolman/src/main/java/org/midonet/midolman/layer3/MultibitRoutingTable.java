@@ -0,0 +1,383 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.midonet.packets.IPv4Addr;
+
+/**
+ * An IPv4 routing table that resolves the destination prefix of a lookup in
+ * at most three array accesses, using a multibit trie with strides of 16, 8
+ * and 8 bits (DIR-16-8-8). Every slot of the trie holds the longest prefix
+ * that covers it, or a chunk with the next 8 bits when a longer prefix
+ * exists below the slot.
+ *
+ * The trie is modified in place and published as immutable Snapshots: the
+ * first write after a snapshot() copies the root and the chunks it touches,
+ * so that a batch of route changes costs in proportion to the address space
+ * the changed prefixes cover, not to the size of the table.
+ *
+ * Routes constrained on their source network are rare, and falling back to a
+ * shorter prefix when the source doesn't match would defeat leaf pushing, so
+ * they are kept apart in a RoutingTable that is rebuilt when they change.
+ * Lookups return the same routes as RoutingTable.lookup().
+ *
+ * This class is *NOT* thread safe, the Snapshots it returns are.
+ */
+public class MultibitRoutingTable implements RoutingTableIfc<IPv4Addr> {
+
+    /** The routes towards a destination prefix. */
+    static final class Entry {
+        final int addr;
+        final int length;
+        final Route[] routes;
+        /** The routes with the lowest weight, which lookups return. */
+        final List<Route> best;
+
+        Entry(int addr, int length, Route[] routes) {
+            this.addr = addr;
+            this.length = length;
+            this.routes = routes;
+            List<Route> best = new ArrayList<>(1);
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.weight < minWeight) {
+                    best.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    best.add(rt);
+            }
+            this.best = Collections.unmodifiableList(best);
+        }
+    }
+
+    /** The next 8 bits of the address space below a slot. */
+    static final class Chunk {
+        final Object[] slots;
+        final int version;
+
+        Chunk(Object[] slots, int version) {
+            this.slots = slots;
+            this.version = version;
+        }
+    }
+
+    /** An immutable view of the table, as of the call to snapshot(). */
+    public static final class Snapshot implements RoutingTableIfc<IPv4Addr> {
+        private final Object[] root;
+        private final RoutingTable policyRoutes;
+        private final int numRoutes;
+        private final int numChunks;
+
+        Snapshot(Object[] root, RoutingTable policyRoutes, int numRoutes,
+                 int numChunks) {
+            this.root = root;
+            this.policyRoutes = policyRoutes;
+            this.numRoutes = numRoutes;
+            this.numChunks = numChunks;
+        }
+
+        public int size() {
+            return numRoutes;
+        }
+
+        /** The number of 256 slot chunks below the 64k slot root. */
+        public int chunks() {
+            return numChunks;
+        }
+
+        @Override
+        public void addRoute(Route rt) {
+            throw new UnsupportedOperationException("Snapshots are immutable");
+        }
+
+        @Override
+        public void deleteRoute(Route rt) {
+            throw new UnsupportedOperationException("Snapshots are immutable");
+        }
+
+        @Override
+        public List<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+            return lookup(src.toInt(), dst.toInt());
+        }
+
+        public List<Route> lookup(int src, int dst) {
+            Object slot = root[dst >>> 16];
+            if (slot instanceof Chunk) {
+                slot = ((Chunk) slot).slots[(dst >>> 8) & 0xff];
+                if (slot instanceof Chunk)
+                    slot = ((Chunk) slot).slots[dst & 0xff];
+            }
+            Entry entry = (Entry) slot;
+            List<Route> routes = (entry == null)
+                    ? Collections.<Route>emptyList() : entry.best;
+            if (policyRoutes == null)
+                return routes;
+
+            // All the routes returned by a RoutingTable share their prefix.
+            List<Route> policy = (List<Route>) policyRoutes.lookup(src, dst);
+            if (policy.isEmpty())
+                return routes;
+            if (routes.isEmpty())
+                return policy;
+            Route p = policy.get(0);
+            Route r = routes.get(0);
+            if (p.dstNetworkLength != r.dstNetworkLength)
+                return (p.dstNetworkLength > r.dstNetworkLength) ? policy
+                                                                 : routes;
+            if (p.weight != r.weight)
+                return (p.weight < r.weight) ? policy : routes;
+            List<Route> both = new ArrayList<>(routes);
+            both.addAll(policy);
+            return both;
+        }
+    }
+
+    private static final int ROOT_SIZE = 1 << 16;
+    private static final int CHUNK_SIZE = 1 << 8;
+
+    private final Map<Long, Entry> prefixes = new HashMap<>();
+    private final Set<Route> policyRoutes = new HashSet<>();
+
+    private Object[] root = new Object[ROOT_SIZE];
+    private int rootVersion = 0;
+    private int version = 0;
+    private int numRoutes = 0;
+    private int numChunks = 0;
+
+    private RoutingTable policyTable = null;
+    private boolean policyChanged = false;
+    private Snapshot snapshot = null;
+
+    static int mask(int length) {
+        return (length == 0) ? 0 : ~0 << (32 - length);
+    }
+
+    private static long key(int addr, int length) {
+        return ((addr & 0xffffffffL) << 6) | length;
+    }
+
+    @Override
+    public void addRoute(Route rt) {
+        if (rt.srcNetworkLength != 0) {
+            if (policyRoutes.add(rt)) {
+                numRoutes++;
+                policyChanged = true;
+                snapshot = null;
+            }
+            return;
+        }
+
+        int addr = rt.dstNetworkAddr & mask(rt.dstNetworkLength);
+        int length = rt.dstNetworkLength;
+        Entry old = prefixes.get(key(addr, length));
+        Route[] routes;
+        if (old == null) {
+            routes = new Route[] {rt};
+        } else {
+            for (Route r : old.routes)
+                if (r.equals(rt))
+                    return;
+            routes = Arrays.copyOf(old.routes, old.routes.length + 1);
+            routes[old.routes.length] = rt;
+        }
+        Entry entry = new Entry(addr, length, routes);
+        prefixes.put(key(addr, length), entry);
+        update(addr, length, (old == null) ? covering(addr, length) : old,
+               entry);
+        numRoutes++;
+        snapshot = null;
+    }
+
+    @Override
+    public void deleteRoute(Route rt) {
+        if (rt.srcNetworkLength != 0) {
+            if (policyRoutes.remove(rt)) {
+                numRoutes--;
+                policyChanged = true;
+                snapshot = null;
+            }
+            return;
+        }
+
+        int addr = rt.dstNetworkAddr & mask(rt.dstNetworkLength);
+        int length = rt.dstNetworkLength;
+        Entry old = prefixes.get(key(addr, length));
+        if (old == null)
+            return;
+        int i = 0;
+        while (i < old.routes.length && !old.routes[i].equals(rt))
+            i++;
+        if (i == old.routes.length)
+            return;
+
+        Entry entry;
+        if (old.routes.length == 1) {
+            prefixes.remove(key(addr, length));
+            entry = covering(addr, length);
+        } else {
+            Route[] routes = new Route[old.routes.length - 1];
+            System.arraycopy(old.routes, 0, routes, 0, i);
+            System.arraycopy(old.routes, i + 1, routes, i, routes.length - i);
+            entry = new Entry(addr, length, routes);
+            prefixes.put(key(addr, length), entry);
+        }
+        update(addr, length, old, entry);
+        numRoutes--;
+        snapshot = null;
+    }
+
+    /**
+     * Returns an immutable view of the table. Further changes to the table
+     * copy the parts of the trie they modify.
+     */
+    public Snapshot snapshot() {
+        if (snapshot == null) {
+            if (policyChanged) {
+                policyTable = null;
+                if (!policyRoutes.isEmpty()) {
+                    policyTable = new RoutingTable();
+                    for (Route rt : policyRoutes)
+                        policyTable.addRoute(rt);
+                }
+                policyChanged = false;
+            }
+            snapshot = new Snapshot(root, policyTable, numRoutes, numChunks);
+            version++;
+        }
+        return snapshot;
+    }
+
+    @Override
+    public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst) {
+        return snapshot().lookup(src, dst);
+    }
+
+    public int size() {
+        return numRoutes;
+    }
+
+    /** The longest prefix with routes that strictly contains the given one. */
+    private Entry covering(int addr, int length) {
+        for (int len = length - 1; len >= 0; len--) {
+            Entry e = prefixes.get(key(addr & mask(len), len));
+            if (e != null)
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * Replaces with `to` every slot below the given prefix that resolves to
+     * `from`. Slots resolving to a different entry belong to longer prefixes
+     * and are left alone.
+     */
+    private void update(int addr, int length, Entry from, Entry to) {
+        Object[] slots = writableRoot();
+        if (length <= 16) {
+            replace(slots, addr >>> 16, 1 << (16 - length), from, to);
+            return;
+        }
+
+        int index2 = addr >>> 16;
+        Chunk chunk2 = expand(slots, index2);
+        if (length <= 24) {
+            replace(chunk2.slots, (addr >>> 8) & 0xff, 1 << (24 - length),
+                    from, to);
+        } else {
+            int index3 = (addr >>> 8) & 0xff;
+            Chunk chunk3 = expand(chunk2.slots, index3);
+            replace(chunk3.slots, addr & 0xff, 1 << (32 - length), from, to);
+            collapse(chunk2.slots, index3);
+        }
+        collapse(slots, index2);
+    }
+
+    private void replace(Object[] slots, int start, int count, Entry from,
+                         Entry to) {
+        for (int i = start; i < start + count; i++) {
+            Object slot = slots[i];
+            if (slot instanceof Chunk) {
+                Chunk chunk = writable(slots, i);
+                replace(chunk.slots, 0, CHUNK_SIZE, from, to);
+            } else if (slot == from) {
+                slots[i] = to;
+            }
+        }
+    }
+
+    private Object[] writableRoot() {
+        if (rootVersion != version) {
+            root = root.clone();
+            rootVersion = version;
+        }
+        return root;
+    }
+
+    /* Returns the chunk at the given slot, copying it if it may be shared
+     * with a snapshot. The slots array must be writable. */
+    private Chunk writable(Object[] slots, int index) {
+        Chunk chunk = (Chunk) slots[index];
+        if (chunk.version != version) {
+            chunk = new Chunk(chunk.slots.clone(), version);
+            slots[index] = chunk;
+        }
+        return chunk;
+    }
+
+    /* Returns a writable chunk at the given slot, creating one that resolves
+     * to the entry the slot held if there was none. */
+    private Chunk expand(Object[] slots, int index) {
+        if (slots[index] instanceof Chunk)
+            return writable(slots, index);
+        Object[] chunkSlots = new Object[CHUNK_SIZE];
+        Arrays.fill(chunkSlots, slots[index]);
+        Chunk chunk = new Chunk(chunkSlots, version);
+        slots[index] = chunk;
+        numChunks++;
+        return chunk;
+    }
+
+    /* Replaces the chunk at the given slot by the entry it resolves to if
+     * all its slots resolve to the same one. */
+    private void collapse(Object[] slots, int index) {
+        Object[] chunkSlots = ((Chunk) slots[index]).slots;
+        Object first = chunkSlots[0];
+        if (first instanceof Chunk)
+            return;
+        for (int i = 1; i < CHUNK_SIZE; i++)
+            if (chunkSlots[i] != first)
+                return;
+        slots[index] = first;
+        numChunks--;
+    }
+
+    @Override
+    public String toString() {
+        return "MultibitRoutingTable [routes=" + numRoutes + ", chunks=" +
+               numChunks + "]";
+    }
+}
@@ -158,6 +158,18 @@ public class Condition extends BaseConfig {
         return outPortIds != null && outPortIds.contains(portId);
     }
 
+    /**
+     * The fields of the packet's match that matches() can read, and thus mark
+     * as seen. Keep it up to date with the getters called below.
+     */
+    public static final int MATCHED_FIELDS = WildcardMatch.maskOf(
+        new WildcardMatch.Field[] {
+            WildcardMatch.Field.FragmentType, WildcardMatch.Field.NetworkSrc,
+            WildcardMatch.Field.NetworkDst, WildcardMatch.Field.EtherType,
+            WildcardMatch.Field.EthSrc, WildcardMatch.Field.EthDst,
+            WildcardMatch.Field.NetworkTOS, WildcardMatch.Field.NetworkProto,
+            WildcardMatch.Field.SrcPort, WildcardMatch.Field.DstPort });
+
     public boolean matches(PacketContext pktCtx, boolean isPortFilter) {
         WildcardMatch pktMatch = pktCtx.wcmatch();
         // Matching on fragmentPolicy is unaffected by conjunctionInv,
@@ -25,7 +25,6 @@ import java.util.UUID;
 import scala.Option;
 import scala.collection.Map;
 
-import org.midonet.sdn.flows.WildcardMatch;
 import org.midonet.midolman.rules.JumpRule;
 import org.midonet.midolman.rules.Rule;
 import org.midonet.midolman.rules.RuleResult;
@@ -39,6 +38,12 @@ public class Chain {
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
 
+    /* Compiled on first use, as the rules and jump targets of a chain can
+     * still be modified by unit tests right after construction. A null value
+     * after compilation means that the chain is evaluated linearly. */
+    private volatile boolean compiled = false;
+    private CompiledChain program;
+
     public Chain(UUID id, List<Rule> rules, Map<UUID, Chain> jumpTargets,
                  String name) {
         this.id = id;
@@ -126,6 +131,14 @@ public class Chain {
         assert res.action != Action.JUMP;
     }
 
+    CompiledChain program() {
+        if (!compiled) {
+            program = CompiledChain.compile(this);
+            compiled = true;
+        }
+        return program;
+    }
+
     /**
      * @param chain
      *            The chain where processing starts.
@@ -140,7 +153,37 @@ public class Chain {
             Chain chain, PacketContext context,
             UUID ownerId, boolean isPortFilter) {
 
-        WildcardMatch pktMatch = context.wcmatch();
+        if (null == chain) {
+            return new RuleResult(Action.ACCEPT, null);
+        }
+
+        CompiledChain program = chain.program();
+        if (program == null)
+            return applyLinear(chain, context, ownerId, isPortFilter);
+
+        if (context.jlog().isDebugEnabled()) {
+            context.jlog().debug("Testing against Chain:\n{}", chain.asList(4, false));
+        }
+
+        RuleResult res = new RuleResult(Action.CONTINUE, null);
+        program.apply(context, ownerId, isPortFilter, res);
+
+        // Accept if the chain didn't make an explicit decision.
+        if (!res.action.isDecisive())
+            res.action = Action.ACCEPT;
+
+        return res;
+    }
+
+    /**
+     * Applies the chain by walking its rules one by one, following jumps
+     * recursively. This is the reference evaluation that compiled chains must
+     * be equivalent to, and the fallback for chains that can't be compiled.
+     */
+    static RuleResult applyLinear(
+            Chain chain, PacketContext context,
+            UUID ownerId, boolean isPortFilter) {
+
         if (null == chain) {
             return new RuleResult(Action.ACCEPT, null);
         }
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import org.midonet.midolman.rules.Condition;
+import org.midonet.midolman.rules.JumpRule;
+import org.midonet.midolman.rules.NatRule;
+import org.midonet.midolman.rules.Rule;
+import org.midonet.midolman.rules.RuleResult;
+import org.midonet.midolman.rules.RuleResult.Action;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.Unsigned;
+import org.midonet.sdn.flows.WildcardMatch;
+import org.midonet.util.Range;
+
+/**
+ * A Chain compiled into a flat program, with the rules of all the chains it
+ * can jump to inlined in place of the jumps, plus an index over the rule
+ * conditions that lets evaluation skip rules that can't possibly match.
+ *
+ * Each jump is followed by the block of rules of its target, so taking a
+ * jump means carrying on with the next entry, and not taking it (or a
+ * RETURN from within the block) means skipping to the end of the block.
+ *
+ * The index keeps, per indexed packet field, a bitset of the entries whose
+ * condition constrains that field to a given value (or prefix or port range),
+ * plus a bitset of the entries that don't constrain it at all. An entry is a
+ * candidate for a packet if it's set in the intersection across all fields.
+ * The index is conservative: every candidate is still evaluated through
+ * Rule.process, so the result is always the same as the one of the plain
+ * linear evaluation in Chain. Rules that can rewrite the packet (NAT) cause
+ * the index to be looked up again for the remaining entries.
+ *
+ * The index reads the packet's fields without marking them as seen. Instead,
+ * the conditions of the entries it rules out are still evaluated for the
+ * fields they read, as the linear evaluation would, until every field that a
+ * condition can read was seen. This keeps the wildcards of the resulting flow
+ * the same as with the linear evaluation.
+ */
+final class CompiledChain {
+
+    /* Chains that inline more than this many entries are not compiled. */
+    static final int MAX_ENTRIES = 16384;
+    /* Port ranges aren't indexed beyond this many entries, as the number of
+     * elementary intervals is quadratic on the number of ranges. */
+    private static final int MAX_RANGE_INDEXED_ENTRIES = 4096;
+    private static final int MAX_DEPTH = 10;
+
+    private static final byte JUMP_NONE = 0;
+    private static final byte JUMP_OK = 1;
+    private static final byte JUMP_NOT_FOUND = 2;
+    private static final byte JUMP_VISITED = 3;
+    private static final byte JUMP_TOO_DEEP = 4;
+
+    private final Chain root;
+    private final int size;
+    private final int words;
+
+    private final Rule[] rules;
+    private final Chain[] owners;
+    private final Chain[] targets;
+    private final byte[] jumpKinds;
+    private final int[] blockEnds;
+    private final int[] returnTos;
+
+    private static final long[][] NO_SETS = new long[0][];
+
+    private final long[] all;
+    private final long[] none;
+
+    private final ExactIndex<Byte> nwProto;
+    private final ExactIndex<Integer> etherType;
+    private final PrefixIndex nwSrc;
+    private final PrefixIndex nwDst;
+    private final RangeIndex tpSrc;
+    private final RangeIndex tpDst;
+
+    private CompiledChain(Chain root, Builder builder) {
+        this.root = root;
+        this.size = builder.rules.size();
+        this.words = (size + 63) >>> 6;
+
+        rules = builder.rules.toArray(new Rule[size]);
+        owners = builder.owners.toArray(new Chain[size]);
+        targets = builder.targets.toArray(new Chain[size]);
+        jumpKinds = new byte[size];
+        blockEnds = new int[size];
+        returnTos = new int[size];
+        for (int i = 0; i < size; i++) {
+            jumpKinds[i] = builder.jumpKinds.get(i);
+            blockEnds[i] = builder.blockEnds.get(i);
+            returnTos[i] = builder.returnTos.get(i);
+        }
+
+        all = new long[words];
+        for (int i = 0; i < size; i++)
+            all[i >>> 6] |= 1L << i;
+        none = new long[words];
+
+        nwProto = new ExactIndex<>();
+        etherType = new ExactIndex<>();
+        nwSrc = new PrefixIndex();
+        nwDst = new PrefixIndex();
+        tpSrc = new RangeIndex();
+        tpDst = new RangeIndex();
+
+        List<Range<Integer>> tpSrcRanges = new ArrayList<>(size);
+        List<Range<Integer>> tpDstRanges = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Condition c = rules[i].getCondition();
+            boolean indexable = c != null && !c.conjunctionInv;
+
+            if (indexable && c.nwProto != null && !c.nwProtoInv)
+                nwProto.add(c.nwProto, i);
+            else
+                set(nwProto.any, i);
+
+            if (indexable && c.etherType != null && !c.invDlType)
+                etherType.add(c.etherType, i);
+            else
+                set(etherType.any, i);
+
+            if (indexable && c.nwSrcIp instanceof IPv4Subnet && !c.nwSrcInv)
+                nwSrc.add((IPv4Subnet) c.nwSrcIp, i);
+            else
+                set(nwSrc.any, i);
+
+            if (indexable && c.nwDstIp instanceof IPv4Subnet && !c.nwDstInv)
+                nwDst.add((IPv4Subnet) c.nwDstIp, i);
+            else
+                set(nwDst.any, i);
+
+            boolean rangeIndexable = indexable && size <= MAX_RANGE_INDEXED_ENTRIES;
+            if (rangeIndexable && c.tpSrc != null && !c.tpSrcInv)
+                tpSrcRanges.add(c.tpSrc);
+            else
+                tpSrcRanges.add(null);
+
+            if (rangeIndexable && c.tpDst != null && !c.tpDstInv)
+                tpDstRanges.add(c.tpDst);
+            else
+                tpDstRanges.add(null);
+        }
+        tpSrc.build(tpSrcRanges);
+        tpDst.build(tpDstRanges);
+    }
+
+    /**
+     * Compiles the given chain, or returns null if it can't be compiled, in
+     * which case it must be evaluated linearly.
+     */
+    static CompiledChain compile(Chain chain) {
+        Builder builder = new Builder();
+        List<UUID> stack = new ArrayList<>();
+        stack.add(chain.id);
+        if (!builder.inline(chain, stack, 0))
+            return null;
+        return new CompiledChain(chain, builder);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void apply(PacketContext context, UUID ownerId, boolean isPortFilter,
+               RuleResult res) {
+        context.jlog().debug("Processing chain with name {} and ID {}",
+                             root.name, root.id);
+        context.addFlowTag(root.flowInvTag);
+
+        List<UUID> traversedChains = null;
+        Candidates candidates = new Candidates(context.wcmatch());
+        res.action = Action.CONTINUE;
+
+        int i = candidates.next(0);
+        markRuledOut(context, isPortFilter, 0, i);
+        while (i < size) {
+            Rule rule = rules[i];
+            rule.process(context, res, ownerId, isPortFilter);
+
+            int next = i + 1;
+            switch (res.action) {
+                case CONTINUE:
+                    // A jump whose condition didn't match skips its block.
+                    if (jumpKinds[i] != JUMP_NONE)
+                        next = blockEnds[i];
+                    break;
+
+                case RETURN:
+                    if (returnTos[i] == size)
+                        return;
+                    res.action = Action.CONTINUE;
+                    next = returnTos[i];
+                    break;
+
+                case JUMP:
+                    if (traversedChains == null) {
+                        traversedChains = new ArrayList<>();
+                        traversedChains.add(root.id);
+                    }
+                    next = takeJump(i, context, res, traversedChains);
+                    break;
+
+                default:
+                    return;
+            }
+
+            if (rule instanceof NatRule)
+                candidates.refresh(context.wcmatch());
+            i = candidates.next(next);
+            markRuledOut(context, isPortFilter, next, i);
+        }
+
+        if (traversedChains != null && traversedChains.size() > 25) {
+            context.jlog().warn("Traversed {} chains when applying chain {}.",
+                                traversedChains.size(), root.id, context);
+        }
+    }
+
+    /* Marks as seen the fields that the conditions of the entries between
+     * from and to, ruled out by the index, read. Ruled out jumps are not
+     * entered, so their blocks are skipped. */
+    private void markRuledOut(PacketContext context, boolean isPortFilter,
+                              int from, int to) {
+        WildcardMatch match = context.wcmatch();
+        for (int j = from; j < to; j++) {
+            if (!match.isTrackingSeenFields() ||
+                (match.getSeenFieldsMask() & Condition.MATCHED_FIELDS) ==
+                    Condition.MATCHED_FIELDS)
+                return;
+            rules[j].getCondition().matches(context, isPortFilter);
+            if (jumpKinds[j] != JUMP_NONE)
+                j = blockEnds[j] - 1;
+        }
+    }
+
+    private int takeJump(int i, PacketContext context, RuleResult res,
+                         List<UUID> traversedChains) {
+        res.action = Action.CONTINUE;
+        Chain target = targets[i];
+        switch (jumpKinds[i]) {
+            case JUMP_NOT_FOUND:
+                context.jlog().error("ignoring jump to chain {} : not found.",
+                                     res.jumpToChain, context);
+                return blockEnds[i];
+            case JUMP_VISITED:
+                context.jlog().warn(
+                    "cannot jump from chain {} to chain {} -- already visited",
+                    owners[i], target, context);
+                return blockEnds[i];
+            default:
+                // A chain that was jumped to before, through a different
+                // path, is not visited again.
+                if (traversedChains.contains(target.id)) {
+                    context.jlog().warn(
+                        "cannot jump from chain {} to chain {} -- already visited",
+                        owners[i], target, context);
+                    return blockEnds[i];
+                }
+                if (jumpKinds[i] == JUMP_TOO_DEEP) {
+                    throw new IllegalStateException("Deep recursion when " +
+                        "processing chain " + root.id);
+                }
+                context.jlog().debug("Processing chain with name {} and ID {}",
+                                     target.name, target.id);
+                context.addFlowTag(target.flowInvTag);
+                traversedChains.add(target.id);
+                return i + 1;
+        }
+    }
+
+    private static void set(long[] bits, int i) {
+        bits[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * The per packet view of the index: the bitsets selected by the values
+     * of the packet's fields.
+     */
+    private final class Candidates {
+        private long[] proto;
+        private long[] ethType;
+        private long[][] src;
+        private long[][] dst;
+        private long[] srcPort;
+        private long[] dstPort;
+
+        Candidates(WildcardMatch match) {
+            refresh(match);
+        }
+
+        /* Only the indexes with entries are looked up, and the fields
+         * they read are not marked as seen. */
+        void refresh(WildcardMatch match) {
+            boolean tracking = match.isTrackingSeenFields();
+            match.doNotTrackSeenFields();
+            try {
+                proto = nwProto.isEmpty() ? none
+                        : nwProto.lookup(match.getNetworkProto());
+                if (etherType.isEmpty()) {
+                    ethType = none;
+                } else {
+                    Short type = match.getEtherType();
+                    ethType = etherType.lookup(
+                        type != null ? Unsigned.unsign(type) : null);
+                }
+                src = nwSrc.isEmpty() ? NO_SETS
+                      : nwSrc.lookup(match.getNetworkSrcIP(), src);
+                dst = nwDst.isEmpty() ? NO_SETS
+                      : nwDst.lookup(match.getNetworkDstIP(), dst);
+                // A missing transport port matches any range.
+                Integer port = tpSrc.isEmpty() ? null : match.getSrcPort();
+                srcPort = port != null ? tpSrc.lookup(port) : all;
+                port = tpDst.isEmpty() ? null : match.getDstPort();
+                dstPort = port != null ? tpDst.lookup(port) : all;
+            } finally {
+                if (tracking)
+                    match.doTrackSeenFields();
+            }
+        }
+
+        private long word(int w) {
+            long bits = all[w];
+            bits &= nwProto.any[w] | proto[w];
+            bits &= etherType.any[w] | ethType[w];
+            bits &= nwSrc.any[w] | any(src, w);
+            bits &= nwDst.any[w] | any(dst, w);
+            bits &= tpSrc.any[w] | srcPort[w];
+            bits &= tpDst.any[w] | dstPort[w];
+            return bits;
+        }
+
+        private long any(long[][] sets, int w) {
+            long bits = 0L;
+            for (long[] set : sets) {
+                if (set != null)
+                    bits |= set[w];
+            }
+            return bits;
+        }
+
+        /**
+         * Returns the first candidate entry at or after the given one, or
+         * the size of the program if there is none. Jumps that aren't
+         * candidates are skipped along with their blocks.
+         */
+        int next(int from) {
+            int i = from;
+            while (i < size) {
+                int w = i >>> 6;
+                long bits = word(w) & (-1L << i);
+                if (bits == 0L) {
+                    i = (w + 1) << 6;
+                    continue;
+                }
+                int candidate = (w << 6) + Long.numberOfTrailingZeros(bits);
+                int skipped = skipJumps(i, candidate);
+                if (skipped == candidate)
+                    return candidate;
+                i = skipped;
+            }
+            return size;
+        }
+
+        /* Entries between from and to were ruled out; if one of them is a
+         * jump, its block is not entered, even if it contains candidates. */
+        private int skipJumps(int from, int to) {
+            for (int j = from; j < to; j++) {
+                if (jumpKinds[j] != JUMP_NONE && blockEnds[j] > to)
+                    return blockEnds[j];
+                if (jumpKinds[j] != JUMP_NONE)
+                    j = blockEnds[j] - 1;
+            }
+            return to;
+        }
+    }
+
+    /** Index on a field that conditions match by equality. */
+    private final class ExactIndex<T> {
+        final long[] any = new long[words];
+        final Map<T, long[]> buckets = new HashMap<>();
+
+        void add(T value, int i) {
+            long[] bits = buckets.get(value);
+            if (bits == null) {
+                bits = new long[words];
+                buckets.put(value, bits);
+            }
+            set(bits, i);
+        }
+
+        boolean isEmpty() {
+            return buckets.isEmpty();
+        }
+
+        long[] lookup(T value) {
+            long[] bits = value != null ? buckets.get(value) : null;
+            return bits != null ? bits : none;
+        }
+    }
+
+    /** Index on an IPv4 address that conditions match by prefix. */
+    private final class PrefixIndex {
+        final long[] any = new long[words];
+        int[] prefixLens = new int[0];
+        final List<Map<Integer, long[]>> buckets = new ArrayList<>();
+
+        void add(IPv4Subnet subnet, int i) {
+            int len = subnet.getPrefixLen();
+            int slot = Arrays.binarySearch(prefixLens, len);
+            if (slot < 0) {
+                slot = -slot - 1;
+                int[] lens = new int[prefixLens.length + 1];
+                System.arraycopy(prefixLens, 0, lens, 0, slot);
+                lens[slot] = len;
+                System.arraycopy(prefixLens, slot, lens, slot + 1,
+                                 prefixLens.length - slot);
+                prefixLens = lens;
+                buckets.add(slot, new HashMap<Integer, long[]>());
+            }
+            int key = subnet.getIntAddress() & mask(len);
+            long[] bits = buckets.get(slot).get(key);
+            if (bits == null) {
+                bits = new long[words];
+                buckets.get(slot).put(key, bits);
+            }
+            set(bits, i);
+        }
+
+        boolean isEmpty() {
+            return prefixLens.length == 0;
+        }
+
+        long[][] lookup(IPAddr addr, long[][] reuse) {
+            long[][] sets = (reuse != null && reuse.length == prefixLens.length)
+                            ? reuse : new long[prefixLens.length][];
+            if (!(addr instanceof IPv4Addr)) {
+                Arrays.fill(sets, null);
+                return sets;
+            }
+            int ip = ((IPv4Addr) addr).toInt();
+            for (int k = 0; k < prefixLens.length; k++)
+                sets[k] = buckets.get(k).get(ip & mask(prefixLens[k]));
+            return sets;
+        }
+
+        private int mask(int prefixLen) {
+            return prefixLen == 0 ? 0 : ~0 << (32 - prefixLen);
+        }
+    }
+
+    /** Index on a port that conditions match by (inclusive) range. */
+    private final class RangeIndex {
+        final long[] any = new long[words];
+        int[] starts = new int[0];
+        long[][] intervals = new long[0][];
+
+        void build(List<Range<Integer>> ranges) {
+            TreeSet<Integer> points = new TreeSet<>();
+            for (int i = 0; i < ranges.size(); i++) {
+                Range<Integer> r = ranges.get(i);
+                if (r == null) {
+                    set(any, i);
+                    continue;
+                }
+                points.add(lo(r));
+                if (hi(r) < Integer.MAX_VALUE)
+                    points.add(hi(r) + 1);
+            }
+
+            starts = new int[points.size()];
+            int k = 0;
+            for (Integer p : points)
+                starts[k++] = p;
+
+            intervals = new long[starts.length][];
+            for (k = 0; k < starts.length; k++)
+                intervals[k] = new long[words];
+
+            for (int i = 0; i < ranges.size(); i++) {
+                Range<Integer> r = ranges.get(i);
+                if (r == null)
+                    continue;
+                int from = Arrays.binarySearch(starts, lo(r));
+                for (k = from; k < starts.length && starts[k] <= hi(r); k++)
+                    set(intervals[k], i);
+            }
+        }
+
+        boolean isEmpty() {
+            return starts.length == 0;
+        }
+
+        long[] lookup(int port) {
+            int k = Arrays.binarySearch(starts, port);
+            if (k < 0)
+                k = -k - 2;
+            return k >= 0 ? intervals[k] : none;
+        }
+
+        private int lo(Range<Integer> r) {
+            return r.start() != null ? r.start() : Integer.MIN_VALUE;
+        }
+
+        private int hi(Range<Integer> r) {
+            return r.end() != null ? r.end() : Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Flattens a chain and the chains it jumps to into a program.
+     */
+    private static final class Builder {
+        final List<Rule> rules = new ArrayList<>();
+        final List<Chain> owners = new ArrayList<>();
+        final List<Chain> targets = new ArrayList<>();
+        final List<Byte> jumpKinds = new ArrayList<>();
+        final List<Integer> blockEnds = new ArrayList<>();
+        final List<Integer> returnTos = new ArrayList<>();
+
+        /**
+         * Appends the rules of the given chain. Returns false if the program
+         * grows too large.
+         */
+        boolean inline(Chain chain, List<UUID> stack, int depth) {
+            int blockStart = rules.size();
+            for (Rule rule : chain.getRules()) {
+                if (rules.size() >= MAX_ENTRIES)
+                    return false;
+
+                int index = rules.size();
+                rules.add(rule);
+                owners.add(chain);
+                returnTos.add(-1);
+
+                if (!(rule instanceof JumpRule)) {
+                    targets.add(null);
+                    jumpKinds.add(JUMP_NONE);
+                    blockEnds.add(-1);
+                    continue;
+                }
+
+                Chain target =
+                    chain.getJumpTarget(((JumpRule) rule).jumpToChainID);
+                targets.add(target);
+                blockEnds.add(-1);
+                if (target == null) {
+                    jumpKinds.add(JUMP_NOT_FOUND);
+                } else if (stack.contains(target.id)) {
+                    jumpKinds.add(JUMP_VISITED);
+                } else if (depth + 1 > MAX_DEPTH) {
+                    jumpKinds.add(JUMP_TOO_DEEP);
+                } else {
+                    jumpKinds.add(JUMP_OK);
+                    stack.add(target.id);
+                    boolean ok = inline(target, stack, depth + 1);
+                    stack.remove(stack.size() - 1);
+                    if (!ok)
+                        return false;
+                }
+                blockEnds.set(index, rules.size());
+            }
+
+            // A RETURN from any rule of this chain carries on after it.
+            int blockEnd = rules.size();
+            for (int i = blockStart; i < blockEnd; i++) {
+                if (returnTos.get(i) == -1)
+                    returnTos.set(i, blockEnd);
+            }
+            return true;
+        }
+    }
+}
@@ -31,6 +31,7 @@ import java.util.Collection;
 import java.util.List;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -139,7 +140,10 @@ public abstract class AbstractZkManager<K, CFG>
     public CFG get(K key, Runnable watcher)
             throws StateAccessException, SerializationException {
 
-        byte[] data = zk.get(getConfigPath(key), watcher);
+        return toConfig(key, zk.get(getConfigPath(key), watcher));
+    }
+
+    private CFG toConfig(K key, byte[] data) throws SerializationException {
         if (data == null)
             return null;
 
@@ -168,6 +172,36 @@ public abstract class AbstractZkManager<K, CFG>
         return configs;
     }
 
+    /**
+     * Gets the configs of the resources with the specified IDs that exist,
+     * reading them with pipelined asynchronous requests rather than one
+     * synchronous request after another.
+     *
+     * @param keys IDs of resources to be retrieved.
+     * @return The configs of the existing resources by ID, in the order of
+     *         the IDs.
+     * @throws StateAccessException
+     * @throws SerializationException
+     */
+    public Map<K, CFG> getAll(Collection<K> keys)
+            throws StateAccessException, SerializationException {
+        Map<String, K> keysByPath = new LinkedHashMap<>(keys.size());
+        for (K key : keys) {
+            keysByPath.put(getConfigPath(key), key);
+        }
+
+        Map<String, byte[]> data = zk.getAll(keysByPath.keySet());
+        Map<K, CFG> configs = new LinkedHashMap<>(data.size());
+        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+            K key = keysByPath.get(entry.getKey());
+            CFG config = toConfig(key, entry.getValue());
+            if (config != null) {
+                configs.put(key, config);
+            }
+        }
+        return configs;
+    }
+
     /**
      * Gets the config for the specified resource ID asynchronously.
      *
@@ -16,12 +16,17 @@
 package org.midonet.midolman.state;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.google.inject.Inject;
 
@@ -60,6 +65,11 @@ public class ZkManager {
 
     public static final int ZK_SEQ_NUM_LEN = 10;
 
+    /**
+     * The most asynchronous reads that getAll keeps outstanding at a time.
+     */
+    public static final int MAX_IN_FLIGHT_READS = 256;
+
     /**
      * Constructor.
      *
@@ -320,6 +330,95 @@ public class ZkManager {
         }
     }
 
+    /**
+     * Gets the data of several nodes, see getAll(paths, watcher, maxInFlight).
+     */
+    public Map<String, byte[]> getAll(Collection<String> paths)
+            throws StateAccessException {
+        return getAll(paths, null, MAX_IN_FLIGHT_READS);
+    }
+
+    /**
+     * Gets the data of several nodes, leaving a watch on each node that
+     * exists, see getAll(paths, watcher, maxInFlight).
+     */
+    public Map<String, byte[]> getAll(Collection<String> paths,
+                                      Directory.TypedWatcher watcher)
+            throws StateAccessException {
+        return getAll(paths, watcher, MAX_IN_FLIGHT_READS);
+    }
+
+    /**
+     * Gets the data of several nodes. The reads are pipelined: they are sent
+     * asynchronously, with up to maxInFlight of them waiting for a reply,
+     * instead of waiting for the reply to each read before sending the next
+     * one. Nodes that don't exist are left out of the result.
+     *
+     * This blocks until all the replies are in, and must not be called from
+     * the thread delivering the replies of the directory.
+     *
+     * @param watcher If not null, is notified of the changes to the nodes
+     *                that were read, with the path of the node.
+     * @return The data of the nodes by path, in the order of the paths.
+     */
+    public Map<String, byte[]> getAll(Collection<String> paths,
+                                      Directory.TypedWatcher watcher,
+                                      int maxInFlight)
+            throws StateAccessException {
+        final Map<String, byte[]> results = new HashMap<>(paths.size());
+        final AtomicReference<KeeperException> error = new AtomicReference<>();
+        final Semaphore inFlight = new Semaphore(maxInFlight);
+        try {
+            for (final String path : paths) {
+                inFlight.acquire();
+                if (error.get() != null) {
+                    inFlight.release();
+                    break;
+                }
+                zk.asyncGet(path, new DirectoryCallback<byte[]>() {
+                    @Override
+                    public void onSuccess(byte[] data) {
+                        synchronized (results) {
+                            results.put(path, data);
+                        }
+                        inFlight.release();
+                    }
+
+                    @Override
+                    public void onTimeout() {
+                        error.compareAndSet(
+                            null, new KeeperException.OperationTimeoutException());
+                        inFlight.release();
+                    }
+
+                    @Override
+                    public void onError(KeeperException e) {
+                        if (!(e instanceof NoNodeException))
+                            error.compareAndSet(null, e);
+                        inFlight.release();
+                    }
+                }, watcher);
+            }
+            // Wait for the replies to the last reads
+            inFlight.acquire(maxInFlight);
+        } catch (InterruptedException ex) {
+            throw processException(ex, "getting " + paths.size() + " nodes");
+        }
+        if (error.get() != null) {
+            throw processException(error.get(),
+                                   "getting " + paths.size() + " nodes");
+        }
+
+        Map<String, byte[]> data = new LinkedHashMap<>(results.size());
+        synchronized (results) {
+            for (String path : paths) {
+                if (results.containsKey(path))
+                    data.put(path, results.get(path));
+            }
+        }
+        return data;
+    }
+
     public Map.Entry<byte[], Integer> getWithVersion(String path, Runnable watcher)
             throws StateAccessException {
         try {
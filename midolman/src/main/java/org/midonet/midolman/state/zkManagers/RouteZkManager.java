@@ -502,6 +502,73 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
         return create(route, true);
     }
 
+    /**
+     * Adds several route entries in a single ZooKeeper multi-op, so that
+     * either all of them are added or none is.
+     *
+     * Unlike prepareRouteCreate, this reads the config of each next hop
+     * port once per batch, and doesn't check whether the paths named after
+     * the new route IDs exist, as they can't. Only the routing table
+     * entries of router routes and interior port routes, which equivalent
+     * routes share, are still looked up.
+     *
+     * @param routes
+     *            Route objects to add to the ZooKeeper directory.
+     * @param persistent
+     *            Should the routes be deleted when this Midolman fails.
+     * @return The UUIDs of the newly created objects, in the same order.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public List<UUID> create(List<Route> routes, boolean persistent)
+            throws StateAccessException, SerializationException {
+        CreateMode mode = persistent ? CreateMode.PERSISTENT
+            : CreateMode.EPHEMERAL;
+        Map<UUID, PortDirectory.RouterPortConfig> ports = new HashMap<>();
+        Set<String> tablePaths = new HashSet<>();
+        List<UUID> ids = new ArrayList<UUID>(routes.size());
+        List<Op> ops = new ArrayList<Op>();
+        PortZkManager portZkManager = null;
+        for (Route route : routes) {
+            UUID id = UUID.randomUUID();
+            ops.add(Op.create(paths.getRoutePath(id),
+                              serializer.serialize(route),
+                              Ids.OPEN_ACL_UNSAFE, mode));
+
+            String tablePath = null;
+            if (route.nextHop.toPort()) {
+                ops.add(Op.create(
+                    paths.getPortRoutePath(route.nextHopPort, id), null,
+                    Ids.OPEN_ACL_UNSAFE, mode));
+                PortDirectory.RouterPortConfig port =
+                    ports.get(route.nextHopPort);
+                if (port == null) {
+                    if (portZkManager == null)
+                        portZkManager = new PortZkManager(zk, paths,
+                                                          serializer);
+                    port = portZkManager.get(
+                        route.nextHopPort,
+                        PortDirectory.RouterPortConfig.class);
+                    ports.put(route.nextHopPort, port);
+                }
+                if (port.isInterior())
+                    tablePath = getExistingOrNewRoutePath(route);
+            } else {
+                ops.add(Op.create(
+                    paths.getRouterRoutePath(route.routerId, id), null,
+                    Ids.OPEN_ACL_UNSAFE, mode));
+                tablePath = getExistingOrNewRoutePath(route);
+            }
+
+            if (tablePath != null && tablePaths.add(tablePath) &&
+                !zk.exists(tablePath))
+                ops.add(Op.create(tablePath, null, Ids.OPEN_ACL_UNSAFE, mode));
+            ids.add(id);
+        }
+        zk.multi(ops);
+        return ids;
+    }
+
     public void asyncGet(UUID id, final DirectoryCallback<Route> routeDirectoryCallback){
         zk.asyncGet(paths.getRoutePath(id),
                     DirectoryCallbackFactory.transform(
@@ -607,4 +674,22 @@ public class RouteZkManager extends AbstractZkManager<UUID, Route> {
             SerializationException {
         zk.multi(prepareRouteDelete(id));
     }
+
+    /***
+     * Deletes several routes and their related data from the ZooKeeper
+     * directories in a single multi-op.
+     *
+     * @param ids
+     *            IDs of the routes to delete.
+     * @throws StateAccessException
+     *             Serialization or data access error occurred.
+     */
+    public void delete(List<UUID> ids) throws StateAccessException,
+            SerializationException {
+        List<Op> ops = new ArrayList<Op>();
+        for (UUID id : ids) {
+            ops.addAll(prepareRouteDelete(id));
+        }
+        zk.multi(ops);
+    }
 }
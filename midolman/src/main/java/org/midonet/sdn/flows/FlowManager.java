@@ -16,9 +16,11 @@
 
 package org.midonet.sdn.flows;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.PriorityQueue;
@@ -56,6 +58,12 @@ import org.midonet.util.functors.Callback1;
  *
  * Idle Time-out expiration is an expensive operation. We won't accept
  * idle time-out < 5 s.
+ * When idle expiration by dump is enabled, the lastUsedTime of the flows is
+ * instead refreshed with a single dump of all the datapath flows per check,
+ * which also refreshes the statistics of every flow. The wildcard flows
+ * found expired before the dump are then either expired or given more time
+ * in one pass over its result, so that a check costs one request to the
+ * datapath regardless of the number of flows.
  */
 
 //TODO(ross) create a priority queue of micro flows ordered according to the
@@ -73,6 +81,10 @@ public class FlowManager {
     private int dpFlowRemoveBatchSize = 512;
     private int flowRequestsInFlight = 0;
     private long idleFlowToleranceInterval;
+    private boolean idleExpirationByDump = false;
+    /* The expired wildcard flows waiting for an ongoing flow dump. They
+     * hold the timeout queue ref. */
+    private List<ManagedWildcardFlow> idleFlowsToCheck = null;
 
     public FlowManager(
             FlowManagerHelper flowManagerHelper,
@@ -132,6 +144,15 @@ public class FlowManager {
         return numWildcardFlows;
     }
 
+    /**
+     * Selects whether the lastUsedTime of the flows with idle expiration is
+     * refreshed with one dump of all the datapath flows per check, or with
+     * one request per datapath flow of every expired wildcard flow.
+     */
+    public void setIdleExpirationByDump(boolean byDump) {
+        this.idleExpirationByDump = byDump;
+    }
+
     public int evictOldestFlows() {
         int evicted = 0;
         for (evicted=0; evicted < dpFlowRemoveBatchSize; evicted++) {
@@ -278,7 +299,7 @@ public class FlowManager {
                 wildFlow.unref();
 
                 if (wcMap.isEmpty())
-                    wildcardTables.tables().remove(wildFlow.getMatch().getUsedFields());
+                    wildcardTables.removeTable(wildFlow.getMatch().getUsedFields());
 
                 return true;
             } else {
@@ -354,6 +375,11 @@ public class FlowManager {
     }
 
     private void checkIdleTimeExpiration() {
+        if (idleExpirationByDump) {
+            checkIdleTimeExpirationByDump();
+            return;
+        }
+
         while (idleTimeOutQueue.peek() != null) {
             ManagedWildcardFlow flowToExpire = idleTimeOutQueue.peek();
             //log.trace("Idle timeout queue size {}", idleTimeOutQueue.size());
@@ -385,6 +411,108 @@ public class FlowManager {
         }
     }
 
+    private void checkIdleTimeExpirationByDump() {
+        // the previous sweep is still waiting for its dump
+        if (idleFlowsToCheck != null)
+            return;
+
+        List<ManagedWildcardFlow> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        ManagedWildcardFlow flowToExpire;
+        while ((flowToExpire = idleTimeOutQueue.peek()) != null) {
+            if (!isAlive(flowToExpire)) {
+                idleTimeOutQueue.poll();
+                // timeout queue ref
+                flowToExpire.unref();
+                continue;
+            }
+            long expirationDate = flowToExpire.getLastUsedTimeMillis() +
+                flowToExpire.getIdleExpirationMillis();
+            if (now >= expirationDate) {
+                // keeps the timeout queue ref until the dump is processed
+                idleTimeOutQueue.poll();
+                expired.add(flowToExpire);
+            } else {
+                break;
+            }
+        }
+
+        if (!expired.isEmpty()) {
+            log.debug("Dumping datapath flows to check {} expired wildcard " +
+                      "flows", expired.size());
+            idleFlowsToCheck = expired;
+            flowManagerHelper.getFlows(new Callback1<Set<Flow>>() {
+                @Override
+                public void call(Set<Flow> flows) {
+                    flowsDumped(flows);
+                }
+            });
+        }
+    }
+
+    /**
+     * Refreshes the lastUsedTime and statistics of the known datapath flows
+     * from a dump of the datapath, and decides the fate of the wildcard
+     * flows that were found expired when the dump was requested. A null set
+     * means that the dump failed, in which case these wildcard flows are
+     * checked again on the next sweep.
+     */
+    void flowsDumped(Set<Flow> flows) {
+        List<ManagedWildcardFlow> toCheck = idleFlowsToCheck;
+        idleFlowsToCheck = null;
+
+        if (flows != null) {
+            for (Flow flow : flows) {
+                // Flows with userspace only keys are never installed in the
+                // datapath, so the dumped matches are the ones we know.
+                ManagedWildcardFlow wildFlow = dpFlowTable.get(flow.getMatch());
+                if (wildFlow == null)
+                    continue;
+                Long lastUsed = flow.getLastUsedTime();
+                if (lastUsed != null &&
+                        lastUsed > wildFlow.getLastUsedTimeMillis()) {
+                    wildFlow.setLastUsedTimeMillis(lastUsed);
+                }
+                flowManagerHelper.flowStatsUpdated(flow.getMatch(), flow);
+            }
+        }
+
+        if (toCheck == null)
+            return;
+
+        long now = System.currentTimeMillis();
+        for (ManagedWildcardFlow wildFlow : toCheck) {
+            if (!isAlive(wildFlow)) {
+                // timeout queue ref
+                wildFlow.unref();
+                continue;
+            }
+
+            // clean lazily the deleted kernel flows
+            Iterator<FlowMatch> it = wildFlow.dpFlows().iterator();
+            while (it.hasNext()) {
+                if (!dpFlowTable.containsKey(it.next()))
+                    it.remove();
+            }
+
+            long expirationDate = wildFlow.getLastUsedTimeMillis() +
+                wildFlow.getIdleExpirationMillis();
+            if (flows == null ||
+                    (!wildFlow.dpFlows().isEmpty() &&
+                     expirationDate - now > idleFlowToleranceInterval)) {
+                // add it back to the queue, with the timeout queue ref
+                idleTimeOutQueue.add(wildFlow);
+            } else {
+                flowManagerHelper.removeWildcardFlow(wildFlow);
+                log.debug("Removing flow {} for idle expiration, expired {} " +
+                          "ms ago", wildFlow.getMatch(),
+                          now - expirationDate);
+                // timeout queue ref
+                wildFlow.unref();
+            }
+        }
+    }
+
     private void manageDPFlowTableSpace() {
         removeOldestDpFlows((int) howManyFlowsToRemoveToFreeSpace());
     }
@@ -16,6 +16,8 @@
 
 package org.midonet.sdn.flows;
 
+import java.util.Set;
+
 import org.midonet.odp.Flow;
 import org.midonet.odp.FlowMatch;
 import org.midonet.util.functors.Callback1;
@@ -24,6 +26,13 @@ public interface FlowManagerHelper {
 
     public void getFlow(FlowMatch flowMatch, Callback1<Flow> getFlowCb);
 
+    /** Retrieves all the flows of the datapath with a single dump. The
+     *  callback gets a null set if the dump fails. */
+    public void getFlows(Callback1<Set<Flow>> getFlowsCb);
+
+    /** Notifies that the statistics of a datapath flow were refreshed. */
+    public void flowStatsUpdated(FlowMatch flowMatch, Flow flow);
+
     public void removeFlow(FlowMatch flowMatch);
 
     public void removeWildcardFlow(ManagedWildcardFlow flow);
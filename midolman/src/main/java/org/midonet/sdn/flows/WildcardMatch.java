@@ -20,7 +20,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
-import java.util.Objects;
 import java.util.Set;
 
 import javax.annotation.Nonnull;
@@ -32,10 +31,22 @@ import org.midonet.odp.FlowMatches;
 import org.midonet.odp.flows.*;
 import org.midonet.packets.*;
 
+/**
+ * A match on a packet's header fields where any subset of the fields can be
+ * wildcarded.
+ *
+ * The representation is flat so that matches can be built from a datapath
+ * flow match and probed against the wildcard flow tables without allocating:
+ * the used and seen fields are kept as bitmasks indexed by the Field ordinal,
+ * MAC addresses are packed into longs, IP addresses into pairs of longs and
+ * VLAN ids into a short array. The MAC and IPAddr objects handed out by the
+ * getters are created lazily and cached. Hashing and equality, including
+ * their masked variants, only touch the primitive representation.
+ */
 public class WildcardMatch implements Cloneable {
 
-    private EnumSet<Field> usedFields = EnumSet.noneOf(Field.class);
-    private EnumSet<Field> seenFields = EnumSet.noneOf(Field.class);
+    private int usedFields = 0;
+    private int seenFields = 0;
 
     public enum Field {
         InputPortNumber,
@@ -56,12 +67,27 @@ public class WildcardMatch implements Cloneable {
         // MM-custom fields below this point
         IcmpId,
         IcmpData,
-        VlanId
+        VlanId;
+
+        private final int mask = 1 << ordinal();
+
+        /**
+         * @return the bit that represents this field in a fields bitmask.
+         */
+        public int mask() {
+            return mask;
+        }
     }
 
+    private static final Field[] FIELDS = Field.values();
+
     public static final Field[] IcmpFields = { Field.IcmpData, Field.IcmpId };
 
-    private short getLayer(Field f) {
+    private static final int ICMP_FIELDS_MASK = maskOf(IcmpFields);
+
+    private static final short[] NO_VLANS = new short[0];
+
+    public static short getLayer(Field f) {
         switch(f) {
             case EthSrc:
             case EthDst:
@@ -90,25 +116,56 @@ public class WildcardMatch implements Cloneable {
     }
 
     /**
-     * WARNING: this is giving you a reference to the private Set itself. Be
-     * aware that the Match is free to wipe the contents of the set off at
-     * any point (e.g.: when a match is returned to a pool and its contents
-     * cleared), so you should consider making a copy if you need to keep the
-     * set around (e.g.: if it's used as a key to the WildcardMatch table
-     * like in FlowController). This is unless you are holding a reference to
-     * the enclosing ManagedWildcardFlow for as long as you're going to keep
-     * the Set in use. (Even so, you should probably make a copy since the
-     * match modify it).
+     * @return the bitmask with the bits of the given fields set.
+     */
+    public static int maskOf(Iterable<Field> fields) {
+        int mask = 0;
+        for (Field field : fields)
+            mask |= field.mask;
+        return mask;
+    }
+
+    public static int maskOf(Field[] fields) {
+        int mask = 0;
+        for (Field field : fields)
+            mask |= field.mask;
+        return mask;
+    }
+
+    private static EnumSet<Field> fieldsOf(int mask) {
+        EnumSet<Field> fields = EnumSet.noneOf(Field.class);
+        for (int bits = mask; bits != 0; bits &= bits - 1)
+            fields.add(FIELDS[Integer.numberOfTrailingZeros(bits)]);
+        return fields;
+    }
+
+    /* Sets handed out by getUsedFields() and getSeenFields(), rebuilt when
+     * the corresponding bitmask no longer matches the one they were built
+     * from. */
+    private EnumSet<Field> usedFieldsSet;
+    private int usedFieldsSetMask;
+    private EnumSet<Field> seenFieldsSet;
+    private int seenFieldsSetMask;
+
+    /**
+     * WARNING: the returned set must not be modified. It is cached and
+     * shared by the calls made while the used fields don't change, and it
+     * is NOT updated when they do, so you should consider making a copy if
+     * you need to keep the set around (e.g.: if it's used as a key to the
+     * WildcardMatch table like in FlowController).
      *
-     * The reason for not returning a defensive copy is mainly efficiency, we
-     * prefer not to incurr in the copy overhead always, and rather rely on
-     * clients doing the copy if it's really needed.
+     * Code on the packet processing path should prefer getUsedFieldsMask(),
+     * which doesn't allocate.
      *
      * @return the set of Fields that have been set in this instance.
      */
     @Nonnull
     public Set<Field> getUsedFields() {
-        return usedFields;
+        if (usedFieldsSet == null || usedFieldsSetMask != usedFields) {
+            usedFieldsSet = fieldsOf(usedFields);
+            usedFieldsSetMask = usedFields;
+        }
+        return usedFieldsSet;
     }
 
     /**
@@ -117,6 +174,25 @@ public class WildcardMatch implements Cloneable {
      */
     @Nonnull
     public Set<Field> getSeenFields() {
+        if (seenFieldsSet == null || seenFieldsSetMask != seenFields) {
+            seenFieldsSet = fieldsOf(seenFields);
+            seenFieldsSetMask = seenFields;
+        }
+        return seenFieldsSet;
+    }
+
+    /**
+     * @return the bitmask of the Fields that have been set in this instance.
+     */
+    public int getUsedFieldsMask() {
+        return usedFields;
+    }
+
+    /**
+     * @return the bitmask of the Fields that have been read from this
+     *         instance.
+     */
+    public int getSeenFieldsMask() {
         return seenFields;
     }
 
@@ -124,11 +200,16 @@ public class WildcardMatch implements Cloneable {
     private long tunnelKey = 0L;
     private int tunnelSrc = 0;
     private int tunnelDst = 0;
-    private MAC ethSrc;
-    private MAC ethDst;
+    private long ethSrc = 0L;
+    private long ethDst = 0L;
     private short etherType = 0;
-    private IPAddr networkSrc;
-    private IPAddr networkDst;
+    // IPv4 addresses are kept in the lower 32 bits of the lower word.
+    private long networkSrcUpper = 0L;
+    private long networkSrcLower = 0L;
+    private boolean networkSrcIsV6 = false;
+    private long networkDstUpper = 0L;
+    private long networkDstLower = 0L;
+    private boolean networkDstIsV6 = false;
     private byte networkProto = 0;
     private byte networkTTL = 0;
     private byte networkTOS = 0;
@@ -139,17 +220,28 @@ public class WildcardMatch implements Cloneable {
     // Extended fields only supported inside MM
     private short icmpId = 0;
     private byte[] icmpData;
-    private List<Short> vlanIds = new ArrayList<>();
+    private short[] vlanIds = NO_VLANS;
+    private int numVlanIds = 0;
+
+    // Objects materialized from the packed fields, created on demand.
+    private MAC ethSrcObj;
+    private MAC ethDstObj;
+    private IPAddr networkSrcObj;
+    private IPAddr networkDstObj;
 
     private boolean trackSeenFields = true;
 
+    private boolean isUsed(Field field) {
+        return (usedFields & field.mask) != 0;
+    }
+
     /**
      * Log the fact that <pre>field</pre> has been seen in this match. Will
      * NOT log it if <pre>doNotTrackSeenFields</pre> has last been called.
      */
     private void fieldSeen(Field field) {
         if (this.trackSeenFields) {
-            this.seenFields.add(field);
+            this.seenFields |= field.mask;
         }
     }
 
@@ -167,6 +259,13 @@ public class WildcardMatch implements Cloneable {
         this.trackSeenFields = false;
     }
 
+    /**
+     * Whether the getters currently mark the fields they read as seen.
+     */
+    public boolean isTrackingSeenFields() {
+        return this.trackSeenFields;
+    }
+
     /**
      * Reports the highest layer seen among the fields accessed on this match.
      * E.g.: if only ethSrc was seen, it'll return 2, if also
@@ -177,33 +276,25 @@ public class WildcardMatch implements Cloneable {
     public short highestLayerSeen() {
         short layer = 0;
         short fLayer;
-        for (Field f : this.seenFields) {
-            fLayer = getLayer(f);
+        for (int bits = seenFields; bits != 0; bits &= bits - 1) {
+            fLayer = getLayer(FIELDS[Integer.numberOfTrailingZeros(bits)]);
             layer = (fLayer > layer) ? fLayer : layer;
         }
         return layer;
     }
 
     public boolean userspaceFieldsSeen() {
-        for (Field f : IcmpFields) {
-            if (seenFields.contains(f))
-                return true;
-        }
-        return false;
+        return (seenFields & ICMP_FIELDS_MASK) != 0;
     }
 
     public void propagateUserspaceFieldsOf(WildcardMatch that) {
-        for (Field f : IcmpFields) {
-            if (that.seenFields.contains(f))
-                this.seenFields.add(f);
-        }
+        seenFields |= that.seenFields & ICMP_FIELDS_MASK;
     }
 
     /**
      * Resets the contents of this WildcardMatch setting them to the values
      * in <pre>that</pre>. The list of used fields will be cleared and all
-     * the used fields in <pre>that</pre> copied (but not creating a new
-     * collection for the new used fields)
+     * the used fields in <pre>that</pre> copied.
      *
      * @param that
      */
@@ -213,10 +304,18 @@ public class WildcardMatch implements Cloneable {
         tunnelSrc = that.tunnelSrc;
         tunnelDst = that.tunnelDst;
         ethSrc = that.ethSrc;
+        ethSrcObj = that.ethSrcObj;
         ethDst = that.ethDst;
+        ethDstObj = that.ethDstObj;
         etherType = that.etherType;
-        networkSrc = that.networkSrc;
-        networkDst = that.networkDst;
+        networkSrcUpper = that.networkSrcUpper;
+        networkSrcLower = that.networkSrcLower;
+        networkSrcIsV6 = that.networkSrcIsV6;
+        networkSrcObj = that.networkSrcObj;
+        networkDstUpper = that.networkDstUpper;
+        networkDstLower = that.networkDstLower;
+        networkDstIsV6 = that.networkDstIsV6;
+        networkDstObj = that.networkDstObj;
         networkProto = that.networkProto;
         networkTTL = that.networkTTL;
         networkTOS = that.networkTOS;
@@ -224,16 +323,16 @@ public class WildcardMatch implements Cloneable {
         srcPort = that.srcPort;
         dstPort = that.dstPort;
         icmpId = that.icmpId;
-        vlanIds = new ArrayList<>(that.vlanIds);
+        vlanIds = that.numVlanIds == 0
+                ? NO_VLANS : Arrays.copyOf(that.vlanIds, that.numVlanIds);
+        numVlanIds = that.numVlanIds;
         if (that.icmpData != null)
             this.setIcmpData(that.icmpData);
         else
             this.icmpData = null;
-        usedFields.clear();
-        usedFields.addAll(that.usedFields);
+        usedFields = that.usedFields;
         trackSeenFields = that.trackSeenFields;
-        seenFields.clear();
-        seenFields.addAll(that.seenFields);
+        seenFields = that.seenFields;
     }
 
     /**
@@ -241,48 +340,57 @@ public class WildcardMatch implements Cloneable {
      * used fields.
      */
     public void clear() {
-        this.usedFields.clear();
+        this.usedFields = 0;
         this.tunnelSrc = 0;
         this.tunnelDst = 0;
         this.icmpData = null;
-        this.networkSrc = null;
-        this.networkDst = null;
-        this.ethSrc = null;
-        this.ethDst = null;
-        this.vlanIds = null;
+        this.networkSrcUpper = 0L;
+        this.networkSrcLower = 0L;
+        this.networkSrcIsV6 = false;
+        this.networkSrcObj = null;
+        this.networkDstUpper = 0L;
+        this.networkDstLower = 0L;
+        this.networkDstIsV6 = false;
+        this.networkDstObj = null;
+        this.ethSrc = 0L;
+        this.ethSrcObj = null;
+        this.ethDst = 0L;
+        this.ethDstObj = null;
+        this.vlanIds = NO_VLANS;
+        this.numVlanIds = 0;
         this.trackSeenFields = true;
-        this.seenFields.clear();
+        this.seenFields = 0;
     }
 
     @Nonnull
     public WildcardMatch setInputPortNumber(short inputPortNumber) {
-        usedFields.add(Field.InputPortNumber);
+        usedFields |= Field.InputPortNumber.mask;
         this.inputPortNumber = inputPortNumber;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetInputPortNumber() {
-        usedFields.remove(Field.InputPortNumber);
+        usedFields &= ~Field.InputPortNumber.mask;
         this.inputPortNumber = 0;
         return this;
     }
 
     @Nullable
     public Short getInputPortNumber() {
-        return usedFields.contains(Field.InputPortNumber) ? inputPortNumber : null;
+        return isUsed(Field.InputPortNumber) ? inputPortNumber : null;
     }
 
     @Nonnull
     public WildcardMatch setTunnelKey(long tunnelKey) {
         this.tunnelKey = tunnelKey;
-        usedFields.add(Field.TunnelKey);
+        usedFields |= Field.TunnelKey.mask;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetTunnelKey() {
-        usedFields.remove(Field.TunnelKey);
+        usedFields &= ~Field.TunnelKey.mask;
         this.tunnelKey = 0L;
         return this;
     }
@@ -294,13 +402,13 @@ public class WildcardMatch implements Cloneable {
     @Nonnull
     public WildcardMatch setTunnelSrc(int src) {
         this.tunnelSrc = src;
-        usedFields.add(Field.TunnelSrc);
+        usedFields |= Field.TunnelSrc.mask;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetTunnelSrc() {
-        usedFields.remove(Field.TunnelSrc);
+        usedFields &= ~Field.TunnelSrc.mask;
         this.tunnelSrc = 0;
         return this;
     }
@@ -312,13 +420,13 @@ public class WildcardMatch implements Cloneable {
     @Nonnull
     public WildcardMatch setTunnelDst(int dst) {
         this.tunnelDst = dst;
-        usedFields.add(Field.TunnelDst);
+        usedFields |= Field.TunnelDst.mask;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetTunnelDst() {
-        usedFields.remove(Field.TunnelDst);
+        usedFields &= ~Field.TunnelDst.mask;
         this.tunnelDst = 0;
         return this;
     }
@@ -328,7 +436,7 @@ public class WildcardMatch implements Cloneable {
     }
 
     public boolean isFromTunnel() {
-        return usedFields.contains(Field.TunnelKey);
+        return isUsed(Field.TunnelKey);
     }
 
     @Nonnull
@@ -338,22 +446,33 @@ public class WildcardMatch implements Cloneable {
 
     @Nonnull
     public WildcardMatch setEthSrc(@Nonnull MAC addr) {
-        usedFields.add(Field.EthSrc);
-        this.ethSrc = addr;
+        setEthSrc(addr.asLong());
+        this.ethSrcObj = addr;
         return this;
     }
 
+    private void setEthSrc(long addr) {
+        usedFields |= Field.EthSrc.mask;
+        this.ethSrc = addr;
+        this.ethSrcObj = null;
+    }
+
     @Nonnull
     public WildcardMatch unsetEthSrc() {
-        usedFields.remove(Field.EthSrc);
-        this.ethSrc = null;
+        usedFields &= ~Field.EthSrc.mask;
+        this.ethSrc = 0L;
+        this.ethSrcObj = null;
         return this;
     }
 
     @Nullable
     public MAC getEthSrc() {
         fieldSeen(Field.EthSrc);
-        return ethSrc;
+        if (!isUsed(Field.EthSrc))
+            return null;
+        if (ethSrcObj == null)
+            ethSrcObj = new MAC(ethSrc);
+        return ethSrcObj;
     }
 
     @Nonnull
@@ -363,34 +482,45 @@ public class WildcardMatch implements Cloneable {
 
     @Nonnull
     public WildcardMatch setEthDst(@Nonnull MAC addr) {
-        usedFields.add(Field.EthDst);
-        this.ethDst = addr;
+        setEthDst(addr.asLong());
+        this.ethDstObj = addr;
         return this;
     }
 
+    private void setEthDst(long addr) {
+        usedFields |= Field.EthDst.mask;
+        this.ethDst = addr;
+        this.ethDstObj = null;
+    }
+
     @Nonnull
     public WildcardMatch unsetEthDest() {
-        usedFields.remove(Field.EthDst);
-        this.ethDst = null;
+        usedFields &= ~Field.EthDst.mask;
+        this.ethDst = 0L;
+        this.ethDstObj = null;
         return this;
     }
 
     @Nullable
     public MAC getEthDst() {
         fieldSeen(Field.EthDst);
-        return ethDst;
+        if (!isUsed(Field.EthDst))
+            return null;
+        if (ethDstObj == null)
+            ethDstObj = new MAC(ethDst);
+        return ethDstObj;
     }
 
     @Nonnull
     public WildcardMatch setEtherType(short etherType) {
-        usedFields.add(Field.EtherType);
+        usedFields |= Field.EtherType.mask;
         this.etherType = etherType;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetEtherType() {
-        usedFields.remove(Field.EtherType);
+        usedFields &= ~Field.EtherType.mask;
         this.etherType = 0;
         return this;
     }
@@ -398,27 +528,48 @@ public class WildcardMatch implements Cloneable {
     @Nullable
     public Short getEtherType() {
         fieldSeen(Field.EtherType);
-        return usedFields.contains(Field.EtherType) ? etherType : null;
+        return isUsed(Field.EtherType) ? etherType : null;
     }
 
     @Nonnull
     public WildcardMatch setNetworkSrc(@Nonnull IPAddr addr) {
-        usedFields.add(Field.NetworkSrc);
-        this.networkSrc = addr;
+        if (addr instanceof IPv6Addr) {
+            IPv6Addr ip6 = (IPv6Addr) addr;
+            setNetworkSrc(ip6.upperWord(), ip6.lowerWord(), true);
+        } else {
+            setNetworkSrc(0L, ((IPv4Addr) addr).toInt() & 0xFFFFFFFFL, false);
+        }
+        this.networkSrcObj = addr;
         return this;
     }
 
+    private void setNetworkSrc(long upper, long lower, boolean isV6) {
+        usedFields |= Field.NetworkSrc.mask;
+        this.networkSrcUpper = upper;
+        this.networkSrcLower = lower;
+        this.networkSrcIsV6 = isV6;
+        this.networkSrcObj = null;
+    }
+
     @Nonnull
     public WildcardMatch unsetNetworkSrc() {
-        usedFields.remove(Field.NetworkSrc);
-        this.networkSrc = null;
+        usedFields &= ~Field.NetworkSrc.mask;
+        this.networkSrcUpper = 0L;
+        this.networkSrcLower = 0L;
+        this.networkSrcIsV6 = false;
+        this.networkSrcObj = null;
         return this;
     }
 
     @Nullable
     public IPAddr getNetworkSrcIP() {
         fieldSeen(Field.NetworkSrc);
-        return networkSrc;
+        if (!isUsed(Field.NetworkSrc))
+            return null;
+        if (networkSrcObj == null)
+            networkSrcObj = toIPAddr(networkSrcUpper, networkSrcLower,
+                                     networkSrcIsV6);
+        return networkSrcObj;
     }
 
     /**
@@ -427,34 +578,60 @@ public class WildcardMatch implements Cloneable {
      */
     @Nonnull
     public WildcardMatch setNetworkDst(@Nonnull IPAddr addr) {
-        usedFields.add(Field.NetworkDst);
-        this.networkDst = addr;
+        if (addr instanceof IPv6Addr) {
+            IPv6Addr ip6 = (IPv6Addr) addr;
+            setNetworkDst(ip6.upperWord(), ip6.lowerWord(), true);
+        } else {
+            setNetworkDst(0L, ((IPv4Addr) addr).toInt() & 0xFFFFFFFFL, false);
+        }
+        this.networkDstObj = addr;
         return this;
     }
 
+    private void setNetworkDst(long upper, long lower, boolean isV6) {
+        usedFields |= Field.NetworkDst.mask;
+        this.networkDstUpper = upper;
+        this.networkDstLower = lower;
+        this.networkDstIsV6 = isV6;
+        this.networkDstObj = null;
+    }
+
     @Nonnull
     public WildcardMatch unsetNetworkDst() {
-        usedFields.remove(Field.NetworkDst);
-        this.networkDst = null;
+        usedFields &= ~Field.NetworkDst.mask;
+        this.networkDstUpper = 0L;
+        this.networkDstLower = 0L;
+        this.networkDstIsV6 = false;
+        this.networkDstObj = null;
         return this;
     }
 
     @Nullable
     public IPAddr getNetworkDstIP() {
         fieldSeen(Field.NetworkDst);
-        return networkDst;
+        if (!isUsed(Field.NetworkDst))
+            return null;
+        if (networkDstObj == null)
+            networkDstObj = toIPAddr(networkDstUpper, networkDstLower,
+                                     networkDstIsV6);
+        return networkDstObj;
+    }
+
+    private static IPAddr toIPAddr(long upper, long lower, boolean isV6) {
+        return isV6 ? new IPv6Addr(upper, lower)
+                    : IPv4Addr.fromInt((int) lower);
     }
 
     @Nonnull
     public WildcardMatch setNetworkProto(byte networkProto) {
-        usedFields.add(Field.NetworkProto);
+        usedFields |= Field.NetworkProto.mask;
         this.networkProto = networkProto;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetNetworkProto() {
-        usedFields.remove(Field.NetworkProto);
+        usedFields &= ~Field.NetworkProto.mask;
         this.networkProto = 0;
         return this;
     }
@@ -462,32 +639,32 @@ public class WildcardMatch implements Cloneable {
     @Nullable
     public Byte getNetworkProto() {
         fieldSeen(Field.NetworkProto);
-        return usedFields.contains(Field.NetworkProto) ? networkProto : null;
+        return isUsed(Field.NetworkProto) ? networkProto : null;
     }
 
     @Nullable
     public Byte getNetworkTOS() {
         fieldSeen(Field.NetworkTOS);
-        return usedFields.contains(Field.NetworkTOS) ? networkTOS : null;
+        return isUsed(Field.NetworkTOS) ? networkTOS : null;
     }
 
     @Nonnull
     public WildcardMatch setNetworkTOS(byte tos) {
-        usedFields.add(Field.NetworkTOS);
+        usedFields |= Field.NetworkTOS.mask;
         this.networkTOS = tos;
         return this;
     }
 
     @Nonnull
     public WildcardMatch setNetworkTTL(byte networkTTL) {
-        usedFields.add(Field.NetworkTTL);
+        usedFields |= Field.NetworkTTL.mask;
         this.networkTTL = networkTTL;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetNetworkTTL() {
-        usedFields.remove(Field.NetworkTTL);
+        usedFields &= ~Field.NetworkTTL.mask;
         this.networkTTL = 0;
         return this;
     }
@@ -495,19 +672,19 @@ public class WildcardMatch implements Cloneable {
     @Nullable
     public Byte getNetworkTTL() {
         fieldSeen(Field.NetworkTTL);
-        return usedFields.contains(Field.NetworkTTL) ? networkTTL : null;
+        return isUsed(Field.NetworkTTL) ? networkTTL : null;
     }
 
     @Nonnull
     public WildcardMatch setIpFragmentType(IPFragmentType fragmentType) {
-        usedFields.add(Field.FragmentType);
+        usedFields |= Field.FragmentType.mask;
         this.ipFragmentType = fragmentType;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetIpFragmentType() {
-        usedFields.remove(Field.FragmentType);
+        usedFields &= ~Field.FragmentType.mask;
         this.ipFragmentType = null;
         return this;
     }
@@ -526,14 +703,14 @@ public class WildcardMatch implements Cloneable {
     @Nonnull
     public WildcardMatch setSrcPort(int srcPort) {
         TCP.ensurePortInRange(srcPort);
-        usedFields.add(Field.SrcPort);
+        usedFields |= Field.SrcPort.mask;
         this.srcPort = srcPort;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetSrcPort() {
-        usedFields.remove(Field.SrcPort);
+        usedFields &= ~Field.SrcPort.mask;
         this.srcPort = 0;
         return this;
     }
@@ -541,20 +718,20 @@ public class WildcardMatch implements Cloneable {
     @Nullable
     public Integer getSrcPort() {
         fieldSeen(Field.SrcPort);
-        return usedFields.contains(Field.SrcPort) ? srcPort : null;
+        return isUsed(Field.SrcPort) ? srcPort : null;
     }
 
     @Nonnull
     public WildcardMatch setDstPort(int dstPort) {
         TCP.ensurePortInRange(dstPort);
-        usedFields.add(Field.DstPort);
+        usedFields |= Field.DstPort.mask;
         this.dstPort = dstPort;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetDstPort() {
-        usedFields.remove(Field.DstPort);
+        usedFields &= ~Field.DstPort.mask;
         this.dstPort = 0;
         return this;
     }
@@ -562,19 +739,18 @@ public class WildcardMatch implements Cloneable {
     @Nullable
     public Integer getDstPort() {
         fieldSeen(Field.DstPort);
-        return usedFields.contains(Field.DstPort) ?
-                dstPort : null;
+        return isUsed(Field.DstPort) ? dstPort : null;
     }
 
     public WildcardMatch setIcmpIdentifier(Short identifier) {
-        usedFields.add(Field.IcmpId);
+        usedFields |= Field.IcmpId.mask;
         this.icmpId = identifier;
         return this;
     }
 
     @Nonnull
     public WildcardMatch unsetIcmpIdentifier() {
-        usedFields.remove(Field.IcmpId);
+        usedFields &= ~Field.IcmpId.mask;
         this.icmpId = 0;
         return this;
     }
@@ -582,7 +758,7 @@ public class WildcardMatch implements Cloneable {
     @Nullable
     public Short getIcmpIdentifier() {
         fieldSeen(Field.IcmpId);
-        return usedFields.contains(Field.IcmpId) ? icmpId : null;
+        return isUsed(Field.IcmpId) ? icmpId : null;
     }
 
     @Nullable
@@ -594,7 +770,7 @@ public class WildcardMatch implements Cloneable {
 
     @Nonnull
     public WildcardMatch setIcmpData(byte[] icmpData) {
-        usedFields.add(Field.IcmpData);
+        usedFields |= Field.IcmpData.mask;
         if (icmpData != null)
             this.icmpData = Arrays.copyOf(icmpData, icmpData.length);
         return this;
@@ -602,49 +778,61 @@ public class WildcardMatch implements Cloneable {
 
     @Nonnull
     public WildcardMatch unsetIcmpData() {
-        usedFields.remove(Field.IcmpData);
+        usedFields &= ~Field.IcmpData.mask;
         this.icmpData = null;
         return this;
     }
     @Nonnull
     public WildcardMatch unsetVlanIds() {
-        usedFields.remove(Field.VlanId);
-        this.vlanIds.clear();
+        usedFields &= ~Field.VlanId.mask;
+        this.vlanIds = NO_VLANS;
+        this.numVlanIds = 0;
         return this;
     }
     @Nonnull
     public WildcardMatch addVlanId(short vlanId) {
-        if (!usedFields.contains(Field.VlanId)) {
-            usedFields.add(Field.VlanId);
-        }
-        this.vlanIds.add(vlanId);
+        usedFields |= Field.VlanId.mask;
+        if (numVlanIds == vlanIds.length)
+            vlanIds = Arrays.copyOf(vlanIds, Math.max(2, numVlanIds * 2));
+        vlanIds[numVlanIds++] = vlanId;
         return this;
     }
 
     @Nonnull
-    public WildcardMatch addVlanIds(List<Short> vlanIds) {
-        if (!usedFields.contains(Field.VlanId)) {
-            usedFields.add(Field.VlanId);
-        }
-        this.vlanIds.addAll(vlanIds);
+    public WildcardMatch addVlanIds(List<Short> ids) {
+        usedFields |= Field.VlanId.mask;
+        for (Short vlanId : ids)
+            addVlanId(vlanId);
         return this;
     }
 
     @Nonnull
     public WildcardMatch removeVlanId(short vlanId) {
-        int index = vlanIds.indexOf(vlanId);
-        if (index != -1)
-            vlanIds.remove(index);
-        if (vlanIds.isEmpty())
-            usedFields.remove(Field.VlanId);
+        for (int i = 0; i < numVlanIds; i++) {
+            if (vlanIds[i] == vlanId) {
+                System.arraycopy(vlanIds, i + 1, vlanIds, i,
+                                 numVlanIds - i - 1);
+                numVlanIds--;
+                break;
+            }
+        }
+        if (numVlanIds == 0)
+            usedFields &= ~Field.VlanId.mask;
         return this;
     }
 
+    /**
+     * @return a copy of the VLAN ids in this match, outermost first.
+     */
     @Nullable
     public List<Short> getVlanIds() {
         fieldSeen(Field.VlanId);
-        return (usedFields.contains(Field.VlanId)) ? vlanIds
-                                                   : new ArrayList<Short>();
+        if (!isUsed(Field.VlanId) || numVlanIds == 0)
+            return new ArrayList<>();
+        List<Short> ids = new ArrayList<>(numVlanIds);
+        for (int i = 0; i < numVlanIds; i++)
+            ids.add(vlanIds[i]);
+        return ids;
     }
 
     @Override
@@ -652,175 +840,205 @@ public class WildcardMatch implements Cloneable {
         if (this == o) return true;
         if (o == null || !(o instanceof WildcardMatch)) return false;
 
-        WildcardMatch that = (WildcardMatch) o;
+        return projectionEquals(usedFields, (WildcardMatch) o);
+    }
+
+    /**
+     * Compares the projection of this match over the given fields with
+     * <pre>that</pre>, without projecting the match. Like equals() does for
+     * the used fields of this match, it holds if <pre>that</pre> uses all
+     * the given fields and its values agree with those of this match. All
+     * the given fields must be used by this match.
+     */
+    public boolean projectionEquals(int fields, WildcardMatch that) {
+        if ((fields & ~that.usedFields) != 0)
+            return false;
 
-        for (Field field : getUsedFields()) {
-            switch (field) {
+        for (int bits = fields; bits != 0; bits &= bits - 1) {
+            switch (FIELDS[Integer.numberOfTrailingZeros(bits)]) {
                 case EtherType:
-                    if (!isEqual(field, that, etherType, that.etherType))
+                    if (etherType != that.etherType)
                         return false;
                     break;
 
                 case FragmentType:
-                    if (!isEqual(field, that, ipFragmentType, that.ipFragmentType))
+                    if (ipFragmentType != that.ipFragmentType)
                         return false;
                     break;
 
                 case EthDst:
-                    if (!isEqual(field, that, ethDst, that.ethDst))
+                    if (ethDst != that.ethDst)
                         return false;
                     break;
 
                 case EthSrc:
-                    if (!isEqual(field, that, ethSrc, that.ethSrc))
+                    if (ethSrc != that.ethSrc)
                         return false;
                     break;
 
                 case DstPort:
-                    if (!isEqual(field, that, dstPort, that.dstPort))
+                    if (dstPort != that.dstPort)
                         return false;
                     break;
 
                 case SrcPort:
-                    if (!isEqual(field, that, srcPort, that.srcPort))
+                    if (srcPort != that.srcPort)
                         return false;
                     break;
 
                 case InputPortNumber:
-                    if (!isEqual(field, that, inputPortNumber, that.inputPortNumber))
+                    if (inputPortNumber != that.inputPortNumber)
                         return false;
                     break;
 
                 case NetworkDst:
-                    if (!isEqual(field, that, networkDst, that.networkDst))
+                    if (networkDstLower != that.networkDstLower
+                            || networkDstUpper != that.networkDstUpper
+                            || networkDstIsV6 != that.networkDstIsV6)
                         return false;
                     break;
 
                 case NetworkSrc:
-                    if (!isEqual(field, that, networkSrc, that.networkSrc))
+                    if (networkSrcLower != that.networkSrcLower
+                            || networkSrcUpper != that.networkSrcUpper
+                            || networkSrcIsV6 != that.networkSrcIsV6)
                         return false;
                     break;
 
                 case NetworkProto:
-                    if (!isEqual(field, that, networkProto, that.networkProto))
+                    if (networkProto != that.networkProto)
                         return false;
                     break;
 
                 case NetworkTTL:
-                    if (!isEqual(field, that, networkTTL, that.networkTTL))
+                    if (networkTTL != that.networkTTL)
                         return false;
                     break;
 
                 case TunnelKey:
-                    if (!isEqual(field, that, tunnelKey, that.tunnelKey))
+                    if (tunnelKey != that.tunnelKey)
                         return false;
                     break;
 
                 case TunnelSrc:
-                    if (!isEqual(field, that, tunnelSrc, that.tunnelSrc))
+                    if (tunnelSrc != that.tunnelSrc)
                         return false;
                     break;
 
                 case TunnelDst:
-                    if (!isEqual(field, that, tunnelDst, that.tunnelDst))
+                    if (tunnelDst != that.tunnelDst)
                         return false;
                     break;
 
                 case IcmpId:
-                    if (!isEqual(field, that, icmpId, that.icmpId))
+                    if (icmpId != that.icmpId)
                         return false;
                     break;
 
                 case IcmpData:
-                    if (!isEqual(field, that, Objects.hashCode(this.icmpData),
-                                              Objects.hashCode(that.icmpData)))
+                    if (!Arrays.equals(icmpData, that.icmpData))
                         return false;
                     break;
 
                 case VlanId:
-                    if (!isEqual(field, that, vlanIds, that.vlanIds))
+                    if (!vlanIdsEqual(that))
                         return false;
                     break;
-
             }
         }
 
         return true;
     }
 
-    private <T> boolean isEqual(Field field, WildcardMatch that, T a, T b) {
-        if (usedFields.contains(field)) {
-            if (that.usedFields.contains(field))
-                return a != null ? a.equals(b) : b == null;
-            else
+    private boolean vlanIdsEqual(WildcardMatch that) {
+        if (numVlanIds != that.numVlanIds)
+            return false;
+        for (int i = 0; i < numVlanIds; i++) {
+            if (vlanIds[i] != that.vlanIds[i])
                 return false;
-        } else {
-            return !that.usedFields.contains(field);
         }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        int result = getUsedFields().hashCode();
-        for (Field field : getUsedFields()) {
-            switch (field) {
-                case EtherType:
-                    result = 31 * result + etherType;
-                    break;
-                case FragmentType:
-                    result = 31 * result + ipFragmentType.hashCode();
-                    break;
-                case EthDst:
-                    result = 31 * result + ethDst.hashCode();
-                    break;
-                case EthSrc:
-                    result = 31 * result + ethSrc.hashCode();
-                    break;
-                case DstPort:
-                    result = 31 * result + dstPort;
-                    break;
-                case SrcPort:
-                    result = 31 * result + srcPort;
-                    break;
-                case InputPortNumber:
-                    result = 31 * result + inputPortNumber;
-                    break;
-                case NetworkDst:
-                    result = 31 * result + networkDst.hashCode();
-                    break;
-                case NetworkSrc:
-                    result = 31 * result + networkSrc.hashCode();
-                    break;
-                case NetworkProto:
-                    result = 31 * result + networkProto;
-                    break;
-                case NetworkTTL:
-                    result = 31 * result + networkTTL;
-                    break;
-                case TunnelKey:
-                    result = 31 * result + (int)(tunnelKey ^ tunnelKey >>> 32);
-                    break;
-                case TunnelSrc:
-                    result = 31 * result + tunnelSrc;
-                    break;
-                case TunnelDst:
-                    result = 31 * result + tunnelDst;
-                    break;
-                case IcmpId:
-                    result = 31 * result + icmpId;
-                    break;
-                case IcmpData:
-                    result = 31 * result + Arrays.hashCode(icmpData);
-                    break;
-                case VlanId:
-                    result = 31 * result + vlanIds.hashCode();
-                    break;
-            }
-        }
+        return projectionHashCode(usedFields);
+    }
+
+    /**
+     * Computes the hash code that the projection of this match over the
+     * given fields would have, without projecting the match. It is equal to
+     * the hashCode() of any match that uses exactly those fields and
+     * satisfies projectionEquals(). All the given fields must be used by
+     * this match.
+     */
+    public int projectionHashCode(int fields) {
+        return 31 * fields + hashCodeOf(fields);
+    }
 
+    /**
+     * Computes a hash over the values of the given subset of fields, without
+     * projecting the match. Fields not used by this match don't contribute to
+     * the result. Two matches whose values agree on all of the given fields
+     * will always produce the same value.
+     */
+    public int hashCodeOf(int fields) {
+        int result = 1;
+        for (int bits = fields & usedFields; bits != 0; bits &= bits - 1) {
+            result = 31 * result +
+                fieldHashCode(FIELDS[Integer.numberOfTrailingZeros(bits)]);
+        }
         return result;
     }
 
+    private static int hashOf(long value) {
+        return (int)(value ^ value >>> 32);
+    }
+
+    private int fieldHashCode(Field field) {
+        switch (field) {
+            case EtherType:
+                return etherType;
+            case FragmentType:
+                return ipFragmentType == null ? 0 : ipFragmentType.ordinal();
+            case EthDst:
+                return hashOf(ethDst);
+            case EthSrc:
+                return hashOf(ethSrc);
+            case DstPort:
+                return dstPort;
+            case SrcPort:
+                return srcPort;
+            case InputPortNumber:
+                return inputPortNumber;
+            case NetworkDst:
+                return hashOf(networkDstUpper ^ networkDstLower);
+            case NetworkSrc:
+                return hashOf(networkSrcUpper ^ networkSrcLower);
+            case NetworkProto:
+                return networkProto;
+            case NetworkTTL:
+                return networkTTL;
+            case TunnelKey:
+                return hashOf(tunnelKey);
+            case TunnelSrc:
+                return tunnelSrc;
+            case TunnelDst:
+                return tunnelDst;
+            case IcmpId:
+                return icmpId;
+            case IcmpData:
+                return Arrays.hashCode(icmpData);
+            case VlanId:
+                int result = 1;
+                for (int i = 0; i < numVlanIds; i++)
+                    result = 31 * result + vlanIds[i];
+                return result;
+            default:
+                return 0;
+        }
+    }
+
     private String getNetworkProtocolAsString() {
         switch (networkProto) {
             case 1: return "icmp";
@@ -852,9 +1070,8 @@ public class WildcardMatch implements Cloneable {
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder("WildcardMatch[");
-        Set<Field> usedFields = getUsedFields();
-        for (Field f: usedFields) {
-            switch (f) {
+        for (int bits = usedFields; bits != 0; bits &= bits - 1) {
+            switch (FIELDS[Integer.numberOfTrailingZeros(bits)]) {
                 case EtherType:
                     str.append("ethertype=");
                     str.append(etherType);
@@ -867,12 +1084,12 @@ public class WildcardMatch implements Cloneable {
 
                 case EthDst:
                     str.append("eth_dst=");
-                    str.append(ethDst.toString());
+                    str.append(MAC.longToString(ethDst));
                     break;
 
                 case EthSrc:
                     str.append("eth_src=");
-                    str.append(ethSrc.toString());
+                    str.append(MAC.longToString(ethSrc));
                     break;
 
                 case DstPort:
@@ -892,12 +1109,14 @@ public class WildcardMatch implements Cloneable {
 
                 case NetworkDst:
                     str.append("nw_dst=");
-                    str.append(networkDst.toString());
+                    str.append(toIPAddr(networkDstUpper, networkDstLower,
+                                              networkDstIsV6));
                     break;
 
                 case NetworkSrc:
                     str.append("nw_src=");
-                    str.append(networkSrc.toString());
+                    str.append(toIPAddr(networkSrcUpper, networkSrcLower,
+                                              networkSrcIsV6));
                     break;
 
                 case NetworkProto:
@@ -937,14 +1156,15 @@ public class WildcardMatch implements Cloneable {
 
                 case VlanId:
                     str.append("vlan=");
-                    str.append(vlanIds);
+                    str.append(Arrays.toString(
+                        Arrays.copyOf(vlanIds, numVlanIds)));
                     break;
             }
             str.append(", ");
         }
 
         // Trim trailing ", "
-        if (!usedFields.isEmpty())
+        if (usedFields != 0)
             str.setLength(str.length() - 2);
 
         str.append("]");
@@ -960,9 +1180,9 @@ public class WildcardMatch implements Cloneable {
         // XXX TODO(pino): validate implementation of clone !
         WildcardMatch newClone = new WildcardMatch();
 
-        newClone.usedFields.addAll(usedFields);
-        for (Field field : Field.values()) {
-            if (usedFields.contains(field)) {
+        newClone.usedFields = usedFields;
+        for (Field field : FIELDS) {
+            if (isUsed(field)) {
                 switch (field) {
                     case EtherType:
                         newClone.etherType = etherType;
@@ -974,10 +1194,12 @@ public class WildcardMatch implements Cloneable {
 
                     case EthDst:
                         newClone.ethDst = ethDst;
+                        newClone.ethDstObj = ethDstObj;
                         break;
 
                     case EthSrc:
                         newClone.ethSrc = ethSrc;
+                        newClone.ethSrcObj = ethSrcObj;
                         break;
 
                     case DstPort:
@@ -993,11 +1215,17 @@ public class WildcardMatch implements Cloneable {
                         break;
 
                     case NetworkDst:
-                        newClone.networkDst = networkDst;
+                        newClone.networkDstUpper = networkDstUpper;
+                        newClone.networkDstLower = networkDstLower;
+                        newClone.networkDstIsV6 = networkDstIsV6;
+                        newClone.networkDstObj = networkDstObj;
                         break;
 
                     case NetworkSrc:
-                        newClone.networkSrc = networkSrc;
+                        newClone.networkSrcUpper = networkSrcUpper;
+                        newClone.networkSrcLower = networkSrcLower;
+                        newClone.networkSrcIsV6 = networkSrcIsV6;
+                        newClone.networkSrcObj = networkSrcObj;
                         break;
 
                     case NetworkProto:
@@ -1034,7 +1262,8 @@ public class WildcardMatch implements Cloneable {
                         break;
 
                     case VlanId:
-                        newClone.vlanIds.addAll(vlanIds);
+                        newClone.vlanIds = Arrays.copyOf(vlanIds, numVlanIds);
+                        newClone.numVlanIds = numVlanIds;
                         break;
 
                     default:
@@ -1050,7 +1279,8 @@ public class WildcardMatch implements Cloneable {
 
     @Nullable
     public ProjectedWildcardMatch project(Set<WildcardMatch.Field> fields) {
-        if (!getUsedFields().containsAll(fields))
+        int mask = maskOf(fields);
+        if ((usedFields & mask) != mask)
             return null;
 
         return new ProjectedWildcardMatch(fields, this);
@@ -1062,12 +1292,14 @@ public class WildcardMatch implements Cloneable {
 
     public static WildcardMatch fromFlowKeys(List<FlowKey> keys) {
         WildcardMatch wildcardMatch = new WildcardMatch();
-        wildcardMatch.processMatchKeys(keys);
+        // Indexed iteration, the keys of a FlowMatch are an ArrayList.
+        for (int i = 0; i < keys.size(); i++)
+            wildcardMatch.processMatchKey(keys.get(i));
 
-        if(wildcardMatch.getEtherType() == null){
+        if (!wildcardMatch.isUsed(Field.EtherType)) {
             // Match the empty ether type (802.2)
             wildcardMatch.setEtherType(
-                FlowKeys.etherType(FlowKeyEtherType.Type.ETH_P_NONE).getEtherType());
+                (short) FlowKeyEtherType.Type.ETH_P_NONE.value);
         }
         return wildcardMatch;
     }
@@ -1077,120 +1309,123 @@ public class WildcardMatch implements Cloneable {
     }
 
     private void processMatchKeys(Iterable<FlowKey> flowKeys) {
-        for (FlowKey flowKey : flowKeys) {
-            switch (flowKey.attrId()) {
-
-                case OpenVSwitch.FlowKey.Attr.Encap:
-                    FlowKeyEncap encap = as(flowKey, FlowKeyEncap.class);
-                    processMatchKeys(encap.getKeys());
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.Priority:
-                    // TODO(pino)
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.InPort:
-                    FlowKeyInPort inPort = as(flowKey, FlowKeyInPort.class);
-                    setInputPortNumber((short) inPort.getInPort());
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.Ethernet:
-                    FlowKeyEthernet ethernet = as(flowKey,
-                                                  FlowKeyEthernet.class);
-                    setEthSrc(MAC.fromAddress(ethernet.getSrc()));
-                    setEthDst(MAC.fromAddress(ethernet.getDst()));
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.VLan:
-                    FlowKeyVLAN vlan = as(flowKey, FlowKeyVLAN.class);
-                    addVlanId(vlan.getVLAN());
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.Ethertype:
-                    FlowKeyEtherType etherType = as(flowKey,
-                                                    FlowKeyEtherType.class);
-                    setEtherType(etherType.getEtherType());
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.IPv4:
-                    FlowKeyIPv4 ipv4 = as(flowKey, FlowKeyIPv4.class);
-                    setNetworkSrc(
-                        IPv4Addr.fromInt(ipv4.getSrc()));
-                    setNetworkDst(
-                        IPv4Addr.fromInt(ipv4.getDst()));
-                    setNetworkProto(ipv4.getProto());
-                    setIpFragmentType(IPFragmentType.fromByte(ipv4.getFrag()));
-                    setNetworkTTL(ipv4.getTtl());
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.IPv6:
-                    FlowKeyIPv6 ipv6 = as(flowKey, FlowKeyIPv6.class);
-                    int[] intSrc = ipv6.getSrc();
-                    int[] intDst = ipv6.getDst();
-                    setNetworkSrc(new IPv6Addr(
-                        (((long) intSrc[0]) << 32) | (intSrc[1] & 0xFFFFFFFFL),
-                        (((long) intSrc[2]) << 32) | (intSrc[3] & 0xFFFFFFFFL)));
-                    setNetworkDst(new IPv6Addr(
-                        (((long) intDst[0]) << 32) | (intDst[1] & 0xFFFFFFFFL),
-                        (((long) intDst[2]) << 32) | (intDst[3] & 0xFFFFFFFFL)));
-                    setNetworkProto(ipv6.getProto());
-                    setIpFragmentType(ipv6.getFrag());
-                    setNetworkTTL(ipv6.getHLimit());
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.TCP:
-                    FlowKeyTCP tcp = as(flowKey, FlowKeyTCP.class);
-                    setSrcPort(tcp.getSrc());
-                    setDstPort(tcp.getDst());
-                    setNetworkProto(TCP.PROTOCOL_NUMBER);
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.UDP:
-                    FlowKeyUDP udp = as(flowKey, FlowKeyUDP.class);
-                    setSrcPort(udp.getUdpSrc());
-                    setDstPort(udp.getUdpDst());
-                    setNetworkProto(UDP.PROTOCOL_NUMBER);
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.ICMP:
-                    FlowKeyICMP icmp = as(flowKey, FlowKeyICMP.class);
-                    setSrcPort(icmp.getType());
-                    setDstPort(icmp.getCode());
-                    if (icmp instanceof FlowKeyICMPEcho) {
-                        FlowKeyICMPEcho icmpEcho = ((FlowKeyICMPEcho) icmp);
-                        setIcmpIdentifier(icmpEcho.getIdentifier());
-                    } else if (icmp instanceof FlowKeyICMPError) {
-                        setIcmpData(((FlowKeyICMPError) icmp).getIcmpData());
-                    }
-                    setNetworkProto(ICMP.PROTOCOL_NUMBER);
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.ICMPv6:
-                    // XXX(jlm, s3wong)
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.ARP:
-                    FlowKeyARP arp = as(flowKey, FlowKeyARP.class);
-                    setNetworkSrc(IPv4Addr.fromInt(arp.getSip()));
-                    setNetworkDst(IPv4Addr.fromInt(arp.getTip()));
-                    setEtherType(ARP.ETHERTYPE);
-                    setNetworkProto((byte) (arp.getOp() & 0xff));
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.ND:
-                    // XXX(jlm, s3wong): Neighbor Discovery
-                    break;
-
-                case OpenVSwitch.FlowKey.Attr.Tunnel_N:
-                    // since ovs 1.9, required for ovs 1.10+
-                    // matched in "nested" flagged type id:
-                    // FlowKeyAttr<FlowKeyTunnel> tun = attrNest(16); ( neq 16 )
-                    FlowKeyTunnel tunnel = as(flowKey, FlowKeyTunnel.class);
-                    setTunnelKey(tunnel.getTunnelID());
-                    setTunnelSrc(tunnel.getIpv4SrcAddr());
-                    setTunnelDst(tunnel.getIpv4DstAddr());
-                    break;
-            }
+        for (FlowKey flowKey : flowKeys)
+            processMatchKey(flowKey);
+    }
+
+    private void processMatchKey(FlowKey flowKey) {
+        switch (flowKey.attrId()) {
+
+            case OpenVSwitch.FlowKey.Attr.Encap:
+                FlowKeyEncap encap = as(flowKey, FlowKeyEncap.class);
+                processMatchKeys(encap.getKeys());
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.Priority:
+                // TODO(pino)
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.InPort:
+                FlowKeyInPort inPort = as(flowKey, FlowKeyInPort.class);
+                setInputPortNumber((short) inPort.getInPort());
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.Ethernet:
+                FlowKeyEthernet ethernet = as(flowKey,
+                                              FlowKeyEthernet.class);
+                setEthSrc(MAC.bytesToLong(ethernet.getSrc()));
+                setEthDst(MAC.bytesToLong(ethernet.getDst()));
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.VLan:
+                FlowKeyVLAN vlan = as(flowKey, FlowKeyVLAN.class);
+                addVlanId(vlan.getVLAN());
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.Ethertype:
+                FlowKeyEtherType etherType = as(flowKey,
+                                                FlowKeyEtherType.class);
+                setEtherType(etherType.getEtherType());
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.IPv4:
+                FlowKeyIPv4 ipv4 = as(flowKey, FlowKeyIPv4.class);
+                setNetworkSrc(0L, ipv4.getSrc() & 0xFFFFFFFFL, false);
+                setNetworkDst(0L, ipv4.getDst() & 0xFFFFFFFFL, false);
+                setNetworkProto(ipv4.getProto());
+                setIpFragmentType(IPFragmentType.fromByte(ipv4.getFrag()));
+                setNetworkTTL(ipv4.getTtl());
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.IPv6:
+                FlowKeyIPv6 ipv6 = as(flowKey, FlowKeyIPv6.class);
+                int[] intSrc = ipv6.getSrc();
+                int[] intDst = ipv6.getDst();
+                setNetworkSrc(
+                    (((long) intSrc[0]) << 32) | (intSrc[1] & 0xFFFFFFFFL),
+                    (((long) intSrc[2]) << 32) | (intSrc[3] & 0xFFFFFFFFL),
+                    true);
+                setNetworkDst(
+                    (((long) intDst[0]) << 32) | (intDst[1] & 0xFFFFFFFFL),
+                    (((long) intDst[2]) << 32) | (intDst[3] & 0xFFFFFFFFL),
+                    true);
+                setNetworkProto(ipv6.getProto());
+                setIpFragmentType(ipv6.getFrag());
+                setNetworkTTL(ipv6.getHLimit());
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.TCP:
+                FlowKeyTCP tcp = as(flowKey, FlowKeyTCP.class);
+                setSrcPort(tcp.getSrc());
+                setDstPort(tcp.getDst());
+                setNetworkProto(TCP.PROTOCOL_NUMBER);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.UDP:
+                FlowKeyUDP udp = as(flowKey, FlowKeyUDP.class);
+                setSrcPort(udp.getUdpSrc());
+                setDstPort(udp.getUdpDst());
+                setNetworkProto(UDP.PROTOCOL_NUMBER);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.ICMP:
+                FlowKeyICMP icmp = as(flowKey, FlowKeyICMP.class);
+                setSrcPort(icmp.getType());
+                setDstPort(icmp.getCode());
+                if (icmp instanceof FlowKeyICMPEcho) {
+                    FlowKeyICMPEcho icmpEcho = ((FlowKeyICMPEcho) icmp);
+                    setIcmpIdentifier(icmpEcho.getIdentifier());
+                } else if (icmp instanceof FlowKeyICMPError) {
+                    setIcmpData(((FlowKeyICMPError) icmp).getIcmpData());
+                }
+                setNetworkProto(ICMP.PROTOCOL_NUMBER);
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.ICMPv6:
+                // XXX(jlm, s3wong)
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.ARP:
+                FlowKeyARP arp = as(flowKey, FlowKeyARP.class);
+                setNetworkSrc(0L, arp.getSip() & 0xFFFFFFFFL, false);
+                setNetworkDst(0L, arp.getTip() & 0xFFFFFFFFL, false);
+                setEtherType(ARP.ETHERTYPE);
+                setNetworkProto((byte) (arp.getOp() & 0xff));
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.ND:
+                // XXX(jlm, s3wong): Neighbor Discovery
+                break;
+
+            case OpenVSwitch.FlowKey.Attr.Tunnel_N:
+                // since ovs 1.9, required for ovs 1.10+
+                // matched in "nested" flagged type id:
+                // FlowKeyAttr<FlowKeyTunnel> tun = attrNest(16); ( neq 16 )
+                FlowKeyTunnel tunnel = as(flowKey, FlowKeyTunnel.class);
+                setTunnelKey(tunnel.getTunnelID());
+                setTunnelSrc(tunnel.getIpv4SrcAddr());
+                setTunnelDst(tunnel.getIpv4DstAddr());
+                break;
         }
     }
 
@@ -76,6 +76,13 @@ public interface FlowStateTable<K, V> {
      */
     <U> U expireIdleEntries(U seed, Reducer<K, V, U> func);
 
+    /**
+     * Expires at most maxEntries of the entries that became non-referenced
+     * longer than their allowed idle expiration and folds over each of them.
+     * The remaining expired entries are left for a later call.
+     */
+    <U> U expireIdleEntries(U seed, Reducer<K, V, U> func, int maxEntries);
+
     /**
      * Folds the entries of this transaction using the specified Reducer.
      */
@@ -16,8 +16,10 @@
 
 package org.midonet.midolman
 
+import java.io.File
 import java.util.concurrent.TimeoutException
-import java.util.{UUID, HashMap => JHashMap, List => JList}
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.{ArrayList, UUID, HashMap => JHashMap, List => JList}
 
 import scala.collection.mutable
 import scala.concurrent.duration._
@@ -42,7 +44,7 @@ import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.{DhcpException, DeviceQueryTimeoutException, ArpTimeoutException, PacketContext}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
 import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
-import org.midonet.midolman.state.{FlowStatePackets, FlowStateReplicator, FlowStateStorage, NatLeaser}
+import org.midonet.midolman.state.{FlowStatePackets, FlowStateReplicator, FlowStateSnapshot, FlowStateStorage, NatLeaser}
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.{Datapath, FlowMatch, Packet}
@@ -68,6 +70,10 @@ object DeduplicationActor {
 
     case class RestartWorkflow(pktCtx: PacketContext)
 
+    /* Tells a worker to write a snapshot of its flow state tables to the
+     * given file. See FlowStateSnapshot. */
+    case class SnapshotFlowState(file: File)
+
     // This class holds a cache of actions we use to apply the result of a
     // simulation to pending packets while that result isn't written into
     // the WildcardFlowTable. After updating the table, the FlowController
@@ -147,6 +153,8 @@ class DeduplicationActor(
     import org.midonet.midolman.DatapathController.DatapathReady
     import org.midonet.midolman.DeduplicationActor._
     import org.midonet.midolman.PacketWorkflow._
+    import org.midonet.midolman.PacketQueue.CheckPackets
+    import org.midonet.midolman.WorkerScheduler.{BucketReleased, JoinScheduler, ReleaseBucket}
 
     override def logSource = "org.midonet.packet-worker"
 
@@ -162,6 +170,10 @@ class DeduplicationActor(
 
     protected val simulationExpireMillis = 5000L
 
+    /* The most flow state entries expired before each batch of packets, so
+     * that a wave of expirations is spread over several batches. */
+    protected val maxStateExpirationsPerBatch = 1000
+
     private val waitingRoom = new WaitingRoom[PacketContext](
                                         (simulationExpireMillis millis).toNanos)
 
@@ -179,17 +191,26 @@ class DeduplicationActor(
 
     private var pendingFlowStateBatches = List[FlowStateBatch]()
 
+    private val queueLatency = metrics.queueLatency(self.path.name)
+
+    private var scheduler: WorkerScheduler = null
+    private var workerIndex = WorkerScheduler.NO_WORKER
+    private val heldPackets = new JHashMap[Int, ArrayList[Packet]]()
+    private val writingSnapshot = new AtomicBoolean()
+
     private val invalidateExpiredConnTrackKeys =
-        new Reducer[ConnTrackKey, ConnTrackValue, Unit]() {
-            override def apply(u: Unit, k: ConnTrackKey, v: ConnTrackValue) {
+        new Reducer[ConnTrackKey, ConnTrackValue, Int]() {
+            override def apply(n: Int, k: ConnTrackKey, v: ConnTrackValue) = {
                 FlowController ! InvalidateFlowsByTag(k)
+                n + 1
             }
         }
 
     private val invalidateExpiredNatKeys =
-        new Reducer[NatKey, NatBinding, Unit]() {
-            override def apply(u: Unit, k: NatKey, v: NatBinding): Unit = {
+        new Reducer[NatKey, NatBinding, Int]() {
+            override def apply(n: Int, k: NatKey, v: NatBinding) = {
                 FlowController ! InvalidateFlowsByTag(k)
+                n + 1
             }
         }
 
@@ -216,23 +237,54 @@ class DeduplicationActor(
                 pendingFlowStateBatches ::= m
 
         case HandlePackets(packets) =>
-            actionsCache.clearProcessedFlowMatches()
-
-            connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
-            natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
-            natLeaser.obliterateUnusedBlocks()
+            prepareBatch()
 
             var i = 0
             while (i < packets.length && packets(i) != null) {
-                handlePacket(packets(i))
+                schedulePacket(packets(i))
                 i += 1
             }
 
             cbExecutor.run()
 
+        case CheckPackets(queue) =>
+            prepareBatch()
+            queue.drain(queue.capacity, handleQueuedPacket)
+            cbExecutor.run()
+
+        case JoinScheduler(s, index) =>
+            scheduler = s
+            workerIndex = index
+
+        case ReleaseBucket(bucket) =>
+            prepareBatch()
+            try {
+                val queues = scheduler.queuesOf(workerIndex).iterator()
+                while (queues.hasNext) {
+                    val queue = queues.next()
+                    queue.drain(queue.capacity, handleQueuedPacket)
+                }
+            } finally {
+                // Otherwise the bucket would stay moving, its packets held
+                scheduler.released(bucket)
+            }
+            cbExecutor.run()
+
+        case BucketReleased(bucket) =>
+            prepareBatch()
+            releaseHeldPackets(bucket)
+            cbExecutor.run()
+
         case CallbackExecutor.CheckCallbacks =>
             cbExecutor.run()
 
+        case SnapshotFlowState(file) =>
+            if (writingSnapshot.compareAndSet(false, true))
+                snapshotFlowState(file)
+            else
+                log.debug("Skipping flow state snapshot {}: the previous " +
+                          "one is still being written", file)
+
         case RestartWorkflow(pktCtx) =>
             MDC.put("cookie", pktCtx.cookieStr)
             if (pktCtx.idle) {
@@ -251,6 +303,95 @@ class DeduplicationActor(
             startWorkflow(Packet.fromEthernet(ethernet), Right(egressPort))
     }
 
+    private def prepareBatch(): Unit = {
+        actionsCache.clearProcessedFlowMatches()
+
+        expireFlowState()
+        natLeaser.obliterateUnusedBlocks()
+    }
+
+    private def expireFlowState(): Unit = {
+        val start = NanoClock.DEFAULT.tick
+        var expired = connTrackStateTable.expireIdleEntries(
+            0, invalidateExpiredConnTrackKeys, maxStateExpirationsPerBatch)
+        expired = natStateTable.expireIdleEntries(
+            expired, invalidateExpiredNatKeys,
+            maxStateExpirationsPerBatch - expired)
+        if (expired > 0)
+            metrics.flowStateExpired(expired, NanoClock.DEFAULT.tick - start)
+    }
+
+    /* The tables are captured on this thread, which owns them, and the file
+     * is written on the default dispatcher so that the worker doesn't block
+     * on the file system. */
+    private def snapshotFlowState(file: File): Unit = {
+        val snapshot = FlowStateSnapshot.capture(System.currentTimeMillis(),
+                                                 connTrackStateTable,
+                                                 natStateTable)
+        Future {
+            FlowStateSnapshot.write(file, snapshot)
+        }(context.system.dispatcher).onComplete { result =>
+            writingSnapshot.set(false)
+            result match {
+                case Success(entries) =>
+                    log.debug("Wrote {} flow state entries to {}",
+                              entries, file)
+                case Failure(e) =>
+                    log.warn("Failed to write flow state snapshot {}: {}",
+                             file, e)
+            }
+        }(ExecutionContext.callingThread)
+    }
+
+    private val handleQueuedPacket = (packet: Packet) => {
+        queueLatency.update(NanoClock.DEFAULT.tick - packet.startTimeNanos)
+        schedulePacket(packet)
+    }
+
+    /* Handles a packet of a bucket owned by this worker, holding it while the
+     * bucket is being moved here, and forwards a packet of a bucket that was
+     * moved away to its new owner. See WorkerScheduler. */
+    private def schedulePacket(packet: Packet): Unit = {
+        if (scheduler eq null) {
+            handlePacket(packet)
+            return
+        }
+
+        val bucket = scheduler.bucketOf(packet.getMatch.connectionHash)
+        val source = scheduler.sourceOf(bucket)
+        val owner = scheduler.ownerOf(bucket)
+        if (owner == workerIndex) {
+            if (source == WorkerScheduler.NO_WORKER) {
+                releaseHeldPackets(bucket)
+                handlePacket(packet)
+            } else {
+                var held = heldPackets.get(bucket)
+                if (held eq null) {
+                    held = new ArrayList[Packet]()
+                    heldPackets.put(bucket, held)
+                }
+                held.add(packet)
+            }
+        } else if (source == workerIndex) {
+            handlePacket(packet)
+        } else {
+            scheduler.workers(owner) ! HandlePackets(Array(packet))
+        }
+    }
+
+    private def releaseHeldPackets(bucket: Int): Unit =
+        if (!heldPackets.isEmpty) {
+            val held = heldPackets.remove(bucket)
+            if (held ne null) {
+                log.debug(s"Processing ${held.size} packet(s) held for bucket $bucket")
+                var i = 0
+                while (i < held.size) {
+                    handlePacket(held.get(i))
+                    i += 1
+                }
+            }
+        }
+
     // We return collection.Set so we can return an empty immutable set
     // and a non-empty mutable set.
     private def removeSuspendedPackets(flowMatch: FlowMatch): collection.Set[Packet] = {
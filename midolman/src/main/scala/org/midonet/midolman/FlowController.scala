@@ -16,18 +16,17 @@
 
 package org.midonet.midolman
 
-import java.util.concurrent.{TimeUnit, ConcurrentHashMap => ConcHashMap}
-import java.util.{ArrayList, Map => JMap, Set => JSet}
+import java.util.{ArrayList, Set => JSet}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 
 import javax.inject.Inject
 
 import org.midonet.midolman.management.Metering
 import org.midonet.midolman.monitoring.MeterRegistry
 
-import scala.annotation.tailrec
 import scala.collection.JavaConversions._
-import scala.collection.mutable.{HashMap, MultiMap}
-import scala.collection.{mutable, Set => ROSet}
+import scala.collection.mutable.HashMap
+import scala.collection.{Set => ROSet}
 import scala.concurrent.ExecutionContext
 import scala.concurrent.duration._
 
@@ -38,17 +37,18 @@ import com.codahale.metrics.MetricRegistry.name
 import com.codahale.metrics.{Gauge, MetricRegistry}
 
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.flows.WildcardTablesProvider
+import org.midonet.midolman.flows.WildcardFlowClassifier
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
-import org.midonet.midolman.monitoring.metrics.{FlowTablesGauge, FlowTablesMeter}
+import org.midonet.midolman.monitoring.metrics.{FlowTablesGauge, FlowTablesHistogram, FlowTablesMeter}
 import org.midonet.netlink.Callback
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode
 import org.midonet.odp.{Datapath, Flow, FlowMatch}
+import org.midonet.odp.protos.OvsDatapathConnection
 import org.midonet.sdn.flows.FlowTagger.FlowTag
-import org.midonet.sdn.flows.{FlowManager, FlowManagerHelper, ManagedWildcardFlow,
-                              WildcardFlow, WildcardMatch}
+import org.midonet.sdn.flows.{FlowManager, FlowManagerHelper, FlowTagIndex,
+                              ManagedWildcardFlow, WildcardFlow, WildcardMatch}
 import org.midonet.util.collection.{ArrayObjectPool, ObjectPool}
 import org.midonet.util.functors.{Callback0, Callback1}
 
@@ -58,43 +58,55 @@ case object EventSeen extends EventSearchResult
 case object EventNotSeen extends EventSearchResult
 case object EventSearchWindowMissed extends EventSearchResult
 
-class EventHistory[T](val slots: Int) {
-    @volatile private var events = Vector[HistoryEntry]()
-
-    class HistoryEntry(val event: T) {
-        val id: Long = youngest + 1
-    }
-
-    def youngest: Long = events.headOption match {
-        case Some(e) => e.id
-        case None => 0
-    }
-
-    def oldest: Long = events.lastOption match {
-        case Some(e) => e.id
-        case None => 0
-    }
-
-    def put(event: T): Long = {
-        events = new HistoryEntry(event) +: events
-        if (events.size > slots)
-            events = events dropRight 1
-        youngest
+/**
+ * A bounded history of events, numbered from 1 as they are put.
+ *
+ * The last `slots` events are kept in a ring buffer, and each of them maps
+ * to the number of its most recent occurrence. Checking whether any event of
+ * a set happened after a given number thus takes time proportional to the
+ * size of the set, not of the history.
+ *
+ * Events are put under a lock, while youngest, oldest and exists, which
+ * every simulation thread calls, don't take it. A reader may observe an
+ * eviction in the middle of a put: put publishes the new oldest event before
+ * evicting, so a reader that finds nothing re-checks the window afterwards and
+ * reports it missed if the eviction could have hidden an event.
+ */
+class EventHistory[T <: AnyRef](val slots: Int) {
+    private val ring = new Array[AnyRef](slots)
+    private val lastOccurrence =
+        new ConcurrentHashMap[T, java.lang.Long](slots)
+    @volatile private var _youngest = 0L
+    @volatile private var _oldest = 0L
+
+    def youngest: Long = _youngest
+
+    def oldest: Long = _oldest
+
+    def put(event: T): Long = synchronized {
+        val id = _youngest + 1
+        val slot = (id % slots).toInt
+        val evicted = ring(slot).asInstanceOf[T]
+        _oldest = Math.max(1, id - slots + 1)
+        if (evicted ne null)
+            lastOccurrence.remove(evicted, java.lang.Long.valueOf(id - slots))
+        ring(slot) = event
+        lastOccurrence.put(event, id)
+        _youngest = id
+        id
     }
 
     def exists(lastSeen: Long, eventSet: ROSet[T]): EventSearchResult = {
-        val frozen = events
-
-        if (frozen.isEmpty || oldest > lastSeen + 1)
+        if (_youngest == 0 || _oldest > lastSeen + 1)
             return EventSearchWindowMissed
 
-        var i = 0
-        while (frozen.isDefinedAt(i) && frozen(i).id > lastSeen) {
-            if (eventSet.contains(frozen(i).event))
+        val it = eventSet.iterator
+        while (it.hasNext) {
+            val id = lastOccurrence.get(it.next())
+            if ((id ne null) && id.longValue > lastSeen)
                 return EventSeen
-            i = i+1
         }
-        EventNotSeen
+        if (_oldest > lastSeen + 1) EventSearchWindowMissed else EventNotSeen
     }
 
     def exists(lastSeen: Long, ev: T): EventSearchResult =  exists(lastSeen, ROSet(ev))
@@ -135,6 +147,8 @@ object FlowController extends Referenceable {
     case class GetFlowSucceeded_(flow: Flow, origMatch: FlowMatch, flowCallback: Callback1[Flow])
     case class GetFlowFailed_(flowCallback: Callback1[Flow])
 
+    case class FlowsDumped_(flows: JSet[Flow], flowsCallback: Callback1[JSet[Flow]])
+
     /** NOTE(guillermo): we include an 'origMatch' here because 'userspace' keys
       * are lost in the trip to the kernel, and that plays badly with out book
       * keeping, in particular with that of the MetricsRegistry. */
@@ -143,56 +157,12 @@ object FlowController extends Referenceable {
 
     val MIN_WILDCARD_FLOW_CAPACITY = 4096
 
-    // TODO(guillermo) tune these values
-    private val WILD_FLOW_TABLE_CONCURRENCY_LEVEL = 1
-    private val WILD_FLOW_TABLE_LOAD_FACTOR = 0.75f
-    private val WILD_FLOW_TABLE_INITIAL_CAPACITY = 65536
-    private val WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY = 256
-
-    private val wildcardTables: JMap[JSet[WildcardMatch.Field],
-                                        JMap[WildcardMatch, ManagedWildcardFlow]] =
-        new ConcHashMap[JSet[WildcardMatch.Field],
-                        JMap[WildcardMatch, ManagedWildcardFlow]](
-            WILD_FLOW_PARENT_TABLE_INITIAL_CAPACITY,
-            WILD_FLOW_TABLE_LOAD_FACTOR,
-            WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
-
-    private val wildcardTablesProvider: WildcardTablesProvider =
-        new WildcardTablesProvider {
-            override def tables = wildcardTables
-
-            override def addTable(pattern: JSet[WildcardMatch.Field]) = {
-                var table = wildcardTables.get(pattern)
-                if (table == null) {
-                    table = new ConcHashMap[WildcardMatch, ManagedWildcardFlow](
-                                    WILD_FLOW_TABLE_INITIAL_CAPACITY,
-                                    WILD_FLOW_TABLE_LOAD_FACTOR,
-                                    WILD_FLOW_TABLE_CONCURRENCY_LEVEL)
-
-                    wildcardTables.put(pattern, table)
-                }
-                table
-            }
-        }
+    private val wildcardTables = new WildcardFlowClassifier()
 
     def queryWildcardFlowTable(wildMatch: WildcardMatch)
     : Option[ManagedWildcardFlow] = {
-        var wildFlow: ManagedWildcardFlow = null
         wildMatch.doNotTrackSeenFields()
-        for (entry <- wildcardTables.entrySet()) {
-            val table = entry.getValue
-            val pattern = entry.getKey
-            val projectedFlowMatch = wildMatch.project(pattern)
-            if (projectedFlowMatch != null) {
-                val candidate = table.get(projectedFlowMatch)
-                if (null != candidate) {
-                    if (null == wildFlow)
-                        wildFlow = candidate
-                    else if (candidate.getPriority < wildFlow.getPriority)
-                        wildFlow = candidate
-                }
-            }
-        }
+        val wildFlow = wildcardTables.lookup(wildMatch)
         wildMatch.doTrackSeenFields()
         Option(wildFlow)
     }
@@ -241,11 +211,9 @@ class FlowController extends Actor with ActorLogWithoutPath
     var meters: MeterRegistry = null
 
     var flowManager: FlowManager = null
-    var flowManagerHelper: FlowManagerHelper = null
+    var flowManagerHelper: FlowManagerInfoImpl = null
 
-    val tagToFlows: MultiMap[FlowTag, ManagedWildcardFlow] =
-        new HashMap[FlowTag, mutable.Set[ManagedWildcardFlow]]
-            with MultiMap[FlowTag, ManagedWildcardFlow]
+    val tagToFlows = new FlowTagIndex()
 
     var flowExpirationCheckInterval: FiniteDuration = null
 
@@ -272,15 +240,24 @@ class FlowController extends Actor with ActorLogWithoutPath
 
         flowManagerHelper = new FlowManagerInfoImpl()
         flowManager = new FlowManager(flowManagerHelper,
-            FlowController.wildcardTablesProvider ,maxDpFlows, maxWildcardFlows,
+            FlowController.wildcardTables, maxDpFlows, maxWildcardFlows,
             idleFlowToleranceInterval)
+        flowManager.setIdleExpirationByDump(
+            midolmanConfig.getIdleFlowExpirationByDump)
 
         wildFlowPool = new ArrayObjectPool(maxWildcardFlows, new ManagedWildcardFlow(_))
 
         metrics = new FlowTablesMetrics(flowManager)
     }
 
-    def receive = LoggingReceive {
+    def receive = LoggingReceive(handleMessage andThen sendFlowRemovals)
+
+    /* Datapath flow removals requested while handling a message are batched
+     * and sent once the message has been handled. */
+    private def sendFlowRemovals(u: Unit): Unit =
+        flowManagerHelper.sendPendingRemovals()
+
+    private def handleMessage: Receive = {
         case DatapathReady(dp, dpState) =>
             if (null == datapath) {
                 datapath = dp
@@ -342,20 +319,25 @@ class FlowController extends Actor with ActorLogWithoutPath
             metrics.currentDpFlows = flowManager.getNumDpFlows
 
         case InvalidateFlowsByTag(tag) =>
-            tagToFlows.remove(tag) match {
-                case None =>
+            val flows = new ArrayList[ManagedWildcardFlow]()
+            tagToFlows.removeTag(tag, flows) match {
+                case 0 =>
                     log.debug(s"There are no flows to invalidate for tag $tag")
-                case Some(flowSet) =>
-                    log.debug(s"There are ${flowSet.size} flows to invalidate for tag $tag")
-                    for (wildFlow <- flowSet)
-                        removeWildcardFlow(wildFlow)
+                case count =>
+                    log.debug(s"There are $count flows to invalidate for tag $tag")
+                    var i = 0
+                    while (i < count) {
+                        removeWildcardFlow(flows.get(i))
+                        i += 1
+                    }
             }
             invalidationHistory.put(tag)
+            metrics.invalidationFanOut.update(flows.size)
             metrics.currentDpFlows = flowManager.getNumDpFlows
 
         case RemoveWildcardFlow(wmatch) =>
             log.debug("Removing wcflow for match {}", wmatch)
-            wildcardTables.get(wmatch.getUsedFields) match {
+            wildcardTables.tables.get(wmatch.getUsedFields) match {
                 case null =>
                 case table => table.get(wmatch) match {
                     case null =>
@@ -378,6 +360,12 @@ class FlowController extends Actor with ActorLogWithoutPath
         case GetFlowFailed_(callback) =>
             callback.call(null)
 
+        case FlowsDumped_(flows, callback) =>
+            log.debug("Retrieved {} flows from the datapath",
+                      if (flows ne null) flows.size else "no")
+            callback.call(flows)
+            metrics.currentDpFlows = flowManager.getNumDpFlows
+
         case FlowMissing_(flowMatch, callback) =>
             callback.call(null)
             flowManager.flowMissing(flowMatch)
@@ -394,16 +382,8 @@ class FlowController extends Actor with ActorLogWithoutPath
     }
 
     private def removeWildcardFlow(wildFlow: ManagedWildcardFlow) {
-        @tailrec
-        def tagsCleanup(tags: Array[FlowTag], i: Int = 0) {
-            if (tags != null && tags.length > i) {
-                tagToFlows.removeBinding(tags(i), wildFlow)
-                tagsCleanup(tags, i+1)
-            }
-        }
-
         if (flowManager.remove(wildFlow)) {
-            tagsCleanup(wildFlow.tags)
+            tagToFlows.remove(wildFlow)
             wildFlow.unref() // tags ref
             wildFlow.cbExecutor.schedule(wildFlow.callbacks)
             context.system.eventStream.publish(WildcardFlowRemoved(wildFlow.immutable))
@@ -447,9 +427,7 @@ class FlowController extends Actor with ActorLogWithoutPath
         wildFlow.ref() // tags ref
         if (null != tags) {
             wildFlow.tags = tags.toArray
-            for (tag <- tags) {
-                tagToFlows.addBinding(tag, wildFlow)
-            }
+            tagToFlows.add(wildFlow)
         }
 
         if (dpFlow != null) {
@@ -463,13 +441,39 @@ class FlowController extends Actor with ActorLogWithoutPath
     class FlowManagerInfoImpl() extends FlowManagerHelper {
         val sched = context.system.scheduler
 
+        /* One batch of pending flow deletions per datapath connection. */
+        private val pendingRemovals =
+            new HashMap[OvsDatapathConnection, OvsDatapathConnection.FlowBatch]
+
+        def sendPendingRemovals() {
+            if (pendingRemovals.nonEmpty) {
+                pendingRemovals.values foreach { _.send() }
+                pendingRemovals.clear()
+            }
+        }
+
         private def _removeFlow(flowMatch: FlowMatch, retries: Int) {
+            val conn = datapathConnection(flowMatch)
+            val batch = pendingRemovals.getOrElseUpdate(conn,
+                                                        conn.flowsBatch(datapath))
+            batch.delete(flowMatch.getKeys, removalCallback(flowMatch, retries))
+        }
+
+        /* Retries are issued out of the scheduler's thread, so they don't
+         * go through the actor's batches. */
+        private def _retryRemoveFlow(flowMatch: FlowMatch, retries: Int) {
+            datapathConnection(flowMatch).flowsDelete(datapath, flowMatch.getKeys,
+                removalCallback(flowMatch, retries))
+        }
+
+        private def removalCallback(flowMatch: FlowMatch,
+                                    retries: Int): Callback[Flow] = {
             def scheduleRetry() {
                 if (retries > 0) {
                     log.debug("Scheduling retry of flow deletion with match: {}",
                               flowMatch)
                     sched.scheduleOnce(1 second) {
-                        _removeFlow(flowMatch, retries - 1)
+                        _retryRemoveFlow(flowMatch, retries - 1)
                     }
                 } else {
                     self ! DeleteFlowFailed_(flowMatch)
@@ -478,41 +482,40 @@ class FlowController extends Actor with ActorLogWithoutPath
                 }
             }
 
-            datapathConnection(flowMatch).flowsDelete(datapath, flowMatch.getKeys,
-                new Callback[Flow] {
-                    def onError(ex: NetlinkException) {
-                        log.debug("Got an exception {} when trying to remove " +
-                                  "flow with match {}", ex, flowMatch)
-                        ex.getErrorCodeEnum match {
-                            // Success cases, the flow doesn't exist so userspace
-                            // can take it as a successful remove:
-                            case ErrorCode.ENODEV => notifyFlowLost()
-                            case ErrorCode.ENOENT => notifyFlowLost()
-                            case ErrorCode.ENXIO => notifyFlowLost()
-                            // Retry cases.
-                            case ErrorCode.EBUSY => scheduleRetry()
-                            case ErrorCode.EAGAIN => scheduleRetry()
-                            case ErrorCode.EIO => scheduleRetry()
-                            case ErrorCode.EINTR => scheduleRetry()
-                            case ErrorCode.ETIMEOUT => scheduleRetry()
-                            // Give up
-                            case _ =>
-                                self ! DeleteFlowFailed_(flowMatch)
-                                log.error("Giving up on deleting flow with "+
-                                    "match: {} due to: {}", flowMatch, ex)
-                        }
+            new Callback[Flow] {
+                def onError(ex: NetlinkException) {
+                    log.debug("Got an exception {} when trying to remove " +
+                              "flow with match {}", ex, flowMatch)
+                    ex.getErrorCodeEnum match {
+                        // Success cases, the flow doesn't exist so userspace
+                        // can take it as a successful remove:
+                        case ErrorCode.ENODEV => notifyFlowLost()
+                        case ErrorCode.ENOENT => notifyFlowLost()
+                        case ErrorCode.ENXIO => notifyFlowLost()
+                        // Retry cases.
+                        case ErrorCode.EBUSY => scheduleRetry()
+                        case ErrorCode.EAGAIN => scheduleRetry()
+                        case ErrorCode.EIO => scheduleRetry()
+                        case ErrorCode.EINTR => scheduleRetry()
+                        case ErrorCode.ETIMEOUT => scheduleRetry()
+                        // Give up
+                        case _ =>
+                            self ! DeleteFlowFailed_(flowMatch)
+                            log.error("Giving up on deleting flow with "+
+                                "match: {} due to: {}", flowMatch, ex)
                     }
+                }
 
-                    def onSuccess(flow: Flow) {
-                        log.debug("DP confirmed flow removal: {}", flowMatch)
-                        self ! DeleteFlowSucceeded_(flow, flowMatch)
-                    }
+                def onSuccess(flow: Flow) {
+                    log.debug("DP confirmed flow removal: {}", flowMatch)
+                    self ! DeleteFlowSucceeded_(flow, flowMatch)
+                }
 
-                    def notifyFlowLost() {
-                        log.debug("DP flow was already deleted: {}", flowMatch)
-                        self ! DeleteFlowFailed_(flowMatch)
-                    }
-                })
+                def notifyFlowLost() {
+                    log.debug("DP flow was already deleted: {}", flowMatch)
+                    self ! DeleteFlowFailed_(flowMatch)
+                }
+            }
         }
 
         def removeFlow(flowMatch: FlowMatch) {
@@ -524,6 +527,27 @@ class FlowController extends Actor with ActorLogWithoutPath
             FlowController.this.removeWildcardFlow(flow)
         }
 
+        def getFlows(flowsCallback: Callback1[JSet[Flow]]) {
+            log.debug("requesting a dump of the datapath flows")
+            // Any connection of the pool can dump the whole datapath.
+            datapathConnPool.get(0).flowsEnumerate(datapath,
+                new Callback[JSet[Flow]] {
+                    def onSuccess(flows: JSet[Flow]) {
+                        self ! FlowsDumped_(flows, flowsCallback)
+                    }
+                    def onError(ex: NetlinkException) {
+                        log.error("Got exception when trying to " +
+                                  "flowsEnumerate()", ex)
+                        self ! FlowsDumped_(null, flowsCallback)
+                    }
+                }, flowExpirationCheckInterval.toMillis)
+        }
+
+        def flowStatsUpdated(flowMatch: FlowMatch, flow: Flow) {
+            if (flow.getStats ne null)
+                meters.updateFlow(flowMatch, flow.getStats)
+        }
+
         def getFlow(flowMatch: FlowMatch, flowCallback: Callback1[Flow] ) {
             log.debug("requesting flow for flow match: {}", flowMatch)
             val cb = new Callback[Flow] {
@@ -573,6 +597,39 @@ class FlowController extends Actor with ActorLogWithoutPath
         val dpFlowsMetric = metricsRegistry.meter(name(
                 classOf[FlowTablesMeter], "datapathFlowsCreated",
                 "datapathFlows"))
+
+        val invalidationFanOut = metricsRegistry.histogram(name(
+                classOf[FlowTablesHistogram], "flowsInvalidatedPerTag"))
+
+        val currentTagBindingsMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "currentTagBindings"),
+                new Gauge[Int]{
+                    override def getValue = tagToFlows.numBindings
+                })
+
+        val wildTablesMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "currentWildcardTables"),
+                new Gauge[Int]{
+                    override def getValue = wildcardTables.getNumTables
+                })
+
+        val wildTableLookupsMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "wildcardTableLookups"),
+                new Gauge[Long]{
+                    override def getValue = wildcardTables.getLookups
+                })
+
+        val wildTablesProbedMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "wildcardTablesProbed"),
+                new Gauge[Long]{
+                    override def getValue = wildcardTables.getTablesProbed
+                })
+
+        val wildTableMissesMetric = metricsRegistry.register(name(
+                classOf[FlowTablesGauge], "wildcardTableMisses"),
+                new Gauge[Long]{
+                    override def getValue = wildcardTables.getTableMisses
+                })
     }
 
 }
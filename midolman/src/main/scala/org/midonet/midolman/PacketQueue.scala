@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import akka.actor.ActorRef
+import org.jctools.queues.QueueFactory
+import org.jctools.queues.spec.ConcurrentQueueSpec._
+
+import org.midonet.odp.Packet
+import org.midonet.util.concurrent.WakerUpper
+import org.midonet.util.concurrent.WakerUpper.Parkable
+
+object PacketQueue {
+
+    /* Tells the worker that owns a queue that there are packets in it. */
+    case class CheckPackets(queue: PacketQueue)
+
+    /**
+     * How an upcall thread waits for a worker to make room in a full queue.
+     * Given the retries left, waits once and returns the retries left for
+     * the next attempt.
+     */
+    sealed trait WaitStrategy {
+        def apply(queue: PacketQueue, retries: Int): Int
+    }
+
+    object BusySpinWaitStrategy extends WaitStrategy {
+        override def apply(queue: PacketQueue, retries: Int) = retries
+    }
+
+    object YieldingWaitStrategy extends WaitStrategy {
+        override def apply(queue: PacketQueue, retries: Int) = {
+            Thread.`yield`()
+            retries
+        }
+    }
+
+    /* Spins, then yields, then parks until the WakerUpper sees room in the
+     * queue, as the WakerUpperWaitStrategy does for sequence barriers. */
+    object ParkingWaitStrategy extends WaitStrategy {
+        override def apply(queue: PacketQueue, retries: Int) =
+            if (retries > 100) {
+                retries - 1
+            } else if (retries > 0) {
+                Thread.`yield`()
+                retries - 1
+            } else {
+                queue.hasRoom.park()
+                retries
+            }
+    }
+
+    def waitStrategy(name: String): WaitStrategy = name match {
+        case "busy_spin" => BusySpinWaitStrategy
+        case "yielding" => YieldingWaitStrategy
+        case "parking" => ParkingWaitStrategy
+        case v => throw new IllegalArgumentException(
+                      s"Unknown value for simulation_queue_wait_strategy: $v")
+    }
+
+    /**
+     * The wait strategy of the given name for up to upcallThreads threads.
+     * A parked thread takes one of the WakerUpper.MAX_THREADS slots of the
+     * WakerUpper, so parking falls back to yielding when there may be more
+     * upcall threads than that.
+     */
+    def waitStrategy(name: String, upcallThreads: Int): WaitStrategy =
+        waitStrategy(name) match {
+            case ParkingWaitStrategy
+                if upcallThreads > WakerUpper.MAX_THREADS =>
+                YieldingWaitStrategy
+            case strategy => strategy
+        }
+
+    val RETRIES = 200
+}
+
+/**
+ * A bounded single-producer, single-consumer queue that hands the packets
+ * received by an upcall thread to a simulation worker. The queue is allocated
+ * up front, and the worker is only sent a message when packets are queued
+ * while it isn't already scheduled to drain the queue, so a busy worker is
+ * fed without allocations or mailbox enqueues.
+ */
+class PacketQueue(val capacity: Int, worker: ActorRef,
+                  waitStrategy: PacketQueue.WaitStrategy) {
+    import PacketQueue._
+
+    private val queue = QueueFactory.newQueue[Packet](
+                            createBoundedSpsc(capacity))
+    private val scheduled = new AtomicBoolean(false)
+
+    private[midolman] val hasRoom = new Parkable {
+        override def shouldWakeUp() = queue.size < capacity
+    }
+
+    /**
+     * Queues a packet, waiting for room while the queue is full. Must only be
+     * called by the producer.
+     */
+    def offer(packet: Packet): Unit = {
+        var retries = RETRIES
+        while (!queue.offer(packet)) {
+            signal()
+            retries = waitStrategy(this, retries)
+        }
+    }
+
+    /**
+     * Sends a CheckPackets message to the worker if there are packets in the
+     * queue and it hasn't been sent one since it last drained it.
+     */
+    def signal(): Unit =
+        if (!queue.isEmpty && !scheduled.getAndSet(true))
+            worker ! CheckPackets(this)
+
+    /**
+     * Passes up to max packets from the queue to the given function, and
+     * reschedules the worker if packets remain. Must only be called by the
+     * worker, and returns the number of packets drained.
+     */
+    def drain(max: Int, f: Packet => Unit): Int = {
+        // Reading the flag orders the following polls after the producer's
+        // last signal().
+        scheduled.getAndSet(false)
+        var packet: Packet = null
+        var n = 0
+        while (n < max && { packet = queue.poll(); packet ne null }) {
+            f(packet)
+            n += 1
+        }
+        signal()
+        n
+    }
+
+    def size: Int = queue.size
+}
@@ -16,7 +16,10 @@
 
 package org.midonet.midolman
 
+import java.io.File
+
 import scala.collection.immutable
+import scala.concurrent.duration._
 
 import akka.actor._
 import akka.event.LoggingReceive
@@ -34,9 +37,9 @@ import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.io.DatapathConnectionPool
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
-import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackCodec, ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatCodec, NatKey}
+import org.midonet.midolman.state.{FlowStateSnapshot, FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
 import org.midonet.sdn.state.ShardedFlowStateTable
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
@@ -46,7 +49,16 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    case class Workers(list: IndexedSeq[ActorRef], scheduler: WorkerScheduler)
+
+    object Workers {
+        def apply(list: IndexedSeq[ActorRef]): Workers =
+            Workers(list, new WorkerScheduler(list))
+    }
+
+    private case object Rebalance
+
+    private case object SnapshotFlowStates
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath
@@ -54,14 +66,14 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     import org.midonet.midolman.DatapathController.DatapathReady
     import org.midonet.midolman.DeduplicationActor._
     import org.midonet.midolman.PacketsEntryPoint._
+    import org.midonet.midolman.WorkerScheduler.JoinScheduler
+    import context.dispatcher
 
     private var _NUM_WORKERS = 1
     def NUM_WORKERS = _NUM_WORKERS
     private def NUM_WORKERS_=(n: Int) {
         if (n <= 0)
             _NUM_WORKERS = 1
-        else if (n > 16)
-            _NUM_WORKERS = 16
         else
             _NUM_WORKERS = n
     }
@@ -86,6 +98,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var scheduler: WorkerScheduler = _
     private var rrIndex = 0
 
     @Inject
@@ -109,8 +122,20 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         NUM_WORKERS = config.getSimulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry)
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        config.getFlowStateTables match {
+            case "on_heap" =>
+                connTrackStateTable = new ShardedFlowStateTable(clock)
+                natStateTable = new ShardedFlowStateTable(clock)
+            case "off_heap" =>
+                val capacity = config.getFlowStateTableInitialCapacity
+                connTrackStateTable = ShardedFlowStateTable.createOffHeap(
+                    clock, ConnTrackCodec, capacity)
+                natStateTable = ShardedFlowStateTable.createOffHeap(
+                    clock, NatCodec, capacity)
+            case v =>
+                throw new IllegalArgumentException(
+                    s"Unknown value for flow_state_tables: $v")
+        }
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
@@ -120,6 +145,64 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         for (i <- 0 until NUM_WORKERS) {
             workers :+= startWorker(i)
         }
+
+        scheduler = new WorkerScheduler(workers)
+        for (i <- 0 until NUM_WORKERS) {
+            workers(i) ! JoinScheduler(scheduler, i)
+            metrics.registerWorker(workers(i).path.name, scheduler, i)
+        }
+        val interval = config.getSimulationRebalanceIntervalMillis
+        if (interval > 0 && NUM_WORKERS > 1) {
+            context.system.scheduler.schedule(interval millis, interval millis,
+                                              self, Rebalance)
+        }
+
+        val snapshotInterval = config.getFlowStateSnapshotInterval
+        if (snapshotInterval > 0) {
+            restoreFlowStates()
+            context.system.scheduler.schedule(snapshotInterval seconds,
+                                              snapshotInterval seconds,
+                                              self, SnapshotFlowStates)
+        }
+    }
+
+    private def snapshotFile(index: Int) =
+        new File(config.getFlowStateSnapshotDir, s"flow-state-$index.snapshot")
+
+    /* Hands the flow state snapshots left by the previous run of the agent
+     * to the workers, which import them once the datapath is ready. A worker
+     * gets the snapshot of the worker with the same index, which, unless
+     * buckets were moved, owned the same connections. The snapshots of
+     * workers beyond the current number of workers are removed, as they
+     * won't be written again. */
+    private def restoreFlowStates(): Unit = {
+        val maxAge = config.getFlowStateSnapshotMaxAge * 1000L
+        val SnapshotName = "flow-state-(\\d{1,9})\\.snapshot".r
+        val files = Option(new File(config.getFlowStateSnapshotDir).listFiles)
+        for (file <- files.getOrElse(Array.empty[File]);
+             SnapshotName(index) <- Some(file.getName)) {
+            val worker = index.toInt % NUM_WORKERS
+            try {
+                FlowStateSnapshot.read(file, System.currentTimeMillis(),
+                                       maxAge) match {
+                    case Some(batch) =>
+                        log.info("Restoring {} conntrack and {} NAT entries " +
+                                 "from {}", batch.strongConnTrack.size +
+                                 batch.weakConnTrack.size,
+                                 batch.strongNat.size, file)
+                        workers(worker) ! batch
+                    case None =>
+                        log.info("Ignoring stale or invalid flow state " +
+                                 "snapshot {}", file)
+                }
+            } catch {
+                case e: Exception =>
+                    log.warn("Failed to read flow state snapshot {}: {}",
+                             file, e)
+            }
+            if (index.toInt >= NUM_WORKERS)
+                file.delete()
+        }
     }
 
     private def shardLogger(t: AnyRef) =
@@ -158,6 +241,17 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
 
         case m: FlowStateBatch => broadcast(m)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, scheduler)
+
+        case SnapshotFlowStates =>
+            for (i <- 0 until NUM_WORKERS) {
+                workers(i) ! SnapshotFlowState(snapshotFile(i))
+            }
+
+        case Rebalance =>
+            val bucket = scheduler.rebalance(config.getSimulationRebalanceMinBacklog)
+            if (bucket >= 0)
+                log.debug("Moved bucket {} to worker {}", bucket,
+                          scheduler.ownerOf(bucket))
     }
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.{AtomicInteger, AtomicIntegerArray, AtomicLongArray}
+
+import akka.actor.ActorRef
+
+import org.midonet.odp.Packet
+
+object WorkerScheduler {
+
+    /* The number of buckets connections are hashed into. A power of two. */
+    val NUM_BUCKETS = 1024
+
+    val NO_WORKER = -1
+
+    /* Tells a worker the scheduler it belongs to and its index in it. */
+    case class JoinScheduler(scheduler: WorkerScheduler, worker: Int)
+
+    /* Tells a worker that one of its buckets was moved to another worker,
+     * once it is done with the packets it has queued for it. */
+    case class ReleaseBucket(bucket: Int)
+
+    /* Tells the new owner of a bucket that the previous owner is done with
+     * it, so that the packets it held for it can be processed. */
+    case class BucketReleased(bucket: Int)
+}
+
+/**
+ * Assigns the packets received from the datapath to the simulation workers.
+ *
+ * Packets are hashed by connection into one of NUM_BUCKETS buckets, and each
+ * bucket is owned by a worker. All the packets of a connection are thus
+ * processed by the same worker, which keeps its state in its own shard of the
+ * flow state tables. The upcall threads count the packets routed to each
+ * bucket, and rebalance() periodically moves the busiest bucket that fits
+ * from the worker with the largest backlog to the one with the smallest.
+ *
+ * MOVING A BUCKET:
+ *
+ * The move starts by recording the current owner as the source of the
+ * bucket, and then switching the owner, so that the upcall threads route new
+ * packets of the bucket to the new owner. The new owner holds these packets
+ * while the bucket has a source. The source processes the packets it had
+ * already queued for the bucket, and once it has drained its queues upon
+ * receiving a ReleaseBucket message, it clears the source and sends a
+ * BucketReleased message to the new owner, which then processes the held
+ * packets in order. A packet routed to the source as the owner was switched,
+ * and found by it after releasing the bucket, is forwarded to the new owner.
+ *
+ * The connection tracking and NAT entries of the bucket stay in the shard of
+ * the previous owner until they expire: reads and references from the new
+ * owner fall back to the other shards of the table when a key is not found in
+ * its own shard.
+ *
+ * Only one bucket is moved at a time.
+ */
+class WorkerScheduler(val workers: IndexedSeq[ActorRef]) {
+    import WorkerScheduler._
+
+    val numWorkers = workers.length
+
+    private val owners = new AtomicIntegerArray(NUM_BUCKETS)
+    private val sources = new AtomicIntegerArray(NUM_BUCKETS)
+    private val moving = new AtomicInteger(0)
+
+    /* Written by the upcall threads without synchronization: concurrent
+     * updates may be lost, which is fine for load estimation. */
+    private val hits = new AtomicLongArray(NUM_BUCKETS)
+
+    // Only accessed by the thread calling rebalance().
+    private val lastHits = new Array[Long](NUM_BUCKETS)
+    private val loads = new Array[Long](numWorkers)
+
+    private val queues =
+        Array.fill(numWorkers)(new CopyOnWriteArrayList[PacketQueue]())
+
+    {
+        var i = 0
+        while (i < NUM_BUCKETS) {
+            owners.set(i, i % numWorkers)
+            sources.set(i, NO_WORKER)
+            i += 1
+        }
+    }
+
+    def bucketOf(connectionHash: Int): Int = connectionHash & (NUM_BUCKETS - 1)
+
+    def ownerOf(bucket: Int): Int = owners.get(bucket)
+
+    /** The worker a bucket is being moved from, or NO_WORKER. */
+    def sourceOf(bucket: Int): Int = sources.get(bucket)
+
+    /** Returns the worker that should process a packet. */
+    def route(packet: Packet): Int = {
+        val bucket = bucketOf(packet.getMatch.connectionHash)
+        hits.lazySet(bucket, hits.get(bucket) + 1)
+        owners.get(bucket)
+    }
+
+    def register(worker: Int, queue: PacketQueue): Unit =
+        queues(worker).add(queue)
+
+    /** Forgets a queue, once its producer is gone. */
+    def unregister(worker: Int, queue: PacketQueue): Unit =
+        queues(worker).remove(queue)
+
+    def queuesOf(worker: Int): java.util.List[PacketQueue] = queues(worker)
+
+    /** The number of packets waiting in the queues of a worker. */
+    def backlog(worker: Int): Int = {
+        var backlog = 0
+        val it = queues(worker).iterator()
+        while (it.hasNext) {
+            backlog += it.next().size
+        }
+        backlog
+    }
+
+    /** The packets routed to a worker between the last two rebalances. */
+    def load(worker: Int): Long = loads(worker)
+
+    /**
+     * Moves a bucket to another worker, returning false if the bucket is
+     * already owned by it or is being moved.
+     */
+    def move(bucket: Int, to: Int): Boolean = {
+        val from = owners.get(bucket)
+        if (from == to || !sources.compareAndSet(bucket, NO_WORKER, from))
+            return false
+        moving.incrementAndGet()
+        owners.set(bucket, to)
+        workers(from) ! ReleaseBucket(bucket)
+        true
+    }
+
+    /**
+     * Completes the move of a bucket. Called by the previous owner once it
+     * has processed the packets it had queued for the bucket.
+     */
+    def released(bucket: Int): Unit = {
+        sources.set(bucket, NO_WORKER)
+        moving.decrementAndGet()
+        workers(owners.get(bucket)) ! BucketReleased(bucket)
+    }
+
+    /**
+     * Updates the load of each worker with the packets routed to its buckets
+     * since the last call. When the backlog of the busiest worker reaches
+     * minBacklog and is more than twice that of the least busy one, moves
+     * to the latter the bucket of the former that received the most packets
+     * while being worth at most half of the difference in their loads, so
+     * that a single elephant connection doesn't bounce between workers.
+     *
+     * Returns the moved bucket, or -1.
+     */
+    def rebalance(minBacklog: Int): Int = {
+        val rates = new Array[Long](NUM_BUCKETS)
+        java.util.Arrays.fill(loads, 0L)
+        var b = 0
+        while (b < NUM_BUCKETS) {
+            val h = hits.get(b)
+            rates(b) = h - lastHits(b)
+            lastHits(b) = h
+            loads(owners.get(b)) += rates(b)
+            b += 1
+        }
+
+        if (numWorkers < 2 || moving.get > 0)
+            return -1
+
+        var busiest = 0
+        var idlest = 0
+        val backlogs = Array.tabulate(numWorkers)(backlog)
+        var w = 1
+        while (w < numWorkers) {
+            if (backlogs(w) > backlogs(busiest))
+                busiest = w
+            if (backlogs(w) < backlogs(idlest) ||
+                (backlogs(w) == backlogs(idlest) && loads(w) < loads(idlest)))
+                idlest = w
+            w += 1
+        }
+
+        if (busiest == idlest || backlogs(busiest) < minBacklog ||
+            backlogs(busiest) <= 2 * backlogs(idlest))
+            return -1
+
+        val budget = (loads(busiest) - loads(idlest)) / 2
+        var best = -1
+        b = 0
+        while (b < NUM_BUCKETS) {
+            if (owners.get(b) == busiest && rates(b) > 0 &&
+                rates(b) <= budget && (best < 0 || rates(b) > rates(best)))
+                best = b
+            b += 1
+        }
+
+        if (best >= 0 && move(best, idlest)) best else -1
+    }
+}
@@ -21,6 +21,7 @@ import scala.concurrent.duration._
 import scala.util.{Failure, Success}
 
 import akka.actor.{Actor, ActorRef, ActorSystem, Props}
+import com.codahale.metrics.MetricRegistry
 
 import org.midonet.config.ConfigProvider;
 import org.midonet.midolman.NetlinkCallbackDispatcher
@@ -65,13 +66,13 @@ object UpcallChannelsTest {
         val conf = ConfigProvider.configFromIniFile(args(0), classOf[MidolmanConfig])
 
         val mngr1 =
-            new OneToOneDpConnManager(conf, tbPolicy(conf)) with TestMixin {
+            new OneToOneDpConnManager(conf, tbPolicy(conf), new MetricRegistry) with TestMixin {
                 val dispatcher: ActorRef = nlDispatcher
                 val packetHandler: ActorRef = act
             }
 
         val mngr2 =
-            new OneToManyDpConnManager(conf, tbPolicy(conf)) with TestMixin {
+            new OneToManyDpConnManager(conf, tbPolicy(conf), new MetricRegistry) with TestMixin {
                 val dispatcher: ActorRef = nlDispatcher
                 val packetHandler: ActorRef = act
             }
@@ -23,15 +23,17 @@ import scala.util.{Failure, Success}
 
 import akka.actor.ActorSystem
 import akka.util.Timeout
+import com.codahale.metrics.MetricRegistry
 import org.midonet.midolman.PacketsEntryPoint.{GetWorkers, Workers}
 import org.midonet.midolman.config.MidolmanConfig
-import org.midonet.midolman.{DeduplicationActor, NetlinkCallbackDispatcher, PacketsEntryPoint}
+import org.midonet.midolman.monitoring.metrics.BufferPoolMetrics
+import org.midonet.midolman.{NetlinkCallbackDispatcher, PacketQueue, PacketsEntryPoint}
 import org.midonet.netlink.BufferPool
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode.{EBUSY, EEXIST}
 import org.midonet.odp._
 import org.midonet.odp.protos.OvsDatapathConnection
-import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.concurrent.{NanoClock, WakerUpper}
 import org.midonet.util.{BatchCollector, Bucket}
 import org.slf4j.{Logger, LoggerFactory}
 
@@ -57,7 +59,8 @@ trait UpcallDatapathConnectionManager {
  */
 abstract class UpcallDatapathConnectionManagerBase(
         val config: MidolmanConfig,
-        val tbPolicy: TokenBucketPolicy) extends UpcallDatapathConnectionManager {
+        val tbPolicy: TokenBucketPolicy,
+        metricRegistry: MetricRegistry) extends UpcallDatapathConnectionManager {
 
     protected val log: Logger
 
@@ -73,7 +76,32 @@ abstract class UpcallDatapathConnectionManagerBase(
                                    w: Workers)
                                   (implicit as: ActorSystem)
 
-    protected def makeBufferPool() = new BufferPool(1, 8, 8*1024)
+    protected val bufferPoolMetrics = new BufferPoolMetrics(metricRegistry)
+
+    /** The most threads that may hand upcalls to the simulation workers. */
+    protected def upcallThreads: Int
+
+    /* Checked when the manager is created, rather than when the first port
+     * is hooked. */
+    protected val queueWaitStrategy = {
+        val name = config.getSimulationQueueWaitStrategy
+        val strategy = PacketQueue.waitStrategy(name, upcallThreads)
+        if (strategy ne PacketQueue.waitStrategy(name)) {
+            LoggerFactory.getLogger(this.getClass).warn(
+                s"simulation_queue_wait_strategy = $name supports up to " +
+                s"${WakerUpper.MAX_THREADS} upcall threads, which " +
+                "input_channel_threading may exceed: using yielding instead")
+        }
+        strategy
+    }
+
+    /* Flow messages with many actions get buffers of the two larger size
+     * classes instead of temporary heap buffers. */
+    protected def makeBufferPool(name: String) = {
+        val pool = new BufferPool(1, 8, 8*1024, 3)
+        bufferPoolMetrics.register(name, pool)
+        pool
+    }
 
     def askForWorkers()
                (implicit ec: ExecutionContext, as: ActorSystem) = {
@@ -168,43 +196,49 @@ abstract class UpcallDatapathConnectionManagerBase(
 
     protected def makeUpcallHandler(workers: Workers)
                                    (implicit as: ActorSystem) =
-        new BatchCollector[Packet] {
-
-            val BATCH_SIZE: Int = 16
-            val NUM_WORKERS = workers.list.length
-            var packets = Array.ofDim[Packet](workers.list.length, BATCH_SIZE)
-            var cursors = Array.fill[Int](NUM_WORKERS)(0)
-            val log = LoggerFactory.getLogger("PacketInHook")
-
-            def endBatch(worker: Int) {
-                if (cursors(worker) > 0) {
-                    workers.list(worker) ! DeduplicationActor.HandlePackets(packets(worker))
-                    cursors(worker) = 0
-                    packets(worker) = new Array[Packet](BATCH_SIZE)
-                }
-            }
+        new UpcallHandler(workers)
+
+    /**
+     * Hands the packets it collects to the simulation workers, through a
+     * queue per worker that stays registered with the workers' scheduler
+     * until unregister() is called.
+     */
+    protected class UpcallHandler(workers: Workers)
+            extends BatchCollector[Packet] {
+
+        val NUM_WORKERS = workers.list.length
+        val queues = workers.list.map(new PacketQueue(
+                         config.getSimulationQueueCapacity, _,
+                         queueWaitStrategy)).toArray
+        for (i <- 0 until NUM_WORKERS) {
+            workers.scheduler.register(i, queues(i))
+        }
+        val log = LoggerFactory.getLogger("PacketInHook")
 
-            override def endBatch() {
-                var i = 0
-                while (i < NUM_WORKERS) {
-                    endBatch(i)
-                    i += 1
-                }
+        override def endBatch() {
+            var i = 0
+            while (i < NUM_WORKERS) {
+                queues(i).signal()
+                i += 1
             }
+        }
 
-            override def submit(data: Packet) {
-                log.trace("accumulating packet: {}", data.getMatch)
+        override def submit(data: Packet) {
+            log.trace("accumulating packet: {}", data.getMatch)
 
-                data.processUserspaceKeys()
-                data.startTimeNanos = NanoClock.DEFAULT.tick
+            data.processUserspaceKeys()
+            data.startTimeNanos = NanoClock.DEFAULT.tick
 
-                val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
-                packets(worker)(cursors(worker)) = data
-                cursors(worker) += 1
-                if (cursors(worker) == BATCH_SIZE)
-                    endBatch(worker)
+            queues(workers.scheduler.route(data)).offer(data)
+        }
+
+        /** Removes the queues from the scheduler, once the channel is gone. */
+        def unregister(): Unit = {
+            for (i <- 0 until NUM_WORKERS) {
+                workers.scheduler.unregister(i, queues(i))
             }
         }
+    }
 }
 
 /**
@@ -212,22 +246,44 @@ abstract class UpcallDatapathConnectionManagerBase(
  * channel gets its own thread and select loop.
  */
 class OneToOneDpConnManager(c: MidolmanConfig,
-                            tbPolicy: TokenBucketPolicy) extends
-        UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+                            tbPolicy: TokenBucketPolicy,
+                            metricRegistry: MetricRegistry) extends
+        UpcallDatapathConnectionManagerBase(c, tbPolicy, metricRegistry) {
 
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
+    // A thread per port, with no bound
+    protected override def upcallThreads = Int.MaxValue
+
     override def makeConnection(name: String, bucket: Bucket) =
-        new SelectorBasedDatapathConnection(name, config, true, bucket, makeBufferPool())
+        new SelectorBasedDatapathConnection(name, config, true, bucket,
+                                            makeBufferPool(name))
+
+    // The handler of each channel, whose queues go away with the channel
+    private val upcallHandlers =
+        new ConcurrentHashMap[OvsDatapathConnection, UpcallHandler]()
 
     override def stopConnection(conn: ManagedDatapathConnection) {
+        val dpConn = conn.getConnection
+        if (dpConn ne null) {
+            val handler = upcallHandlers.remove(dpConn)
+            if (handler ne null)
+                handler.unregister()
+        }
         conn.stop()
+        conn match {
+            case c: SelectorBasedDatapathConnection =>
+                bufferPoolMetrics.unregister(c.name)
+            case _ =>
+        }
     }
 
     protected override def setUpcallHandler(conn: OvsDatapathConnection,
                                             w: Workers)
                                            (implicit as: ActorSystem) {
-        conn.datapathsSetNotificationHandler(makeUpcallHandler(w))
+        val handler = makeUpcallHandler(w)
+        upcallHandlers.put(conn, handler)
+        conn.datapathsSetNotificationHandler(handler)
     }
 }
 
@@ -236,19 +292,22 @@ class OneToOneDpConnManager(c: MidolmanConfig,
  * thread and a single select loop is used for all the input channels.
  */
 class OneToManyDpConnManager(c: MidolmanConfig,
-                             tbPolicy: TokenBucketPolicy)
-        extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+                             tbPolicy: TokenBucketPolicy,
+                             metricRegistry: MetricRegistry)
+        extends UpcallDatapathConnectionManagerBase(c, tbPolicy, metricRegistry) {
 
     val threadPair = new SelectorThreadPair("upcall", config, false)
 
     private val lock = new ReentrantLock()
 
-    val sendPool = makeBufferPool()
+    val sendPool = makeBufferPool("upcall")
 
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
     private var upcallHandler: BatchCollector[Packet] = null
 
+    protected override def upcallThreads = 1
+
     override def makeConnection(name: String, bucket: Bucket) = {
         if (!threadPair.isRunning)
             threadPair.start()
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.monitoring.metrics
+
+import com.codahale.metrics.{Gauge, Metric, MetricFilter, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
+
+import org.midonet.netlink.BufferPool
+
+/**
+ * Occupancy of the netlink buffer pools, and the number of temporary heap
+ * buffers they handed out when exhausted.
+ */
+class BufferPoolMetrics(val registry: MetricRegistry) {
+
+    /** Registers the gauges of a pool, replacing those of a previous pool
+     *  with the same name. */
+    def register(pool: String, bufferPool: BufferPool): Unit = {
+        unregister(pool)
+        registry.register(name(classOf[BufferPoolGauge], pool, "allocated"),
+            new Gauge[Int] {
+                override def getValue = bufferPool.allocated
+            })
+        registry.register(name(classOf[BufferPoolGauge], pool, "inUse"),
+            new Gauge[Int] {
+                override def getValue =
+                    bufferPool.allocated - bufferPool.available
+            })
+        registry.register(name(classOf[BufferPoolGauge], pool, "fallbacks"),
+            new Gauge[Long] {
+                override def getValue = bufferPool.fallbacks
+            })
+    }
+
+    def unregister(pool: String): Unit = {
+        val prefix = name(classOf[BufferPoolGauge], pool) + "."
+        registry.removeMatching(new MetricFilter {
+            override def matches(n: String, m: Metric) = n startsWith prefix
+        })
+    }
+}
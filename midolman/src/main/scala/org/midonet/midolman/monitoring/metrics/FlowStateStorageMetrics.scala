@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring.metrics
+
+import java.util.concurrent.TimeUnit
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+
+/**
+ * Metrics of the flow state write pipelines, shared by all the per thread
+ * FlowStateStorage instances.
+ */
+class FlowStateStorageMetrics(val registry: MetricRegistry) {
+
+    val pendingWrites = registry.counter(name(
+        classOf[FlowStateStorageGauge], "pendingWrites"))
+
+    val inFlightBatches = registry.counter(name(
+        classOf[FlowStateStorageGauge], "inFlightBatches"))
+
+    val coalescedWrites = registry.meter(name(
+        classOf[FlowStateStorageMeter], "coalescedWrites", "writes"))
+
+    val droppedWrites = registry.meter(name(
+        classOf[FlowStateStorageMeter], "droppedWrites", "writes"))
+
+    val failedBatches = registry.meter(name(
+        classOf[FlowStateStorageMeter], "failedBatches", "batches"))
+
+    val batchLatency = registry.timer(name(
+        classOf[FlowStateStorageTimer], "batchLatency"))
+
+    def batchCompleted(startNanos: Long) {
+        inFlightBatches.dec()
+        batchLatency.update(System.nanoTime() - startNanos,
+                            TimeUnit.NANOSECONDS)
+    }
+}
@@ -19,6 +19,8 @@ package org.midonet.midolman.monitoring.metrics
 import com.codahale.metrics.{Gauge, MetricRegistry}
 import com.codahale.metrics.MetricRegistry.name
 
+import org.midonet.midolman.WorkerScheduler
+
 class PacketPipelineMetrics(val registry: MetricRegistry) {
 
     val pendedPackets = registry.counter(name(
@@ -58,6 +60,35 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
     val simulationLatency = registry.histogram(name(
         classOf[PacketPipelineHistogram], "simulationLatency"))
 
+    /** The flow state entries expired before a batch of packets, and the
+     *  time it took. */
+    val flowStateEntriesExpired = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowStateEntriesExpired"))
+
+    val flowStateExpirationLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "flowStateExpirationLatency"))
+
+    /** The time packets wait in the queue of the given worker. */
+    def queueLatency(worker: String) = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "queueLatency", worker))
+
+    /** Registers gauges for the backlog and the load of a worker, replacing
+     *  those of a previous incarnation of the worker. */
+    def registerWorker(worker: String, scheduler: WorkerScheduler,
+                       index: Int): Unit = {
+        val backlog = name(classOf[PacketPipelineGauge], "workerBacklog", worker)
+        registry.remove(backlog)
+        registry.register(backlog, new Gauge[Int] {
+            override def getValue = scheduler.backlog(index)
+        })
+
+        val load = name(classOf[PacketPipelineGauge], "workerLoad", worker)
+        registry.remove(load)
+        registry.register(load, new Gauge[Long] {
+            override def getValue = scheduler.load(index)
+        })
+    }
+
     val wildcardTableHitAccumulatedTime = registry.counter(name(
         classOf[PacketPipelineAccumulatedTime],
         "wildcardTableHitAccumulatedTime"))
@@ -88,6 +119,11 @@ class PacketPipelineMetrics(val registry: MetricRegistry) {
         simulationAccumulatedTime.inc(latency)
     }
 
+    def flowStateExpired(entries: Int, latency: Long) {
+        flowStateEntriesExpired.update(entries)
+        flowStateExpirationLatency.update(latency)
+    }
+
     def packetPostponed() {
         packetsPostponed.mark()
         packetsOnHold.inc()
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.monitoring.metrics
+
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+
+/**
+ * Metrics of the devices loaded by the VirtualTopologyActor, by device type.
+ */
+class VirtualTopologyMetrics(val registry: MetricRegistry) {
+
+    /** The devices of a type in the topology cache. */
+    def cachedDevices(deviceType: String) = registry.counter(name(
+        classOf[VirtualTopologyGauge], "cachedDevices", deviceType))
+
+    /** The devices of a type with a manager, which watches their state in
+     *  the cluster. */
+    def watchedDevices(deviceType: String) = registry.counter(name(
+        classOf[VirtualTopologyGauge], "watchedDevices", deviceType))
+}
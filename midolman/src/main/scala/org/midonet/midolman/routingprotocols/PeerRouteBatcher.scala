@@ -0,0 +1,157 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.routingprotocols
+
+import java.util.UUID
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+import org.midonet.cluster.DataClient
+import org.midonet.cluster.data.Route
+import org.midonet.midolman.serialization.SerializationException
+import org.midonet.midolman.state.{NoStatePathException, StateAccessException, StatePathExceptionBase}
+
+object PeerRouteBatcher {
+    /** The most routes written to the cluster in a single multi-op. A route
+     *  takes up to three nodes, one of them named after the serialized route,
+     *  so this keeps the requests well below the ZooKeeper size limit. */
+    val MaxBatchSize = 200
+}
+
+/**
+ * The routes learned from the BGP peers of a router port, and their writes
+ * to the cluster.
+ *
+ * Additions and removals of routes are queued and coalesced: removing a
+ * route whose addition is still queued cancels both, as does adding back a
+ * route whose removal is queued. Flushing writes the queued changes in
+ * ZooKeeper multi-ops of up to batchSize routes each, instead of one
+ * synchronous write per route, so that a port can take a full upstream
+ * table. The routes reach the routing table of the router through the
+ * usual watchers on the router's routes, one incremental change at a time.
+ *
+ * This class is not thread-safe, it's meant to be used by the actor owning
+ * the port's routing sessions.
+ */
+class PeerRouteBatcher(dataClient: DataClient,
+                       batchSize: Int = PeerRouteBatcher.MaxBatchSize) {
+
+    private val installed = mutable.HashMap[Route, UUID]()
+    // true for an addition, false for a removal
+    private val queued = mutable.LinkedHashMap[Route, Boolean]()
+
+    /** The number of routes written to the cluster. */
+    def size: Int = installed.size
+
+    /** The number of changes waiting to be flushed. */
+    def pending: Int = queued.size
+
+    /** Whether there are enough queued changes to fill a batch. */
+    def isFull: Boolean = queued.size >= batchSize
+
+    def add(route: Route): Unit = queued.get(route) match {
+        case Some(false) => queued.remove(route)
+        case Some(true) =>
+        case None if installed.contains(route) =>
+        case None => queued.put(route, true)
+    }
+
+    def remove(route: Route): Unit = queued.get(route) match {
+        case Some(true) => queued.remove(route)
+        case Some(false) =>
+        case None if installed.contains(route) => queued.put(route, false)
+        case None =>
+    }
+
+    /**
+     * Writes the queued changes to the cluster, removals first, calling
+     * added for each route once it was written. If a batch of additions
+     * can't be written for a reason that retrying won't fix, such as a
+     * missing port or a stale route node, its routes are written one by one
+     * and those that still fail are dropped. They are returned, so that the
+     * caller reports them. If a write fails otherwise, the changes that were
+     * not written stay queued for the next flush.
+     */
+    @throws(classOf[StateAccessException])
+    def flush(added: Route => Unit): Seq[Route] = {
+        val removals = queued.collect { case (route, false) => route }
+        for (batch <- removals.grouped(batchSize)) {
+            delete(batch.toSeq map installed)
+            batch foreach { route =>
+                installed.remove(route)
+                queued.remove(route)
+            }
+        }
+
+        val dropped = mutable.ArrayBuffer[Route]()
+        val additions = queued.keys.toList
+        for (batch <- additions.grouped(batchSize)) {
+            try {
+                val ids = dataClient.routesCreateEphemeral(seqAsJavaList(batch))
+                for ((route, id) <- batch zip asScalaBuffer(ids))
+                    written(route, id, added)
+            } catch {
+                case _: StatePathExceptionBase | _: SerializationException =>
+                    // Some route can't be written, the others must not wait
+                    // behind it for ever
+                    batch foreach { route =>
+                        try {
+                            written(route,
+                                    dataClient.routesCreateEphemeral(route),
+                                    added)
+                        } catch {
+                            case _: StatePathExceptionBase |
+                                 _: SerializationException =>
+                                queued.remove(route)
+                                dropped += route
+                        }
+                    }
+            }
+        }
+        dropped
+    }
+
+    private def written(route: Route, id: UUID, added: Route => Unit): Unit = {
+        installed.put(route, id)
+        queued.remove(route)
+        added(route)
+    }
+
+    /**
+     * Forgets every route and queued change, returning the ids of the routes
+     * that were written to the cluster so that the caller deletes them.
+     */
+    def clear(): Seq[UUID] = {
+        val ids = installed.values.toList
+        installed.clear()
+        queued.clear()
+        ids
+    }
+
+    private def delete(ids: Seq[UUID]): Unit = {
+        try {
+            dataClient.routesDelete(seqAsJavaList(ids))
+        } catch {
+            case _: NoStatePathException =>
+                // Some route is gone already, delete the others one by one
+                ids foreach { id =>
+                    try dataClient.routesDelete(id) catch {
+                        case _: NoStatePathException =>
+                    }
+                }
+        }
+    }
+}
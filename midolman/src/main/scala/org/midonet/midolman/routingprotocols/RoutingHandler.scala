@@ -32,6 +32,7 @@ import org.midonet.midolman.FlowController.AddWildcardFlow
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.io.{VirtualMachine, UpcallDatapathConnectionManager}
 import org.midonet.midolman.routingprotocols.RoutingManagerActor.BgpStatus
+import org.midonet.midolman.serialization.SerializationException
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.state.{ZkConnectionAwareWatcher, StateAccessException}
 import org.midonet.midolman.topology.VirtualTopologyActor
@@ -84,6 +85,8 @@ object RoutingHandler {
                                        destination: IPv4Subnet,
                                        gateway: IPv4Addr)
 
+    private case object FlushPeerRoutes
+
     private case class DpPortCreateSuccess(port: DpPort, pid: Int)
     private case class DpPortDeleteSuccess(port: DpPort)
     private case class DpPortError(port: String, ex: Throwable)
@@ -158,7 +161,8 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
 
     private val bgps = mutable.Map[UUID, BGP]()
     private val adRoutes = mutable.Set[AdRoute]()
-    private val peerRoutes = mutable.Map[Route, UUID]()
+    private val peerRoutes = new PeerRouteBatcher(dataClient)
+    private var flushScheduled = false
     private var socketAddress: AfUnix.Address = null
 
     // At this moment we only support one bgpd process
@@ -384,10 +388,7 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     // If this is the last BGP for ths port, tear everything down.
                     if (bgps.size == 0) {
                         phase = Stopping
-                        peerRoutes.values foreach {
-                            routeId => deleteRoute(routeId)
-                        }
-                        peerRoutes.clear()
+                        deleteRoutes(peerRoutes.clear())
                         stopBGP()
                     }
                 case Started =>
@@ -521,47 +522,25 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
             }
 
         case AddPeerRoute(ribType, destination, gateway) =>
-            log.info("({}) AddPeerRoute: {}, {}, {}",
-                     phase, ribType, destination, gateway)
+            log.debug("({}) AddPeerRoute: {}, {}, {}",
+                      phase, ribType, destination, gateway)
             phase match {
                 case NotStarted =>
                     log.error("({}) AddPeerRoute: unexpected", phase)
                 case Starting =>
                     log.debug("({}) AddPeerRoute: stashing", phase)
                     stash()
-                case Started if peerRoutes.size > 100 =>
-                    /* TODO(abel) in order not to overwhelm the cluster, we will
-                     * limit the max amount of routes we store at least for this
-                     * version of the code. Note that peer routes, if not
-                     * limited by bgpd or by the peer, can grow to hundreds of
-                     * thousands of entries.
-                     * I won't use a constant for this number because this
-                     * problem should be tackled in a more elegant way and it's
-                     * not used elsewhere. */
-                    log.error("({}) Max no. of peer routes reached (100)", phase)
-
                 case Started =>
-                    val route = new Route()
-                    route.setRouterId(rport.deviceID)
-                    route.setDstNetworkAddr(destination.getAddress.toString)
-                    route.setDstNetworkLength(destination.getPrefixLen)
-                    route.setNextHopGateway(gateway.toString)
-                    route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
-                    route.setNextHopPort(rport.id)
-                    val routeId = dataClient.routesCreateEphemeral(route)
-                    peerRoutes.put(route, routeId)
-                    log.debug("({}) announcing we've added a peer route", phase)
-                    context.system.eventStream.publish(
-                        new PEER_ROUTE_ADDED(rport.deviceID, route))
-
+                    peerRoutes.add(peerRoute(destination, gateway))
+                    scheduleFlush()
                 case _ =>
                     log.debug("({}) AddPeerRoute: ignoring", phase)
                     // ignore
             }
 
         case RemovePeerRoute(ribType, destination, gateway) =>
-            log.info("({}) RemovePeerRoute: {}, {}, {}",
-                     phase, ribType, destination, gateway)
+            log.debug("({}) RemovePeerRoute: {}, {}, {}",
+                      phase, ribType, destination, gateway)
             phase match {
                 case NotStarted =>
                     log.error("({}) RemovePeerRoute: unexpected", phase)
@@ -569,22 +548,21 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                     log.debug("({}) RemovePeerRoute: stashing", phase)
                     stash()
                 case Started =>
-                    val route = new Route()
-                    route.setRouterId(rport.deviceID)
-                    route.setDstNetworkAddr(destination.getAddress.toString)
-                    route.setDstNetworkLength(destination.getPrefixLen)
-                    route.setNextHopGateway(gateway.toString)
-                    route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
-                    route.setNextHopPort(rport.id)
-                    peerRoutes.remove(route) match {
-                        case Some(routeId) => deleteRoute(routeId)
-                        case None =>
-                    }
+                    peerRoutes.remove(peerRoute(destination, gateway))
+                    scheduleFlush()
                 case _ =>
                     // ignore
                     log.debug("({}) RemovePeerRoute: ignoring", phase)
             }
 
+        case FlushPeerRoutes =>
+            flushScheduled = false
+            phase match {
+                case Started => flushPeerRoutes()
+                case _ =>
+                    // the queued routes were dropped when stopping
+            }
+
         case PortActive(true) =>
             log.info("({}) Port became active", phase)
             portActive = true
@@ -656,15 +634,76 @@ class RoutingHandler(var rport: RouterPort, val bgpIdx: Int,
                 // these calls should be at the very end of this message
                 // handler's code path, after the flow invalidation and
                 // bgpd tear down.
-                peerRoutes.values foreach {
-                    routeId => deleteRoute(routeId)
-                }
-                peerRoutes.clear()
+                deleteRoutes(peerRoutes.clear())
             case _ =>
                 phase = Disabled
         }
     }
 
+    private def peerRoute(destination: IPv4Subnet, gateway: IPv4Addr) = {
+        val route = new Route()
+        route.setRouterId(rport.deviceID)
+        route.setDstNetworkAddr(destination.getAddress.toString)
+        route.setDstNetworkLength(destination.getPrefixLen)
+        route.setNextHopGateway(gateway.toString)
+        route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
+        route.setNextHopPort(rport.id)
+        route
+    }
+
+    /**
+     * Peer routes are written to the cluster in batches: a flush is queued
+     * behind the route messages already in the mailbox, so that it writes
+     * them all at once, unless there are enough of them for a full batch.
+     */
+    private def scheduleFlush() {
+        if (peerRoutes.isFull) {
+            flushPeerRoutes()
+        } else if (!flushScheduled && peerRoutes.pending > 0) {
+            flushScheduled = true
+            self ! FlushPeerRoutes
+        }
+    }
+
+    private def flushPeerRoutes() {
+        try {
+            val dropped = peerRoutes.flush { route =>
+                context.system.eventStream.publish(
+                    new PEER_ROUTE_ADDED(rport.deviceID, route))
+            }
+            dropped foreach { route =>
+                log.warn("({}) Dropped peer route that cannot be " +
+                         "written: {}", phase, route)
+            }
+            log.debug("({}) {} peer routes written", phase, peerRoutes.size)
+        } catch {
+            case e: StateAccessException =>
+                log.error(s"($phase) Failed to write " +
+                          s"${peerRoutes.pending} peer routes", e)
+                val retry = new Runnable() {
+                    @Override
+                    override def run() {
+                        self ! FlushPeerRoutes
+                    }
+                }
+                connWatcher.handleError("BGP peer routes", retry, e)
+            case e: SerializationException =>
+                log.error(s"($phase) Cannot write peer routes", e)
+        }
+    }
+
+    def deleteRoutes(routeIds: Seq[UUID]) {
+        for (batch <- routeIds.grouped(PeerRouteBatcher.MaxBatchSize)) {
+            try {
+                dataClient.routesDelete(seqAsJavaList(batch))
+            } catch {
+                case e: StateAccessException =>
+                    // a single missing route fails the whole batch
+                    batch foreach deleteRoute
+            }
+        }
+    }
+
     def deleteRoute(routeId: UUID) {
         try {
             dataClient.routesDelete(routeId)
@@ -18,16 +18,44 @@ package org.midonet.midolman.simulation
 
 import java.util.UUID
 
+import scala.util.hashing.MurmurHash3
+
 import akka.event.LoggingBus
 
 import org.midonet.midolman.state.l4lb.PoolLBMethod
 import org.midonet.midolman.state.NatState
 import org.midonet.midolman.state.NatState.NatKey
 import org.midonet.packets.{IPAddr, ICMP}
-import org.midonet.sdn.flows.FlowTagger
-import org.midonet.util.collection.WeightedSelector
+import org.midonet.sdn.flows.{FlowTagger, WildcardMatch}
+import org.midonet.util.collection.MaglevTable
 
 object Pool {
+    private val FlowHashSeed = 0x506f6f6c
+
+    /**
+     * Hashes the connection of a packet to a VIP to choose its backend. The
+     * hash is the same on every agent, so that a connection whose NAT state
+     * is lost is balanced to the same backend again. With sticky source IP,
+     * only the source IP is hashed so that all the connections of a client
+     * go to the same backend.
+     */
+    def flowHash(wcmatch: WildcardMatch, stickySourceIP: Boolean): Int = {
+        val src = MurmurHash3.mix(FlowHashSeed,
+                                  hashOf(wcmatch.getNetworkSrcIP))
+        if (stickySourceIP) {
+            MurmurHash3.finalizeHash(src, 1)
+        } else {
+            var h = MurmurHash3.mix(src, hashOf(wcmatch.getNetworkDstIP))
+            h = MurmurHash3.mix(h, hashOf(wcmatch.getNetworkProto))
+            h = MurmurHash3.mix(h, hashOf(wcmatch.getSrcPort))
+            h = MurmurHash3.mixLast(h, hashOf(wcmatch.getDstPort))
+            MurmurHash3.finalizeHash(h, 5)
+        }
+    }
+
+    private def hashOf(field: AnyRef): Int =
+        if (field eq null) 0 else field.hashCode
+
     def findPoolMember(ip: IPAddr, port: Int, pmArray: Array[PoolMember])
     : Boolean = {
         var i = 0
@@ -49,12 +77,15 @@ class Pool(val id: UUID, val adminStateUp: Boolean, val lbMethod: PoolLBMethod,
 
     val isUp = adminStateUp && activePoolMembers.nonEmpty
 
-    private val memberSelector = if (!isUp) null
-                                 else WeightedSelector(activePoolMembers)
+    // Built whenever the PoolManager publishes new members, off the
+    // simulation path
+    private val memberSelector =
+        if (!isUp) null
+        else MaglevTable(activePoolMembers, (pm: PoolMember) => pm.id)
 
     /**
-     * Choose an active pool member and apply DNAT to the packetContext
-     * to redirect traffic to that pool member.
+     * Choose an active pool member by the hash of the connection and apply
+     * DNAT to the packetContext to redirect traffic to that pool member.
      *
      * If an existing NAT mapping is present, we respect that instead of mapping
      * to a new backend, in order to maintain existing connections.
@@ -70,7 +101,8 @@ class Pool(val id: UUID, val adminStateUp: Boolean, val lbMethod: PoolLBMethod,
         context.addFlowTag(deviceTag)
 
         if (isUp) {
-            val member = memberSelector.select()
+            val member = memberSelector.select(
+                Pool.flowHash(context.wcmatch, stickySourceIP))
             if (context.log.underlying.isDebugEnabled) {
                 context.log.debug(s"Selected member $member out of {}",
                                   activePoolMembers.mkString(", "))
@@ -24,9 +24,9 @@ import org.midonet.util.collection.HasWeight
 
 /**
  * @param weight
- *        Pool member's weight. Odds of a pool member being selected
- *        are equal to its weight divided by the sum of the weights of
- *        all of its pool's members. A pool member with zero weight is
+ *        Pool member's weight. The share of the connections balanced to
+ *        a pool member is its weight divided by the sum of the weights
+ *        of all of its pool's members. A pool member with zero weight is
  *        considered down.
  */
 class PoolMember(val id: UUID, val address: IPv4Addr,
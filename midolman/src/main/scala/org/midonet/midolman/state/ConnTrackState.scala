@@ -16,16 +16,18 @@
 
 package org.midonet.midolman.state
 
+import java.nio.ByteBuffer
 import java.util.UUID
 
 import akka.actor.ActorSystem
 
 import org.midonet.cluster.client.Port
 import org.midonet.midolman.topology.VirtualTopologyActor
-import org.midonet.packets.{IPv4, ICMP, UDP, TCP, IPAddr}
+import org.midonet.packets.{IPv4, IPv4Addr, ICMP, UDP, TCP, IPAddr}
 import org.midonet.sdn.flows.WildcardMatch
 import org.midonet.sdn.state.FlowStateTransaction
 import org.midonet.midolman.state.FlowState.FlowStateKey
+import org.midonet.util.concurrent.OffHeapExpirationMap
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -78,6 +80,57 @@ object ConnTrackState {
         }
         or.intValue()
     }
+
+    /**
+     * Serializes conntrack entries into the slots of an off-heap state table.
+     * Connection tracking only applies to IPv4 traffic.
+     */
+    object ConnTrackCodec extends OffHeapExpirationMap.Codec[ConnTrackKey,
+                                                              ConnTrackValue] {
+        override def keySize = 33
+
+        override def valueSize = 1
+
+        private def ipv4(ip: IPAddr): Int = ip match {
+            case ip: IPv4Addr => ip.toInt
+            case _ => throw new IllegalArgumentException(
+                          s"Cannot store a non IPv4 address $ip off-heap")
+        }
+
+        override def writeKey(key: ConnTrackKey, buf: ByteBuffer,
+                              offset: Int): Unit = {
+            buf.putLong(offset, key.deviceId.getMostSignificantBits)
+            buf.putLong(offset + 8, key.deviceId.getLeastSignificantBits)
+            buf.putInt(offset + 16, ipv4(key.networkSrc))
+            buf.putInt(offset + 20, ipv4(key.networkDst))
+            buf.putInt(offset + 24, key.icmpIdOrTransportSrc)
+            buf.putInt(offset + 28, key.icmpIdOrTransportDst)
+            buf.put(offset + 32, key.networkProtocol)
+        }
+
+        override def readKey(buf: ByteBuffer, offset: Int): ConnTrackKey =
+            ConnTrackKey(IPv4Addr.fromInt(buf.getInt(offset + 16)),
+                         buf.getInt(offset + 24),
+                         IPv4Addr.fromInt(buf.getInt(offset + 20)),
+                         buf.getInt(offset + 28),
+                         buf.get(offset + 32),
+                         new UUID(buf.getLong(offset),
+                                  buf.getLong(offset + 8)))
+
+        override def writeValue(value: ConnTrackValue, buf: ByteBuffer,
+                                offset: Int): Unit =
+            buf.put(offset, (if (value eq null) 2
+                             else if (value.booleanValue) 1
+                             else 0).toByte)
+
+        // Returns the canonical instances, callers compare them by reference.
+        override def readValue(buf: ByteBuffer, offset: Int): ConnTrackValue =
+            buf.get(offset).toInt match {
+                case 1 => FORWARD_FLOW
+                case 0 => RETURN_FLOW
+                case _ => null
+            }
+    }
 }
 
 /**
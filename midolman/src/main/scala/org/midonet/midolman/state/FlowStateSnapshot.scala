@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.{File, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel.MapMode
+import java.nio.file.{Files, StandardCopyOption}
+
+import org.midonet.midolman.HostRequestProxy.{EmptyFlowStateBatch, FlowStateBatch}
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.NatState.{NatBinding, NatCodec, NatKey}
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.state.FlowStateTable
+import org.midonet.util.collection.Reducer
+
+/**
+ * Snapshots of the connection tracking and NAT tables of a simulation
+ * worker, kept in a file that is memory-mapped when read, so that a restarted agent can import
+ * them as soon as its datapath is ready, instead of waiting for the state of
+ * each of its ports to be fetched from Cassandra.
+ *
+ * FILE LAYOUT:
+ *
+ * A header with a magic number, the format version, the time the snapshot
+ * was taken and the number of entries of each table, followed by the
+ * conntrack entries and then the NAT entries, each written as a key and a
+ * value by the codecs of the off-heap tables. Conntrack entries between
+ * non IPv4 addresses are left out.
+ *
+ * Taking a snapshot is split in two steps. The worker that owns the tables
+ * captures them into an in-memory copy of the file, which only costs a pass
+ * over each table, and the copy is then written out by any other thread, so
+ * the worker doesn't wait on the file system.
+ *
+ * A snapshot is written to a temporary file that then replaces the previous
+ * snapshot, so readers never see a partially written one. The file is not
+ * synced to disk: snapshots are meant to survive a restart of the agent, not
+ * a crash of the host.
+ */
+object FlowStateSnapshot {
+
+    val MAGIC = 0x4d465353 // "MFSS"
+    val VERSION = 1
+
+    private val HEADER_SIZE = 24
+    private val CONNTRACK_ENTRY_SIZE =
+        ConnTrackCodec.keySize + ConnTrackCodec.valueSize
+    private val NAT_ENTRY_SIZE = NatCodec.keySize + NatCodec.valueSize
+
+    private def snapshotable(k: ConnTrackKey, v: ConnTrackValue) =
+        (v ne null) && k.networkSrc.isInstanceOf[IPv4Addr] &&
+        k.networkDst.isInstanceOf[IPv4Addr]
+
+    private val countConnTrack =
+        new Reducer[ConnTrackKey, ConnTrackValue, Int] {
+            override def apply(n: Int, k: ConnTrackKey, v: ConnTrackValue) =
+                if (snapshotable(k, v)) n + 1 else n
+        }
+
+    private val countNat = new Reducer[NatKey, NatBinding, Int] {
+        override def apply(n: Int, k: NatKey, v: NatBinding) = n + 1
+    }
+
+    private class ConnTrackWriter(buf: ByteBuffer, last: Int)
+            extends Reducer[ConnTrackKey, ConnTrackValue, Int] {
+        override def apply(offset: Int, k: ConnTrackKey, v: ConnTrackValue) =
+            if (snapshotable(k, v) && offset < last) {
+                ConnTrackCodec.writeKey(k, buf, offset)
+                ConnTrackCodec.writeValue(v, buf,
+                                          offset + ConnTrackCodec.keySize)
+                offset + CONNTRACK_ENTRY_SIZE
+            } else {
+                offset
+            }
+    }
+
+    private class NatWriter(buf: ByteBuffer, last: Int)
+            extends Reducer[NatKey, NatBinding, Int] {
+        override def apply(offset: Int, k: NatKey, v: NatBinding) =
+            if (offset < last) {
+                NatCodec.writeKey(k, buf, offset)
+                NatCodec.writeValue(v, buf, offset + NatCodec.keySize)
+                offset + NAT_ENTRY_SIZE
+            } else {
+                offset
+            }
+    }
+
+    /**
+     * Captures the given tables into the contents of a snapshot file. The
+     * tables must not be modified while they are captured, so this must be
+     * called by the thread that owns them.
+     */
+    def capture(nowMillis: Long,
+                connTrack: FlowStateTable[ConnTrackKey, ConnTrackValue],
+                nat: FlowStateTable[NatKey, NatBinding]): ByteBuffer = {
+        val connTrackCount = connTrack.fold(0, countConnTrack)
+        val natCount = nat.fold(0, countNat)
+        val natStart = HEADER_SIZE + connTrackCount * CONNTRACK_ENTRY_SIZE
+        val size = natStart + natCount * NAT_ENTRY_SIZE
+
+        val buf = ByteBuffer.allocate(size)
+        buf.putInt(0, MAGIC)
+        buf.putInt(4, VERSION)
+        buf.putLong(8, nowMillis)
+        buf.putInt(16, connTrackCount)
+        buf.putInt(20, natCount)
+        connTrack.fold(HEADER_SIZE, new ConnTrackWriter(buf, natStart))
+        nat.fold(natStart, new NatWriter(buf, size))
+        buf
+    }
+
+    /**
+     * Writes a snapshot captured by capture(), replacing the one in the given
+     * file, if any. This may be called from any thread, but not concurrently
+     * for the same file. Returns the number of entries written, and throws
+     * an IOException on failure.
+     */
+    def write(file: File, snapshot: ByteBuffer): Int = {
+        val tmp = new File(file.getPath + ".tmp")
+        val raf = new RandomAccessFile(tmp, "rw")
+        try {
+            raf.setLength(0)
+            val buf = snapshot.duplicate()
+            buf.clear()
+            val channel = raf.getChannel
+            while (buf.hasRemaining)
+                channel.write(buf)
+        } finally {
+            raf.close()
+        }
+        Files.move(tmp.toPath, file.toPath, StandardCopyOption.ATOMIC_MOVE)
+        snapshot.getInt(16) + snapshot.getInt(20)
+    }
+
+    /**
+     * Captures the given tables and writes them to the given file, on the
+     * calling thread.
+     */
+    def write(file: File, nowMillis: Long,
+              connTrack: FlowStateTable[ConnTrackKey, ConnTrackValue],
+              nat: FlowStateTable[NatKey, NatBinding]): Int =
+        write(file, capture(nowMillis, connTrack, nat))
+
+    /**
+     * Reads the snapshot in the given file, returning None if there is no
+     * file, if it isn't a valid snapshot, or if it was taken more than
+     * maxAgeMillis ago. Throws an IOException if the file can't be read.
+     *
+     * Conntrack entries of forward flows are returned as strong keys and the
+     * ones of return flows as weak keys, as the replicator expects them.
+     */
+    def read(file: File, nowMillis: Long,
+             maxAgeMillis: Long): Option[FlowStateBatch] = {
+        if (!file.isFile || file.length < HEADER_SIZE)
+            return None
+
+        val raf = new RandomAccessFile(file, "r")
+        val buf = try {
+            raf.getChannel.map(MapMode.READ_ONLY, 0, raf.length)
+        } finally {
+            raf.close()
+        }
+
+        if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+            return None
+        val age = nowMillis - buf.getLong(8)
+        if (age < 0 || age > maxAgeMillis)
+            return None
+        val connTrackCount = buf.getInt(16)
+        val natCount = buf.getInt(20)
+        if (connTrackCount < 0 || natCount < 0 ||
+            buf.capacity != HEADER_SIZE.toLong +
+                            connTrackCount.toLong * CONNTRACK_ENTRY_SIZE +
+                            natCount.toLong * NAT_ENTRY_SIZE)
+            return None
+
+        val batch = EmptyFlowStateBatch()
+        var offset = HEADER_SIZE
+        var i = 0
+        while (i < connTrackCount) {
+            val k = ConnTrackCodec.readKey(buf, offset)
+            ConnTrackCodec.readValue(buf, offset + ConnTrackCodec.keySize) match {
+                case FORWARD_FLOW => batch.strongConnTrack.add(k)
+                case RETURN_FLOW => batch.weakConnTrack.add(k)
+                case _ =>
+            }
+            offset += CONNTRACK_ENTRY_SIZE
+            i += 1
+        }
+        i = 0
+        while (i < natCount) {
+            batch.strongNat.put(NatCodec.readKey(buf, offset),
+                                NatCodec.readValue(buf,
+                                                   offset + NatCodec.keySize))
+            offset += NAT_ENTRY_SIZE
+            i += 1
+        }
+        Some(batch)
+    }
+}
@@ -19,18 +19,21 @@ package org.midonet.midolman.state
 import java.lang.{Integer => JInt}
 import java.net.InetAddress
 import java.util.{UUID, Set => JSet, Map => JMap, HashMap => JHashMap,
-                  HashSet => JHashSet, Iterator => JIterator}
+                  HashSet => JHashSet, Iterator => JIterator, List => JList}
 import java.util.concurrent.{TimeoutException, TimeUnit}
 import scala.concurrent.{ExecutionContext, promise, Promise, Future}
 import scala.concurrent.duration.Duration
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import com.datastax.driver.core._
-import com.google.common.util.concurrent.{FutureCallback, Futures}
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
 import org.slf4j.{Logger, LoggerFactory}
 
 import org.midonet.cassandra.CassandraClient
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics
 import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStateWritePipeline.Row
 import org.midonet.midolman.state.NatState.{KeyType, NatKey, NatBinding}
 import org.midonet.packets.{IPv4Addr, IPAddr}
 import org.midonet.util.collection.Bimap
@@ -123,7 +126,19 @@ object FlowStateStorage {
             networkAddress = inetToIPAddr(r.getInet("translateIp")).asInstanceOf[IPv4Addr],
             transportPort = r.getInt("translatePort"))
 
-    def apply(client: CassandraClient): FlowStateStorage = new FlowStateStorageImpl(client)
+    val DEFAULT_MAX_PENDING_WRITES = 50000
+    val DEFAULT_MAX_IN_FLIGHT_BATCHES = 64
+    val MAX_BATCH_SIZE = 100
+
+    def apply(client: CassandraClient): FlowStateStorage =
+        new FlowStateStorageImpl(client,
+            new FlowStateStorageMetrics(new MetricRegistry),
+            DEFAULT_MAX_PENDING_WRITES, DEFAULT_MAX_IN_FLIGHT_BATCHES)
+
+    def apply(client: CassandraClient, metrics: FlowStateStorageMetrics,
+              maxPendingWrites: Int, maxInFlightBatches: Int): FlowStateStorage =
+        new FlowStateStorageImpl(client, metrics, maxPendingWrites,
+                                 maxInFlightBatches)
 }
 
 trait FlowStateStorage {
@@ -155,15 +170,22 @@ trait FlowStateStorage {
  * prepared by a series of touch*() method calls and it's then fired
  * by invoking submit.
  *
+ * Writes go through a FlowStateWritePipeline, which coalesces the keys
+ * touched by the thread per table and port, and writes each partition as an
+ * unlogged batch. The rows expire with a TTL equal to the idle expiration of
+ * their keys.
+ *
  * All operations are asynchronous, submit is meant to be fire-and-forget with
  * no error control and for this reason, returns Unit.
  */
-class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage {
+class FlowStateStorageImpl(val client: CassandraClient,
+                           metrics: FlowStateStorageMetrics,
+                           maxPendingWrites: Int,
+                           maxInFlightBatches: Int) extends FlowStateStorage {
     private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
 
     import FlowStateStorage._
 
-    var batch: BatchStatement = new BatchStatement()
     val ASYNC_REQUEST_TIMEOUT = Duration.create(3, TimeUnit.SECONDS)
 
     class Prepared(query: String) {
@@ -199,6 +221,12 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     val touchIngressNat = touchNatStatement(NAT_BY_INGRESS_TABLE)
     val touchEgressNat = touchNatStatement(NAT_BY_EGRESS_TABLE)
 
+    private val touchStatements = Map(
+        CONNTRACK_BY_INGRESS_TABLE -> touchIngressConnTrack,
+        CONNTRACK_BY_EGRESS_TABLE -> touchEgressConnTrack,
+        NAT_BY_INGRESS_TABLE -> touchIngressNat,
+        NAT_BY_EGRESS_TABLE -> touchEgressNat)
+
     val fetchIngressConnTrack = fetchByPortStatement(CONNTRACK_BY_INGRESS_TABLE)
     val fetchEgressConnTrack = fetchByPortStatement(CONNTRACK_BY_EGRESS_TABLE)
     val fetchIngressNat = fetchByPortStatement(NAT_BY_INGRESS_TABLE)
@@ -207,6 +235,34 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     final def withSession[U](body: (Session) => U): Option[U] =
         Option(client.session) map body
 
+    private val cassandraSink = new FlowStateWritePipeline.Sink {
+        override def write(table: String, port: UUID,
+                           rows: JList[Row]): ListenableFuture[ResultSet] =
+            withSession { s =>
+                val statement = touchStatements(table)(s)
+                val batch = new BatchStatement(BatchStatement.Type.UNLOGGED)
+                var i = 0
+                while (i < rows.size) {
+                    val row = rows.get(i)
+                    row.getKey match {
+                        case k: ConnTrackKey =>
+                            batch.add(bind(statement, port, k))
+                        case k: NatKey =>
+                            batch.add(bind(statement, port, k,
+                                           row.getValue.asInstanceOf[NatBinding]))
+                    }
+                    i += 1
+                }
+                s.executeAsync(batch)
+            } getOrElse Futures.immediateFailedFuture[ResultSet](
+                new IllegalStateException("Cassandra client is not connected"))
+    }
+
+    val pipeline = new FlowStateWritePipeline(cassandraSink, metrics,
+                                              maxPendingWrites,
+                                              maxInFlightBatches,
+                                              MAX_BATCH_SIZE)
+
     private def bind(st: PreparedStatement, port: UUID, k: ConnTrackKey) = {
         st.bind(port, k.networkProtocol.toInt.asInstanceOf[JInt],
                       ipAddrToInet(k.networkSrc), k.icmpIdOrTransportSrc.asInstanceOf[JInt],
@@ -226,8 +282,8 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
     }
 
     /**
-     * Adds a connection tracking key to the next batch that will be sent
-     * to cassandra.
+     * Adds a connection tracking key to the writes that will be sent to
+     * cassandra.
      *
      * @param k The key
      * @param strongRef Ingress port.
@@ -237,14 +293,14 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
             if (strongRef ne null)
-                batch.add(bind(touchIngressConnTrack(s), strongRef, k))
+                pipeline.add(CONNTRACK_BY_INGRESS_TABLE, strongRef, k, null)
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressConnTrack(s), weakRefs.next(), k))
+                pipeline.add(CONNTRACK_BY_EGRESS_TABLE, weakRefs.next(), k, null)
             }
     }
 
     /**
-     * Addss a NAT key to the next batch that will be sent to Cassandra.
+     * Adds a NAT key to the writes that will be sent to Cassandra.
      *
      * @param k The key
      * @param v Its value
@@ -255,22 +311,19 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
             weakRefs: JIterator[UUID]): Unit = withSession {
         s =>
             if (strongRef ne null)
-                batch.add(bind(touchIngressNat(s), strongRef, k, v))
+                pipeline.add(NAT_BY_INGRESS_TABLE, strongRef, k, v)
             while (weakRefs.hasNext) {
-                batch.add(bind(touchEgressNat(s), weakRefs.next(), k, v))
+                pipeline.add(NAT_BY_EGRESS_TABLE, weakRefs.next(), k, v)
             }
     }
 
     /**
-     * Sends all state accumulated through touchConnTrackKey() and touchNatKey()
-     * to Cassandra, asynchronously. Errors will be logged but ignored.
+     * Sends the state accumulated through touchConnTrackKey() and
+     * touchNatKey() to Cassandra, asynchronously. Errors will be logged but
+     * ignored. If too many batches are in flight, part of the state stays
+     * pending until the next call.
      */
-    override def submit(): Unit = withSession {
-        s =>
-            val result = s.executeAsync(batch)
-            Futures.addCallback(result, touchCallback)
-            batch = new BatchStatement()
-    }
+    override def submit(): Unit = pipeline.flush()
 
     /**
      * Fetch all conntrack keys for which a give port is ingress.
@@ -328,16 +381,6 @@ class FlowStateStorageImpl(val client: CassandraClient) extends FlowStateStorage
         })
     }
 
-    private val touchCallback = new FutureCallback[ResultSet] {
-        override def onSuccess(result: ResultSet): Unit = {
-            log.debug("key touch success: {}", result)
-        }
-
-        override def onFailure(t: Throwable): Unit = {
-            log.warn("failed to touch keys", t)
-        }
-    }
-
     private def toScalaFuture(f: ResultSetFuture)
             (implicit ec: ExecutionContext,
                       as: ActorSystem): Future[ResultSet] = {
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{ArrayList, UUID, List => JList, Map => JMap,
+                  HashMap => JHashMap, LinkedHashMap => JLinkedHashMap}
+import java.util.concurrent.atomic.AtomicInteger
+
+import scala.util.control.NonFatal
+
+import com.google.common.util.concurrent.{FutureCallback, Futures, ListenableFuture}
+import org.slf4j.{Logger, LoggerFactory}
+
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics
+import org.midonet.midolman.state.FlowState.FlowStateKey
+
+object FlowStateWritePipeline {
+    type Row = JMap.Entry[FlowStateKey, AnyRef]
+
+    /**
+     * Executes the batches of a pipeline. Each batch holds rows of the same
+     * table and port, and the returned future completes once it is written.
+     */
+    trait Sink {
+        def write(table: String, port: UUID,
+                  rows: JList[Row]): ListenableFuture[_]
+    }
+
+    case class Partition(table: String, port: UUID)
+}
+
+/**
+ * Accumulates the state keys touched by a packet processing thread and
+ * writes them to a Sink, one batch per table and port.
+ *
+ * Keys touched again before they are flushed are coalesced into a single
+ * write that carries the latest value. The number of batches in flight is
+ * bounded: when the Sink lags behind, flush() leaves the remaining partitions
+ * pending so that they keep coalescing, and new keys are dropped once
+ * maxPendingWrites are waiting. Dropped writes are only an optimization loss,
+ * the keys are refreshed the next time they are touched.
+ *
+ * Like FlowStateStorage, this class is *NOT* thread safe, except for the
+ * completion of the batches, which may happen on any thread.
+ */
+class FlowStateWritePipeline(sink: FlowStateWritePipeline.Sink,
+                             metrics: FlowStateStorageMetrics,
+                             maxPendingWrites: Int,
+                             maxInFlightBatches: Int,
+                             maxBatchSize: Int) {
+    import FlowStateWritePipeline._
+
+    private val log: Logger = LoggerFactory.getLogger(classOf[FlowStateStorage])
+
+    private val pending = new JLinkedHashMap[Partition, JHashMap[FlowStateKey, AnyRef]]()
+    private var numPending = 0
+    private val inFlight = new AtomicInteger(0)
+
+    def pendingWrites: Int = numPending
+
+    def inFlightBatches: Int = inFlight.get
+
+    def add(table: String, port: UUID, key: FlowStateKey, value: AnyRef): Unit = {
+        val partition = Partition(table, port)
+        var rows = pending.get(partition)
+        if (rows eq null) {
+            rows = new JHashMap[FlowStateKey, AnyRef]()
+            pending.put(partition, rows)
+        }
+
+        if (rows.containsKey(key)) {
+            rows.put(key, value)
+            metrics.coalescedWrites.mark()
+        } else if (numPending >= maxPendingWrites) {
+            metrics.droppedWrites.mark()
+        } else {
+            rows.put(key, value)
+            numPending += 1
+            metrics.pendingWrites.inc()
+        }
+    }
+
+    /**
+     * Sends the pending partitions to the Sink, as long as the number of
+     * batches in flight allows it.
+     */
+    def flush(): Unit = {
+        val it = pending.entrySet().iterator()
+        while (it.hasNext && inFlight.get < maxInFlightBatches) {
+            val e = it.next()
+            it.remove()
+            val rows = e.getValue
+            if (!rows.isEmpty) {
+                numPending -= rows.size
+                metrics.pendingWrites.dec(rows.size)
+                send(e.getKey, new ArrayList[Row](rows.entrySet()))
+            }
+        }
+    }
+
+    private def send(partition: Partition, rows: JList[Row]): Unit = {
+        var from = 0
+        while (from < rows.size) {
+            val to = Math.min(rows.size, from + maxBatchSize)
+            val batch = rows.subList(from, to)
+            val start = System.nanoTime()
+            inFlight.incrementAndGet()
+            metrics.inFlightBatches.inc()
+            val result = try {
+                sink.write(partition.table, partition.port, batch)
+            } catch { case NonFatal(t) =>
+                Futures.immediateFailedFuture(t)
+            }
+            track(result, batch.size, start)
+            from = to
+        }
+    }
+
+    private def track[T](result: ListenableFuture[T], size: Int,
+                         start: Long): Unit =
+        Futures.addCallback(result, new FutureCallback[T] {
+            override def onSuccess(r: T): Unit = {
+                inFlight.decrementAndGet()
+                metrics.batchCompleted(start)
+            }
+
+            override def onFailure(t: Throwable): Unit = {
+                inFlight.decrementAndGet()
+                metrics.batchCompleted(start)
+                metrics.failedBatches.mark()
+                metrics.droppedWrites.mark(size)
+                log.warn("failed to touch keys", t)
+            }
+        })
+}
@@ -27,6 +27,7 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.packets.{IPv4Addr, IPv4, ICMP, TCP, UDP}
 import org.midonet.sdn.flows.WildcardMatch
 import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.util.concurrent.OffHeapExpirationMap
 import org.midonet.util.functors.Callback0
 
 object NatState {
@@ -158,6 +159,50 @@ object NatState {
     }
 
     case class NatBinding(var networkAddress: IPv4Addr, var transportPort: Int)
+
+    /**
+     * Serializes NAT entries into the slots of an off-heap state table.
+     */
+    object NatCodec extends OffHeapExpirationMap.Codec[NatKey, NatBinding] {
+        private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+                                              FWD_STICKY_DNAT, REV_SNAT,
+                                              REV_DNAT, REV_STICKY_DNAT)
+
+        override def keySize = 34
+
+        override def valueSize = 8
+
+        override def writeKey(key: NatKey, buf: ByteBuffer,
+                              offset: Int): Unit = {
+            buf.putLong(offset, key.deviceId.getMostSignificantBits)
+            buf.putLong(offset + 8, key.deviceId.getLeastSignificantBits)
+            buf.putInt(offset + 16, key.networkSrc.toInt)
+            buf.putInt(offset + 20, key.networkDst.toInt)
+            buf.putInt(offset + 24, key.transportSrc)
+            buf.putInt(offset + 28, key.transportDst)
+            buf.put(offset + 32, key.networkProtocol)
+            buf.put(offset + 33, keyTypes.indexOf(key.keyType).toByte)
+        }
+
+        override def readKey(buf: ByteBuffer, offset: Int): NatKey =
+            NatKey(keyTypes(buf.get(offset + 33)),
+                   IPv4Addr.fromInt(buf.getInt(offset + 16)),
+                   buf.getInt(offset + 24),
+                   IPv4Addr.fromInt(buf.getInt(offset + 20)),
+                   buf.getInt(offset + 28),
+                   buf.get(offset + 32),
+                   new UUID(buf.getLong(offset), buf.getLong(offset + 8)))
+
+        override def writeValue(value: NatBinding, buf: ByteBuffer,
+                                offset: Int): Unit = {
+            buf.putInt(offset, value.networkAddress.toInt)
+            buf.putInt(offset + 4, value.transportPort)
+        }
+
+        override def readValue(buf: ByteBuffer, offset: Int): NatBinding =
+            NatBinding(IPv4Addr.fromInt(buf.getInt(offset)),
+                       buf.getInt(offset + 4))
+    }
 }
 
 trait NatState extends FlowState {
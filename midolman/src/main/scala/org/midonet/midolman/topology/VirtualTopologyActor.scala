@@ -16,6 +16,8 @@
 package org.midonet.midolman.topology
 
 import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
 import akka.pattern.AskTimeoutException
 
 import scala.collection.mutable
@@ -25,6 +27,7 @@ import scala.reflect._
 import scala.util.Failure
 
 import akka.actor._
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 import com.typesafe.scalalogging.Logger
 import org.slf4j.LoggerFactory
@@ -41,6 +44,8 @@ import org.midonet.midolman.Referenceable
 import org.midonet.midolman.simulation._
 import org.midonet.midolman.l4lb.PoolHealthMonitorMapManager.PoolHealthMonitorMap
 import org.midonet.midolman.FlowController.InvalidateFlowsByTag
+import org.midonet.midolman.monitoring.metrics.VirtualTopologyMetrics
+import org.midonet.sdn.flows.FlowTagger
 import org.midonet.util.concurrent._
 
 /**
@@ -65,6 +70,10 @@ object VirtualTopologyActor extends Referenceable {
 
         protected[VirtualTopologyActor]
         def managerFactory(client: Client, config: MidolmanConfig): () => Actor
+
+        /* Whether the device is unloaded when it's idle. Bridges and routers
+         * are kept, as they own the replicated tables of their state. */
+        protected[VirtualTopologyActor] def unloadable = true
     }
 
     case class PortRequest(id: UUID, update: Boolean = false)
@@ -87,6 +96,9 @@ object VirtualTopologyActor extends Referenceable {
         protected[VirtualTopologyActor]
         override def managerFactory(client: Client, config: MidolmanConfig) =
             () => new BridgeManager(id, client, config)
+
+        protected[VirtualTopologyActor]
+        override def unloadable = false
     }
 
     case class RouterRequest(id: UUID, update: Boolean = false)
@@ -98,6 +110,9 @@ object VirtualTopologyActor extends Referenceable {
         protected[VirtualTopologyActor]
         def managerFactory(client: Client, config: MidolmanConfig) =
             () => new RouterManager(id, client, config)
+
+        protected[VirtualTopologyActor]
+        override def unloadable = false
     }
 
     case class ChainRequest(id: UUID, update: Boolean = false)
@@ -165,15 +180,33 @@ object VirtualTopologyActor extends Referenceable {
         protected[VirtualTopologyActor]
         def managerFactory(client: Client, config: MidolmanConfig) =
                   () => new PoolHealthMonitorMapManager(client)
+
+        protected[VirtualTopologyActor]
+        override def unloadable = false
     }
 
     case class Unsubscribe(id: UUID)
 
+    private[topology] case object CheckIdleDevices
+
     private val topology = Topology()
 
+    /* The idle device checks done so far, and the check during which each
+     * loaded device was last used. */
+    @volatile private var idleChecks = 0L
+    private val lastUsed = new ConcurrentHashMap[UUID, AtomicLong]()
+
     // useful for testing, not much else.
     def clearTopology(): Unit = {
         topology.clear()
+        lastUsed.clear()
+    }
+
+    private def used(id: UUID): Unit = {
+        val lastUse = lastUsed.get(id)
+        // Only write when it changes, not to bounce the cache line around.
+        if ((lastUse ne null) && lastUse.get != idleChecks)
+            lastUse.lazySet(idleChecks)
     }
 
     // WARNING!! This code is meant to be called from outside the actor.
@@ -187,6 +220,7 @@ object VirtualTopologyActor extends Referenceable {
         if (dev eq null) {
             throw NotYetException(requestFuture(id), s"Waiting for device: $id")
         }
+        used(id)
         dev
     }
 
@@ -264,16 +298,33 @@ object VirtualTopologyActor extends Referenceable {
         getDeviceManagerPath(parentActorName, poolHealthMonitorManagerName())
 }
 
+/**
+ * Devices are loaded when first requested, and unloaded when they're idle:
+ * every check_idle_devices_interval_seconds, the devices that no simulation
+ * looked up through tryAsk or requested for idle_device_expiration_seconds,
+ * and that have no subscribers, have their manager stopped and the flows
+ * tagged by them invalidated. As managers subscribe to the devices they
+ * depend on, a device is only unloaded after its dependents.
+ *
+ * A request for a device whose manager is being stopped is served once it
+ * has stopped, by a new manager.
+ */
 class VirtualTopologyActor extends Actor {
     import VirtualTopologyActor._
     import context.system
 
-    // TODO(pino): unload devices with no subscribers that haven't been used
-    // TODO:       in a while.
     private val idToSubscribers = mutable.Map[UUID, mutable.Set[ActorRef]]()
     private val idToUnansweredClients = mutable.Map[UUID, mutable.Set[ActorRef]]()
 
-    private val managedDevices = mutable.Set[UUID]()
+    private val managedDevices = mutable.Map[UUID, DeviceRequest]()
+
+    // The managers of unloaded devices that haven't stopped yet, and the
+    // requests received meanwhile for those devices.
+    private val stoppingManagers = mutable.Map[ActorRef, UUID]()
+    private val deferredRequests =
+        mutable.Map[UUID, mutable.Buffer[(DeviceRequest, ActorRef)]]()
+
+    private var metrics: VirtualTopologyMetrics = _
 
     @Inject
     override val supervisorStrategy: SupervisorStrategy = null
@@ -284,9 +335,25 @@ class VirtualTopologyActor extends Actor {
     @Inject
     val config: MidolmanConfig = null
 
+    @Inject
+    val metricsRegistry: MetricRegistry = null
+
+    override def preStart(): Unit = {
+        super.preStart()
+        metrics = new VirtualTopologyMetrics(metricsRegistry)
+        val interval = config.getCheckIdleDevicesInterval
+        if (interval > 0 && config.getIdleDeviceExpiration > 0) {
+            context.system.scheduler.schedule(interval seconds,
+                interval seconds, self, CheckIdleDevices)(context.dispatcher)
+        }
+    }
+
+    private def deviceType(r: DeviceRequest) =
+        r.getClass.getSimpleName.stripSuffix("Request")
+
     /** Build a manager for a device */
     private def manageDevice(r: DeviceRequest): Unit = {
-        if (managedDevices(r.id))
+        if (managedDevices.contains(r.id))
             return
 
         log.info("Build a manager for {}", r)
@@ -295,12 +362,67 @@ class VirtualTopologyActor extends Actor {
         val props = Props { mgrFactory() }.withDispatcher(context.props.dispatcher)
         context.actorOf(props, r.managerName)
 
-        managedDevices.add(r.id)
+        managedDevices.put(r.id, r)
+        lastUsed.put(r.id, new AtomicLong(idleChecks))
         idToUnansweredClients.put(r.id, mutable.Set[ActorRef]())
         idToSubscribers.put(r.id, mutable.Set[ActorRef]())
+        metrics.watchedDevices(deviceType(r)).inc()
+    }
+
+    private def unloadIdleDevices(): Unit = {
+        idleChecks += 1
+        // A device last used during the previous check may have been used
+        // just before this one, so it is idle for a whole interval less.
+        val idleChecksToExpire = math.max(1,
+            config.getIdleDeviceExpiration / config.getCheckIdleDevicesInterval)
+        val idle = managedDevices.values filter { r =>
+            r.unloadable &&
+            idleChecks - lastUsed.get(r.id).get > idleChecksToExpire &&
+            idToSubscribers(r.id).isEmpty &&
+            idToUnansweredClients(r.id).isEmpty
+        }
+        if (idle.nonEmpty) {
+            log.info(s"Unloading ${idle.size} idle devices")
+            idle.toList foreach unload
+        }
+    }
+
+    /** Stops the manager of a device and forgets about it. */
+    private def unload(r: DeviceRequest): Unit = {
+        log.debug("Unloading {}", r)
+        val manager = context.child(r.managerName)
+
+        managedDevices.remove(r.id)
+        idToSubscribers.remove(r.id)
+        idToUnansweredClients.remove(r.id)
+        if (topology.remove(r.id) ne null)
+            metrics.cachedDevices(deviceType(r)).dec()
+        lastUsed.remove(r.id)
+        metrics.watchedDevices(deviceType(r)).dec()
+
+        clusterClient.unsubscribeDevice(r.id)
+        FlowController ! InvalidateFlowsByTag(FlowTagger.tagForDevice(r.id))
+
+        for (m <- manager) {
+            // The manager no longer needs the devices it subscribed to.
+            idToSubscribers.values foreach { _.remove(m) }
+            idToUnansweredClients.values foreach { _.remove(m) }
+            stoppingManagers.put(m, r.id)
+            deferredRequests.put(r.id, mutable.Buffer())
+            context.watch(m)
+            context.stop(m)
+        }
     }
 
+    private def managerStopped(manager: ActorRef): Unit =
+        for (id <- stoppingManagers.remove(manager);
+             requests <- deferredRequests.remove(id);
+             (request, client) <- requests) {
+            self.tell(request, client)
+        }
+
     private def deviceRequested(req: DeviceRequest) {
+        lastUsed.get(req.id).lazySet(idleChecks)
         val device = topology.get(req.id)
         if (device eq null) {
             log.debug("Adding requester {} to unanswered clients for {}",
@@ -322,6 +444,10 @@ class VirtualTopologyActor extends Actor {
     }
 
     private def updated(id: UUID, device: AnyRef) {
+        if (!managedDevices.contains(id)) {
+            log.debug("Ignoring an update for unloaded device {}", id)
+            return
+        }
         for (client <- idToSubscribers(id)) {
             log.debug("Sending subscriber {} the device update for {}",
                       client, id)
@@ -336,7 +462,8 @@ class VirtualTopologyActor extends Actor {
             }
         }
         idToUnansweredClients(id).clear()
-        topology.put(id, device)
+        if (topology.put(id, device) eq null)
+            metrics.cachedDevices(deviceType(managedDevices(id))).inc()
     }
 
     private def unsubscribe(id: UUID, actor: ActorRef): Unit = {
@@ -353,11 +480,16 @@ class VirtualTopologyActor extends Actor {
     def receive = {
         case null =>
             log.warn("Received null device?")
+        case r: DeviceRequest if deferredRequests.contains(r.id) =>
+            log.debug("Deferring {} until its previous manager stops", r)
+            deferredRequests(r.id) += ((r, sender))
         case r: DeviceRequest =>
             log.debug("Received {}", r)
             manageDevice(r)
             deviceRequested(r)
         case u: Unsubscribe => unsubscribe(u.id, sender)
+        case CheckIdleDevices => unloadIdleDevices()
+        case Terminated(manager) => managerStopped(manager)
         case bridge: Bridge =>
             log.debug("Received a Bridge for {}", bridge.id)
             updated(bridge)
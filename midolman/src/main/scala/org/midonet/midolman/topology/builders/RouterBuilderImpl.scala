@@ -19,7 +19,7 @@ package org.midonet.midolman.topology.builders
 import java.util.UUID
 import org.midonet.cluster.client.{ArpCache, RouterBuilder}
 import akka.actor.ActorRef
-import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.layer3.{MultibitRoutingTable, Route}
 import org.midonet.midolman.topology.RouterManager.{InvalidateFlows, TriggerUpdate}
 import org.midonet.midolman.topology.{RoutingTableWrapper, RouterConfig}
 
@@ -31,6 +31,7 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     private val routes = new scala.collection.mutable.HashSet[Route]()
     private val routesToAdd = new scala.collection.mutable.HashSet[Route]()
     private val routesToRemove = new scala.collection.mutable.HashSet[Route]()
+    private val table = new MultibitRoutingTable()
 
     def setArpCache(table: ArpCache) {
         if (arpCache != null)
@@ -69,10 +70,12 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     }
 
     def build() {
-        // we always pass a new copy of the RoutingTable since this is accessed
-        // by the RCU Router
-        val table = new IPv4RoutingTable()
-        for (rt <- routes)
+        // we always pass an immutable snapshot of the routing table since
+        // this is accessed by the RCU Router. A route may have been added and
+        // removed since the last build, so we look at where it ended up.
+        for (rt <- routesToRemove if !routes.contains(rt))
+            table.deleteRoute(rt)
+        for (rt <- routesToAdd if routes.contains(rt))
             table.addRoute(rt)
         if (routesToAdd.size > 0 || routesToRemove.size > 0) {
             val added = routesToAdd.clone()
@@ -81,7 +84,7 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
         }
         routesToAdd.clear()
         routesToRemove.clear()
-        routerManager ! TriggerUpdate(cfg, arpCache, new RoutingTableWrapper(table))
+        routerManager ! TriggerUpdate(cfg, arpCache, new RoutingTableWrapper(table.snapshot()))
     }
 
     def start() = null
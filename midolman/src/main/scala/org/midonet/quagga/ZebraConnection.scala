@@ -215,7 +215,7 @@ class ZebraConnection(val dispatcher: ActorRef,
                 val nextHopType = in.readByte
                 if (nextHopType == ZebraNextHopIpv4) {
                     val addr = in.readInt
-                    log.info(s"received route: nextHopType $nextHopType addr $addr")
+                    log.debug(s"received route: nextHopType $nextHopType addr $addr")
                     handler.addRoute(RIBType.fromInteger(ribType),
                         new IPv4Subnet(IPv4Addr.fromBytes(prefix), prefixLen),
                         IPv4Addr.fromInt(addr))
@@ -259,7 +259,7 @@ class ZebraConnection(val dispatcher: ActorRef,
                 val nextHopType = in.readByte
                 if (nextHopType == ZebraNextHopIpv4) {
                     val addr = in.readInt
-                    log.info(s"route to delete: nextHopType $nextHopType addr $addr")
+                    log.debug(s"route to delete: nextHopType $nextHopType addr $addr")
 
                     handler.removeRoute(RIBType.fromInteger(ribType),
                         new IPv4Subnet(IPv4Addr.fromBytes(prefix), prefixLen),
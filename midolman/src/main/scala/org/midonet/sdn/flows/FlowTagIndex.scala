@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.{ArrayList, HashMap, List => JList}
+
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object FlowTagIndex {
+    /**
+     * The binding of a flow to one of its tags, linked with the bindings of
+     * the other flows of the same tag.
+     */
+    final class Link(val tag: FlowTag, val flow: ManagedWildcardFlow) {
+        private[FlowTagIndex] var prev: Link = _
+        private[FlowTagIndex] var next: Link = _
+        private[FlowTagIndex] var linked = false
+    }
+}
+
+/**
+ * Indexes wildcard flows by the tags that invalidate them.
+ *
+ * Each tag heads a doubly linked list of Links, one per flow bound to it,
+ * and each flow keeps the Links of all its tags. Binding a flow and unbinding
+ * it take time proportional to its number of tags, without hashing the flow
+ * itself: flows are distinct by identity, whatever their equals() says.
+ *
+ * This class is not thread-safe, it belongs to the FlowController.
+ */
+final class FlowTagIndex {
+    import FlowTagIndex.Link
+
+    private val heads = new HashMap[FlowTag, Link]()
+    private var bindings = 0
+
+    def numTags: Int = heads.size
+
+    def numBindings: Int = bindings
+
+    /**
+     * Binds a flow to each of its tags. The flow must not be bound already.
+     */
+    def add(flow: ManagedWildcardFlow): Unit = {
+        val tags = flow.tags
+        if (tags eq null)
+            return
+
+        val links = new Array[Link](tags.length)
+        var i = 0
+        while (i < tags.length) {
+            val link = new Link(tags(i), flow)
+            link.next = heads.put(tags(i), link)
+            if (link.next ne null)
+                link.next.prev = link
+            link.linked = true
+            links(i) = link
+            i += 1
+        }
+        flow.tagLinks = links
+        bindings += links.length
+    }
+
+    /**
+     * Unbinds a flow from all its tags.
+     */
+    def remove(flow: ManagedWildcardFlow): Unit = {
+        val links = flow.tagLinks
+        if (links eq null)
+            return
+
+        var i = 0
+        while (i < links.length) {
+            val link = links(i)
+            if (link.linked) {
+                if (link.prev eq null) {
+                    if (link.next eq null)
+                        heads.remove(link.tag)
+                    else
+                        heads.put(link.tag, link.next)
+                } else {
+                    link.prev.next = link.next
+                }
+                if (link.next ne null)
+                    link.next.prev = link.prev
+                unlinked(link)
+            }
+            i += 1
+        }
+        flow.tagLinks = null
+    }
+
+    /**
+     * Returns the flows bound to a tag.
+     */
+    def flowsFor(tag: FlowTag): JList[ManagedWildcardFlow] = {
+        val flows = new ArrayList[ManagedWildcardFlow]()
+        var link = heads.get(tag)
+        while (link ne null) {
+            flows.add(link.flow)
+            link = link.next
+        }
+        flows
+    }
+
+    /**
+     * Unbinds all the flows of a tag, leaving their other tags untouched,
+     * and adds the flows to the given list. Returns the number of flows.
+     */
+    def removeTag(tag: FlowTag, flows: JList[ManagedWildcardFlow]): Int = {
+        var count = 0
+        var link = heads.remove(tag)
+        while (link ne null) {
+            val next = link.next
+            flows.add(link.flow)
+            unlinked(link)
+            link = next
+            count += 1
+        }
+        count
+    }
+
+    private def unlinked(link: Link): Unit = {
+        link.prev = null
+        link.next = null
+        link.linked = false
+        bindings -= 1
+    }
+}
@@ -169,6 +169,7 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
     var lastUsedTimeMillis: Long = 0L
     var callbacks: ArrayList[Callback0] = null
     var tags: Array[FlowTag] = null
+    var tagLinks: Array[FlowTagIndex.Link] = null
     val dpFlows = new java.util.HashSet[FlowMatch](4)
 
     val wcmatch = new WildcardMatch()
@@ -198,6 +199,7 @@ class ManagedWildcardFlow(override val pool: ObjectPool[ManagedWildcardFlow])
         this.actions = Nil
         this.callbacks = null
         this.tags = null
+        this.tagLinks = null
         this.dpFlows.clear()
         cachedHashCode = INVALID_HASH_CODE
     }
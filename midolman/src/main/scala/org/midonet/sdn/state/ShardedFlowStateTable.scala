@@ -23,14 +23,33 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.util.collection.Reducer
-import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+import org.midonet.util.concurrent.{ExpirationMap, NanoClock, OffHeapExpirationMap, TimedExpirationMap}
 
 object ShardedFlowStateTable {
+    /**
+     * The length of the ticks of the timing wheel that orders the expiring
+     * entries of on-heap shards.
+     */
+    val ExpirationTickMillis = 10L
+
     def create[K <: IdleExpiration, V >: Null](): ShardedFlowStateTable[K, V] =
             new ShardedFlowStateTable[K, V]()
 
     def create[K <: IdleExpiration, V >: Null](clock: NanoClock):
             ShardedFlowStateTable[K, V] = new ShardedFlowStateTable[K, V](clock)
+
+    /**
+     * Creates a table whose shards keep their entries off the Java heap,
+     * serialized by the given codec. Each shard starts with room for
+     * initialCapacity entries and grows as needed.
+     */
+    def createOffHeap[K <: IdleExpiration, V >: Null](
+            clock: NanoClock,
+            codec: OffHeapExpirationMap.Codec[K, V],
+            initialCapacity: Int): ShardedFlowStateTable[K, V] =
+        new ShardedFlowStateTable[K, V](clock, log =>
+            new OffHeapExpirationMap[K, V](codec, _.expiresAfter,
+                                           initialCapacity))
 }
 
 /**
@@ -47,14 +66,25 @@ object ShardedFlowStateTable {
  * performed on different shards result in undefined behaviour. Clients should
  * distribute shards among threads in a way that results in no keyspace overlap.
  *
- * Gets, on the other hand, will fall back to the parent and the other shards
- * if a key is not found locally.
+ * Gets, refs and unrefs, on the other hand, will fall back to the parent and
+ * the other shards if a key is not found locally. This lets a connection whose
+ * packets were moved to another worker keep using the entries created by the
+ * worker that processed it before, and release them once its flows are gone.
  *
  * unref() calls may require coordination, but they are meant to happen in an
  * external thread or pool, not a shard-owning thread.
+ *
+ * Each shard stores its entries in the ExpirationMap built by newShardMap,
+ * which defaults to an on-heap TimedExpirationMap that hands out expired
+ * entries from a timing wheel.
  */
 class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+        (val clock: NanoClock = NanoClock.DEFAULT,
+         newShardMap: Logger => ExpirationMap[K, V] = (log: Logger) =>
+             new TimedExpirationMap[K, V](
+                 log, _.expiresAfter,
+                 ShardedFlowStateTable.ExpirationTickMillis))
+        extends FlowStateTable[K, V] {
 
     private val shards = new ArrayList[FlowStateShard]()
     private val SHARD_NONE: Int = -1
@@ -92,17 +122,38 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
 
     override def get(key: K): V = get(key, SHARD_NONE)
 
-    override def ref(key: K): V = {
+    override def ref(key: K): V = ref(key, SHARD_NONE)
+
+    /**
+     * References the value associated with a key in the first shard that
+     * holds it, skipping the given shard index.
+     */
+    private[state] def ref(key: K, shardToSkip: Int): V = {
         var i = 0
         while (i < shards.size) {
-            val v = shards.get(i).ref(key)
-            if (v != null)
-                return v
+            if (i != shardToSkip) {
+                val v = shards.get(i).shallowRef(key)
+                if (v != null)
+                    return v
+            }
             i += 1
         }
         null
     }
 
+    /**
+     * Unreferences the value associated with a key in the first shard that
+     * holds it, skipping the given shard index.
+     */
+    private[state] def unref(key: K, shardToSkip: Int): Unit = {
+        var i = 0
+        while (i < shards.size) {
+            if (i != shardToSkip && shards.get(i).shallowUnref(key) != null)
+                return
+            i += 1
+        }
+    }
+
     override def touch(key: K, value: V) {
         var i: Int = 0
         while (i < shards.size) {
@@ -151,6 +202,19 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         seed
     }
 
+    override def expireIdleEntries[U](acc: U, func: Reducer[K, V, U],
+                                      maxEntries: Int): U = {
+        val counter = new CountingReducer(func)
+        var i = 0
+        var seed = acc
+        while (i < shards.size && counter.count < maxEntries) {
+            seed = shards.get(i).expireIdleEntries(
+                seed, counter, maxEntries - counter.count)
+            i += 1
+        }
+        seed
+    }
+
     override def expireIdleEntries() {
         var i = 0
         while (i < shards.size) {
@@ -159,14 +223,25 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         }
     }
 
+    private class CountingReducer[U](func: Reducer[K, V, U])
+            extends Reducer[K, V, U] {
+        var count = 0
+
+        override def apply(acc: U, key: K, value: V): U = {
+            count += 1
+            func(acc, key, value)
+        }
+    }
+
     /**
      * A shard within a ShardedFlowStateTable.
      *
-     * It stores entries locally but forwards queries to the parent table for
-     * aggregation. Reference counting is also delegated on the parent.
+     * It stores entries locally but forwards queries, references and
+     * unreferences of keys it doesn't hold to the parent table for
+     * aggregation.
      */
     class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
-        private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+        private val map = newShardMap(log)
 
         override def putAndRef(key: K, value: V): V =
             map.putAndRef(key, value)
@@ -182,7 +257,15 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         def shallowGet(key: K): V =
             map.get(key)
 
-        override def ref(key: K): V =
+        override def ref(key: K): V = {
+            val v = map.ref(key)
+            if (v != null)
+                v
+            else
+                ShardedFlowStateTable.this.ref(key, workerId)
+        }
+
+        def shallowRef(key: K): V =
             map.ref(key)
 
         override def getRefCount(key: K): Int =
@@ -195,7 +278,11 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
 
         private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
 
-        override def unref(key: K) =
+        override def unref(key: K): Unit =
+            if (map.unref(key, tickMillis) == null)
+                ShardedFlowStateTable.this.unref(key, workerId)
+
+        def shallowUnref(key: K): V =
             map.unref(key, tickMillis)
 
         override def fold[U](seed: U, func: Reducer[K, V, U]): U =
@@ -206,5 +293,9 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
 
         override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
             map.obliterateIdleEntries(tickMillis, seed, func)
+
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U],
+                                          maxEntries: Int): U =
+            map.obliterateIdleEntries(tickMillis, seed, func, maxEntries)
     }
 }
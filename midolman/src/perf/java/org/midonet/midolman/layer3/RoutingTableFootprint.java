@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The size of the routing tables built by RoutingTableBenchmark.build,
+ * summed over the tables built in an iteration. JMH reports each counter as
+ * a rate next to the rate of builds, so the size of one table is the rate
+ * of a counter divided by the rate of builds.
+ */
+@State(Scope.Thread)
+@AuxCounters
+public class RoutingTableFootprint {
+
+    /** The heap taken by the tables, in kilobytes. */
+    public long kilobytes;
+
+    /** The chunks below the root of the multibit tables. */
+    public long chunks;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        kilobytes = 0;
+        chunks = 0;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConversions._
+
+import com.google.inject.{Guice, Injector}
+
+import org.apache.commons.configuration.HierarchicalConfiguration
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.cluster.data.Bridge
+import org.midonet.cluster.data.ports.BridgePort
+import org.midonet.midolman.Setup
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.guice.cluster.DataClusterClientModule
+import org.midonet.midolman.guice.config.{ConfigProviderModule, TypedConfigModule}
+import org.midonet.midolman.guice.serialization.SerializationModule
+import org.midonet.midolman.guice.zookeeper.ZookeeperConnectionModule
+import org.midonet.midolman.state.{Directory, PathBuilder, ZkManager}
+import org.midonet.midolman.version.guice.VersionModule
+
+/**
+ * Measures the latency of listing the ports of a bridge against an embedded
+ * ZooKeeper server, as the number of ports grows. The sequential reads are
+ * those list operations used to make, an exists and a get per port, while
+ * the pipelined reads are those of DataClient.portsFindByBridge.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class DataClientListBenchmark {
+
+    val ZkRoot = "/midonet"
+
+    @Param(Array("10", "100", "1000", "5000"))
+    var ports: Int = _
+
+    @Param(Array("sequential", "pipelined"))
+    var reads: String = _
+
+    var server: TestingServer = _
+    var injector: Injector = _
+    var dataClient: DataClient = _
+    var zk: ZkManager = _
+    var bridgeId: UUID = _
+    var portsPath: String = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        server = new TestingServer()
+        val config = new HierarchicalConfiguration
+        config.setProperty("zookeeper.zookeeper_hosts", server.getConnectString)
+        config.setProperty("zookeeper.midolman_root_key", ZkRoot)
+        injector = Guice.createInjector(
+            new VersionModule(),
+            new SerializationModule(),
+            new ConfigProviderModule(config),
+            new ZookeeperConnectionModule(),
+            new TypedConfigModule(classOf[MidolmanConfig]),
+            new DataClusterClientModule())
+        Setup.ensureZkDirectoryStructureExists(
+            injector.getInstance(classOf[Directory]), ZkRoot)
+
+        dataClient = injector.getInstance(classOf[DataClient])
+        zk = injector.getInstance(classOf[ZkManager])
+        bridgeId = dataClient.bridgesCreate(new Bridge().setAdminStateUp(true))
+        for (i <- 0 until ports)
+            dataClient.portsCreate(new BridgePort().setDeviceId(bridgeId))
+        portsPath = injector.getInstance(classOf[PathBuilder])
+                            .getBridgePortsPath(bridgeId)
+    }
+
+    @TearDown
+    def teardown(): Unit = {
+        injector.getInstance(classOf[Directory]).closeConnection()
+        server.close()
+    }
+
+    @Benchmark
+    def listBridgePorts(bh: Blackhole): Unit = reads match {
+        case "sequential" =>
+            for (id <- zk.getChildren(portsPath))
+                bh.consume(dataClient.portsGet(UUID.fromString(id)))
+        case "pipelined" =>
+            bh.consume(dataClient.portsFindByBridge(bridgeId))
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.lang.{Integer => JInteger}
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import com.typesafe.scalalogging.Logger
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown, Level, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.helpers.NOPLogger
+
+import org.midonet.cluster.data.ports.BridgePort
+import org.midonet.midolman.DeduplicationActor.ActionsCache
+import org.midonet.midolman.FlowController.InvalidateFlowsByTag
+import org.midonet.midolman.UnderlayResolver.Route
+import org.midonet.midolman.host.interfaces.InterfaceDescription
+import org.midonet.midolman.io.DatapathConnectionPool
+import org.midonet.midolman.simulation.{Bridge, PacketContext}
+import org.midonet.midolman.state.{HappyGoLuckyLeaser, MockStateStorage, FlowStateReplicator}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.topology.rcu.ResolvedHost
+import org.midonet.odp.{Datapath, DpPort, Packet}
+import org.midonet.odp.flows.{FlowAction, FlowActionOutput, FlowKeys}
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.{FlowTagger, WildcardMatch}
+import org.midonet.sdn.flows.VirtualActions.{FlowActionOutputToVrnBridge, FlowActionOutputToVrnPort}
+import org.midonet.sdn.state.{FlowStateTransaction, ShardedFlowStateTable}
+
+object PacketWorkflowBenchmark {
+    val leftMac = MAC.random
+    val rightMac = MAC.random
+    val leftDpPort: JInteger = 1
+    val rightDpPort: JInteger = 2
+
+    def frame(src: IPv4Addr): Ethernet =
+        { eth addr leftMac -> rightMac } <<
+        { ip4 addr src --> IPv4Addr.fromString("10.0.0.2") } <<
+        { udp ports 5003 ---> 53 } << payload("payload")
+
+    /* A packet that no flow has matched yet. */
+    @State(Scope.Thread)
+    class NewPacketHolder {
+        var packet: Packet = _
+
+        @JmhSetup(Level.Invocation)
+        def setup(): Unit = {
+            packet = Packet.fromEthernet(frame(IPv4Addr.random))
+                           .addKey(FlowKeys.inPort(leftDpPort))
+        }
+    }
+}
+
+/**
+ * Measures PacketWorkflow.start() for packets that hit and miss the wildcard
+ * flow table, and FlowTranslator.translateActions() for the virtual actions
+ * a simulation returns, over a bridge whose two ports are bound to the
+ * datapath. Misses go through the Coordinator and install a new flow.
+ *
+ * The allocation rate is reported by running with the GC profiler, e.g.
+ * ./gradlew :midolman:benchmarks '-Pjmh=.*PacketWorkflow.* -prof gc'
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class PacketWorkflowBenchmark extends MidolmanBenchmark {
+    import PacketWorkflowBenchmark._
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor),
+                   FlowController -> (() => new FlowController))
+
+    val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue].addShard()
+    val natTable = new ShardedFlowStateTable[NatKey, NatBinding].addShard()
+    val conntrackTx = new FlowStateTransaction(conntrackTable)
+    val natTx = new FlowStateTransaction(natTable)
+    val actionsCache = new ActionsCache(log = Logger(NOPLogger.NOP_LOGGER))
+    val datapath = new Datapath(1, "midonet", null)
+
+    var bridgeId: UUID = _
+    var leftPort: BridgePort = _
+    var rightPort: BridgePort = _
+    var workflow: PacketWorkflow = _
+    var knownPacket: Packet = _
+    var translationContext: PacketContext = _
+    var portActions: Seq[FlowAction] = _
+    var floodActions: Seq[FlowAction] = _
+
+    /* The datapath has both bridge ports bound and no tunnels. */
+    class BenchmarkDatapathState extends DatapathState {
+        override val host = new ResolvedHost(hostId, true, 0, "midonet",
+                                             Map(), Map())
+        override def peerTunnelInfo(peer: UUID): Option[Route] = None
+        override def vtepTunnellingOutputAction: FlowActionOutput = null
+        override def isVtepTunnellingPort(portNumber: Short) = false
+        override def isOverlayTunnellingPort(portNumber: Short) = false
+
+        override def getDpPortNumberForVport(vportId: UUID): Option[JInteger] =
+            if (vportId == leftPort.getId) Some(leftDpPort)
+            else if (vportId == rightPort.getId) Some(rightDpPort)
+            else None
+        override def getVportForDpPortNumber(portNum: JInteger): Option[UUID] =
+            if (portNum == leftDpPort) Some(leftPort.getId)
+            else if (portNum == rightDpPort) Some(rightPort.getId)
+            else None
+        override def dpPortNumberForTunnelKey(tunnelKey: Long): Option[DpPort] = None
+        override def getDpPortForInterface(itfName: String): Option[DpPort] = None
+        override def getDpPortName(num: JInteger): Option[String] = None
+        override def getDescForInterface(itfName: String)
+        : Option[InterfaceDescription] = None
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        newHost("myself", hostId)
+        val clusterBridge = newBridge("bridge")
+        leftPort = newBridgePort(clusterBridge)
+        rightPort = newBridgePort(clusterBridge)
+        materializePort(leftPort, hostId, "port0")
+        materializePort(rightPort, hostId, "port1")
+        fetchTopology(clusterBridge, leftPort, rightPort)
+
+        val bridge: Bridge = fetchDevice(clusterBridge)
+        val macTable = bridge.vlanMacTableMap(0.toShort)
+        macTable.add(leftMac, leftPort.getId)
+        macTable.add(rightMac, rightPort.getId)
+        bridgeId = clusterBridge.getId
+
+        val dpState = new BenchmarkDatapathState
+        val replicator = new FlowStateReplicator(conntrackTable, natTable,
+                                                 new MockStateStorage, dpState,
+                                                 _ => { }, datapath)
+        workflow = new PacketWorkflow(dpState, datapath, clusterDataClient(),
+            injector.getInstance(classOf[DatapathConnectionPool]),
+            CallbackExecutor.Immediate, actionsCache, replicator)
+
+        // The first packet misses and installs the flow the others will hit.
+        knownPacket = Packet.fromEthernet(frame(IPv4Addr.fromString("10.0.0.1")))
+                            .addKey(FlowKeys.inPort(leftDpPort))
+        force { workflow.start(packetContext(knownPacket)) }
+
+        translationContext = packetContext(knownPacket)
+        portActions = List(FlowActionOutputToVrnPort(rightPort.getId))
+        floodActions = List(FlowActionOutputToVrnBridge(
+            bridgeId, List(leftPort.getId, rightPort.getId)))
+    }
+
+    /* Drops the flows installed by the misses, keeping the one that hits. */
+    @TearDown(Level.Iteration)
+    def clearFlows(): Unit = {
+        FlowController ! InvalidateFlowsByTag(
+            FlowTagger.tagForDevice(bridgeId))
+        mockDpConn().flowsTable.clear()
+        mockDpConn().packetsSent.clear()
+        workflow.start(packetContext(knownPacket))
+        actionsCache.clearProcessedFlowMatches()
+    }
+
+    private def packetContext(packet: Packet): PacketContext = {
+        val context = new PacketContext(Left(1), packet, None,
+            WildcardMatch.fromFlowMatch(packet.getMatch))
+        context.state.initialize(conntrackTx, natTx, HappyGoLuckyLeaser)
+        context
+    }
+
+    private def run(packet: Packet): PacketWorkflow.PipelinePath = {
+        val res = workflow.start(packetContext(packet))
+        actionsCache.clearProcessedFlowMatches()
+        res
+    }
+
+    @Benchmark
+    def wildcardTableHit(): PacketWorkflow.PipelinePath = run(knownPacket)
+
+    @Benchmark
+    def wildcardTableMiss(holder: NewPacketHolder): PacketWorkflow.PipelinePath =
+        run(holder.packet)
+
+    @Benchmark
+    def translatePortAction(bh: Blackhole): Unit =
+        bh.consume(workflow.translateActions(translationContext, portActions))
+
+    @Benchmark
+    def translateFloodAction(bh: Blackhole): Unit =
+        bh.consume(workflow.translateActions(translationContext, floodActions))
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.{ArrayList, EnumSet, Random}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Param, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.{FlowKey, FlowKeys, IpProtocol}
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.flows.{ManagedWildcardFlow, WildcardFlow, WildcardMatch}
+import org.midonet.sdn.flows.WildcardMatch.Field
+
+/**
+ * Measures the per packet cost of turning a datapath flow match into a
+ * WildcardMatch and looking it up in the wildcard flow tables, which hold
+ * L2 flows, L4 flows and exact match flows. Run with "-prof gc" to see the
+ * bytes allocated per packet (gc.alloc.rate.norm), which should be about the
+ * size of the WildcardMatch itself.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class WildcardFlowClassifierBenchmark {
+
+    @Param(Array("1000", "100000"))
+    var flows: Int = _
+
+    val numPackets = 1024
+
+    val classifier = new WildcardFlowClassifier()
+    val packets = new Array[FlowMatch](numPackets)
+    var index = 0
+
+    val l2Pattern = EnumSet.of(Field.InputPortNumber, Field.EthSrc,
+                               Field.EthDst)
+    val l4Pattern = EnumSet.of(Field.InputPortNumber, Field.EtherType,
+                               Field.NetworkDst, Field.NetworkProto,
+                               Field.DstPort)
+
+    def generateMac(rand: Random) = {
+        val bytes = new Array[Byte](6)
+        rand.nextBytes(bytes)
+        bytes
+    }
+
+    def generateFlowMatch(rand: Random): FlowMatch = {
+        val keys = new ArrayList[FlowKey]()
+        keys.add(FlowKeys.inPort(1 + rand.nextInt(4)))
+        keys.add(FlowKeys.ethernet(generateMac(rand), generateMac(rand)))
+        keys.add(FlowKeys.etherType(0x0800.toShort))
+        keys.add(FlowKeys.ipv4(IPv4Addr.fromInt(rand.nextInt()),
+                               IPv4Addr.fromInt(rand.nextInt()),
+                               IpProtocol.TCP))
+        keys.add(FlowKeys.tcp(rand.nextInt() & 0xFFFF,
+                              rand.nextInt() & 0xFFFF))
+        new FlowMatch(keys)
+    }
+
+    def add(wcMatch: WildcardMatch, priority: Short): Unit = {
+        val wflow = ManagedWildcardFlow.create(
+            WildcardFlow(wcMatch, priority = priority))
+        classifier.addTable(EnumSet.copyOf(wcMatch.getUsedFields))
+                  .put(wflow.wcmatch, wflow)
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        val rand = new Random(42)
+        for (i <- 0 until flows) {
+            val wcMatch = WildcardMatch.fromFlowMatch(generateFlowMatch(rand))
+            (i % 3) match {
+                case 0 => add(wcMatch.project(l2Pattern), 2)
+                case 1 => add(wcMatch.project(l4Pattern), 1)
+                case _ => add(wcMatch, 0)
+            }
+        }
+        // Half of the packets hit a flow, the other half miss every table.
+        val hits = new Random(42)
+        for (i <- 0 until numPackets) {
+            packets(i) = if (i % 2 == 0) {
+                             val fm = generateFlowMatch(hits)
+                             for (j <- 1 until flows / numPackets)
+                                 generateFlowMatch(hits)
+                             fm
+                         } else {
+                             generateFlowMatch(rand)
+                         }
+        }
+    }
+
+    private def nextPacket(): FlowMatch = {
+        index = (index + 1) & (numPackets - 1)
+        packets(index)
+    }
+
+    @Benchmark
+    def fromFlowMatch(bh: Blackhole): Unit = {
+        bh.consume(WildcardMatch.fromFlowMatch(nextPacket()))
+    }
+
+    @Benchmark
+    def fromFlowMatchAndLookup(bh: Blackhole): Unit = {
+        val wcMatch = WildcardMatch.fromFlowMatch(nextPacket())
+        bh.consume(classifier.lookup(wcMatch))
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Param, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+
+/**
+ * Measures the latency of a destination lookup in the trie based
+ * RoutingTable and in a MultibitRoutingTable snapshot, for tables with a
+ * prefix length mix resembling a full BGP feed: mostly /24s, some /16 to
+ * /23 and a few longer prefixes. Also measures the time to build each table,
+ * and reports its memory footprint through RoutingTableFootprint.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class RoutingTableBenchmark {
+
+    @Param(Array("10000", "500000"))
+    var routes: Int = _
+
+    @Param(Array("trie", "multibit"))
+    var table: String = _
+
+    val numDestinations = 1 << 12
+    val destinations = new Array[Int](numDestinations)
+    var routeList: Array[Route] = _
+    var trie: RoutingTable = _
+    var snapshot: MultibitRoutingTable.Snapshot = _
+    var next = 0
+
+    // The footprint of the table, measured once in the setup
+    var kilobytes = 0L
+    var chunks = 0L
+
+    private def prefixLength(rand: Random): Int = rand.nextInt(100) match {
+        case n if n < 60 => 24
+        case n if n < 95 => 16 + rand.nextInt(8)
+        case _ => 25 + rand.nextInt(8)
+    }
+
+    private def usedHeap(): Long = {
+        System.gc()
+        Runtime.getRuntime.totalMemory - Runtime.getRuntime.freeMemory
+    }
+
+    private def buildTrie(): RoutingTable = {
+        val trie = new RoutingTable()
+        routeList foreach trie.addRoute
+        trie
+    }
+
+    private def buildMultibit(): MultibitRoutingTable.Snapshot = {
+        val multibit = new MultibitRoutingTable()
+        routeList foreach multibit.addRoute
+        multibit.snapshot()
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        val rand = new Random(42)
+        val port = UUID.randomUUID
+        routeList = new Array[Route](routes)
+        for (i <- 0 until routes) {
+            val length = prefixLength(rand)
+            val addr = rand.nextInt() & MultibitRoutingTable.mask(length)
+            routeList(i) = new Route(0, 0, addr, length, NextHop.PORT, port,
+                                     0, 100, null, null)
+            if (i < numDestinations)
+                destinations(i) = addr | (rand.nextInt() & ~MultibitRoutingTable.mask(length))
+        }
+        for (i <- routes until numDestinations)
+            destinations(i) = rand.nextInt()
+
+        val before = usedHeap()
+        if (table == "trie") {
+            trie = buildTrie()
+        } else {
+            snapshot = buildMultibit()
+            chunks = snapshot.chunks
+        }
+        kilobytes = (usedHeap() - before) >> 10
+    }
+
+    @Benchmark
+    def lookup(bh: Blackhole): Unit = {
+        val dst = destinations(next)
+        next = (next + 1) & (numDestinations - 1)
+        bh.consume(if (table == "trie") trie.lookup(0, dst)
+                   else snapshot.lookup(0, dst))
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.Throughput))
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    def build(footprint: RoutingTableFootprint, bh: Blackhole): Unit = {
+        bh.consume(if (table == "trie") buildTrie() else buildMultibit())
+        footprint.kilobytes += kilobytes
+        footprint.chunks += chunks
+    }
+}
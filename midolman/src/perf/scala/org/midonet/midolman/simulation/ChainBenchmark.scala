@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import akka.actor.ActorSystem
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, TearDown, Param, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule}
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+import org.midonet.sdn.flows.WildcardMatch
+import org.midonet.util.Range
+
+/**
+ * Measures the per packet cost of evaluating a chain of firewall-like rules,
+ * each one matching a distinct destination subnet and port, for a packet
+ * that only matches the last rule.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class ChainBenchmark {
+
+    @Param(Array("10", "100", "1000", "10000"))
+    var rules: Int = _
+
+    implicit var actorSystem: ActorSystem = _
+    var chain: Chain = _
+    var wcMatch: WildcardMatch = _
+    val ownerId = UUID.randomUUID
+
+    @JmhSetup
+    def setup(): Unit = {
+        actorSystem = ActorSystem.create("ChainBenchmark")
+        val id = UUID.randomUUID
+        val ruleList = for (i <- 0 until rules) yield {
+            val cond = new Condition()
+            cond.nwProto = 6.toByte
+            cond.nwDstIp = new IPv4Subnet(0x0a000000 | i << 8, 24)
+            cond.tpDst = new Range[Integer](80 + i % 16)
+            val rule: Rule = new LiteralRule(cond, Action.ACCEPT)
+            rule.chainId = id
+            rule
+        }
+        chain = new Chain(id, ruleList.asJava, Map[UUID, Chain](), "bench")
+
+        val last = rules - 1
+        wcMatch = new WildcardMatch()
+            .setEtherType(0x0800.toShort)
+            .setNetworkSrc(IPv4Addr.random)
+            .setNetworkDst(IPv4Addr.fromInt(0x0a000001 | last << 8))
+            .setNetworkProto(6.toByte)
+            .setSrcPort(12345)
+            .setDstPort(80 + last % 16)
+    }
+
+    @TearDown
+    def teardown(): Unit = {
+        actorSystem.shutdown()
+    }
+
+    @Benchmark
+    def compiled(bh: Blackhole): Unit = {
+        val context = new PacketContext(Left(1), null, None, wcMatch)
+        bh.consume(Chain.apply(chain, context, ownerId, false))
+    }
+
+    @Benchmark
+    def linear(bh: Blackhole): Unit = {
+        val context = new PacketContext(Left(1), null, None, wcMatch)
+        bh.consume(Chain.applyLinear(chain, context, ownerId, false))
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Param, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.packets.{IPv4Addr, TCP}
+import org.midonet.sdn.flows.WildcardMatch
+import org.midonet.util.collection.{MaglevTable, WeightedSelector}
+
+/**
+ * Measures the cost of choosing the backend of a connection to a pool: a
+ * weighted random selection, as pools used to do, against hashing the
+ * connection and looking it up in a Maglev table. Also measures the time
+ * to build the table, which happens whenever the members of a pool change.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class PoolBenchmark {
+
+    @Param(Array("3", "30", "300"))
+    var members: Int = _
+
+    val numConnections = 1 << 12
+    val connections = new Array[WildcardMatch](numConnections)
+    var poolMembers: Array[PoolMember] = _
+    var weighted: WeightedSelector[PoolMember] = _
+    var maglev: MaglevTable[PoolMember] = _
+    var next = 0
+
+    @JmhSetup
+    def setup(): Unit = {
+        val rand = new Random(42)
+        poolMembers = Array.tabulate(members) { i =>
+            new PoolMember(UUID.randomUUID(), IPv4Addr.fromInt(0x0a000000 + i),
+                           80, 1 + rand.nextInt(4))
+        }
+        weighted = WeightedSelector(poolMembers)
+        maglev = MaglevTable(poolMembers, (pm: PoolMember) => pm.id)
+
+        val vip = IPv4Addr.fromString("200.200.200.200")
+        for (i <- 0 until numConnections) {
+            connections(i) = new WildcardMatch()
+                .setNetworkSrc(IPv4Addr.fromInt(rand.nextInt()))
+                .setNetworkDst(vip)
+                .setNetworkProto(TCP.PROTOCOL_NUMBER)
+                .setSrcPort(1024 + rand.nextInt(60000))
+                .setDstPort(80)
+        }
+    }
+
+    @Benchmark
+    def buildTable(bh: Blackhole): Unit =
+        bh.consume(MaglevTable(poolMembers, (pm: PoolMember) => pm.id))
+
+    @Benchmark
+    def selectRandom(bh: Blackhole): Unit =
+        bh.consume(weighted.select())
+
+    @Benchmark
+    def selectByHash(bh: Blackhole): Unit = {
+        val connection = connections(next)
+        next = (next + 1) & (numConnections - 1)
+        bh.consume(maglev.select(Pool.flowHash(connection, false)))
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.{HashSet => JHashSet, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Param, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.cluster.data.{Entity, Port, Router => ClusterRouter}
+import org.midonet.cluster.data.ports.RouterPort
+import org.midonet.midolman.MidolmanBenchmark
+import org.midonet.midolman.layer3.Route
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.midolman.rules.{Condition, NatTarget, RuleResult}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.packets.{Ethernet, IPv4Addr, IPv4Subnet, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.state.{FlowStateTransaction, ShardedFlowStateTable}
+
+/**
+ * Measures Coordinator.simulate() over in-memory virtual topologies: a
+ * bridge, a router, a bridge filtering on a port group, a router applying
+ * DNAT and a router with a L4 load balancer. The ingress port carries a chain
+ * of `rules` rules that the packet traverses without matching.
+ *
+ * The allocation rate is reported by running with the GC profiler, e.g.
+ * ./gradlew :midolman:benchmarks '-Pjmh=.*TopologySimulation.* -prof gc'
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+class TopologySimulationBenchmark extends MidolmanBenchmark {
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
+
+    @Param(Array("bridge", "router", "portgroup", "nat", "l4lb"))
+    var topology: String = _
+
+    @Param(Array("0", "10", "100"))
+    var rules: Int = _
+
+    val leftMac = MAC.random
+    val rightMac = MAC.random
+    val leftNet = new IPv4Subnet("10.0.0.254", 24)
+    val rightNet = new IPv4Subnet("10.0.1.254", 24)
+    val leftIp = IPv4Addr.fromString("10.0.0.1")
+    val rightIp = IPv4Addr.fromString("10.0.1.1")
+    val natIp = IPv4Addr.fromString("10.0.2.1")
+    val vipIp = IPv4Addr.fromString("10.0.3.1")
+
+    val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue].addShard()
+    val natTable = new ShardedFlowStateTable[NatKey, NatBinding].addShard()
+    implicit val conntrackTx = new FlowStateTransaction(conntrackTable)
+    implicit val natTx = new FlowStateTransaction(natTable)
+
+    var ingressPortId: UUID = _
+    var routerPort: RouterPort = _
+    var frame: Ethernet = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        newHost("myself", hostId)
+        topology match {
+            case "bridge" => buildBridge(withPortGroup = false)
+            case "portgroup" => buildBridge(withPortGroup = true)
+            case "router" =>
+                loadRouter(buildRouter())
+                frame = routerFrame(rightIp)
+            case "nat" =>
+                val router = buildRouter()
+                val chain = newInboundChainOnRouter("dnat", router)
+                val cond = new Condition()
+                cond.nwDstIp = new IPv4Subnet(natIp, 32)
+                newForwardNatRuleOnChain(chain, 1, cond, RuleResult.Action.ACCEPT,
+                    Set(new NatTarget(rightIp.toInt, rightIp.toInt, 0, 0)),
+                    isDnat = true)
+                fetchTopology(chain)
+                loadRouter(router)
+                frame = routerFrame(natIp)
+            case "l4lb" =>
+                val router = buildRouter()
+                val loadBalancer = createLoadBalancer()
+                setLoadBalancerOnRouter(loadBalancer, router)
+                loadBalancer.setRouterId(router.getId)
+                val pool = createPool(loadBalancer)
+                createVip(pool, vipIp.toString, 80)
+                for (i <- 1 to 3)
+                    createPoolMember(pool, s"10.0.1.$i", 80)
+                loadRouter(router)
+                frame = routerFrame(vipIp)
+            case t =>
+                throw new IllegalArgumentException(s"unknown topology $t")
+        }
+    }
+
+    private def buildBridge(withPortGroup: Boolean): Unit = {
+        val clusterBridge = newBridge("bridge")
+        val leftPort = newBridgePort(clusterBridge)
+        val rightPort = newBridgePort(clusterBridge)
+        materializePort(leftPort, hostId, "port0")
+        materializePort(rightPort, hostId, "port1")
+        addIngressRules(leftPort)
+
+        val entities = List[Entity.Base[_,_,_]](clusterBridge, leftPort, rightPort)
+        if (withPortGroup) {
+            val portGroup = newPortGroup("group")
+            newPortGroupMember(portGroup.getId, leftPort.getId)
+            newPortGroupMember(portGroup.getId, rightPort.getId)
+            val chain = newInboundChainOnBridge("group", clusterBridge)
+            val cond = new Condition()
+            cond.portGroup = portGroup.getId
+            newLiteralRuleOnChain(chain, 1, cond, RuleResult.Action.ACCEPT)
+            fetchTopologyList(chain :: entities)
+        } else {
+            fetchTopologyList(entities)
+        }
+
+        val bridge: Bridge = fetchDevice(clusterBridge)
+        val macTable = bridge.vlanMacTableMap(0.toShort)
+        macTable.add(leftMac, leftPort.getId)
+        macTable.add(rightMac, rightPort.getId)
+
+        ingressPortId = leftPort.getId
+        frame = { eth addr leftMac -> rightMac } <<
+                { ip4 addr leftIp --> rightIp } <<
+                { udp ports 5003 ---> 53 } << payload("payload")
+    }
+
+    private def buildRouter(): ClusterRouter = {
+        val clusterRouter = newRouter("router")
+        val leftPort = newRouterPort(clusterRouter, MAC.random(), leftNet)
+        val rightPort = newRouterPort(clusterRouter, MAC.random(), rightNet)
+        materializePort(leftPort, hostId, "port0")
+        materializePort(rightPort, hostId, "port1")
+        addIngressRules(leftPort)
+        for ((port, net) <- List(leftPort -> leftNet, rightPort -> rightNet)) {
+            newRoute(clusterRouter, "0.0.0.0", 0,
+                     net.toNetworkAddress.toString, net.getPrefixLen,
+                     NextHop.PORT, port.getId,
+                     new IPv4Addr(Route.NO_GATEWAY).toString, 10)
+        }
+        fetchTopology(leftPort, rightPort)
+        ingressPortId = leftPort.getId
+        routerPort = leftPort
+        clusterRouter
+    }
+
+    /* Loads the router once its configuration is complete and seeds its ARP
+     * table with the addresses of the client and of the backends. */
+    private def loadRouter(clusterRouter: ClusterRouter): Unit = {
+        fetchTopology(clusterRouter)
+        val router: Router = fetchDevice(clusterRouter)
+        router.arpTable.set(leftIp, leftMac)
+        for (i <- 1 to 3)
+            router.arpTable.set(IPv4Addr.fromString(s"10.0.1.$i"), rightMac)
+    }
+
+    private def routerFrame(dst: IPv4Addr): Ethernet =
+        { eth addr leftMac -> routerPort.getHwAddr } <<
+        { ip4 addr leftIp --> dst } <<
+        { tcp ports 5003 ---> 80 } << payload("payload")
+
+    /* Rules that the benchmarked packet never matches, each one on a distinct
+     * source subnet, followed by the default accept of the chain. */
+    private def addIngressRules[PD <: Port.Data, P <: Port[PD, P]]
+                               (port: Port[PD, P]): Unit = if (rules > 0) {
+        val chain = newInboundChainOnPort("ingress", port)
+        for (i <- 0 until rules) {
+            val cond = new Condition()
+            cond.nwSrcIp = new IPv4Subnet(0xac000000 | i << 8, 24)
+            cond.inPortIds = new JHashSet[UUID]()
+            cond.inPortIds.add(port.getId)
+            newLiteralRuleOnChain(chain, i + 1, cond, RuleResult.Action.DROP)
+        }
+        fetchTopology(chain)
+    }
+
+    @Benchmark
+    def simulatePacket(bh: Blackhole): Unit =
+        bh.consume(simulate(packetContextFor(frame, ingressPortId)))
+}
@@ -16,16 +16,19 @@
 
 package org.midonet.cluster;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
 import org.junit.Test;
 
+import org.midonet.cluster.data.Port;
 import org.midonet.cluster.data.Route;
 import org.midonet.cluster.data.Router;
 import org.midonet.cluster.data.VTEP;
 import org.midonet.cluster.data.dhcp.Subnet;
+import org.midonet.cluster.data.ports.BridgePort;
 import org.midonet.cluster.data.ports.RouterPort;
 import org.midonet.midolman.layer3.Route.NextHop;
 import org.midonet.midolman.serialization.SerializationException;
@@ -37,6 +40,7 @@ import org.midonet.packets.MAC;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.junit.Assert.assertEquals;
@@ -71,6 +75,33 @@ public class LocalDataClientImplTest extends LocalDataClientImplTestBase {
         assertThat(routes, hasSize(0));
     }
 
+    @Test
+    public void listPortsTest() throws StateAccessException,
+            SerializationException {
+        UUID bridgeId = client.bridgesCreate(getStockBridge());
+        List<UUID> portIds = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            portIds.add(client.portsCreate(
+                new BridgePort().setDeviceId(bridgeId)));
+        }
+
+        List<UUID> found = new ArrayList<>();
+        for (BridgePort port : client.portsFindByBridge(bridgeId)) {
+            found.add(port.getId());
+            assertThat(port.getDeviceId(), equalTo(bridgeId));
+        }
+        assertThat(found, containsInAnyOrder(portIds.toArray()));
+
+        // Deleted ports are left out of the listings
+        client.portsDelete(portIds.remove(0));
+        found.clear();
+        for (Port<?, ?> port : client.portsGetAll()) {
+            found.add(port.getId());
+        }
+        assertThat(found, containsInAnyOrder(portIds.toArray()));
+        assertThat(client.portsFindByBridge(bridgeId), hasSize(9));
+    }
+
     private void assertIsLeader(boolean[] leaderArr, int leader) {
         assertThat(leaderArr[leader], equalTo(true));
         for(int i = 0; i < leaderArr.length; i++) {
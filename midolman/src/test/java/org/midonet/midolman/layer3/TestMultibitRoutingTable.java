@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+
+public class TestMultibitRoutingTable {
+
+    private static Route route(int src, int srcLen, int dst, int dstLen,
+                               int weight) {
+        return new Route(src, srcLen, dst, dstLen, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    private static Set<Route> lookup(MultibitRoutingTable.Snapshot table,
+                                     int src, int dst) {
+        return new HashSet<>(table.lookup(src, dst));
+    }
+
+    private static Set<Route> lookup(RoutingTable table, int src, int dst) {
+        Set<Route> routes = new HashSet<>();
+        for (Route rt : table.lookup(src, dst))
+            routes.add(rt);
+        return routes;
+    }
+
+    @Test
+    public void testEmptyTable() {
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        Assert.assertTrue(table.snapshot().lookup(0x0a010108, 0x0a010106).isEmpty());
+        Assert.assertTrue(table.snapshot().lookup(0x00000009, 0xfffffffe).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixAndWeight() {
+        Route rt1 = route(0, 0, 0x0a140085, 7, 100);
+        Route rt2 = route(0, 0, 0x0a14008d, 18, 200);
+        Route rt3 = route(0, 0, 0x0a14007d, 18, 300);
+        Route rt4 = route(0, 0, 0x0a140096, 25, 300);
+        Route rt5 = route(0, 0, 0x0a140096, 32, 300);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        for (Route rt : new Route[] {rt1, rt2, rt3, rt4, rt5})
+            table.addRoute(rt);
+        MultibitRoutingTable.Snapshot snapshot = table.snapshot();
+
+        Assert.assertEquals(5, snapshot.size());
+        Assert.assertEquals(rt4, snapshot.lookup(0, 0x0a140080).get(0));
+        Assert.assertEquals(rt5, snapshot.lookup(0, 0x0a140096).get(0));
+        Assert.assertEquals(rt2, snapshot.lookup(0, 0x0a143700).get(0));
+        Assert.assertEquals(1, snapshot.lookup(0, 0x0a143700).size());
+        Assert.assertEquals(rt1, snapshot.lookup(0, 0x0b332211).get(0));
+        Assert.assertTrue(snapshot.lookup(0, 0x0c000000).isEmpty());
+
+        // Equal weights are all returned.
+        table.deleteRoute(rt3);
+        rt3.weight = 200;
+        table.addRoute(rt3);
+        table.deleteRoute(rt4);
+        table.deleteRoute(rt5);
+        Set<Route> matches = lookup(table.snapshot(), 0, 0x0a140096);
+        Assert.assertEquals(2, matches.size());
+        Assert.assertTrue(matches.contains(rt2));
+        Assert.assertTrue(matches.contains(rt3));
+        // The /18 keeps the chunk of its /16.
+        Assert.assertEquals(1, table.snapshot().chunks());
+    }
+
+    @Test
+    public void testSourceConstrainedRoutes() {
+        Route rt1 = route(0, 0, 0x0a140096, 25, 300);
+        Route rt2 = route(0x80c00304, 10, 0x0a14009f, 28, 300);
+        Route rt3 = route(0x80c00304, 10, 0x0a14009f, 25, 300);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        table.addRoute(rt1);
+        table.addRoute(rt2);
+        MultibitRoutingTable.Snapshot snapshot = table.snapshot();
+
+        Assert.assertEquals(rt2, snapshot.lookup(0x80c01234, 0x0a140090).get(0));
+        // The source doesn't match: fall back to the shorter prefix.
+        Assert.assertEquals(rt1, snapshot.lookup(0x80a01122, 0x0a140090).get(0));
+
+        table.addRoute(rt3);
+        Set<Route> matches = lookup(table.snapshot(), 0x80c01234, 0x0a140080);
+        Assert.assertEquals(2, matches.size());
+        Assert.assertTrue(matches.contains(rt1));
+        Assert.assertTrue(matches.contains(rt3));
+    }
+
+    @Test
+    public void testSnapshotsAreImmutable() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a010200, 24, 100);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        table.addRoute(rt1);
+        MultibitRoutingTable.Snapshot first = table.snapshot();
+        table.addRoute(rt2);
+        MultibitRoutingTable.Snapshot second = table.snapshot();
+        table.deleteRoute(rt1);
+
+        Assert.assertEquals(rt1, first.lookup(0, 0x0a010203).get(0));
+        Assert.assertEquals(rt2, second.lookup(0, 0x0a010203).get(0));
+        Assert.assertEquals(rt1, second.lookup(0, 0x0a020304).get(0));
+        Assert.assertTrue(table.snapshot().lookup(0, 0x0a020304).isEmpty());
+        Assert.assertEquals(0, first.chunks());
+        Assert.assertEquals(1, second.chunks());
+    }
+
+    @Test
+    public void testMatchesRoutingTable() {
+        Random rand = new Random(42);
+        MultibitRoutingTable table = new MultibitRoutingTable();
+        List<Route> routes = new ArrayList<>();
+        // Prefixes are drawn from a small address space so that they nest.
+        // Like the routes the cluster stores, they have no host bits set.
+        for (int i = 0; i < 5000; i++) {
+            int dst = (rand.nextInt(16) << 28) | (rand.nextInt(4) << 16)
+                      | rand.nextInt(1 << 12);
+            int dstLen = rand.nextInt(33);
+            int srcLen = (rand.nextInt(20) == 0) ? 1 + rand.nextInt(8) : 0;
+            int src = rand.nextInt() & MultibitRoutingTable.mask(srcLen);
+            Route rt = route(src, srcLen,
+                             dst & MultibitRoutingTable.mask(dstLen), dstLen,
+                             rand.nextInt(3));
+            routes.add(rt);
+            table.addRoute(rt);
+        }
+        for (int i = 0; i < 2500; i++) {
+            table.deleteRoute(routes.remove(rand.nextInt(routes.size())));
+            if (i % 500 == 0)
+                table.snapshot();
+        }
+
+        // The reference table only sees the routes that remain.
+        RoutingTable expected = new RoutingTable();
+        for (Route rt : routes)
+            expected.addRoute(rt);
+        MultibitRoutingTable.Snapshot snapshot = table.snapshot();
+        Assert.assertEquals(routes.size(), snapshot.size());
+        for (int i = 0; i < 20000; i++) {
+            int src = rand.nextInt();
+            int dst = (rand.nextInt(16) << 28) | (rand.nextInt(4) << 16)
+                      | rand.nextInt(1 << 12);
+            Assert.assertEquals(lookup(expected, src, dst),
+                                lookup(snapshot, src, dst));
+        }
+    }
+}
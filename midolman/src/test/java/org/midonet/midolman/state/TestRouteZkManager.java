@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Provides;
+import com.google.inject.Singleton;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.Watcher;
+import org.junit.Before;
+import org.junit.Test;
+import org.midonet.midolman.Setup;
+import org.midonet.midolman.guice.serialization.SerializationModule;
+import org.midonet.midolman.layer3.Route;
+import org.midonet.midolman.serialization.Serializer;
+import org.midonet.midolman.state.zkManagers.PortZkManager;
+import org.midonet.midolman.state.zkManagers.RouteZkManager;
+import org.midonet.midolman.state.zkManagers.RouterZkManager;
+import org.midonet.midolman.version.guice.VersionModule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+
+public class TestRouteZkManager {
+    private CountingDirectory directory;
+    private PathBuilder paths;
+    private RouteZkManager routeMgr;
+    private UUID routerId;
+    private UUID portId;
+
+    /**
+     * A MockDirectory that counts the reads made outside of multi-ops.
+     */
+    public static class CountingDirectory extends MockDirectory {
+        int reads = 0;
+
+        @Override
+        public byte[] get(String path, Runnable watcher)
+                throws NoNodeException {
+            reads++;
+            return super.get(path, watcher);
+        }
+
+        @Override
+        public Map.Entry<byte[], Integer> getWithVersion(String path,
+                Runnable watcher) throws NoNodeException {
+            reads++;
+            return super.getWithVersion(path, watcher);
+        }
+
+        @Override
+        public Set<String> getChildren(String path, Runnable watcher)
+                throws NoNodeException {
+            reads++;
+            return super.getChildren(path, watcher);
+        }
+
+        @Override
+        public boolean exists(String path, Watcher watcher) {
+            reads++;
+            return super.exists(path, watcher);
+        }
+
+        @Override
+        public boolean has(String path) {
+            reads++;
+            return super.has(path);
+        }
+    }
+
+    public class TestModule extends AbstractModule {
+
+        private final String basePath;
+
+        public TestModule(String basePath) {
+            this.basePath = basePath;
+        }
+
+        @Override
+        protected void configure() {
+            bind(PathBuilder.class).toInstance(new PathBuilder(basePath));
+        }
+
+        @Provides @Singleton
+        public CountingDirectory provideDirectory(PathBuilder paths) {
+            CountingDirectory directory = new CountingDirectory();
+            try {
+                directory.add(paths.getBasePath(), null, CreateMode.PERSISTENT);
+                Setup.ensureZkDirectoryStructureExists(directory,
+                        paths.getBasePath());
+            } catch (Exception ex) {
+                throw new RuntimeException("Could not initialize zk", ex);
+            }
+            return directory;
+        }
+
+        @Provides @Singleton
+        public ZkManager provideZkManager(CountingDirectory directory) {
+            return new ZkManager(directory, basePath);
+        }
+
+        @Provides @Singleton
+        public PortZkManager providePortZkManager(ZkManager zkManager,
+                                                  PathBuilder paths,
+                                                  Serializer serializer) {
+            return new PortZkManager(zkManager, paths, serializer);
+        }
+
+        @Provides @Singleton
+        public RouterZkManager provideRouterZkManager(ZkManager zkManager,
+                                                      PathBuilder paths,
+                                                      Serializer serializer) {
+            return new RouterZkManager(zkManager, paths, serializer);
+        }
+
+        @Provides @Singleton
+        public RouteZkManager provideRouteZkManager(ZkManager zkManager,
+                                                    PathBuilder paths,
+                                                    Serializer serializer) {
+            return new RouteZkManager(zkManager, paths, serializer);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Injector injector = Guice.createInjector(
+                new TestModule("/midolman"),
+                new VersionModule(),
+                new SerializationModule()
+        );
+        directory = injector.getInstance(CountingDirectory.class);
+        paths = injector.getInstance(PathBuilder.class);
+        routeMgr = injector.getInstance(RouteZkManager.class);
+        routerId = injector.getInstance(RouterZkManager.class).create();
+        portId = injector.getInstance(PortZkManager.class).create(
+            new PortDirectory.RouterPortConfig(routerId, 0x0a000000, 24,
+                                               0x0a000001, true));
+    }
+
+    private List<Route> portRoutes(int count) {
+        List<Route> routes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            routes.add(new Route(0, 0, 0xc0000000 + (i << 8), 24,
+                                 Route.NextHop.PORT, portId, 0, 100, null,
+                                 routerId));
+        }
+        return routes;
+    }
+
+    @Test
+    public void testBatchReadsThePortOnce() throws Exception {
+        directory.reads = 0;
+        List<UUID> ids = routeMgr.create(portRoutes(100), false);
+
+        assertThat("The batch read only the config of the next hop port.",
+                   directory.reads, equalTo(1));
+        assertThat("All the routes were created.", ids, hasSize(100));
+        for (UUID id : ids) {
+            assertThat(directory.has(paths.getRoutePath(id)), equalTo(true));
+            assertThat(directory.has(paths.getPortRoutePath(portId, id)),
+                       equalTo(true));
+        }
+    }
+
+    @Test
+    public void testBatchCreatesEphemeralRoutes() throws Exception {
+        List<UUID> ids = routeMgr.create(portRoutes(3), false);
+        assertThat(routeMgr.listPortRoutes(portId, null), hasSize(3));
+        for (UUID id : ids) {
+            assertThat(routeMgr.get(id).nextHopPort, equalTo(portId));
+        }
+    }
+}
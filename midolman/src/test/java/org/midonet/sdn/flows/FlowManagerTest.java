@@ -18,6 +18,7 @@ package org.midonet.sdn.flows;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -70,6 +71,11 @@ public class FlowManagerTest {
             return table;
         }
 
+        @Override
+        public Map<WildcardMatch, ManagedWildcardFlow> removeTable(Set<WildcardMatch.Field> pattern) {
+            return tables.remove(pattern);
+        }
+
         @Override
         public Map<Set<WildcardMatch.Field>, Map<WildcardMatch, ManagedWildcardFlow>> tables() {
             return tables;
@@ -363,6 +369,56 @@ public class FlowManagerTest {
                    !wflow.dpFlows().contains(flowMatch));
     }
 
+    @Test
+    public void testIdleExpirationByDump() throws InterruptedException {
+        flowManager.setIdleExpirationByDump(true);
+
+        FlowMatch flowMatch1 =
+            new FlowMatch().addKey(FlowKeys.tunnel(10L, 100, 200));
+        FlowMatch flowMatch2 =
+            new FlowMatch().addKey(FlowKeys.tunnel(20L, 100, 200));
+        ManagedWildcardFlow wflow1 = ManagedWildcardFlow.create(
+            WildcardFlowFactory.createIdleExpiration(
+                WildcardMatch.fromFlowMatch(flowMatch1), timeOut));
+        ManagedWildcardFlow wflow2 = ManagedWildcardFlow.create(
+            WildcardFlowFactory.createIdleExpiration(
+                WildcardMatch.fromFlowMatch(flowMatch2), timeOut));
+
+        flowManager.add(wflow1);
+        flowManager.add(new Flow(flowMatch1), wflow1);
+        flowManagerHelper.addFlow(new Flow(flowMatch1));
+        flowManager.add(wflow2);
+        flowManager.add(new Flow(flowMatch2), wflow2);
+        flowManagerHelper.addFlow(new Flow(flowMatch2));
+
+        Thread.sleep(timeOut);
+
+        // only the first flow was used in the meantime
+        flowManagerHelper.setLastUsedTimeToNow(flowMatch1);
+        flowManager.checkFlowsExpiration();
+
+        assertThat("A single dump should serve both wildcard flows",
+                   flowManagerHelper.dumps, equalTo(1));
+        assertThat("The stats of both datapath flows should be refreshed",
+                   flowManagerHelper.statsUpdates, equalTo(2));
+        assertThat("The used wildcard flow should be kept",
+                   flowManager.getWildcardFlow(wflow1.getMatch()),
+                   equalTo(wflow1));
+        assertThat("The idle wildcard flow should be expired",
+                   flowManager.getWildcardFlow(wflow2.getMatch()),
+                   nullValue());
+        assertThat("The idle datapath flow should be deleted",
+                   flowManagerHelper.flowsMap.get(flowMatch2), nullValue());
+
+        Thread.sleep(timeOut);
+        flowManager.checkFlowsExpiration();
+
+        assertThat("Both wildcard flows should be expired",
+                   flowManager.getWildcardTables().size(), equalTo(0));
+        assertThat("Both datapath flows should be deleted",
+                   flowManagerHelper.flowsMap.size(), equalTo(0));
+    }
+
     @Test
     public void testFreeSpaceDpTable(){
         int maxAcceptedDpFlows = (int) (maxDpFlowSize - dpFlowRemoveBatchSize);
@@ -481,6 +537,8 @@ public class FlowManagerTest {
 
         public Map<FlowMatch, Flow> flowsMap = new HashMap<>();
         public Queue<Flow> toRemove;
+        public int dumps = 0;
+        public int statsUpdates = 0;
 
         public void addFlow(Flow flow) {
             flow.setLastUsedTime(System.currentTimeMillis());
@@ -518,6 +576,17 @@ public class FlowManagerTest {
             new Thread(new MockFlowUpdatedMessageRunnable(flowMatch, flowCb)).start();
         }
 
+        @Override
+        public void getFlows(Callback1<Set<Flow>> flowsCb) {
+            dumps++;
+            flowsCb.call(new HashSet<>(flowsMap.values()));
+        }
+
+        @Override
+        public void flowStatsUpdated(FlowMatch flowMatch, Flow flow) {
+            statsUpdates++;
+        }
+
         class MockFlowUpdatedMessageRunnable implements Runnable {
             Callback1<Flow> flowCb;
             FlowMatch flowMatch;
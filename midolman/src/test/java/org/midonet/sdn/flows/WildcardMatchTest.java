@@ -30,6 +30,7 @@ import org.midonet.packets.ARP;
 import org.midonet.packets.IPAddr;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv6Addr;
 import org.midonet.packets.MAC;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.contains;
@@ -333,4 +334,51 @@ public class WildcardMatchTest {
         assertEquals(m.highestLayerSeen(), 4);
     }
 
+    @Test
+    public void testProjectionWithoutProjecting() {
+        WildcardMatch wildcard =
+            WildcardMatch.fromFlowMatch(
+                tcpFlow("ae:b3:77:8c:a1:48", "33:33:00:00:00:16",
+                        "192.168.100.1", "192.168.100.2",
+                        8096, 1025, 0));
+
+        Set<WildcardMatch.Field> fields = EnumSet.of(
+            WildcardMatch.Field.EthSrc,
+            WildcardMatch.Field.NetworkDst,
+            WildcardMatch.Field.DstPort);
+        int mask = WildcardMatch.maskOf(fields);
+        WildcardMatch projection = wildcard.project(fields);
+
+        assertEquals(projection.getUsedFieldsMask(), mask);
+        assertEquals(wildcard.projectionHashCode(mask), projection.hashCode());
+        Assert.assertTrue(wildcard.projectionEquals(mask, projection));
+        Assert.assertTrue(wildcard.projectionEquals(mask, wildcard));
+
+        WildcardMatch other = projection.clone();
+        other.setDstPort(1026);
+        Assert.assertFalse(wildcard.projectionEquals(mask, other));
+        other.unsetDstPort();
+        Assert.assertFalse(wildcard.projectionEquals(mask, other));
+    }
+
+    @Test
+    public void testPackedFields() {
+        WildcardMatch v4 = new WildcardMatch()
+            .setNetworkSrc(IPv4Addr.fromString("10.0.0.1"));
+        WildcardMatch v6 = new WildcardMatch()
+            .setNetworkSrc(IPv6Addr.fromString("::a00:1"));
+        assertThat(v4, not(equalTo(v6)));
+        assertEquals(v4.getNetworkSrcIP(), IPv4Addr.fromString("10.0.0.1"));
+        assertEquals(v6.getNetworkSrcIP(), IPv6Addr.fromString("::a00:1"));
+
+        WildcardMatch vlans = new WildcardMatch();
+        vlans.addVlanId((short) 10).addVlanId((short) 20)
+             .addVlanId((short) 30);
+        vlans.removeVlanId((short) 20);
+        assertThat(vlans.getVlanIds(), contains((short) 10, (short) 30));
+        assertThat(vlans.clone(), equalTo(vlans));
+        vlans.removeVlanId((short) 10).removeVlanId((short) 30);
+        assertThat(vlans.getUsedFields(), hasSize(0));
+    }
+
 }
@@ -125,6 +125,34 @@ public class FlowStateTableTest {
         }
     }
 
+    @Test
+    public void testRefFallsBackToOtherShards() {
+        shards.get(0).putAndRef(keys[0], vals[0]);
+
+        assertThat(shards.get(1).ref(keys[0]), equalTo(vals[0]));
+        assertThat(shards.get(0).getRefCount(keys[0]), equalTo(2));
+        assertThat(shards.get(1).getRefCount(keys[0]), equalTo(0));
+        assertThat(shards.get(1).ref(keys[1]), nullValue());
+
+        global.unref(keys[0]);
+        global.unref(keys[0]);
+        assertThat(global.getRefCount(keys[0]), equalTo(0));
+    }
+
+    @Test
+    public void testUnrefFallsBackToOtherShards() {
+        shards.get(0).putAndRef(keys[0], vals[0]);
+        shards.get(1).ref(keys[0]);
+
+        shards.get(1).unref(keys[0]);
+        shards.get(1).unref(keys[0]);
+        assertThat(shards.get(0).getRefCount(keys[0]), equalTo(0));
+
+        clock.time_$eq(IDLE_EXPIRATION.toNanos() * 2);
+        global.expireIdleEntries();
+        assertThat(global.get(keys[0]), nullValue());
+    }
+
     @Test
     public void testTransactionSetGet() {
         FlowStateTable<TestKey, Integer> shard = shards.get(0);
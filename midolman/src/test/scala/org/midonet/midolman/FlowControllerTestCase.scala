@@ -217,7 +217,7 @@ class FlowControllerTestCase extends MidolmanSpec {
             val tag = TestableFlow.getTag(4)
 
             Then("The tag should not appear in the tag to flows map.")
-            flowController.tagToFlows.get(tag) should be (None)
+            flowController.tagToFlows.flowsFor(tag).isEmpty should be (true)
 
             When("The flow is invalidated by a tag.")
             FlowController ! FlowController.InvalidateFlowsByTag(tag)
@@ -343,10 +343,9 @@ class FlowControllerTestCase extends MidolmanSpec {
 
             And("The flow controller should contain the flow tag mapping tags.")
             for (tag <- flow.tagsSet) {
-                flowController.tagToFlows.get(tag) match {
-                    case None =>
-                    case Some(set) => set should contain (mwcFlow)
-                }
+                val flows = flowController.tagToFlows.flowsFor(tag)
+                if (!flows.isEmpty)
+                    flows.contains(mwcFlow) should be (true)
             }
 
             And("The flow removal callback method should not have been called.")
@@ -402,8 +401,8 @@ class FlowControllerTestCase extends MidolmanSpec {
 
         And("The flow controller contains the correct tag mappings.")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) should not be (None)
-            flowController.tagToFlows.get(tag).get should contain (mwcFlow)
+            flowController.tagToFlows.flowsFor(tag)
+                .contains(mwcFlow) should be (true)
         }
 
         return mwcFlow
@@ -431,10 +430,8 @@ class FlowControllerTestCase extends MidolmanSpec {
 
         And("The flow controller should not contain the flow tag mapping tags.")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) match {
-                case None =>
-                case Some(set) => set should not contain (mwcFlow)
-            }
+            flowController.tagToFlows.flowsFor(tag)
+                .contains(mwcFlow) should be (false)
         }
 
         And("The flow removal callback method was called.")
@@ -464,8 +461,8 @@ class FlowControllerTestCase extends MidolmanSpec {
 
         And("The flow controller contains the correct tag mappings.")
         for (tag <- flow.tagsSet) {
-            flowController.tagToFlows.get(tag) should not be (None)
-            flowController.tagToFlows.get(tag).get should contain (mwcFlow)
+            flowController.tagToFlows.flowsFor(tag)
+                .contains(mwcFlow) should be (true)
         }
 
         And("The flow removal callback method was not called.")
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import scala.collection.mutable.ListBuffer
+import scala.concurrent.duration._
+
+import akka.actor.ActorSystem
+import akka.testkit.{TestKit, TestProbe}
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.PacketQueue._
+import org.midonet.odp.Packet
+import org.midonet.packets.MAC
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.util.concurrent.WakerUpper
+
+@RunWith(classOf[JUnitRunner])
+class PacketQueueTest extends TestKit(ActorSystem("PacketQueueTest"))
+                      with FeatureSpecLike
+                      with Matchers {
+
+    val worker = TestProbe()
+
+    def packet(): Packet =
+        Packet.fromEthernet({ eth addr MAC.random -> MAC.random }.packet)
+
+    feature("Packets are handed to a worker") {
+        scenario("The worker is signalled once per drain") {
+            val queue = new PacketQueue(4, worker.ref, BusySpinWaitStrategy)
+            val packets = List.fill(3)(packet())
+
+            queue.signal()
+            worker.expectNoMsg(10 millis)
+
+            packets foreach queue.offer
+            queue.signal()
+            queue.signal()
+            worker.expectMsg(CheckPackets(queue))
+            worker.expectNoMsg(10 millis)
+
+            val drained = ListBuffer[Packet]()
+            queue.drain(queue.capacity, drained += _) should be (3)
+            drained should be (packets)
+            worker.expectNoMsg(10 millis)
+
+            queue.offer(packet())
+            queue.signal()
+            worker.expectMsg(CheckPackets(queue))
+        }
+
+        scenario("A partial drain reschedules the worker") {
+            val queue = new PacketQueue(4, worker.ref, BusySpinWaitStrategy)
+            (1 to 3) foreach { _ => queue.offer(packet()) }
+            queue.signal()
+            worker.expectMsg(CheckPackets(queue))
+
+            queue.drain(2, _ => {}) should be (2)
+            worker.expectMsg(CheckPackets(queue))
+            queue.size should be (1)
+        }
+
+        scenario("The producer waits for room in a full queue") {
+            val queue = new PacketQueue(2, worker.ref, ParkingWaitStrategy)
+            queue.offer(packet())
+            queue.offer(packet())
+
+            val producer = new Thread {
+                override def run(): Unit = queue.offer(packet())
+            }
+            producer.start()
+
+            // The worker is woken up before the producer waits.
+            worker.expectMsg(CheckPackets(queue))
+            producer.isAlive should be (true)
+
+            queue.drain(queue.capacity, _ => {}) should be (2)
+            producer.join(1000)
+            producer.isAlive should be (false)
+            queue.size should be (1)
+        }
+    }
+
+    feature("Wait strategies are configurable") {
+        scenario("by name") {
+            waitStrategy("busy_spin") should be (BusySpinWaitStrategy)
+            waitStrategy("yielding") should be (YieldingWaitStrategy)
+            waitStrategy("parking") should be (ParkingWaitStrategy)
+            intercept[IllegalArgumentException] {
+                waitStrategy("sleeping")
+            }
+        }
+
+        scenario("parking falls back to yielding for too many threads") {
+            waitStrategy("parking", 1) should be (ParkingWaitStrategy)
+            waitStrategy("parking", WakerUpper.MAX_THREADS) should be (
+                ParkingWaitStrategy)
+            waitStrategy("parking", Int.MaxValue) should be (
+                YieldingWaitStrategy)
+            waitStrategy("busy_spin", Int.MaxValue) should be (
+                BusySpinWaitStrategy)
+            intercept[IllegalArgumentException] {
+                waitStrategy("sleeping", 1)
+            }
+        }
+    }
+}
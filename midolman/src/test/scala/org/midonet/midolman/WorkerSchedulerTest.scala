@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import scala.concurrent.duration._
+
+import akka.actor.ActorSystem
+import akka.testkit.{TestKit, TestProbe}
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.PacketQueue.BusySpinWaitStrategy
+import org.midonet.midolman.WorkerScheduler._
+import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+@RunWith(classOf[JUnitRunner])
+class WorkerSchedulerTest extends TestKit(ActorSystem("WorkerSchedulerTest"))
+                          with FeatureSpecLike
+                          with Matchers {
+
+    def packet(): Packet = {
+        val frame = ({ eth addr MAC.random -> MAC.random } <<
+                     { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+                     { udp ports 5003 ---> 53 }).packet
+        new Packet(frame, FlowMatches.fromEthernetPacket(frame))
+    }
+
+    def newScheduler() = {
+        val probes = IndexedSeq.fill(2)(TestProbe())
+        (probes, new WorkerScheduler(probes map (_.ref)))
+    }
+
+    feature("Packets are routed by connection") {
+        scenario("Buckets are spread across the workers") {
+            val (_, scheduler) = newScheduler()
+            (0 until NUM_BUCKETS) foreach { b =>
+                scheduler.ownerOf(b) should be (b % 2)
+                scheduler.sourceOf(b) should be (NO_WORKER)
+            }
+        }
+
+        scenario("Packets of a connection go to the owner of its bucket") {
+            val (_, scheduler) = newScheduler()
+            val p = packet()
+            val bucket = scheduler.bucketOf(p.getMatch.connectionHash)
+            scheduler.route(p) should be (scheduler.ownerOf(bucket))
+            scheduler.route(p) should be (scheduler.ownerOf(bucket))
+        }
+    }
+
+    feature("Buckets are moved between workers") {
+        scenario("The previous owner releases a moved bucket") {
+            val (probes, scheduler) = newScheduler()
+
+            scheduler.move(0, 1) should be (true)
+            scheduler.ownerOf(0) should be (1)
+            scheduler.sourceOf(0) should be (0)
+            probes(0).expectMsg(ReleaseBucket(0))
+
+            scheduler.move(0, 0) should be (false)
+
+            scheduler.released(0)
+            scheduler.sourceOf(0) should be (NO_WORKER)
+            probes(1).expectMsg(BucketReleased(0))
+        }
+
+        scenario("A bucket isn't moved to its owner") {
+            val (probes, scheduler) = newScheduler()
+            scheduler.move(0, 0) should be (false)
+            probes(0).expectNoMsg(10 millis)
+        }
+
+        scenario("The busiest bucket that fits is moved to the idlest worker") {
+            val (probes, scheduler) = newScheduler()
+            val queue = new PacketQueue(128, probes(0).ref, BusySpinWaitStrategy)
+            scheduler.register(0, queue)
+
+            // An elephant and a few mice, all owned by worker 0. The
+            // elephant is worth more than half of the load difference.
+            val packets = Iterator.continually(packet()) filter { p =>
+                scheduler.route(p) == 0
+            }
+            val elephant = packets.next()
+            val mice = packets.take(3).toList
+            (1 to 100) foreach { _ => scheduler.route(elephant) }
+            for (mouse <- mice; i <- 1 to 10) {
+                scheduler.route(mouse)
+            }
+            (1 to 64) foreach { _ => queue.offer(elephant) }
+
+            scheduler.rebalance(128) should be (-1)
+
+            (1 to 100) foreach { _ => scheduler.route(elephant) }
+            for (mouse <- mice; i <- 1 to 10) {
+                scheduler.route(mouse)
+            }
+            val moved = scheduler.rebalance(64)
+            moved should not be (-1)
+            moved should not be (scheduler.bucketOf(
+                                     elephant.getMatch.connectionHash))
+            scheduler.ownerOf(moved) should be (1)
+            scheduler.load(0) should be > scheduler.load(1)
+            probes(0).expectMsg(ReleaseBucket(moved))
+
+            // Only one bucket is moved at a time.
+            scheduler.rebalance(64) should be (-1)
+            scheduler.released(moved)
+            probes(1).expectMsg(BucketReleased(moved))
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.sdn.flows.{ManagedWildcardFlow, WildcardFlow, WildcardMatch}
+
+@RunWith(classOf[JUnitRunner])
+class WildcardFlowClassifierTest extends FeatureSpec with Matchers {
+
+    val srcMac = MAC.random()
+    val dstMac = MAC.random()
+    val srcIp = IPv4Addr.random
+    val dstIp = IPv4Addr.random
+
+    def packetMatch = new WildcardMatch()
+        .setInputPortNumber(1)
+        .setEthSrc(srcMac)
+        .setEthDst(dstMac)
+        .setEtherType(0x0800.toShort)
+        .setNetworkSrc(srcIp)
+        .setNetworkDst(dstIp)
+        .setNetworkProto(6)
+        .setSrcPort(1234)
+        .setDstPort(80)
+
+    def l2Match = new WildcardMatch()
+        .setInputPortNumber(1)
+        .setEthSrc(srcMac)
+        .setEthDst(dstMac)
+
+    def l4Match = new WildcardMatch()
+        .setInputPortNumber(1)
+        .setEtherType(0x0800.toShort)
+        .setNetworkDst(dstIp)
+        .setNetworkProto(6)
+        .setDstPort(80)
+
+    def flow(wcMatch: WildcardMatch, priority: Short) =
+        ManagedWildcardFlow.create(WildcardFlow(wcMatch, priority = priority))
+
+    def add(classifier: WildcardFlowClassifier, wflow: ManagedWildcardFlow) {
+        val pattern = java.util.EnumSet.copyOf(wflow.getMatch.getUsedFields)
+        classifier.addTable(pattern).put(wflow.wcmatch, wflow)
+    }
+
+    feature("Wildcard flow classifier") {
+        scenario("returns the matching flow with the best priority") {
+            val classifier = new WildcardFlowClassifier()
+            val l2Flow = flow(l2Match, 10)
+            val l4Flow = flow(l4Match, 5)
+            add(classifier, l2Flow)
+            add(classifier, l4Flow)
+
+            classifier.lookup(packetMatch) should be (l4Flow)
+            classifier.getNumTables should be (2)
+        }
+
+        scenario("stops probing once no table can beat the current best") {
+            val classifier = new WildcardFlowClassifier()
+            add(classifier, flow(l2Match, 1))
+            add(classifier, flow(l4Match, 7))
+
+            classifier.lookup(packetMatch) should not be null
+            classifier.getLookups should be (1)
+            classifier.getTablesProbed should be (1)
+        }
+
+        scenario("reorders tables when priorities change") {
+            val classifier = new WildcardFlowClassifier()
+            val l2Flow = flow(l2Match, 1)
+            val l4Flow = flow(l4Match, 7)
+            add(classifier, l2Flow)
+            add(classifier, l4Flow)
+
+            classifier.tables.get(l2Flow.getMatch.getUsedFields)
+                      .remove(l2Flow.wcmatch)
+            add(classifier, flow(l2Match, 9))
+
+            classifier.lookup(packetMatch) should be (l4Flow)
+            classifier.getTablesProbed should be (1)
+        }
+
+        scenario("misses tables whose lower layer stages don't match") {
+            val classifier = new WildcardFlowClassifier()
+            add(classifier, flow(l4Match, 0))
+
+            val otherPort = packetMatch.setInputPortNumber(2)
+            classifier.lookup(otherPort) should be (null)
+            classifier.getTableMisses should be (1)
+
+            val otherDst = packetMatch.setDstPort(8080)
+            classifier.lookup(otherDst) should be (null)
+            classifier.getTableMisses should be (2)
+        }
+
+        scenario("finds flows after the stage indices grow") {
+            val classifier = new WildcardFlowClassifier()
+            for (port <- 1 to 1000) {
+                add(classifier, flow(l4Match.setDstPort(port), 0))
+            }
+            for (port <- 1 to 1000) {
+                val wflow = classifier.lookup(packetMatch.setDstPort(port))
+                wflow should not be null
+                wflow.getMatch.getDstPort should be (port)
+            }
+            classifier.lookup(packetMatch.setDstPort(1001)) should be (null)
+        }
+
+        scenario("drops removed tables") {
+            val classifier = new WildcardFlowClassifier()
+            val l2Flow = flow(l2Match, 0)
+            add(classifier, l2Flow)
+            classifier.removeTable(l2Flow.getMatch.getUsedFields)
+
+            classifier.getNumTables should be (0)
+            classifier.lookup(packetMatch) should be (null)
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.io
+
+import scala.concurrent.Await
+import scala.concurrent.duration._
+
+import akka.actor.ActorSystem
+import akka.testkit.{TestKit, TestProbe}
+import com.codahale.metrics.MetricRegistry
+import org.apache.commons.configuration.HierarchicalConfiguration
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpecLike, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.config.ConfigProvider
+import org.midonet.midolman.PacketsEntryPoint.Workers
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.odp.{Datapath, DpPort}
+import org.midonet.odp.ports.InternalPort
+import org.midonet.util.{Bucket, TokenBucketTestRate}
+
+@RunWith(classOf[JUnitRunner])
+class UpcallDatapathConnectionManagerTest
+        extends TestKit(ActorSystem("UpcallDatapathConnectionManagerTest"))
+        with FeatureSpecLike
+        with Matchers {
+
+    implicit val ec = system.dispatcher
+
+    val config = ConfigProvider.providerForIniConfig(
+        new HierarchicalConfiguration).getConfig(classOf[MidolmanConfig])
+
+    class TestConnManager extends OneToOneDpConnManager(config,
+            new TokenBucketPolicy(config, new TokenBucketTestRate, 1,
+                                  _ => Bucket.BOTTOMLESS),
+            new MetricRegistry) {
+
+        override def makeConnection(name: String, bucket: Bucket) =
+            new MockManagedDatapathConnection()
+
+        /* Stands for createAndHookDpPort, without the datapath requests. */
+        def hook(datapath: Datapath, port: DpPort, workers: Workers): Unit = {
+            val conn = makeConnection(port.getName, Bucket.BOTTOMLESS)
+            setUpcallHandler(conn.getConnection, workers)
+            portToChannel.put((datapath, port.getPortNo.intValue), conn)
+        }
+    }
+
+    feature("The queues of a port go away with it") {
+        scenario("Deleting a port unregisters its queues") {
+            val workers = Workers(IndexedSeq.fill(2)(TestProbe().ref))
+            val datapath = new Datapath(1, "midonet")
+            val port1 = DpPort.fakeFrom(new InternalPort("port1"), 1)
+            val port2 = DpPort.fakeFrom(new InternalPort("port2"), 2)
+            val manager = new TestConnManager()
+
+            manager.hook(datapath, port1, workers)
+            manager.hook(datapath, port2, workers)
+            for (w <- 0 until 2)
+                workers.scheduler.queuesOf(w).size shouldBe 2
+
+            Await.result(manager.deleteDpPort(datapath, port1), 3 seconds)
+            for (w <- 0 until 2)
+                workers.scheduler.queuesOf(w).size shouldBe 1
+
+            Await.result(manager.deleteDpPort(datapath, port2), 3 seconds)
+            for (w <- 0 until 2)
+                workers.scheduler.queuesOf(w).size shouldBe 0
+        }
+    }
+}
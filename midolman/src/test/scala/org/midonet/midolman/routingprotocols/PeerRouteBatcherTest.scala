@@ -0,0 +1,351 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.routingprotocols
+
+import java.io.{ByteArrayOutputStream, DataOutputStream}
+import java.nio.ByteBuffer
+import java.nio.channels.ByteChannel
+import java.util.{List => JList, UUID}
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+import akka.actor.{ActorSystem, Props}
+import akka.testkit.{TestActorRef, TestKit}
+import org.apache.zookeeper.KeeperException.{NoNodeException, NodeExistsException}
+import org.junit.runner.RunWith
+import org.mockito.Matchers.{any, anyListOf}
+import org.mockito.Mockito.{doAnswer, when}
+import org.mockito.invocation.InvocationOnMock
+import org.mockito.stubbing.Answer
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.mock.MockitoSugar
+
+import org.midonet.cluster.DataClient
+import org.midonet.cluster.data.Route
+import org.midonet.midolman.state.{NoStatePathException, StateAccessException, StatePathExistsException}
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+import org.midonet.quagga.ZebraProtocol._
+import org.midonet.quagga.{ConnectionClosed, ProcessMessage, ZebraConnection, ZebraProtocolHandler}
+
+@RunWith(classOf[JUnitRunner])
+class PeerRouteBatcherTest extends TestKit(ActorSystem("PeerRouteBatcherTest"))
+                           with FeatureSpecLike
+                           with Matchers
+                           with BeforeAndAfter
+                           with MockitoSugar {
+
+    val routerId = UUID.randomUUID()
+    val portId = UUID.randomUUID()
+    val gateway = IPv4Addr.fromString("192.168.0.1")
+
+    // The routes in the cluster, and the writes made to it
+    var cluster: mutable.Map[UUID, Route] = _
+    var batchSizes: mutable.Buffer[Int] = _
+    var deletes = 0
+    var failNextWrite = false
+    // Routes whose writes fail for good, as if their node existed already
+    var unwritable: mutable.Set[Route] = _
+    var dataClient: DataClient = _
+
+    before {
+        cluster = mutable.HashMap[UUID, Route]()
+        batchSizes = mutable.ArrayBuffer[Int]()
+        deletes = 0
+        failNextWrite = false
+        unwritable = mutable.HashSet[Route]()
+        dataClient = mock[DataClient]
+
+        when(dataClient.routesCreateEphemeral(anyListOf(classOf[Route])))
+            .thenAnswer(new Answer[JList[UUID]] {
+                override def answer(inv: InvocationOnMock) = {
+                    if (failNextWrite) {
+                        failNextWrite = false
+                        throw new StateAccessException("write failed")
+                    }
+                    val routes = inv.getArguments()(0).asInstanceOf[JList[Route]]
+                    if (routes exists unwritable)
+                        throw existing()
+                    batchSizes += routes.size
+                    seqAsJavaList(routes.toList map { route =>
+                        val id = UUID.randomUUID()
+                        cluster.put(id, route)
+                        id
+                    })
+                }
+            })
+
+        when(dataClient.routesCreateEphemeral(any(classOf[Route])))
+            .thenAnswer(new Answer[UUID] {
+                override def answer(inv: InvocationOnMock) = {
+                    val route = inv.getArguments()(0).asInstanceOf[Route]
+                    if (unwritable contains route)
+                        throw existing()
+                    val id = UUID.randomUUID()
+                    cluster.put(id, route)
+                    id
+                }
+            })
+
+        doAnswer(new Answer[Unit] {
+            override def answer(inv: InvocationOnMock) = {
+                val ids = inv.getArguments()(0).asInstanceOf[JList[UUID]]
+                if (!ids.forall(cluster.contains))
+                    throw missing()
+                deletes += 1
+                ids foreach cluster.remove
+            }
+        }).when(dataClient).routesDelete(anyListOf(classOf[UUID]))
+
+        doAnswer(new Answer[Unit] {
+            override def answer(inv: InvocationOnMock) = {
+                val id = inv.getArguments()(0).asInstanceOf[UUID]
+                if (cluster.remove(id).isEmpty)
+                    throw missing()
+            }
+        }).when(dataClient).routesDelete(any(classOf[UUID]))
+    }
+
+    def missing() =
+        new NoStatePathException("gone", "/", new NoNodeException("/routes"))
+
+    def existing() =
+        new StatePathExistsException("stale", "/",
+                                     new NodeExistsException("/routes"))
+
+    def route(prefix: Int, prefixLen: Int = 24, gw: IPv4Addr = gateway) = {
+        val route = new Route()
+        route.setRouterId(routerId)
+        route.setDstNetworkAddr(IPv4Addr.fromInt(prefix).toString)
+        route.setDstNetworkLength(prefixLen)
+        route.setNextHopGateway(gw.toString)
+        route.setNextHop(org.midonet.midolman.layer3.Route.NextHop.PORT)
+        route.setNextHopPort(portId)
+        route
+    }
+
+    def prefix(i: Int) = (1 << 24) + (i << 8)
+
+    feature("Peer route changes are coalesced") {
+        scenario("A route removed before being written is never written") {
+            val batcher = new PeerRouteBatcher(dataClient)
+            batcher.add(route(prefix(1)))
+            batcher.remove(route(prefix(1)))
+            batcher.pending shouldBe 0
+
+            batcher.flush(_ => fail("no route should be added"))
+            batchSizes shouldBe empty
+            deletes shouldBe 0
+        }
+
+        scenario("A route added back before its removal is written stays") {
+            val batcher = new PeerRouteBatcher(dataClient)
+            batcher.add(route(prefix(1)))
+            batcher.flush(_ => {})
+            batcher.size shouldBe 1
+
+            batcher.remove(route(prefix(1)))
+            batcher.add(route(prefix(1)))
+            batcher.add(route(prefix(1)))
+            batcher.pending shouldBe 0
+            batcher.flush(_ => fail("no route should be added"))
+
+            batcher.size shouldBe 1
+            cluster should have size 1
+            deletes shouldBe 0
+        }
+
+        scenario("Routes are written in batches of bounded size") {
+            val batcher = new PeerRouteBatcher(dataClient, batchSize = 200)
+            for (i <- 0 until 450)
+                batcher.add(route(prefix(i)))
+            batcher.isFull shouldBe true
+
+            var added = 0
+            batcher.flush(_ => added += 1)
+
+            added shouldBe 450
+            batchSizes shouldBe Seq(200, 200, 50)
+            batcher.size shouldBe 450
+            batcher.pending shouldBe 0
+
+            for (i <- 0 until 300)
+                batcher.remove(route(prefix(i)))
+            batcher.flush(_ => {})
+            deletes shouldBe 2
+            cluster should have size 150
+        }
+    }
+
+    feature("Failed writes") {
+        scenario("Routes that failed to be written stay queued") {
+            val batcher = new PeerRouteBatcher(dataClient, batchSize = 10)
+            for (i <- 0 until 25)
+                batcher.add(route(prefix(i)))
+            batcher.flush(_ => {})
+            batcher.add(route(prefix(25)))
+
+            failNextWrite = true
+            intercept[StateAccessException] { batcher.flush(_ => {}) }
+            batcher.pending shouldBe 1
+
+            batcher.flush(_ => {})
+            batcher.pending shouldBe 0
+            batcher.size shouldBe 26
+            cluster should have size 26
+        }
+
+        scenario("Routes that can't be written are dropped") {
+            val batcher = new PeerRouteBatcher(dataClient, batchSize = 10)
+            for (i <- 0 until 25)
+                batcher.add(route(prefix(i)))
+            unwritable += route(prefix(3))
+            unwritable += route(prefix(17))
+
+            var added = 0
+            batcher.flush(_ => added += 1) shouldBe
+                Seq(route(prefix(3)), route(prefix(17)))
+            added shouldBe 23
+            batcher.pending shouldBe 0
+            batcher.size shouldBe 23
+            cluster should have size 23
+
+            batcher.flush(_ => fail("no route should be added")) shouldBe empty
+            batchSizes shouldBe Seq(5)
+        }
+
+        scenario("Routes are deleted one by one when some is gone already") {
+            val batcher = new PeerRouteBatcher(dataClient)
+            for (i <- 0 until 10)
+                batcher.add(route(prefix(i)))
+            batcher.flush(_ => {})
+            cluster.remove(cluster.keys.head)
+
+            for (i <- 0 until 10)
+                batcher.remove(route(prefix(i)))
+            batcher.flush(_ => {})
+
+            batcher.size shouldBe 0
+            cluster shouldBe empty
+        }
+
+        scenario("Clearing returns the routes to delete") {
+            val batcher = new PeerRouteBatcher(dataClient)
+            for (i <- 0 until 10)
+                batcher.add(route(prefix(i)))
+            batcher.flush(_ => {})
+            batcher.add(route(prefix(10)))
+
+            batcher.clear().toSet shouldBe cluster.keySet
+            batcher.size shouldBe 0
+            batcher.pending shouldBe 0
+        }
+    }
+
+    feature("A full upstream table") {
+        scenario("A zebra connection feeds hundreds of thousands of prefixes") {
+            val numRoutes = 300000
+            val numWithdrawn = 100000
+            val batcher = new PeerRouteBatcher(dataClient)
+
+            // Does what the RoutingHandler does, without the actor hop
+            val handler = new ZebraProtocolHandler {
+                def addRoute(ribType: RIBType.Value, destination: IPv4Subnet,
+                             gw: IPv4Addr) {
+                    batcher.add(route(destination.getAddress.toInt,
+                                      destination.getPrefixLen, gw))
+                    if (batcher.isFull)
+                        batcher.flush(_ => {})
+                }
+
+                def removeRoute(ribType: RIBType.Value, destination: IPv4Subnet,
+                                gw: IPv4Addr) {
+                    batcher.remove(route(destination.getAddress.toInt,
+                                         destination.getPrefixLen, gw))
+                    if (batcher.isFull)
+                        batcher.flush(_ => {})
+                }
+            }
+
+            val bytes = new ByteArrayOutputStream()
+            val out = new DataOutputStream(bytes)
+            for (i <- 0 until numRoutes)
+                routeMessage(out, ZebraIpv4RouteAdd, prefix(i))
+            for (i <- 0 until numWithdrawn)
+                routeMessage(out, ZebraIpv4RouteDelete, prefix(i))
+            out.flush()
+
+            val channel = new ZebraChannel(ByteBuffer.wrap(bytes.toByteArray))
+            val connection = TestActorRef(Props(new ZebraConnection(
+                testActor, handler, gateway, "mbgp0", 1, channel)))
+            connection ! ProcessMessage
+            expectMsg(ConnectionClosed(1))
+            batcher.flush(_ => {})
+
+            batcher.size shouldBe numRoutes - numWithdrawn
+            cluster should have size (numRoutes - numWithdrawn)
+            cluster.values.map(_.getDstNetworkAddr).toSet shouldBe
+                (numWithdrawn until numRoutes).map(
+                    i => IPv4Addr.fromInt(prefix(i)).toString).toSet
+            batchSizes.size shouldBe numRoutes / PeerRouteBatcher.MaxBatchSize
+            deletes shouldBe numWithdrawn / PeerRouteBatcher.MaxBatchSize
+
+            system.stop(connection)
+        }
+    }
+
+    /** Writes a zebra IPv4 route message with one IPv4 next hop. */
+    def routeMessage(out: DataOutputStream, message: Short, prefix: Int,
+                     prefixLen: Int = 24): Unit = {
+        val prefixBytes = (prefixLen + 7) / 8
+        sendHeader(out, message, 6 + prefixBytes + 6)
+        out.writeByte(ZebraRouteBgp)
+        out.writeByte(0)
+        out.writeByte(ZAPIMessageNextHop)
+        out.writeShort(1)
+        out.writeByte(prefixLen)
+        for (i <- 0 until prefixBytes)
+            out.writeByte(prefix >>> (24 - 8 * i))
+        out.writeByte(1)
+        out.writeByte(ZebraNextHopIpv4)
+        out.writeInt(gateway.toInt)
+    }
+
+    /** A channel reading from a buffer, standing for the zebra socket. */
+    class ZebraChannel(buf: ByteBuffer) extends ByteChannel {
+        override def read(dst: ByteBuffer): Int = {
+            if (!buf.hasRemaining)
+                return -1
+            val n = math.min(dst.remaining, buf.remaining)
+            val slice = buf.duplicate()
+            slice.limit(slice.position + n)
+            dst.put(slice)
+            buf.position(buf.position + n)
+            n
+        }
+
+        override def write(src: ByteBuffer): Int = {
+            val n = src.remaining
+            src.position(src.limit)
+            n
+        }
+
+        override def isOpen = true
+
+        override def close(): Unit = { }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+import scala.util.Random
+
+import akka.actor.ActorSystem
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfterAll, FeatureSpec, Matchers}
+
+import org.midonet.midolman.rules._
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+import org.midonet.sdn.flows.WildcardMatch
+import org.midonet.util.Range
+
+@RunWith(classOf[JUnitRunner])
+class CompiledChainTest extends FeatureSpec
+                        with Matchers
+                        with BeforeAndAfterAll {
+
+    private implicit val actorSystem = ActorSystem("CompiledChainTest")
+    private val ownerId = UUID.randomUUID
+    private val random = new Random(42)
+
+    private val actions = Array(Action.ACCEPT, Action.DROP, Action.REJECT,
+                                Action.RETURN, Action.CONTINUE)
+    private val protos = Array[Byte](1, 6, 17)
+
+    override def afterAll() {
+        actorSystem.shutdown()
+    }
+
+    // Addresses and ports are drawn from small pools so that a fair share
+    // of the random conditions match the random packets.
+    private def randomIp = IPv4Addr.fromInt(0x0a000000 | random.nextInt(4) << 8
+                                            | random.nextInt(4))
+
+    private def randomPort = 1000 + random.nextInt(16)
+
+    private def randomCondition: Condition = {
+        val cond = new Condition()
+        if (random.nextInt(3) == 0) {
+            cond.nwProto = protos(random.nextInt(protos.length))
+            cond.nwProtoInv = random.nextInt(4) == 0
+        }
+        if (random.nextInt(3) == 0) {
+            cond.nwSrcIp = new IPv4Subnet(randomIp, 22 + random.nextInt(11))
+            cond.nwSrcInv = random.nextInt(4) == 0
+        }
+        if (random.nextInt(3) == 0) {
+            cond.nwDstIp = new IPv4Subnet(randomIp, random.nextInt(33))
+            cond.nwDstInv = random.nextInt(4) == 0
+        }
+        if (random.nextInt(3) == 0) {
+            val start = randomPort
+            cond.tpSrc = new Range[Integer](start, start + random.nextInt(4))
+            cond.tpSrcInv = random.nextInt(4) == 0
+        }
+        if (random.nextInt(3) == 0) {
+            cond.tpDst = new Range[Integer](randomPort)
+            cond.tpDstInv = random.nextInt(4) == 0
+        }
+        cond.conjunctionInv = random.nextInt(8) == 0
+        cond
+    }
+
+    private def randomPacket: WildcardMatch = {
+        val wcMatch = new WildcardMatch()
+            .setEtherType(0x0800.toShort)
+            .setNetworkSrc(randomIp)
+            .setNetworkDst(randomIp)
+            .setNetworkProto(protos(random.nextInt(protos.length)))
+        if (random.nextBoolean())
+            wcMatch.setSrcPort(randomPort).setDstPort(randomPort)
+        wcMatch
+    }
+
+    /* Builds a root chain and a few sub-chains that jump randomly between
+     * each other, possibly in loops and to chains that don't exist. */
+    private def randomChains(numChains: Int, rulesPerChain: Int): Chain = {
+        val ids = Array.fill(numChains)(UUID.randomUUID)
+        val jumpTargets = mutable.Map[UUID, Chain]()
+        val chains = for (id <- ids) yield {
+            val rules = List.fill[Rule](rulesPerChain) {
+                if (random.nextInt(5) == 0) {
+                    val target = if (random.nextInt(10) == 0) UUID.randomUUID
+                                 else ids(random.nextInt(numChains))
+                    new JumpRule(randomCondition, target, target.toString,
+                                 id, 0)
+                } else {
+                    val rule = new LiteralRule(randomCondition,
+                                   actions(random.nextInt(actions.length)))
+                    rule.chainId = id
+                    rule
+                }
+            }
+            new Chain(id, rules.asJava, jumpTargets, id.toString)
+        }
+        chains foreach { c => jumpTargets.put(c.id, c) }
+        chains(0)
+    }
+
+    private def context(wcMatch: WildcardMatch) =
+        new PacketContext(Left(1), null, None, wcMatch)
+
+    private def assertEquivalent(chain: Chain, packets: Int) {
+        for (i <- 0 until packets) {
+            val wcMatch = randomPacket
+            val linearCtx = context(wcMatch.clone())
+            val compiledCtx = context(wcMatch.clone())
+            val expected = Chain.applyLinear(chain, linearCtx, ownerId, false)
+            val actual = Chain.apply(chain, compiledCtx, ownerId, false)
+
+            actual.action should be (expected.action)
+            compiledCtx.flowTags should be (linearCtx.flowTags)
+            compiledCtx.wcmatch.getSeenFields should be (
+                linearCtx.wcmatch.getSeenFields)
+        }
+    }
+
+    private def seenFields(chain: Chain, wcMatch: WildcardMatch) = {
+        val ctx = context(wcMatch)
+        Chain.apply(chain, ctx, ownerId, false)
+        ctx.wcmatch.getSeenFields.asScala
+    }
+
+    feature("A compiled chain behaves like the linear evaluation") {
+        scenario("flat chains") {
+            for (i <- 0 until 50) {
+                val chain = randomChains(1, 1 + random.nextInt(200))
+                chain.program() should not be null
+                assertEquivalent(chain, 200)
+            }
+        }
+
+        scenario("chains with jumps, returns and loops") {
+            for (i <- 0 until 50) {
+                val chain = randomChains(2 + random.nextInt(5),
+                                         1 + random.nextInt(30))
+                assertEquivalent(chain, 200)
+            }
+        }
+
+        scenario("deeply nested jumps") {
+            val ids = Array.fill(15)(UUID.randomUUID)
+            val jumpTargets = mutable.Map[UUID, Chain]()
+            for (i <- 0 until ids.length) {
+                val rules: List[Rule] =
+                    if (i == ids.length - 1)
+                        List(new LiteralRule(Condition.TRUE, Action.DROP))
+                    else
+                        List(new JumpRule(Condition.TRUE, ids(i + 1),
+                                          "chain-" + (i + 1), ids(i), 0))
+                jumpTargets.put(ids(i), new Chain(ids(i), rules.asJava,
+                                                  jumpTargets, "chain-" + i))
+            }
+
+            val root = jumpTargets(ids(0))
+            val linear = intercept[IllegalStateException] {
+                Chain.applyLinear(root, context(randomPacket), ownerId, false)
+            }
+            val compiled = intercept[IllegalStateException] {
+                Chain.apply(root, context(randomPacket), ownerId, false)
+            }
+            compiled.getMessage should be (linear.getMessage)
+        }
+    }
+
+    feature("A compiled chain leaves the same fields wildcarded") {
+        scenario("an empty chain sees no field") {
+            val id = UUID.randomUUID
+            val chain = new Chain(id, List[Rule]().asJava,
+                                  Map[UUID, Chain](), "empty")
+            seenFields(chain, randomPacket) shouldBe empty
+        }
+
+        scenario("a ruled out rule sees the fields the linear evaluation does") {
+            val id = UUID.randomUUID
+            val cond = new Condition()
+            cond.nwProto = 6.toByte
+            val rules = List[Rule](new LiteralRule(cond, Action.DROP),
+                                   new LiteralRule(Condition.TRUE,
+                                                   Action.ACCEPT))
+            val chain = new Chain(id, rules.asJava, Map[UUID, Chain](), "tcp")
+            val udp = randomPacket.setNetworkProto(17.toByte)
+                                  .setSrcPort(1000).setDstPort(1000)
+
+            val seen = seenFields(chain, udp)
+            seen should contain (WildcardMatch.Field.NetworkProto)
+            seen should not contain (WildcardMatch.Field.SrcPort)
+            seen should not contain (WildcardMatch.Field.DstPort)
+        }
+    }
+
+    feature("Oversized chains") {
+        scenario("are evaluated linearly") {
+            val id = UUID.randomUUID
+            val rules = List.fill[Rule](CompiledChain.MAX_ENTRIES + 1) {
+                new LiteralRule(randomCondition, Action.CONTINUE)
+            } :+ new LiteralRule(Condition.TRUE, Action.REJECT)
+            val chain = new Chain(id, rules.asJava, Map[UUID, Chain](), "big")
+
+            chain.program() should be (null)
+            Chain.apply(chain, context(randomPacket), ownerId,
+                        false).action should be (Action.REJECT)
+        }
+    }
+}
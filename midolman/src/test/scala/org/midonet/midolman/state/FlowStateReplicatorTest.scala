@@ -468,6 +468,16 @@ class MockFlowStateTable[K <: IdleExpiration, V]()(implicit ev: Null <:< V)
         s
     }
 
+    override def expireIdleEntries[U](
+        seed: U, func: Reducer[K, V, U], maxEntries: Int): U = {
+        var s = seed
+        for ((k, v) <- entries.take(maxEntries)) {
+            s = func(s, k, v)
+            entries -= k
+        }
+        s
+    }
+
     override def getRefCount(key: K) = if (unrefedKeys.contains(key)) 0 else 1
 
     override def unref(key: K) {
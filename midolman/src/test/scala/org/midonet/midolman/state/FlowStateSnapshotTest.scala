@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.io.{File, RandomAccessFile}
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.NatState._
+import org.midonet.packets.{IPv4Addr, IPv6Addr}
+import org.midonet.sdn.state.ShardedFlowStateTable
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateSnapshotTest extends FeatureSpec
+                            with BeforeAndAfter
+                            with Matchers
+                            with OneInstancePerTest {
+
+    val device = UUID.randomUUID()
+    val now = 1000000L
+
+    val fwdKey = ConnTrackKey(IPv4Addr.random, 1234, IPv4Addr.random, 80,
+                              6, device)
+    val retKey = ConnTrackKey(IPv4Addr.random, 53, IPv4Addr.random, 5003,
+                              17, device)
+    val v6Key = ConnTrackKey(IPv6Addr.random, 1234, IPv6Addr.random, 80,
+                             6, device)
+    val natKey = NatKey(FWD_SNAT, IPv4Addr.random, 1234, IPv4Addr.random, 80,
+                        6, device)
+    val binding = NatBinding(IPv4Addr.random, 20000)
+
+    val connTrack = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]().addShard()
+    val nat = new ShardedFlowStateTable[NatKey, NatBinding]().addShard()
+
+    var file: File = _
+
+    before {
+        file = File.createTempFile("flow-state", ".snapshot")
+        connTrack.putAndRef(fwdKey, FORWARD_FLOW)
+        connTrack.putAndRef(retKey, RETURN_FLOW)
+        connTrack.putAndRef(v6Key, FORWARD_FLOW)
+        nat.putAndRef(natKey, binding)
+    }
+
+    after {
+        file.delete()
+        new File(file.getPath + ".tmp").delete()
+    }
+
+    feature("Flow state tables are snapshotted") {
+        scenario("A snapshot is read back") {
+            FlowStateSnapshot.write(file, now, connTrack, nat) should be (3)
+            new File(file.getPath + ".tmp").exists should be (false)
+
+            val batch = FlowStateSnapshot.read(file, now + 1000, 60000).get
+            batch.strongConnTrack should have size 1
+            batch.strongConnTrack.contains(fwdKey) should be (true)
+            batch.weakConnTrack should have size 1
+            batch.weakConnTrack.contains(retKey) should be (true)
+            batch.strongNat should have size 1
+            batch.strongNat.get(natKey) should be (binding)
+            batch.weakNat should have size 0
+        }
+
+        scenario("A snapshot replaces the previous one") {
+            FlowStateSnapshot.write(file, now, connTrack, nat)
+            val empty = new ShardedFlowStateTable[NatKey, NatBinding]().addShard()
+            FlowStateSnapshot.write(file, now + 1, connTrack, empty) should be (2)
+
+            val batch = FlowStateSnapshot.read(file, now + 1, 60000).get
+            batch.strongNat should have size 0
+            batch.strongConnTrack should have size 1
+        }
+
+        scenario("A captured snapshot is written later") {
+            val snapshot = FlowStateSnapshot.capture(now, connTrack, nat)
+            nat.putAndRef(NatKey(FWD_SNAT, IPv4Addr.random, 1, IPv4Addr.random,
+                                 80, 6, device), binding)
+            file.delete()
+
+            FlowStateSnapshot.write(file, snapshot) should be (3)
+            FlowStateSnapshot.write(file, snapshot) should be (3)
+            val batch = FlowStateSnapshot.read(file, now, 60000).get
+            batch.strongNat should have size 1
+            batch.strongNat.get(natKey) should be (binding)
+        }
+
+        scenario("Old snapshots are ignored") {
+            FlowStateSnapshot.write(file, now, connTrack, nat)
+            FlowStateSnapshot.read(file, now + 60001, 60000) should be (None)
+        }
+
+        scenario("Missing and invalid snapshots are ignored") {
+            FlowStateSnapshot.read(new File(file.getPath + ".missing"),
+                                   now, 60000) should be (None)
+
+            FlowStateSnapshot.write(file, now, connTrack, nat)
+            val raf = new RandomAccessFile(file, "rw")
+            raf.setLength(raf.length - 1)
+            raf.close()
+            FlowStateSnapshot.read(file, now, 60000) should be (None)
+
+            val garbage = new RandomAccessFile(file, "rw")
+            garbage.writeInt(0xcafe)
+            garbage.close()
+            FlowStateSnapshot.read(file, now, 60000) should be (None)
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.state
+
+import java.util.{UUID, List => JList}
+
+import scala.collection.JavaConverters._
+import scala.collection.mutable
+
+import com.codahale.metrics.MetricRegistry
+import com.google.common.util.concurrent.SettableFuture
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+
+import org.midonet.midolman.monitoring.metrics.FlowStateStorageMetrics
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowState.FlowStateKey
+import org.midonet.midolman.state.FlowStateWritePipeline.Row
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.packets.IPv4Addr
+
+@RunWith(classOf[JUnitRunner])
+class FlowStateWritePipelineTest extends FeatureSpec
+                                 with Matchers
+                                 with OneInstancePerTest {
+
+    case class Batch(table: String, port: UUID,
+                     rows: Map[FlowStateKey, AnyRef],
+                     result: SettableFuture[AnyRef])
+
+    /* An in-memory stand-in for Cassandra, completing batches on demand. */
+    val batches = mutable.Buffer[Batch]()
+    val sink = new FlowStateWritePipeline.Sink {
+        override def write(table: String, port: UUID, rows: JList[Row]) = {
+            val result = SettableFuture.create[AnyRef]()
+            batches += Batch(table, port,
+                             rows.asScala.map(r => r.getKey -> r.getValue).toMap,
+                             result)
+            result
+        }
+    }
+
+    val metrics = new FlowStateStorageMetrics(new MetricRegistry)
+    val pipeline = new FlowStateWritePipeline(sink, metrics, 10, 2, 4)
+
+    val table = FlowStateStorage.CONNTRACK_BY_INGRESS_TABLE
+    val ports = List.fill(3)(UUID.randomUUID())
+
+    def connTrackKey(i: Int) =
+        ConnTrackKey(IPv4Addr.fromInt(i), i, IPv4Addr.fromInt(i + 1), 80,
+                     6, ports(0))
+
+    feature("Writes are coalesced per partition") {
+        scenario("keys of a table and port go in the same batch") {
+            pipeline.add(table, ports(0), connTrackKey(1), null)
+            pipeline.add(table, ports(0), connTrackKey(2), null)
+            pipeline.add(table, ports(1), connTrackKey(1), null)
+            pipeline.add(FlowStateStorage.CONNTRACK_BY_EGRESS_TABLE, ports(1),
+                         connTrackKey(1), null)
+            pipeline.pendingWrites should be (4)
+            pipeline.flush()
+
+            batches.size should be (2)
+            batches(0).table should be (table)
+            batches(0).port should be (ports(0))
+            batches(0).rows.keySet should be (Set(connTrackKey(1),
+                                                  connTrackKey(2)))
+            batches(1).port should be (ports(1))
+            batches(1).rows.keySet should be (Set(connTrackKey(1)))
+            pipeline.inFlightBatches should be (2)
+        }
+
+        scenario("a key touched twice is written once, with its last value") {
+            val key = NatKey(NatState.FWD_SNAT, IPv4Addr.fromInt(1), 10001,
+                             IPv4Addr.fromInt(2), 80, 6, ports(0))
+            val table = FlowStateStorage.NAT_BY_INGRESS_TABLE
+            pipeline.add(table, ports(0), key, NatBinding(IPv4Addr.fromInt(3), 1))
+            pipeline.add(table, ports(0), key, NatBinding(IPv4Addr.fromInt(3), 2))
+            pipeline.pendingWrites should be (1)
+            metrics.coalescedWrites.getCount should be (1)
+
+            pipeline.flush()
+            batches.size should be (1)
+            batches(0).rows(key) should be (NatBinding(IPv4Addr.fromInt(3), 2))
+        }
+
+        scenario("large partitions are split into bounded batches") {
+            for (i <- 0 until 6)
+                pipeline.add(table, ports(0), connTrackKey(i), null)
+            pipeline.flush()
+
+            batches.map(_.rows.size) should be (Seq(4, 2))
+        }
+    }
+
+    feature("Back-pressure") {
+        scenario("partitions stay pending while batches are in flight") {
+            for (port <- ports)
+                pipeline.add(table, port, connTrackKey(1), null)
+            pipeline.flush()
+            batches.size should be (2)
+            pipeline.pendingWrites should be (1)
+
+            // The pending write keeps coalescing.
+            pipeline.add(table, ports(2), connTrackKey(1), null)
+            pipeline.pendingWrites should be (1)
+
+            batches(0).result.set(null)
+            pipeline.inFlightBatches should be (1)
+            metrics.batchLatency.getCount should be (1)
+
+            pipeline.flush()
+            batches.size should be (3)
+            batches(2).port should be (ports(2))
+            pipeline.pendingWrites should be (0)
+        }
+
+        scenario("writes are dropped when too many are pending") {
+            for (i <- 0 until 15)
+                pipeline.add(table, ports(0), connTrackKey(i), null)
+            pipeline.pendingWrites should be (10)
+            metrics.droppedWrites.getCount should be (5)
+            metrics.pendingWrites.getCount should be (10)
+        }
+
+        scenario("failed batches are accounted as dropped writes") {
+            pipeline.add(table, ports(0), connTrackKey(1), null)
+            pipeline.add(table, ports(0), connTrackKey(2), null)
+            pipeline.flush()
+            batches(0).result.setException(new Exception("timeout"))
+
+            pipeline.inFlightBatches should be (0)
+            metrics.failedBatches.getCount should be (1)
+            metrics.droppedWrites.getCount should be (2)
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.topology
+
+import akka.testkit.TestProbe
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
+import org.apache.commons.configuration.HierarchicalConfiguration
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.monitoring.metrics.VirtualTopologyGauge
+import org.midonet.midolman.simulation.{Bridge, PortGroup}
+import org.midonet.midolman.topology.VirtualTopologyActor._
+import org.midonet.midolman.util.MidolmanSpec
+
+@RunWith(classOf[JUnitRunner])
+class IdleDevicesTest extends MidolmanSpec {
+
+    registerActors(VirtualTopologyActor -> (() => new VirtualTopologyActor))
+
+    // The checks are triggered by the test.
+    override protected def fillConfig(config: HierarchicalConfiguration) = {
+        super.fillConfig(config)
+        config.setProperty("midolman.check_idle_devices_interval_seconds", 3600)
+        config.setProperty("midolman.idle_device_expiration_seconds", 3600)
+        config
+    }
+
+    override def beforeTest(): Unit = VirtualTopologyActor.clearTopology()
+
+    private def devices(metric: String, deviceType: String) =
+        injector.getInstance(classOf[MetricRegistry]).getCounters.get(
+            name(classOf[VirtualTopologyGauge], metric, deviceType)).getCount
+
+    private def checkIdleDevices(): Unit =
+        VirtualTopologyActor.getRef() ! CheckIdleDevices
+
+    feature("Idle devices are unloaded") {
+        scenario("A device not used since the last check is unloaded") {
+            val pg = newPortGroup("pg")
+            force(tryAsk[PortGroup](pg.getId))
+            devices("watchedDevices", "PortGroup") should be (1)
+            devices("cachedDevices", "PortGroup") should be (1)
+
+            checkIdleDevices()
+            devices("watchedDevices", "PortGroup") should be (1)
+
+            checkIdleDevices()
+            devices("watchedDevices", "PortGroup") should be (0)
+            devices("cachedDevices", "PortGroup") should be (0)
+
+            And("It is loaded again when requested")
+            force(tryAsk[PortGroup](pg.getId)).id should be (pg.getId)
+            devices("watchedDevices", "PortGroup") should be (1)
+        }
+
+        scenario("A used device is kept") {
+            val pg = newPortGroup("pg")
+            force(tryAsk[PortGroup](pg.getId))
+
+            for (i <- 1 to 3) {
+                checkIdleDevices()
+                tryAsk[PortGroup](pg.getId)
+            }
+            devices("watchedDevices", "PortGroup") should be (1)
+        }
+
+        scenario("A device with subscribers is kept") {
+            val pg = newPortGroup("pg")
+            val subscriber = TestProbe()
+            VirtualTopologyActor.getRef().tell(
+                PortGroupRequest(pg.getId, update = true), subscriber.ref)
+            subscriber.expectMsgType[PortGroup]
+
+            (1 to 3) foreach { _ => checkIdleDevices() }
+            devices("watchedDevices", "PortGroup") should be (1)
+
+            VirtualTopologyActor.getRef().tell(Unsubscribe(pg.getId),
+                                               subscriber.ref)
+            (1 to 2) foreach { _ => checkIdleDevices() }
+            devices("watchedDevices", "PortGroup") should be (0)
+        }
+
+        scenario("Bridges are kept") {
+            val bridge = newBridge("bridge")
+            force(tryAsk[Bridge](bridge.getId))
+
+            (1 to 3) foreach { _ => checkIdleDevices() }
+            devices("watchedDevices", "Bridge") should be (1)
+        }
+    }
+}
@@ -32,6 +32,7 @@ import akka.testkit.TestKit
 import akka.util.Timeout
 
 import org.midonet.midolman.DeduplicationActor.HandlePackets
+import org.midonet.midolman.PacketQueue.CheckPackets
 import org.midonet.midolman._
 import org.midonet.midolman.guice.MidolmanActorsModule
 import org.midonet.midolman.routingprotocols.RoutingManagerActor
@@ -163,6 +164,7 @@ class TestablePacketsEntryPoint extends PacketsEntryPoint {
 
     override def receive = super.receive orElse {
         case m: HandlePackets => dda ! m
+        case m: CheckPackets => dda ! m
     }
 
     override def startWorker(index: Int) = {
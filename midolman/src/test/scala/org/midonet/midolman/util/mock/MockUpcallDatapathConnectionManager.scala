@@ -18,6 +18,7 @@ package org.midonet.midolman.util.mock
 import scala.concurrent.{ExecutionContext, Future}
 
 import akka.actor.ActorSystem
+import com.codahale.metrics.MetricRegistry
 import org.slf4j.LoggerFactory
 
 import org.midonet.midolman.PacketsEntryPoint
@@ -31,9 +32,12 @@ import org.midonet.util._
 class MockUpcallDatapathConnectionManager(config: MidolmanConfig)
         extends UpcallDatapathConnectionManagerBase(config,
             new TokenBucketPolicy(config, new TokenBucketTestRate, 1,
-                                  _ => Bucket.BOTTOMLESS)) {
+                                  _ => Bucket.BOTTOMLESS),
+            new MetricRegistry) {
     protected override val log = LoggerFactory.getLogger(this.getClass)
 
+    protected override def upcallThreads = 1
+
     val conn = new MockManagedDatapathConnection()
 
     var upcallHandler: BatchCollector[Packet] = null
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.flows
+
+import java.util.{ArrayList, UUID}
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers, OneInstancePerTest}
+
+import org.midonet.midolman.{EventHistory, EventNotSeen, EventSeen,
+                             EventSearchWindowMissed}
+import org.midonet.sdn.flows.FlowTagger.{FlowTag, tagForDevice}
+
+@RunWith(classOf[JUnitRunner])
+class FlowTagIndexTest extends FeatureSpec
+                       with Matchers
+                       with OneInstancePerTest {
+
+    val index = new FlowTagIndex()
+    val tags = Array.fill(3)(tagForDevice(UUID.randomUUID()))
+
+    // Equal flows, told apart by the index through their identity.
+    def flowWith(flowTags: FlowTag*): ManagedWildcardFlow = {
+        val flow = ManagedWildcardFlow.create(WildcardFlow(new WildcardMatch()))
+        flow.tags = flowTags.toArray
+        flow
+    }
+
+    feature("Flows are indexed by tag") {
+        scenario("binding and unbinding flows") {
+            val f1 = flowWith(tags(0), tags(1))
+            val f2 = flowWith(tags(1), tags(2))
+            val f3 = flowWith(tags(1))
+            index.add(f1)
+            index.add(f2)
+            index.add(f3)
+            index.numTags should be (3)
+            index.numBindings should be (5)
+            index.flowsFor(tags(1)).size should be (3)
+
+            index.remove(f2)
+            index.flowsFor(tags(1)).asScala.exists(_ eq f2) should be (false)
+            index.flowsFor(tags(1)).size should be (2)
+            index.flowsFor(tags(2)).isEmpty should be (true)
+            index.numTags should be (2)
+            f2.tagLinks should be (null)
+
+            index.remove(f1)
+            index.remove(f3)
+            index.numTags should be (0)
+            index.numBindings should be (0)
+        }
+
+        scenario("removing a tag leaves the other tags of its flows") {
+            val f1 = flowWith(tags(0), tags(1))
+            val f2 = flowWith(tags(0))
+            index.add(f1)
+            index.add(f2)
+
+            val removed = new ArrayList[ManagedWildcardFlow]()
+            index.removeTag(tags(0), removed) should be (2)
+            removed.size should be (2)
+            index.flowsFor(tags(0)).isEmpty should be (true)
+            index.flowsFor(tags(1)).size should be (1)
+
+            // Unbinding a flow afterwards only touches its remaining tags.
+            index.remove(f1)
+            index.remove(f2)
+            index.numTags should be (0)
+            index.numBindings should be (0)
+        }
+    }
+
+    feature("The invalidation history") {
+        val history = new EventHistory[FlowTag](4)
+
+        scenario("checks tag sets against the last invalidations") {
+            history.exists(0, Set(tags(0))) should be (EventSearchWindowMissed)
+
+            history.put(tags(0)) should be (1)
+            history.put(tags(1)) should be (2)
+            history.put(tags(0)) should be (3)
+            history.exists(0, Set(tags(2))) should be (EventNotSeen)
+            history.exists(2, Set(tags(1))) should be (EventNotSeen)
+            history.exists(2, Set(tags(1), tags(0))) should be (EventSeen)
+            history.exists(3, Set(tags(0))) should be (EventNotSeen)
+
+            for (i <- 0 until 3)
+                history.put(tags(2))
+            history.youngest should be (6)
+            history.oldest should be (3)
+            history.exists(1, Set(tags(2))) should be (EventSearchWindowMissed)
+            history.exists(2, Set(tags(1))) should be (EventNotSeen)
+            history.exists(2, Set(tags(0))) should be (EventSeen)
+        }
+
+        scenario("is read without locking while events are put") {
+            history.put(tags(0))
+            val writer = new Thread() {
+                override def run(): Unit =
+                    for (i <- 0 until 100000)
+                        history.put(tags(i % 2 + 1))
+            }
+            writer.start()
+            var missed = false
+            while (writer.isAlive || !missed) {
+                history.exists(0, Set(tags(0))) match {
+                    case EventNotSeen => fail("An evicted event was hidden")
+                    case EventSearchWindowMissed => missed = true
+                    case EventSeen =>
+                }
+            }
+            writer.join()
+        }
+    }
+}
@@ -34,7 +34,10 @@ import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
@@ -55,12 +58,13 @@ import org.midonet.api.network.Bridge.BridgeCreateGroupSequence;
 import org.midonet.api.network.Bridge.BridgeUpdateGroupSequence;
 import org.midonet.api.network.IP4MacPair;
 import org.midonet.api.network.MacPort;
-import org.midonet.api.network.Port;
 import org.midonet.api.network.auth.BridgeAuthorizer;
 import org.midonet.api.rest_api.AbstractResource;
 import org.midonet.api.rest_api.BadRequestHttpException;
 import org.midonet.api.rest_api.NotFoundHttpException;
+import org.midonet.api.rest_api.ReadCache;
 import org.midonet.api.rest_api.ResourceFactory;
+import org.midonet.api.rest_api.ResponseUtils;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.api.validation.MessageProperty;
 import org.midonet.cluster.DataClient;
@@ -88,15 +92,20 @@ public class BridgeResource extends AbstractResource {
 
     private final BridgeAuthorizer authorizer;
     private final ResourceFactory factory;
+    private final Request request;
+    private final ReadCache cache;
 
     @Inject
     public BridgeResource(RestApiConfig config, UriInfo uriInfo,
-                          SecurityContext context, BridgeAuthorizer authorizer,
-                          Validator validator, DataClient dataClient,
+                          SecurityContext context, Request request,
+                          BridgeAuthorizer authorizer, Validator validator,
+                          DataClient dataClient, ReadCache cache,
                           ResourceFactory factory) {
         super(config, uriInfo, context, dataClient,validator);
         this.authorizer = authorizer;
         this.factory = factory;
+        this.request = request;
+        this.cache = cache;
     }
 
     /**
@@ -136,15 +145,41 @@ public class BridgeResource extends AbstractResource {
      *            Bridge ID from the request.
      * @throws StateAccessException
      *             Data access error.
-     * @return A Bridge object.
+     * @return A Bridge object, or Not Modified if the client has it
+     *         already.
      */
     @GET
     @PermitAll
     @Path("{id}")
     @Produces({ VendorMediaType.APPLICATION_BRIDGE_JSON,
-            VendorMediaType.APPLICATION_BRIDGE_JSON_V2,
             MediaType.APPLICATION_JSON })
-    public Bridge get(@PathParam("id") UUID id)
+    public Response get(@PathParam("id") UUID id)
+            throws StateAccessException, SerializationException {
+        return getBridge(id, 1);
+    }
+
+    /**
+     * Handler to getting a v2 bridge.
+     *
+     * @param id
+     *            Bridge ID from the request.
+     * @throws StateAccessException
+     *             Data access error.
+     * @return A Bridge object, or Not Modified if the client has it
+     *         already.
+     */
+    @GET
+    @PermitAll
+    @Path("{id}")
+    @Produces({ VendorMediaType.APPLICATION_BRIDGE_JSON_V2 })
+    public Response getV2(@PathParam("id") UUID id)
+            throws StateAccessException, SerializationException {
+        return getBridge(id, 2);
+    }
+
+    /* Gets a bridge, with an ETag telling apart the given version of the
+     * media type. */
+    private Response getBridge(UUID id, int version)
             throws StateAccessException, SerializationException {
 
         if (!authorizer.authorize(context, AuthAction.READ, id)) {
@@ -152,13 +187,23 @@ public class BridgeResource extends AbstractResource {
                     "Not authorized to view this bridge.");
         }
 
-        org.midonet.cluster.data.Bridge bridgeData = getBridgeOrThrow(id, false);
+        ReadCache.Entry<org.midonet.cluster.data.Bridge> bridgeData =
+                cache.bridge(id);
+        if (bridgeData.getValue() == null) {
+            throwNotFound(id, "bridge");
+        }
+        EntityTag tag = bridgeData.tag(version, getBaseUri());
+        Response notModified =
+                ResponseUtils.buildNotModifiedResponse(request, tag);
+        if (notModified != null) {
+            return notModified;
+        }
 
         // Convert to the REST API DTO
-        Bridge bridge = new Bridge(bridgeData);
+        Bridge bridge = new Bridge(bridgeData.getValue());
         bridge.setBaseUri(getBaseUri());
 
-        return bridge;
+        return Response.ok(bridge).tag(tag).build();
     }
 
     @GET
@@ -166,7 +211,7 @@ public class BridgeResource extends AbstractResource {
     @Path("/{id}" + ResourceUriBuilder.VXLAN_PORT)
     @Produces({ VendorMediaType.APPLICATION_PORT_JSON,
                 MediaType.APPLICATION_JSON})
-    public Port getVxLanPort(@PathParam("id") UUID id)
+    public Response getVxLanPort(@PathParam("id") UUID id)
             throws StateAccessException, SerializationException {
         org.midonet.cluster.data.Bridge bridge = getBridgeOrThrow(id, false);
 
@@ -293,32 +338,61 @@ public class BridgeResource extends AbstractResource {
      *
      * @throws StateAccessException
      *             Data access error.
-     * @return A list of Bridge objects.
+     * @return A list of Bridge objects, or Not Modified if the client has
+     *         it already.
      */
     @GET
     @RolesAllowed({ AuthRole.ADMIN })
     @Produces({ VendorMediaType.APPLICATION_BRIDGE_COLLECTION_JSON,
-            VendorMediaType.APPLICATION_BRIDGE_COLLECTION_JSON_V2,
             MediaType.APPLICATION_JSON })
-    public List<Bridge> list(@QueryParam("tenant_id") String tenantId)
+    public Response list(@QueryParam("tenant_id") String tenantId)
             throws StateAccessException, SerializationException {
+        return listBridges(tenantId, 1);
+    }
 
-        List<org.midonet.cluster.data.Bridge> dataBridges;
-        if (tenantId == null) {
-            dataBridges = dataClient.bridgesGetAll();
-        } else {
-            dataBridges = dataClient.bridgesFindByTenant(tenantId);
+    /**
+     * Handler to list all bridges, as v2 bridges.
+     *
+     * @throws StateAccessException
+     *             Data access error.
+     * @return A list of Bridge objects, or Not Modified if the client has
+     *         it already.
+     */
+    @GET
+    @RolesAllowed({ AuthRole.ADMIN })
+    @Produces({ VendorMediaType.APPLICATION_BRIDGE_COLLECTION_JSON_V2 })
+    public Response listV2(@QueryParam("tenant_id") String tenantId)
+            throws StateAccessException, SerializationException {
+        return listBridges(tenantId, 2);
+    }
+
+    private Response listBridges(String tenantId, int version)
+            throws StateAccessException, SerializationException {
+
+        // The bridges of a tenant are filtered from all of them, as
+        // DataClient.bridgesFindByTenant does
+        ReadCache.Entry<List<org.midonet.cluster.data.Bridge>> dataBridges =
+                cache.bridges();
+        EntityTag tag = dataBridges.tag(version, tenantId, getBaseUri());
+        Response notModified =
+                ResponseUtils.buildNotModifiedResponse(request, tag);
+        if (notModified != null) {
+            return notModified;
         }
+
         List<Bridge> bridges = new ArrayList<>();
-        if (dataBridges != null) {
+        if (dataBridges.getValue() != null) {
             for (org.midonet.cluster.data.Bridge dataBridge :
-                    dataBridges) {
-                Bridge bridge = new Bridge(dataBridge);
-                bridge.setBaseUri(getBaseUri());
-                bridges.add(bridge);
+                    dataBridges.getValue()) {
+                if (tenantId == null || dataBridge.hasTenantId(tenantId)) {
+                    Bridge bridge = new Bridge(dataBridge);
+                    bridge.setBaseUri(getBaseUri());
+                    bridges.add(bridge);
+                }
             }
         }
-        return bridges;
+        return Response.ok(new GenericEntity<List<Bridge>>(bridges) {})
+                       .tag(tag).build();
     }
 
     /*
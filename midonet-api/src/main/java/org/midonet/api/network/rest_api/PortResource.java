@@ -29,7 +29,10 @@ import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.GenericEntity;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
@@ -58,7 +61,9 @@ import org.midonet.api.network.auth.RouterAuthorizer;
 import org.midonet.api.rest_api.AbstractResource;
 import org.midonet.api.rest_api.BadRequestHttpException;
 import org.midonet.api.rest_api.NotFoundHttpException;
+import org.midonet.api.rest_api.ReadCache;
 import org.midonet.api.rest_api.ResourceFactory;
+import org.midonet.api.rest_api.ResponseUtils;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.api.vtep.VtepClusterClient;
 import org.midonet.cluster.DataClient;
@@ -81,16 +86,21 @@ public class PortResource extends AbstractResource {
     private final PortAuthorizer authorizer;
     private final ResourceFactory factory;
     private final VtepClusterClient vtepClient;
+    private final Request request;
+    private final ReadCache cache;
 
     @Inject
     public PortResource(RestApiConfig config, UriInfo uriInfo,
-                        SecurityContext context, PortAuthorizer authorizer,
-                        Validator validator, DataClient dataClient,
+                        SecurityContext context, Request request,
+                        PortAuthorizer authorizer, Validator validator,
+                        DataClient dataClient, ReadCache cache,
                         ResourceFactory factory, VtepClusterClient vtepClient) {
         super(config, uriInfo, context, dataClient, validator);
         this.vtepClient = vtepClient;
         this.authorizer = authorizer;
         this.factory = factory;
+        this.request = request;
+        this.cache = cache;
     }
 
     /**
@@ -129,16 +139,16 @@ public class PortResource extends AbstractResource {
         portEvent.delete(id);
     }
 
-    private org.midonet.cluster.data.Port<?, ?> getPortData(UUID id)
-            throws StateAccessException, SerializationException {
+    private ReadCache.Entry<org.midonet.cluster.data.Port<?, ?>> getPortData(
+            UUID id) throws StateAccessException, SerializationException {
         if (!authorizer.authorize(context, AuthAction.READ, id)) {
             throw new ForbiddenHttpException(
                     "Not authorized to view this port.");
         }
 
-        org.midonet.cluster.data.Port<?, ?> portData =
-                dataClient.portsGet(id);
-        if (portData == null) {
+        ReadCache.Entry<org.midonet.cluster.data.Port<?, ?>> portData =
+                cache.port(id);
+        if (portData.getValue() == null) {
             throw new NotFoundHttpException(
                     "The requested resource was not found.");
         }
@@ -152,7 +162,7 @@ public class PortResource extends AbstractResource {
      *            Port ID from the request.
      * @throws StateAccessException
      *             Data access error.
-     * @return A Port object.
+     * @return A Port object, or Not Modified if the client has it already.
      */
     @GET
     @Deprecated
@@ -160,14 +170,21 @@ public class PortResource extends AbstractResource {
     @Path("{id}")
     @Produces({ VendorMediaType.APPLICATION_PORT_JSON,
             MediaType.APPLICATION_JSON })
-    public Port getv1(@PathParam("id") UUID id) throws StateAccessException,
-            SerializationException {
-        org.midonet.cluster.data.Port<?, ?> portData = getPortData(id);
+    public Response getv1(@PathParam("id") UUID id)
+            throws StateAccessException, SerializationException {
+        ReadCache.Entry<org.midonet.cluster.data.Port<?, ?>> portData =
+                getPortData(id);
+        EntityTag tag = portData.tag(1, getBaseUri());
+        Response notModified =
+                ResponseUtils.buildNotModifiedResponse(request, tag);
+        if (notModified != null) {
+            return notModified;
+        }
 
-        Port port = PortFactory.convertToApiPortV1(portData);
+        Port port = PortFactory.convertToApiPortV1(portData.getValue());
         port.setBaseUri(getBaseUri());
 
-        return port;
+        return Response.ok(port).tag(tag).build();
     }
 
     /**
@@ -177,55 +194,80 @@ public class PortResource extends AbstractResource {
      *            Port ID from the request.
      * @throws StateAccessException
      *             Data access error.
-     * @return A Port object.
+     * @return A Port object, or Not Modified if the client has it already.
      */
     @GET
     @PermitAll
     @Path("{id}")
     @Produces({VendorMediaType.APPLICATION_PORT_V2_JSON})
-    public Port get(@PathParam("id") UUID id) throws StateAccessException,
-            SerializationException {
-        org.midonet.cluster.data.Port<?, ?> portData = getPortData(id);
+    public Response get(@PathParam("id") UUID id)
+            throws StateAccessException, SerializationException {
+        ReadCache.Entry<org.midonet.cluster.data.Port<?, ?>> portData =
+                getPortData(id);
+        EntityTag tag = portData.tag(2, getBaseUri());
+        Response notModified =
+                ResponseUtils.buildNotModifiedResponse(request, tag);
+        if (notModified != null) {
+            return notModified;
+        }
 
-        Port port = PortFactory.convertToApiPort(portData);
+        Port port = PortFactory.convertToApiPort(portData.getValue());
         port.setBaseUri(getBaseUri());
 
-        return port;
+        return Response.ok(port).tag(tag).build();
     }
 
     @GET
     @RolesAllowed({ AuthRole.ADMIN })
     @Produces({ VendorMediaType.APPLICATION_PORT_V2_COLLECTION_JSON,
             MediaType.APPLICATION_JSON})
-    public List<Port> list()
+    public Response list()
             throws StateAccessException, SerializationException {
-        List<org.midonet.cluster.data.Port<?, ?>> portDataList =
-                dataClient.portsGetAll();
+        ReadCache.Entry<List<org.midonet.cluster.data.Port<?, ?>>>
+                portDataList = cache.ports();
+        EntityTag tag = portDataList.tag(2, getBaseUri());
+        Response notModified =
+                ResponseUtils.buildNotModifiedResponse(request, tag);
+        if (notModified != null) {
+            return notModified;
+        }
+
         List<Port> ports = new ArrayList<>();
-        for (org.midonet.cluster.data.Port<?, ?> portData: portDataList) {
+        for (org.midonet.cluster.data.Port<?, ?> portData:
+                portDataList.getValue()) {
             Port port = PortFactory.convertToApiPort(portData);
             port.setBaseUri(getBaseUri());
             ports.add(port);
         }
 
-        return ports;
+        return Response.ok(new GenericEntity<List<Port>>(ports) {})
+                       .tag(tag).build();
     }
 
     @GET
     @RolesAllowed({ AuthRole.ADMIN })
     @Produces({ VendorMediaType.APPLICATION_PORT_COLLECTION_JSON })
-    public List<Port> listV1()
+    public Response listV1()
             throws StateAccessException, SerializationException {
-        List<org.midonet.cluster.data.Port<?, ?>> portDataList =
-                dataClient.portsGetAll();
+        ReadCache.Entry<List<org.midonet.cluster.data.Port<?, ?>>>
+                portDataList = cache.ports();
+        EntityTag tag = portDataList.tag(1, getBaseUri());
+        Response notModified =
+                ResponseUtils.buildNotModifiedResponse(request, tag);
+        if (notModified != null) {
+            return notModified;
+        }
+
         List<Port> ports = new ArrayList<>();
-        for (org.midonet.cluster.data.Port<?, ?> portData: portDataList) {
+        for (org.midonet.cluster.data.Port<?, ?> portData:
+                portDataList.getValue()) {
             Port port = PortFactory.convertToApiPortV1(portData);
             port.setBaseUri(getBaseUri());
             ports.add(port);
         }
 
-        return ports;
+        return Response.ok(new GenericEntity<List<Port>>(ports) {})
+                       .tag(tag).build();
     }
 
     /**
@@ -363,18 +405,24 @@ public class PortResource extends AbstractResource {
 
         private final UUID bridgeId;
         private final BridgeAuthorizer authorizer;
+        private final Request request;
+        private final ReadCache cache;
 
         @Inject
         public BridgePortResource(RestApiConfig config,
                                   UriInfo uriInfo,
                                   SecurityContext context,
+                                  Request request,
                                   BridgeAuthorizer authorizer,
                                   Validator validator,
                                   DataClient dataClient,
+                                  ReadCache cache,
                                   @Assisted UUID bridgeId) {
             super(config, uriInfo, context, dataClient, validator);
             this.authorizer = authorizer;
             this.bridgeId = bridgeId;
+            this.request = request;
+            this.cache = cache;
         }
 
         private Response handleCreatePort(BridgePort port)
@@ -467,7 +515,7 @@ public class PortResource extends AbstractResource {
         @PermitAll
         @Produces({ VendorMediaType.APPLICATION_PORT_COLLECTION_JSON,
                 MediaType.APPLICATION_JSON })
-        public List<Port> listV1()
+        public Response listV1()
                 throws SerializationException, StateAccessException {
 
             if (!authorizer.authorize(context, AuthAction.READ, bridgeId)) {
@@ -475,16 +523,24 @@ public class PortResource extends AbstractResource {
                         "Not authorized to view these ports.");
             }
 
-            List<org.midonet.cluster.data.ports.BridgePort> portDataList =
-                    dataClient.portsFindByBridge(bridgeId);
-            List<Port> ports = new ArrayList<>(portDataList.size());
+            ReadCache.Entry<List<org.midonet.cluster.data.ports.BridgePort>>
+                    portDataList = cache.bridgePorts(bridgeId);
+            EntityTag tag = portDataList.tag(1, getBaseUri());
+            Response notModified =
+                    ResponseUtils.buildNotModifiedResponse(request, tag);
+            if (notModified != null) {
+                return notModified;
+            }
+
+            List<Port> ports = new ArrayList<>(portDataList.getValue().size());
             for (org.midonet.cluster.data.ports.BridgePort portData :
-                    portDataList) {
+                    portDataList.getValue()) {
                 Port port = PortFactory.convertToApiPortV1(portData);
                 port.setBaseUri(getBaseUri());
                 ports.add(port);
             }
-            return ports;
+            return Response.ok(new GenericEntity<List<Port>>(ports) {})
+                           .tag(tag).build();
         }
 
         /**
@@ -497,7 +553,7 @@ public class PortResource extends AbstractResource {
         @GET
         @PermitAll
         @Produces({ VendorMediaType.APPLICATION_PORT_V2_COLLECTION_JSON })
-        public List<Port> list()
+        public Response list()
                 throws StateAccessException, SerializationException {
 
             if (!authorizer.authorize(context, AuthAction.READ, bridgeId)) {
@@ -505,16 +561,24 @@ public class PortResource extends AbstractResource {
                         "Not authorized to view these ports.");
             }
 
-            List<org.midonet.cluster.data.ports.BridgePort> portDataList =
-                    dataClient.portsFindByBridge(bridgeId);
-            List<Port> ports = new ArrayList<>(portDataList.size());
+            ReadCache.Entry<List<org.midonet.cluster.data.ports.BridgePort>>
+                    portDataList = cache.bridgePorts(bridgeId);
+            EntityTag tag = portDataList.tag(2, getBaseUri());
+            Response notModified =
+                    ResponseUtils.buildNotModifiedResponse(request, tag);
+            if (notModified != null) {
+                return notModified;
+            }
+
+            List<Port> ports = new ArrayList<>(portDataList.getValue().size());
             for (org.midonet.cluster.data.ports.BridgePort portData :
-                portDataList) {
+                portDataList.getValue()) {
                 Port port = PortFactory.convertToApiPort(portData);
                 port.setBaseUri(getBaseUri());
                 ports.add(port);
             }
-            return ports;
+            return Response.ok(new GenericEntity<List<Port>>(ports) {})
+                           .tag(tag).build();
         }
     }
 
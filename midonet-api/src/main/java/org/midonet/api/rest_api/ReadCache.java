@@ -0,0 +1,526 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.rest_api;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ws.rs.core.EntityTag;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.cluster.DataClient;
+import org.midonet.cluster.data.Bridge;
+import org.midonet.cluster.data.Port;
+import org.midonet.cluster.data.ports.BridgePort;
+import org.midonet.midolman.serialization.SerializationException;
+import org.midonet.midolman.state.Directory;
+import org.midonet.midolman.state.PathBuilder;
+import org.midonet.midolman.state.StateAccessException;
+import org.midonet.midolman.state.ZkManager;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/**
+ * A cache of the topology read by the API, so that clients polling the API
+ * don't keep reading the same objects from ZooKeeper.
+ *
+ * An entry is loaded on the first read of its key, and dropped as soon as
+ * any of the ZooKeeper nodes it was read from changes. Before loading an
+ * entry, the cache leaves a watch on each of those nodes, and waits for the
+ * watches to be set, so that a change made while the entry loads isn't
+ * missed. The nodes of an entry are those given by its Dependencies: single
+ * nodes, and directories whose children are also watched. The watches are
+ * shared by all the entries depending on the same node. Once the cache holds
+ * as many entries as configured, loading a new one evicts the least recently
+ * used ones.
+ *
+ * Writes made through the API drop every entry, see ReadCacheFilter, so
+ * that a client reads its own writes without waiting for the watches.
+ *
+ * Each entry gets a version, unique to the entry and this instance of the
+ * API, from which the resources make the ETags of their responses. The
+ * cached objects are shared by the requests, and must not be modified.
+ */
+@Singleton
+public class ReadCache {
+
+    private final static Logger log = LoggerFactory.getLogger(ReadCache.class);
+
+    /** Loads the value of an entry. */
+    public interface Loader<T> {
+        T load() throws StateAccessException, SerializationException;
+    }
+
+    /** The ZooKeeper nodes an entry is read from. */
+    public static class Dependencies {
+        private final List<String> nodes = new ArrayList<>();
+        private final List<String> dirs = new ArrayList<>();
+        private final List<String> parents = new ArrayList<>();
+
+        /** The entry is read from the node at path. */
+        public Dependencies node(String path) {
+            nodes.add(path);
+            return this;
+        }
+
+        /** The entry is read from the children of the node at dir, that
+         *  name the nodes under parent that the entry is read from too. */
+        public Dependencies children(String dir, String parent) {
+            dirs.add(dir);
+            parents.add(parent);
+            return this;
+        }
+    }
+
+    public static class Entry<T> {
+        private final T value;
+        private final String version;
+
+        private Entry(T value, String version) {
+            this.value = value;
+            this.version = version;
+        }
+
+        /** The cached value, null if there's none. */
+        public T getValue() {
+            return value;
+        }
+
+        /**
+         * The entity tag of a representation of this entry, where variant
+         * tells apart the representations of the same entry, such as those
+         * of different versions of a media type or of different base URIs.
+         */
+        public EntityTag tag(Object... variant) {
+            return new EntityTag(version + "-" +
+                Integer.toHexString(Arrays.hashCode(variant)));
+        }
+    }
+
+    /** A watch left on a node, and the keys of the entries it guards. */
+    private static class Watch {
+        final ConcurrentMap<String, Watch> watches;
+        final String path;
+        // The placeholder of the entry that sets the watch
+        final Object creator;
+        final Set<String> keys = new HashSet<>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        volatile boolean failed = false;
+        boolean fired = false;
+
+        Watch(ConcurrentMap<String, Watch> watches, String path,
+              Object creator) {
+            this.watches = watches;
+            this.path = path;
+            this.creator = creator;
+        }
+
+        void set() {
+            latch.countDown();
+        }
+
+        boolean isSet() {
+            return latch.getCount() == 0;
+        }
+
+        /** Waits until the watch is set, returning whether it was. */
+        boolean await() throws InterruptedException {
+            latch.await();
+            return !failed;
+        }
+    }
+
+    private final DataClient dataClient;
+    private final ZkManager zk;
+    private final PathBuilder paths;
+    private final int maxEntries;
+
+    private final ConcurrentMap<String, Entry<?>> entries;
+    private final ConcurrentMap<String, Watch> nodeWatches =
+        new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Watch> childWatches =
+        new ConcurrentHashMap<>();
+    private final Directory.TypedWatcher watcher = new Invalidator();
+
+    private final String epoch =
+        Long.toHexString(System.currentTimeMillis());
+    private final AtomicLong versions = new AtomicLong();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter invalidations;
+    private final Counter evictions;
+
+    @Inject
+    public ReadCache(DataClient dataClient, ZkManager zk, PathBuilder paths,
+                     RestApiConfig config, MetricRegistry metrics) {
+        this.dataClient = dataClient;
+        this.zk = zk;
+        this.paths = paths;
+        this.maxEntries = config.getReadCacheSize();
+
+        hits = metrics.counter(name(ReadCache.class, "hits"));
+        misses = metrics.counter(name(ReadCache.class, "misses"));
+        invalidations = metrics.counter(name(ReadCache.class, "invalidations"));
+        evictions = metrics.counter(name(ReadCache.class, "evictions"));
+        entries = CacheBuilder.newBuilder()
+            .maximumSize(Math.max(0, maxEntries))
+            .removalListener(new RemovalListener<String, Entry<?>>() {
+                @Override
+                public void onRemoval(
+                        RemovalNotification<String, Entry<?>> notification) {
+                    if (notification.wasEvicted())
+                        evictions.inc();
+                }
+            })
+            .<String, Entry<?>>build().asMap();
+        metrics.register(name(ReadCache.class, "hitRatio"), new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount(),
+                                hits.getCount() + misses.getCount());
+            }
+        });
+        metrics.register(name(ReadCache.class, "entries"), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return entries.size();
+            }
+        });
+    }
+
+    public Entry<Port<?, ?>> port(final UUID id)
+            throws StateAccessException, SerializationException {
+        return get("port/" + id,
+            new Dependencies().node(paths.getPortPath(id)),
+            new Loader<Port<?, ?>>() {
+                @Override
+                public Port<?, ?> load()
+                        throws StateAccessException, SerializationException {
+                    return dataClient.portsGet(id);
+                }
+            });
+    }
+
+    public Entry<List<Port<?, ?>>> ports()
+            throws StateAccessException, SerializationException {
+        return get("ports",
+            new Dependencies().children(paths.getPortsPath(),
+                                        paths.getPortsPath()),
+            new Loader<List<Port<?, ?>>>() {
+                @Override
+                public List<Port<?, ?>> load()
+                        throws StateAccessException, SerializationException {
+                    return dataClient.portsGetAll();
+                }
+            });
+    }
+
+    public Entry<List<BridgePort>> bridgePorts(final UUID bridgeId)
+            throws StateAccessException, SerializationException {
+        return get("bridge/" + bridgeId + "/ports",
+            new Dependencies()
+                .children(paths.getBridgePortsPath(bridgeId),
+                          paths.getPortsPath())
+                .children(paths.getBridgeLogicalPortsPath(bridgeId),
+                          paths.getPortsPath()),
+            new Loader<List<BridgePort>>() {
+                @Override
+                public List<BridgePort> load()
+                        throws StateAccessException, SerializationException {
+                    return dataClient.portsFindByBridge(bridgeId);
+                }
+            });
+    }
+
+    public Entry<Bridge> bridge(final UUID id)
+            throws StateAccessException, SerializationException {
+        return get("bridge/" + id,
+            new Dependencies().node(paths.getBridgePath(id)),
+            new Loader<Bridge>() {
+                @Override
+                public Bridge load()
+                        throws StateAccessException, SerializationException {
+                    return dataClient.bridgesGet(id);
+                }
+            });
+    }
+
+    public Entry<List<Bridge>> bridges()
+            throws StateAccessException, SerializationException {
+        return get("bridges",
+            new Dependencies().children(paths.getBridgesPath(),
+                                        paths.getBridgesPath()),
+            new Loader<List<Bridge>>() {
+                @Override
+                public List<Bridge> load()
+                        throws StateAccessException, SerializationException {
+                    return dataClient.bridgesGetAll();
+                }
+            });
+    }
+
+    /**
+     * Gets the entry of a key, loading it if it isn't cached. A null value
+     * isn't cached, nor is a value that changed or was evicted while being
+     * loaded.
+     */
+    public <T> Entry<T> get(String key, Dependencies deps, Loader<T> loader)
+            throws StateAccessException, SerializationException {
+        Entry<?> cached = entries.get(key);
+        if (cached != null && cached.version != null) {
+            hits.inc();
+            @SuppressWarnings("unchecked")
+            Entry<T> entry = (Entry<T>) cached;
+            return entry;
+        }
+        misses.inc();
+
+        // The placeholder stays in place until the value is loaded, unless
+        // the entry is invalidated in the meantime
+        Entry<T> loading = new Entry<>(null, null);
+        if (maxEntries <= 0 || !watch(key, deps, loading))
+            return newEntry(loader.load());
+
+        Entry<T> entry;
+        try {
+            entry = newEntry(loader.load());
+        } catch (StateAccessException | SerializationException |
+                 RuntimeException e) {
+            entries.remove(key, loading);
+            throw e;
+        }
+        if (entry.value == null)
+            entries.remove(key, loading);
+        else if (!entries.replace(key, loading, entry))
+            log.debug("Entry {} changed while being loaded", key);
+        return entry;
+    }
+
+    /** Drops every entry. */
+    public void invalidateAll() {
+        invalidations.inc(entries.size());
+        entries.clear();
+    }
+
+    /** The number of cached entries, including those being loaded. */
+    public int size() {
+        return entries.size();
+    }
+
+    private <T> Entry<T> newEntry(T value) {
+        return new Entry<>(
+            value, epoch + "-" + Long.toHexString(versions.incrementAndGet()));
+    }
+
+    /**
+     * Puts the placeholder of an entry, and leaves watches on the nodes of
+     * the entry, waiting for them to be set. Returns false if the entry
+     * can't be cached: it's being loaded already, a node doesn't exist, or
+     * some watch failed.
+     */
+    private boolean watch(String key, Dependencies deps, Entry<?> loading) {
+        if (entries.putIfAbsent(key, loading) != null)
+            return false;
+
+        List<Watch> watches = new ArrayList<>();
+        boolean set = false;
+        try {
+            for (String path : deps.nodes) {
+                Watch watch = join(nodeWatches, path, key, loading);
+                watches.add(watch);
+                if (watch.creator == loading) {
+                    zk.get(path, watcher);
+                    watch.set();
+                }
+            }
+
+            for (int i = 0; i < deps.dirs.size(); i++) {
+                String dir = deps.dirs.get(i);
+                Watch watch = join(childWatches, dir, key, loading);
+                watches.add(watch);
+                Set<String> children;
+                if (watch.creator == loading) {
+                    children = zk.getChildren(dir, watcher);
+                    watch.set();
+                } else if (watch.await()) {
+                    // Only list the children once the watch is set, or the
+                    // new ones could be left without a watch
+                    children = zk.getChildren(dir);
+                } else {
+                    return false;
+                }
+
+                List<Watch> toSet = new ArrayList<>();
+                for (String child : children) {
+                    Watch childWatch = join(nodeWatches,
+                        deps.parents.get(i) + "/" + child, key, loading);
+                    watches.add(childWatch);
+                    if (childWatch.creator == loading)
+                        toSet.add(childWatch);
+                }
+                setAll(toSet);
+            }
+
+            for (Watch watch : watches) {
+                if (!watch.await())
+                    return false;
+            }
+            set = true;
+        } catch (StateAccessException e) {
+            log.debug("Failed to watch the nodes of {}", key, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            // Those waiting for the watches left unset don't wait forever
+            for (Watch watch : watches) {
+                if (watch.creator == loading && !watch.isSet())
+                    fail(watch);
+            }
+            if (!set)
+                entries.remove(key, loading);
+        }
+        return entries.get(key) == loading;
+    }
+
+    /**
+     * Adds a key to the watch of a path, creating it if there's none, in
+     * which case the caller sets the watch.
+     */
+    private Watch join(ConcurrentMap<String, Watch> watches, String path,
+                       String key, Object creator) {
+        while (true) {
+            Watch watch = new Watch(watches, path, creator);
+            watch.keys.add(key);
+            Watch existing = watches.putIfAbsent(path, watch);
+            if (existing == null)
+                return watch;
+            synchronized (existing) {
+                if (!existing.fired) {
+                    existing.keys.add(key);
+                    return existing;
+                }
+            }
+            // The watch fired meanwhile, and is being removed
+            watches.remove(path, existing);
+        }
+    }
+
+    /** Sets the watches on several nodes with pipelined reads. */
+    private void setAll(List<Watch> watches) throws StateAccessException {
+        if (watches.isEmpty())
+            return;
+        List<String> nodes = new ArrayList<>(watches.size());
+        for (Watch watch : watches)
+            nodes.add(watch.path);
+        Map<String, byte[]> read = zk.getAll(nodes, watcher);
+        for (Watch watch : watches) {
+            // A node deleted since listing its parent is left without a
+            // watch, the watch on the parent covers its deletion
+            if (read.containsKey(watch.path))
+                watch.set();
+            else
+                fail(watch);
+        }
+    }
+
+    private void fail(Watch watch) {
+        watch.failed = true;
+        fire(watch);
+        watch.set();
+    }
+
+    private void fire(Map<String, Watch> watches, String path) {
+        Watch watch = watches.get(path);
+        if (watch != null)
+            fire(watch);
+    }
+
+    private void fire(Watch watch) {
+        watch.watches.remove(watch.path, watch);
+        List<String> keys;
+        synchronized (watch) {
+            watch.fired = true;
+            keys = new ArrayList<>(watch.keys);
+        }
+        for (String key : keys) {
+            if (entries.remove(key) != null)
+                invalidations.inc();
+        }
+    }
+
+    /** Drops the entries of the nodes that changed. */
+    private class Invalidator implements Directory.TypedWatcher {
+        @Override
+        public void pathDeleted(String path) {
+            fire(nodeWatches, path);
+            fire(childWatches, path);
+        }
+
+        @Override
+        public void pathCreated(String path) {
+            fire(nodeWatches, path);
+        }
+
+        @Override
+        public void pathChildrenUpdated(String path) {
+            fire(childWatches, path);
+        }
+
+        @Override
+        public void pathDataChanged(String path) {
+            fire(nodeWatches, path);
+        }
+
+        @Override
+        public void connectionStateChanged(Watcher.Event.KeeperState state) {
+            // Changes may be missed while disconnected, and the watches are
+            // gone with an expired session
+            if (state == Watcher.Event.KeeperState.Expired) {
+                nodeWatches.clear();
+                childWatches.clear();
+            }
+            if (state != Watcher.Event.KeeperState.SyncConnected)
+                invalidateAll();
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+}
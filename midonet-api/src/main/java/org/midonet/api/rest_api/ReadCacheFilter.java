@@ -0,0 +1,61 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.rest_api;
+
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+
+/**
+ * Response filter dropping the entries of the read cache once a request
+ * that may have written to the topology is served, before the response
+ * is sent, so that the reads following it see the write even before the
+ * ZooKeeper watches of the cache fire.
+ *
+ * The filter also adds a Vary: Accept header to the responses carrying an
+ * ETag, as the tag of a resource depends on the version of its media type,
+ * so that caches don't serve one version for another.
+ */
+@Singleton
+public class ReadCacheFilter implements ContainerResponseFilter {
+
+    private final ReadCache cache;
+
+    @Inject
+    public ReadCacheFilter(ReadCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request,
+                                    ContainerResponse response) {
+        String method = request.getMethod();
+        if (!method.equals("GET") && !method.equals("HEAD") &&
+            !method.equals("OPTIONS")) {
+            cache.invalidateAll();
+        }
+        MultivaluedMap<String, Object> headers = response.getHttpHeaders();
+        if (headers.containsKey(HttpHeaders.ETAG)) {
+            headers.add(HttpHeaders.VARY, HttpHeaders.ACCEPT);
+        }
+        return response;
+    }
+}
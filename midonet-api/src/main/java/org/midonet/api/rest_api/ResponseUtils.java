@@ -33,6 +33,8 @@ import java.util.Map;
 import java.util.Set;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.ConstraintViolation;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
 
 /**
@@ -98,6 +100,23 @@ public class ResponseUtils {
                 .type(VendorMediaType.APPLICATION_ERROR_JSON).build();
     }
 
+    /**
+     * Generate the response to a conditional GET if the client has the
+     * representation with the given tag already.
+     *
+     * @param request
+     *            The request, with its If-None-Match header.
+     * @param tag
+     *            The tag of the current representation.
+     * @return A 304 Not Modified response, or null if the client doesn't
+     *         have the current representation.
+     */
+    public static Response buildNotModifiedResponse(Request request,
+                                                    EntityTag tag) {
+        Response.ResponseBuilder response = request.evaluatePreconditions(tag);
+        return (response == null) ? null : response.tag(tag).build();
+    }
+
     public static String generateJsonError(int code, String msg)
             throws IOException {
         ErrorEntity err = new ErrorEntity();
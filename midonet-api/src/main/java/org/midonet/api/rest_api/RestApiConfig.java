@@ -16,6 +16,7 @@
 package org.midonet.api.rest_api;
 
 import org.midonet.config.ConfigGroup;
+import org.midonet.config.ConfigInt;
 import org.midonet.config.ConfigString;
 
 /**
@@ -28,7 +29,14 @@ public interface RestApiConfig {
 
     String BASE_URI = "base_uri";
 
+    String READ_CACHE_SIZE = "read_cache_size";
+
     @ConfigString(key = BASE_URI)
     String getBaseUri();
 
+    /** The most entries in the cache of the topology read by the API, zero
+     *  to disable it. */
+    @ConfigInt(key = READ_CACHE_SIZE, defaultValue = 10000)
+    int getReadCacheSize();
+
 }
@@ -15,6 +15,7 @@
  */
 package org.midonet.api.rest_api;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.assistedinject.FactoryModuleBuilder;
@@ -44,6 +45,10 @@ public class RestApiModule extends AbstractModule {
 
         bindVtepDataClientFactory(); // allow mocking
 
+        bind(MetricRegistry.class).toInstance(new MetricRegistry());
+        bind(ReadCache.class);
+        bind(ReadCacheFilter.class);
+
         bind(ApplicationResource.class);
         install(new FactoryModuleBuilder().build(ResourceFactory.class));
 
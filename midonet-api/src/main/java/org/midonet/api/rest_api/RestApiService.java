@@ -15,6 +15,8 @@
  */
 package org.midonet.api.rest_api;
 
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.util.concurrent.AbstractService;
 import com.google.inject.Inject;
 
@@ -32,10 +34,13 @@ public class RestApiService  extends AbstractService {
             RestApiService.class);
 
     private final StorageService storageService;
+    private final JmxReporter jmxReporter;
 
     @Inject
-    public RestApiService(StorageService storageService) {
+    public RestApiService(StorageService storageService,
+                          MetricRegistry metrics) {
         this.storageService = storageService;
+        this.jmxReporter = JmxReporter.forRegistry(metrics).build();
     }
 
     @Override
@@ -44,6 +49,7 @@ public class RestApiService  extends AbstractService {
 
         try {
             storageService.startAsync().awaitRunning();
+            jmxReporter.start();
             notifyStarted();
         } catch (Exception e) {
             log.error("Exception while starting service", e);
@@ -58,6 +64,7 @@ public class RestApiService  extends AbstractService {
         log.info("doStop: entered");
 
         try {
+            jmxReporter.stop();
             storageService.stopAsync().awaitTerminated();
             notifyStopped();
         } catch (Exception e) {
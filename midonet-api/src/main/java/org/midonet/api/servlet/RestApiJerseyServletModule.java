@@ -41,6 +41,7 @@ import org.midonet.api.error.ErrorModule;
 import org.midonet.api.error.ExceptionFilter;
 import org.midonet.api.network.NetworkModule;
 import org.midonet.api.neutron.NeutronRestApiModule;
+import org.midonet.api.rest_api.ReadCacheFilter;
 import org.midonet.api.rest_api.RestApiModule;
 import org.midonet.api.serialization.SerializationModule;
 import org.midonet.api.validation.ValidationModule;
@@ -70,6 +71,7 @@ public class RestApiJerseyServletModule extends JerseyServletModule {
         };
 
         String[] responseFilters = new String[] {
+            ReadCacheFilter.class.getName(),
             ExceptionFilter.class.getName(),
             LoggingFilter.class.getName()
         };
@@ -18,6 +18,7 @@ package org.midonet.api.network.rest_api;
 import org.midonet.api.auth.AuthAction;
 import org.midonet.api.auth.ForbiddenHttpException;
 import org.midonet.api.network.auth.BridgeAuthorizer;
+import org.midonet.api.rest_api.ReadCache;
 import org.midonet.api.rest_api.ResourceFactory;
 import org.midonet.api.rest_api.RestApiConfig;
 import org.midonet.cluster.DataClient;
@@ -29,6 +30,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import javax.validation.Validator;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 import java.util.UUID;
@@ -61,10 +63,16 @@ public class TestBridgeResource {
     @Mock(answer = Answers.RETURNS_SMART_NULLS)
     private DataClient dataClient;
 
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private Request request;
+
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private ReadCache cache;
+
     @Before
     public void setUp() throws Exception {
-        testObject = new BridgeResource(config, uriInfo, context, auth,
-                validator, dataClient, factory);
+        testObject = new BridgeResource(config, uriInfo, context, request,
+                auth, validator, dataClient, cache, factory);
     }
 
     @Test(expected = ForbiddenHttpException.class)
@@ -19,6 +19,7 @@ import org.midonet.api.auth.ForbiddenHttpException;
 import org.midonet.api.network.ExteriorRouterPort;
 import org.midonet.api.network.RouterPort;
 import org.midonet.api.rest_api.NotFoundHttpException;
+import org.midonet.api.rest_api.ReadCache;
 import org.midonet.api.rest_api.ResourceFactory;
 import org.midonet.api.auth.AuthAction;
 import org.midonet.api.network.auth.PortAuthorizer;
@@ -33,6 +34,7 @@ import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
 import javax.validation.Validator;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 import java.util.UUID;
@@ -68,10 +70,16 @@ public class TestPortResource {
     @Mock(answer = Answers.RETURNS_SMART_NULLS)
     private DataClient dataClient;
 
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private Request request;
+
+    @Mock(answer = Answers.RETURNS_SMART_NULLS)
+    private ReadCache cache;
+
     @Before
     public void setUp() throws Exception {
-        testObject = new PortResource(config, uriInfo, context, auth, validator,
-                 dataClient, factory, null);
+        testObject = new PortResource(config, uriInfo, context, request, auth,
+                 validator, dataClient, cache, factory, null);
     }
 
     @Test(expected = ForbiddenHttpException.class)
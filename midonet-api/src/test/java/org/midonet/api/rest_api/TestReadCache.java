@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.api.rest_api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.codahale.metrics.MetricRegistry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.midonet.cluster.DataClient;
+import org.midonet.midolman.state.MockDirectory;
+import org.midonet.midolman.state.PathBuilder;
+import org.midonet.midolman.state.StateAccessException;
+import org.midonet.midolman.state.ZkManager;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+
+public class TestReadCache {
+
+    private static final String NODES = "/nodes";
+
+    private ZkManager zk;
+    private MetricRegistry metrics;
+    private ReadCache cache;
+    private int loads;
+
+    @Before
+    public void setUp() throws Exception {
+        zk = new ZkManager(new MockDirectory(), "");
+        zk.addPersistent(NODES, null);
+        zk.addPersistent(NODES + "/a", "a0".getBytes());
+        zk.addPersistent(NODES + "/b", "b0".getBytes());
+
+        RestApiConfig config = mock(RestApiConfig.class);
+        doReturn(100).when(config).getReadCacheSize();
+        metrics = new MetricRegistry();
+        cache = new ReadCache(mock(DataClient.class), zk, new PathBuilder(""),
+                              config, metrics);
+        loads = 0;
+    }
+
+    private ReadCache.Entry<String> node(String name) throws Exception {
+        final String path = NODES + "/" + name;
+        return cache.get(path, new ReadCache.Dependencies().node(path),
+            new ReadCache.Loader<String>() {
+                @Override
+                public String load() throws StateAccessException {
+                    loads++;
+                    return zk.exists(path) ? new String(zk.get(path)) : null;
+                }
+            });
+    }
+
+    private ReadCache.Entry<List<String>> nodes() throws Exception {
+        return cache.get(NODES, new ReadCache.Dependencies().children(NODES,
+                                                                      NODES),
+            new ReadCache.Loader<List<String>>() {
+                @Override
+                public List<String> load() throws StateAccessException {
+                    loads++;
+                    List<String> names = new ArrayList<>(zk.getChildren(NODES));
+                    Collections.sort(names);
+                    List<String> values = new ArrayList<>();
+                    for (String name : names) {
+                        values.add(new String(zk.get(NODES + "/" + name)));
+                    }
+                    return values;
+                }
+            });
+    }
+
+    private long count(String counter) {
+        return metrics.getCounters()
+                      .get(MetricRegistry.name(ReadCache.class, counter))
+                      .getCount();
+    }
+
+    @Test
+    public void testReadsAreCached() throws Exception {
+        ReadCache.Entry<String> first = node("a");
+        ReadCache.Entry<String> second = node("a");
+
+        assertThat(second.getValue(), equalTo("a0"));
+        assertThat(loads, equalTo(1));
+        assertThat(second.tag("v2"), equalTo(first.tag("v2")));
+        assertThat(second.tag("v2"), not(equalTo(first.tag("v1"))));
+        assertThat(count("hits"), equalTo(1L));
+        assertThat(count("misses"), equalTo(1L));
+    }
+
+    @Test
+    public void testChangedNodeIsReloaded() throws Exception {
+        ReadCache.Entry<String> before = node("a");
+        zk.update(NODES + "/a", "a1".getBytes());
+        ReadCache.Entry<String> after = node("a");
+
+        assertThat(after.getValue(), equalTo("a1"));
+        assertThat(loads, equalTo(2));
+        assertThat(after.tag(), not(equalTo(before.tag())));
+        assertThat(count("invalidations"), equalTo(1L));
+
+        // The watch is set again
+        zk.update(NODES + "/a", "a2".getBytes());
+        assertThat(node("a").getValue(), equalTo("a2"));
+    }
+
+    @Test
+    public void testMissingNodeIsNotCached() throws Exception {
+        assertThat(node("c").getValue(), nullValue());
+        zk.addPersistent(NODES + "/c", "c0".getBytes());
+        assertThat(node("c").getValue(), equalTo("c0"));
+        assertThat(loads, equalTo(2));
+    }
+
+    @Test
+    public void testCollectionFollowsItsMembers() throws Exception {
+        assertThat(nodes().getValue(), contains("a0", "b0"));
+        assertThat(nodes().getValue(), contains("a0", "b0"));
+        assertThat(loads, equalTo(1));
+
+        // A member changes
+        zk.update(NODES + "/b", "b1".getBytes());
+        assertThat(nodes().getValue(), contains("a0", "b1"));
+
+        // A member is added
+        zk.addPersistent(NODES + "/c", "c0".getBytes());
+        assertThat(nodes().getValue(), contains("a0", "b1", "c0"));
+
+        // The new member is watched too
+        zk.update(NODES + "/c", "c1".getBytes());
+        assertThat(nodes().getValue(), contains("a0", "b1", "c1"));
+
+        // A member is deleted
+        zk.delete(NODES + "/a");
+        assertThat(nodes().getValue(), contains("b1", "c1"));
+        assertThat(loads, equalTo(5));
+    }
+
+    @Test
+    public void testWatchesAreShared() throws Exception {
+        node("a");
+        nodes();
+        zk.update(NODES + "/a", "a1".getBytes());
+
+        assertThat(node("a").getValue(), equalTo("a1"));
+        assertThat(nodes().getValue(), contains("a1", "b0"));
+        assertThat(loads, equalTo(4));
+    }
+
+    @Test
+    public void testInvalidateAll() throws Exception {
+        node("a");
+        nodes();
+        cache.invalidateAll();
+        assertThat(cache.size(), equalTo(0));
+
+        node("a");
+        nodes();
+        assertThat(loads, equalTo(4));
+    }
+
+    @Test
+    public void testDisabledCache() throws Exception {
+        RestApiConfig config = mock(RestApiConfig.class);
+        doReturn(0).when(config).getReadCacheSize();
+        cache = new ReadCache(mock(DataClient.class), zk, new PathBuilder(""),
+                              config, new MetricRegistry());
+
+        node("a");
+        node("a");
+        assertThat(loads, equalTo(2));
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void testFullCacheEvicts() throws Exception {
+        RestApiConfig config = mock(RestApiConfig.class);
+        doReturn(1).when(config).getReadCacheSize();
+        metrics = new MetricRegistry();
+        cache = new ReadCache(mock(DataClient.class), zk, new PathBuilder(""),
+                              config, metrics);
+
+        node("a");
+        node("b");
+        node("b");
+        assertThat(loads, equalTo(2));
+        assertThat(cache.size(), equalTo(1));
+
+        node("a");
+        assertThat(loads, equalTo(3));
+        assertThat(cache.size(), equalTo(1));
+        assertThat(count("evictions"), equalTo(2L));
+    }
+}
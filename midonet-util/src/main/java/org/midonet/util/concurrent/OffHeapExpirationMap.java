@@ -0,0 +1,470 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import scala.Function1;
+import scala.concurrent.duration.Duration;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.midonet.util.collection.Reducer;
+
+/**
+ * An ExpirationMap that keeps its entries outside of the Java heap, so that
+ * tables with millions of entries don't weigh on the old generation and on
+ * GC pauses.
+ *
+ * Keys and values are serialized by a Codec into fixed-size slots of an open
+ * addressing, linear probing hash table held in a direct ByteBuffer. Lookups
+ * serialize the key into a scratch area and compare bytes, so the key type
+ * doesn't need to implement hashCode() or equals(), and only the values (and
+ * the keys, when folding or expiring) are materialized as objects.
+ *
+ * Entries whose reference count drops to 0 are appended to an intrusive,
+ * doubly linked expiration list threaded through the slots. There is one list
+ * per distinct expiration delay, so each list is ordered by expiration time
+ * and obliterateIdleEntries() only visits expired entries. A new reference
+ * unlinks the entry from its list in constant time.
+ *
+ * Operations are serialized on the map's monitor. Each map is expected to be
+ * mostly used by a single thread, with occasional reads and unrefs coming
+ * from other threads. Since an expiring entry is removed while the monitor is
+ * held, the reducer passed to obliterateIdleEntries() happens-before any
+ * subsequent insertion of the same key.
+ */
+public final class OffHeapExpirationMap<K, V> implements ExpirationMap<K, V> {
+
+    /**
+     * Serializes keys and values into fixed-size areas of a slot.
+     */
+    public interface Codec<K, V> {
+        int keySize();
+
+        int valueSize();
+
+        void writeKey(K key, ByteBuffer buf, int offset);
+
+        K readKey(ByteBuffer buf, int offset);
+
+        void writeValue(V value, ByteBuffer buf, int offset);
+
+        V readValue(ByteBuffer buf, int offset);
+    }
+
+    private static final Logger log =
+        LoggerFactory.getLogger(OffHeapExpirationMap.class);
+
+    private static final int NONE = -1;
+
+    private static final int FREE = 0;
+    private static final int LIVE = 1;
+    private static final int DELETED = 2;
+
+    /* Slot layout: a header followed by the key and the value. */
+    private static final int STATE = 0;
+    private static final int REF_COUNT = 4;
+    private static final int HASH = 8;
+    private static final int PREV = 12;
+    private static final int NEXT = 16;
+    private static final int LIST = 20;
+    private static final int EXPIRATION = 24;
+    private static final int HEADER_SIZE = 32;
+
+    private final Codec<K, V> codec;
+    private final Function1<K, Duration> expirationFor;
+    private final int keySize;
+    private final int valueOffset;
+    private final int slotSize;
+    private final int maxCapacity;
+
+    private final ByteBuffer scratch;
+    private int scratchHash;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int live;
+    private int deleted;
+
+    private long[] listDelays = new long[2];
+    private int[] listHeads = new int[2];
+    private int[] listTails = new int[2];
+    private int numLists;
+
+    public OffHeapExpirationMap(Codec<K, V> codec,
+                                Function1<K, Duration> expirationFor,
+                                int initialCapacity) {
+        this.codec = codec;
+        this.expirationFor = expirationFor;
+        this.keySize = codec.keySize();
+        this.valueOffset = HEADER_SIZE + align(keySize);
+        this.slotSize = valueOffset + align(codec.valueSize());
+        this.maxCapacity =
+            Integer.highestOneBit(Integer.MAX_VALUE / slotSize);
+        this.scratch = ByteBuffer.allocateDirect(align(keySize))
+                                 .order(ByteOrder.nativeOrder());
+        int cap = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+        this.capacity = Math.min(cap, maxCapacity);
+        this.slots = allocate(capacity);
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private ByteBuffer allocate(int numSlots) {
+        return ByteBuffer.allocateDirect(numSlots * slotSize)
+                         .order(ByteOrder.nativeOrder());
+    }
+
+    private int offsetOf(int slot) {
+        return slot * slotSize;
+    }
+
+    public synchronized int size() {
+        return live;
+    }
+
+    public synchronized int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public synchronized V putAndRef(K key, V value) {
+        int slot = find(key);
+        if (slot == NONE) {
+            slot = insert();
+            int off = offsetOf(slot);
+            slots.putInt(off + REF_COUNT, 1);
+            codec.writeValue(value, slots, off + valueOffset);
+            return null;
+        }
+
+        int off = offsetOf(slot);
+        V oldValue = codec.readValue(slots, off + valueOffset);
+        incRef(slot);
+        codec.writeValue(value, slots, off + valueOffset);
+        return oldValue;
+    }
+
+    @Override
+    public synchronized V get(K key) {
+        int slot = find(key);
+        return slot == NONE ? null
+                            : codec.readValue(slots, offsetOf(slot) + valueOffset);
+    }
+
+    @Override
+    public synchronized int getRefCount(K key) {
+        int slot = find(key);
+        return slot == NONE ? 0 : slots.getInt(offsetOf(slot) + REF_COUNT);
+    }
+
+    @Override
+    public synchronized V ref(K key) {
+        int slot = find(key);
+        if (slot == NONE)
+            return null;
+        incRef(slot);
+        return codec.readValue(slots, offsetOf(slot) + valueOffset);
+    }
+
+    @Override
+    public synchronized V unref(K key, long currentTimeMillis) {
+        int slot = find(key);
+        if (slot == NONE)
+            return null;
+
+        int off = offsetOf(slot);
+        V value = codec.readValue(slots, off + valueOffset);
+        int count = slots.getInt(off + REF_COUNT);
+        if (count <= 0) {
+            log.error("Decrement a ref count past 0 for {}", key);
+            return value;
+        }
+
+        slots.putInt(off + REF_COUNT, --count);
+        if (count == 0) {
+            long delay = expirationFor.apply(key).toMillis();
+            slots.putLong(off + EXPIRATION, currentTimeMillis + delay);
+            append(slot, listFor(delay));
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized <U> U fold(U seed, Reducer<K, V, U> func) {
+        U acc = seed;
+        for (int slot = 0; slot < capacity; slot++) {
+            int off = offsetOf(slot);
+            if (slots.getInt(off + STATE) == LIVE) {
+                acc = func.apply(acc, codec.readKey(slots, off + HEADER_SIZE),
+                                 codec.readValue(slots, off + valueOffset));
+            }
+        }
+        return acc;
+    }
+
+    @Override
+    public void obliterateIdleEntries(long currentTimeMillis) {
+        obliterateIdleEntries(currentTimeMillis, null,
+                              new Reducer<K, V, Object>() {
+                                  @Override
+                                  public Object apply(Object acc, K key,
+                                                      V value) {
+                                      return acc;
+                                  }
+                              });
+    }
+
+    @Override
+    public <U> U obliterateIdleEntries(long currentTimeMillis, U seed,
+                                       Reducer<K, V, U> reducer) {
+        return obliterateIdleEntries(currentTimeMillis, seed, reducer,
+                                     Integer.MAX_VALUE);
+    }
+
+    @Override
+    public synchronized <U> U obliterateIdleEntries(long currentTimeMillis,
+                                                    U seed,
+                                                    Reducer<K, V, U> reducer,
+                                                    int maxEntries) {
+        U acc = seed;
+        for (int list = 0; list < numLists && maxEntries > 0; list++) {
+            int slot;
+            while (maxEntries > 0 && (slot = listHeads[list]) != NONE) {
+                int off = offsetOf(slot);
+                if (slots.getLong(off + EXPIRATION) > currentTimeMillis)
+                    break;
+
+                K key = codec.readKey(slots, off + HEADER_SIZE);
+                V value = codec.readValue(slots, off + valueOffset);
+                remove(slot);
+                acc = reducer.apply(acc, key, value);
+                maxEntries--;
+            }
+        }
+        return acc;
+    }
+
+    /**
+     * Serializes the key into the scratch area and returns the slot that
+     * holds it, or NONE.
+     */
+    private int find(K key) {
+        codec.writeKey(key, scratch, 0);
+        int hash = scratchHash = hashScratch();
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        while (true) {
+            int off = offsetOf(slot);
+            int state = slots.getInt(off + STATE);
+            if (state == FREE)
+                return NONE;
+            if (state == LIVE && slots.getInt(off + HASH) == hash &&
+                    scratchEquals(off + HEADER_SIZE))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Inserts the key in the scratch area, which must not be in the map,
+     * with a reference count of 0.
+     */
+    private int insert() {
+        ensureCapacity();
+        int mask = capacity - 1;
+        int slot = scratchHash & mask;
+        while (true) {
+            int off = offsetOf(slot);
+            int state = slots.getInt(off + STATE);
+            if (state != LIVE) {
+                if (state == DELETED)
+                    deleted--;
+                live++;
+                slots.putInt(off + STATE, LIVE);
+                slots.putInt(off + REF_COUNT, 0);
+                slots.putInt(off + HASH, scratchHash);
+                slots.putInt(off + PREV, NONE);
+                slots.putInt(off + NEXT, NONE);
+                slots.putInt(off + LIST, NONE);
+                slots.putLong(off + EXPIRATION, Long.MAX_VALUE);
+                for (int i = 0; i < keySize; i++)
+                    slots.put(off + HEADER_SIZE + i, scratch.get(i));
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void remove(int slot) {
+        unlink(slot);
+        slots.putInt(offsetOf(slot) + STATE, DELETED);
+        live--;
+        deleted++;
+    }
+
+    private void incRef(int slot) {
+        int off = offsetOf(slot);
+        int count = slots.getInt(off + REF_COUNT);
+        if (count == 0) {
+            unlink(slot);
+            slots.putLong(off + EXPIRATION, Long.MAX_VALUE);
+        }
+        slots.putInt(off + REF_COUNT, count + 1);
+    }
+
+    private int hashScratch() {
+        int h = 1;
+        int i = 0;
+        for (; i + 8 <= keySize; i += 8) {
+            long word = scratch.getLong(i);
+            h = 31 * h + (int) (word ^ (word >>> 32));
+        }
+        for (; i < keySize; i++)
+            h = 31 * h + scratch.get(i);
+        // Murmur3 finalizer, the low bits pick the slot.
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private boolean scratchEquals(int keyOffset) {
+        int i = 0;
+        for (; i + 8 <= keySize; i += 8) {
+            if (scratch.getLong(i) != slots.getLong(keyOffset + i))
+                return false;
+        }
+        for (; i < keySize; i++) {
+            if (scratch.get(i) != slots.get(keyOffset + i))
+                return false;
+        }
+        return true;
+    }
+
+    /* Keeps the table at most 3/4 full, counting deleted slots, so that
+     * probing always ends at a free slot. */
+    private void ensureCapacity() {
+        if ((live + 1) * 4L > capacity * 3L) {
+            if (capacity >= maxCapacity)
+                throw new IllegalStateException(
+                    "Off-heap expiration map is full with " + live +
+                    " entries");
+            rehash(capacity * 2);
+        } else if ((live + deleted + 1) * 4L > capacity * 3L) {
+            rehash(capacity);
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        ByteBuffer fresh = allocate(newCapacity);
+        int mask = newCapacity - 1;
+        int[] moved = new int[capacity];
+        for (int slot = 0; slot < capacity; slot++) {
+            int off = offsetOf(slot);
+            if (slots.getInt(off + STATE) != LIVE) {
+                moved[slot] = NONE;
+                continue;
+            }
+            int newSlot = slots.getInt(off + HASH) & mask;
+            while (fresh.getInt(newSlot * slotSize + STATE) == LIVE)
+                newSlot = (newSlot + 1) & mask;
+            int newOff = newSlot * slotSize;
+            for (int i = 0; i < slotSize; i += 8)
+                fresh.putLong(newOff + i, slots.getLong(off + i));
+            moved[slot] = newSlot;
+        }
+
+        // Relink the expiration lists with the new slot numbers.
+        for (int slot = 0; slot < capacity; slot++) {
+            if (moved[slot] == NONE)
+                continue;
+            int newOff = moved[slot] * slotSize;
+            int prev = fresh.getInt(newOff + PREV);
+            int next = fresh.getInt(newOff + NEXT);
+            fresh.putInt(newOff + PREV, prev == NONE ? NONE : moved[prev]);
+            fresh.putInt(newOff + NEXT, next == NONE ? NONE : moved[next]);
+        }
+        for (int list = 0; list < numLists; list++) {
+            if (listHeads[list] != NONE) {
+                listHeads[list] = moved[listHeads[list]];
+                listTails[list] = moved[listTails[list]];
+            }
+        }
+
+        slots = fresh;
+        capacity = newCapacity;
+        deleted = 0;
+    }
+
+    private int listFor(long delay) {
+        for (int list = 0; list < numLists; list++) {
+            if (listDelays[list] == delay)
+                return list;
+        }
+        if (numLists == listDelays.length) {
+            listDelays = Arrays.copyOf(listDelays, numLists * 2);
+            listHeads = Arrays.copyOf(listHeads, numLists * 2);
+            listTails = Arrays.copyOf(listTails, numLists * 2);
+        }
+        listDelays[numLists] = delay;
+        listHeads[numLists] = NONE;
+        listTails[numLists] = NONE;
+        return numLists++;
+    }
+
+    private void append(int slot, int list) {
+        int off = offsetOf(slot);
+        int tail = listTails[list];
+        slots.putInt(off + PREV, tail);
+        slots.putInt(off + NEXT, NONE);
+        slots.putInt(off + LIST, list);
+        if (tail == NONE)
+            listHeads[list] = slot;
+        else
+            slots.putInt(offsetOf(tail) + NEXT, slot);
+        listTails[list] = slot;
+    }
+
+    private void unlink(int slot) {
+        int off = offsetOf(slot);
+        int list = slots.getInt(off + LIST);
+        if (list == NONE)
+            return;
+        int prev = slots.getInt(off + PREV);
+        int next = slots.getInt(off + NEXT);
+        if (prev == NONE)
+            listHeads[list] = next;
+        else
+            slots.putInt(offsetOf(prev) + NEXT, next);
+        if (next == NONE)
+            listTails[list] = prev;
+        else
+            slots.putInt(offsetOf(next) + PREV, prev);
+        slots.putInt(off + PREV, NONE);
+        slots.putInt(off + NEXT, NONE);
+        slots.putInt(off + LIST, NONE);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection
+
+import java.util.UUID
+
+import scala.util.hashing.MurmurHash3
+
+/**
+ * Constructs a MaglevTable for a traversable collection of objects with
+ * weights, identified by the given function.
+ *
+ * Throws an IllegalArgumentException if ts has no element with weight > 0.
+ */
+object MaglevTable {
+
+    /**
+     * Prime table sizes. A table gets the smallest one with at least
+     * SlotsPerElement slots per element, so that the share of each element
+     * stays close to its weight.
+     */
+    val Sizes = Array(1021, 4093, 16381, 65521)
+    val SlotsPerElement = 100
+
+    private val OffsetSeed = 0x4d61676c
+    private val SkipSeed = 0x65765461
+
+    def apply[T <: HasWeight](ts: Traversable[T],
+                              id: T => UUID): MaglevTable[T] = {
+        // Sorting makes the table independent of the order of ts, so that
+        // every holder of the same elements builds the same table.
+        val elems = ts.filter(_.weight > 0).toArray[HasWeight]
+                      .sortBy(t => id(t.asInstanceOf[T]))
+        if (elems.isEmpty)
+            throw new IllegalArgumentException(
+                "Ts must have at least one element with weight > 0.")
+
+        val n = elems.length
+        val size = Sizes.find(_ >= n * SlotsPerElement).getOrElse(Sizes.last)
+        val offsets = new Array[Int](n)
+        val skips = new Array[Int](n)
+        var maxWeight = 0
+        var i = 0
+        while (i < n) {
+            val elemId = id(elems(i).asInstanceOf[T])
+            offsets(i) = (hash(elemId, OffsetSeed) & Int.MaxValue) % size
+            skips(i) = (hash(elemId, SkipSeed) & Int.MaxValue) % (size - 1) + 1
+            maxWeight = math.max(maxWeight, elems(i).weight)
+            i += 1
+        }
+
+        // Each element walks its own permutation of the slots, taking the
+        // next free one in its turn. In round r, an element takes a turn
+        // while it has fewer than r * weight / maxWeight slots, so that the
+        // slots are shared in proportion to the weights.
+        val table = Array.fill(size)(-1)
+        val next = new Array[Int](n)
+        val taken = new Array[Int](n)
+        var filled = 0
+        var round = 1L
+        while (filled < size) {
+            i = 0
+            while (i < n && filled < size) {
+                if (taken(i).toLong * maxWeight < round * elems(i).weight) {
+                    var slot = 0
+                    do {
+                        slot = ((offsets(i) + next(i).toLong * skips(i)) %
+                                size).toInt
+                        next(i) += 1
+                    } while (table(slot) >= 0)
+                    table(slot) = i
+                    taken(i) += 1
+                    filled += 1
+                }
+                i += 1
+            }
+            round += 1
+        }
+        new MaglevTable[T](elems.asInstanceOf[Array[AnyRef]], table)
+    }
+
+    private def hash(id: UUID, seed: Int): Int = {
+        val msb = id.getMostSignificantBits
+        val lsb = id.getLeastSignificantBits
+        var h = MurmurHash3.mix(seed, (msb >>> 32).toInt)
+        h = MurmurHash3.mix(h, msb.toInt)
+        h = MurmurHash3.mix(h, (lsb >>> 32).toInt)
+        h = MurmurHash3.mixLast(h, lsb.toInt)
+        MurmurHash3.finalizeHash(h, 4)
+    }
+}
+
+/**
+ * Performs weighted selection by hash from a Maglev lookup table: each slot
+ * of the table holds an element, and a hash selects the element of its
+ * slot. Selection is O(1) and the same hash selects the same element for as
+ * long as the elements do not change. When an element is added or removed,
+ * most of the slots of the others keep their element, so that most hashes
+ * keep selecting the same one.
+ *
+ * Constructor is private; use companion object to create instances.
+ */
+class MaglevTable[T] private (elems: Array[AnyRef], table: Array[Int]) {
+
+    /** The number of slots of the table. */
+    val size = table.length
+
+    /**
+     * Selects the element of the slot of the given hash.
+     */
+    def select(hash: Int): T =
+        elems(table((hash & Int.MaxValue) % size)).asInstanceOf[T]
+}
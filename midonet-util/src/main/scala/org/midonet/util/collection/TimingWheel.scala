@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import java.util.ArrayDeque
+
+/**
+ * A hierarchical timing wheel, which holds keys until their deadline passes.
+ *
+ * The first level has 2^bits buckets of one tick each, and each of the
+ * following levels has 2^bits buckets that span a whole turn of the level
+ * below. Scheduling a key is a constant time operation, and the clock only
+ * visits the buckets of the ticks that elapsed: when a level completes a
+ * turn, the next bucket of the level above is cascaded into the lower levels.
+ * Deadlines beyond the reach of the top level are parked in the bucket of the
+ * top level that comes up last, and are placed again when it cascades.
+ *
+ * Deadlines are rounded up to the next tick, so a key is never handed out
+ * before its deadline, and at most one tick after it. Keys whose deadline
+ * passed are handed out one at a time by poll(), so that callers can spread
+ * a wave of deadlines falling on the same tick over several calls.
+ *
+ * Not thread-safe.
+ */
+final class TimingWheel[K <: AnyRef](tickMillis: Long,
+                                     startMillis: Long,
+                                     bits: Int = 8,
+                                     levels: Int = 4) {
+
+    require(bits > 0 && levels > 1 && bits * levels < 63)
+
+    private final class Entry(val key: K, val tick: Long)
+
+    private val slots = 1 << bits
+    private val mask = slots - 1
+
+    // Buckets are allocated the first time they are used.
+    private val wheels = Array.ofDim[ArrayDeque[Entry]](levels, slots)
+
+    private var currentTick = startMillis / tickMillis
+
+    // Entries scheduled for a tick that already passed.
+    private val overdue = new ArrayDeque[Entry]()
+    // Buckets of the first level whose tick passed.
+    private val due = new ArrayDeque[ArrayDeque[Entry]]()
+
+    private var _size = 0
+
+    /** The number of scheduled keys. */
+    def size: Int = _size
+
+    def schedule(key: K, deadlineMillis: Long): Unit = {
+        val tick = (deadlineMillis + tickMillis - 1) / tickMillis
+        insert(new Entry(key, tick))
+        _size += 1
+    }
+
+    /**
+     * Returns one of the keys whose deadline passed by nowMillis, or null if
+     * there are none.
+     */
+    def poll(nowMillis: Long): K = {
+        advance(nowMillis / tickMillis)
+        if (!overdue.isEmpty) {
+            _size -= 1
+            return overdue.poll().key
+        }
+        while (!due.isEmpty) {
+            val bucket = due.peek()
+            if (bucket.isEmpty) {
+                due.poll()
+            } else {
+                _size -= 1
+                return bucket.poll().key
+            }
+        }
+        null.asInstanceOf[K]
+    }
+
+    /* Puts an entry in the lowest level whose current turn contains its
+     * tick, where it falls into a bucket that is still ahead, or else in the
+     * top level, at most a turn ahead. */
+    private def insert(e: Entry): Unit = {
+        if (e.tick <= currentTick) {
+            overdue.add(e)
+            return
+        }
+        var level = 0
+        while (level < levels - 1 &&
+               (e.tick >> (bits * (level + 1))) !=
+                   (currentTick >> (bits * (level + 1)))) {
+            level += 1
+        }
+        val shift = bits * level
+        val index =
+            if (level < levels - 1) {
+                ((e.tick >> shift) & mask).toInt
+            } else {
+                val ahead = math.min((e.tick >> shift) - (currentTick >> shift),
+                                     slots - 1)
+                (((currentTick >> shift) + ahead) & mask).toInt
+            }
+        var bucket = wheels(level)(index)
+        if (bucket eq null) {
+            bucket = new ArrayDeque[Entry]()
+            wheels(level)(index) = bucket
+        }
+        bucket.add(e)
+    }
+
+    private def advance(targetTick: Long): Unit = {
+        if (_size == 0 && currentTick < targetTick) {
+            currentTick = targetTick
+            return
+        }
+        while (currentTick < targetTick) {
+            currentTick += 1
+            var level = 1
+            while (level < levels &&
+                   (currentTick & ((1L << (bits * level)) - 1)) == 0) {
+                cascade(level, ((currentTick >> (bits * level)) & mask).toInt)
+                level += 1
+            }
+            val index = (currentTick & mask).toInt
+            val bucket = wheels(0)(index)
+            if ((bucket ne null) && !bucket.isEmpty) {
+                due.add(bucket)
+                wheels(0)(index) = null
+            }
+        }
+    }
+
+    /* Entries are never placed back in the bucket being cascaded, which
+     * won't come up again for a whole turn of its level. */
+    private def cascade(level: Int, index: Int): Unit = {
+        val bucket = wheels(level)(index)
+        if (bucket ne null) {
+            var e = bucket.poll()
+            while (e ne null) {
+                insert(e)
+                e = bucket.poll()
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import org.midonet.util.collection.Reducer
+
+/**
+ * A thread-safe map where each entry has an associated reference counter,
+ * with the removal of entries happening when the counter reaches 0 and after
+ * the entry's expiration delay. During this period of time the entry can be
+ * resurrected by a new reference. See TimedExpirationMap for the ordering
+ * guarantees between insertions and expirations that implementations offer.
+ */
+trait ExpirationMap[K, V >: Null] {
+
+    /**
+     * Adds or replaces the value of an entry and increments its reference
+     * count. Returns the previous value, or null if there was none.
+     */
+    def putAndRef(key: K, value: V): V
+
+    def get(key: K): V
+
+    def getRefCount(key: K): Int
+
+    /**
+     * Increments the reference count of an entry, returning its value or
+     * null if there's no such entry.
+     */
+    def ref(key: K): V
+
+    /**
+     * Decrements the reference count of an entry. Once it reaches 0, the
+     * entry will expire at currentTimeMillis plus its expiration delay.
+     */
+    def unref(key: K, currentTimeMillis: Long): V
+
+    def fold[U](seed: U, func: Reducer[K, V, U]): U
+
+    /**
+     * Removes the entries whose expiration time has passed. Not thread-safe
+     * for multiple callers.
+     */
+    def obliterateIdleEntries(currentTimeMillis: Long): Unit
+
+    /**
+     * Removes the entries whose expiration time has passed, folding over each
+     * of them before it is removed. Not thread-safe for multiple callers.
+     */
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U]): U
+
+    /**
+     * Like the above, but removes at most maxEntries entries, leaving the
+     * remaining expired entries for a later call.
+     */
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U], maxEntries: Int): U
+}
@@ -17,7 +17,7 @@
 package org.midonet.util.concurrent
 
 import java.util.concurrent.{ConcurrentLinkedQueue, ConcurrentHashMap}
-import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger}
 
 import scala.annotation.tailrec
 import scala.concurrent.duration.Duration
@@ -25,7 +25,7 @@ import scala.concurrent.duration.Duration
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.util.PaddedAtomicInteger
-import org.midonet.util.collection.Reducer
+import org.midonet.util.collection.{Reducer, TimingWheel}
 
 /**
  * A concurrent map where each entry has an associated reference counter, with
@@ -80,9 +80,19 @@ import org.midonet.util.collection.Reducer
  *            this, obliterateIdleEntries() calls into the reducer before
  *            removing the key from the map. Only afterwards can a ref() succeed,
  *            guaranteeing the happens-before relationship described above.
+ *
+ * The expiring queue is checked in insertion order, so an entry stays behind
+ * entries that expire later than it and were queued before it. When the map
+ * is given a tickMillis, obliterateIdleEntries() instead moves the queued keys
+ * into a TimingWheel with ticks of that length, which hands out each key
+ * once its expiration time passes, whatever the order of the deadlines. The
+ * wheel is owned by the caller of obliterateIdleEntries(): a concurrent call
+ * returns without expiring entries.
  */
 final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
-                                             expirationFor: K => Duration) {
+                                             expirationFor: K => Duration,
+                                             tickMillis: Long = 0)
+        extends ExpirationMap[K, V] {
 
     case class Metadata(var value: V, refCount: AtomicInteger, var expiration: Long)
 
@@ -103,6 +113,9 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
      */
     private val expiring = new ConcurrentLinkedQueue[(K, Long)]
 
+    private var wheel: TimingWheel[K] = null
+    private val obliterating = new AtomicBoolean(false)
+
     private def tryIncIfGreaterThan(atomic: AtomicInteger, threshold: Int): Int = {
         do {
             val i = atomic.get
@@ -237,31 +250,92 @@ final class TimedExpirationMap[K <: AnyRef, V >: Null](log: Logger,
         override def apply(acc: Unit, key: K, value: V): Unit = ()
     }
 
-    def obliterateIdleEntries[U](currentTimeMillis: Long): Unit =
+    def obliterateIdleEntries(currentTimeMillis: Long): Unit =
         obliterateIdleEntries(currentTimeMillis, (), identityReducer)
 
     def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
-                                 reducer: Reducer[K, V, U]): U = {
+                                 reducer: Reducer[K, V, U]): U =
+        obliterateIdleEntries(currentTimeMillis, seed, reducer, Int.MaxValue)
+
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U],
+                                 maxEntries: Int): U =
+        if (tickMillis <= 0) {
+            obliterateQueued(currentTimeMillis, seed, reducer, maxEntries)
+        } else if (obliterating.compareAndSet(false, true)) {
+            try {
+                obliterateScheduled(currentTimeMillis, seed, reducer, maxEntries)
+            } finally {
+                obliterating.set(false)
+            }
+        } else {
+            seed
+        }
+
+    private def obliterateQueued[U](currentTimeMillis: Long, seed: U,
+                                    reducer: Reducer[K, V, U],
+                                    maxEntries: Int): U = {
         var acc = seed
-        while (true) {
+        var obliterated = 0
+        while (obliterated < maxEntries) {
             val pair = expiring.peek()
             if ((pair eq null) || (pair._2 > currentTimeMillis))
                 return acc
 
-            val metadata = refCountMap.get(pair._1)
-
-            if (metadata != null &&
-                metadata.expiration <= currentTimeMillis &&
-                metadata.refCount.compareAndSet(0, -1)) {
-
-                log.debug(s"Forgetting entry ${pair._1}")
+            val metadata = obliterate(pair._1, currentTimeMillis)
+            if (metadata ne null) {
                 /* The following operations are precisely ordered as explained
                  * in the header. */
                 acc = reducer(acc, pair._1, metadata.value)
                 refCountMap.remove(pair._1)
+                obliterated += 1
             }
             expiring.poll()
         }
         acc
     }
+
+    private def obliterateScheduled[U](currentTimeMillis: Long, seed: U,
+                                       reducer: Reducer[K, V, U],
+                                       maxEntries: Int): U = {
+        if (wheel eq null)
+            wheel = new TimingWheel[K](tickMillis, currentTimeMillis)
+        var pair = expiring.poll()
+        while (pair ne null) {
+            wheel.schedule(pair._1, pair._2)
+            pair = expiring.poll()
+        }
+
+        var acc = seed
+        var obliterated = 0
+        while (obliterated < maxEntries) {
+            val key = wheel.poll(currentTimeMillis)
+            if (key eq null)
+                return acc
+
+            val metadata = obliterate(key, currentTimeMillis)
+            if (metadata ne null) {
+                /* The following operations are precisely ordered as explained
+                 * in the header. */
+                acc = reducer(acc, key, metadata.value)
+                refCountMap.remove(key)
+                obliterated += 1
+            }
+        }
+        acc
+    }
+
+    /* Marks an expired entry as being removed, returning its metadata, or
+     * null if the entry is gone or was referenced again. */
+    private def obliterate(key: K, currentTimeMillis: Long): Metadata = {
+        val metadata = refCountMap.get(key)
+        if (metadata != null &&
+            metadata.expiration <= currentTimeMillis &&
+            metadata.refCount.compareAndSet(0, -1)) {
+            log.debug(s"Forgetting entry $key")
+            metadata
+        } else {
+            null
+        }
+    }
 }
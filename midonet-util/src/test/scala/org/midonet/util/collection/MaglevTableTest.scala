@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.util.collection
+
+import java.util.UUID
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class MaglevTableTest extends FeatureSpec with Matchers {
+
+    private class Member(val weight: Int) extends HasWeight {
+        val id = UUID.randomUUID()
+    }
+
+    private def table(members: Seq[Member]) =
+        MaglevTable[Member](members, _.id)
+
+    private def slots(t: MaglevTable[Member]) = (0 until t.size) map t.select
+
+    feature("Table construction") {
+        scenario("Attempt to create a MaglevTable with no weighted element") {
+            intercept[IllegalArgumentException] {
+                table(List[Member]())
+            }
+            intercept[IllegalArgumentException] {
+                table(List(new Member(0), new Member(0)))
+            }
+        }
+
+        scenario("Elements with weight 0 are never selected") {
+            val members = List(new Member(1), new Member(0))
+            slots(table(members)).toSet shouldBe Set(members(0))
+        }
+
+        scenario("The table grows with the number of elements") {
+            table(List.fill(3)(new Member(1))).size shouldBe 1021
+            table(List.fill(100)(new Member(1))).size shouldBe 16381
+            table(List.fill(1000)(new Member(1))).size shouldBe 65521
+        }
+
+        scenario("The table does not depend on the order of the elements") {
+            val members = List.fill(10)(new Member(Random.nextInt(5) + 1))
+            slots(table(members)) shouldBe slots(table(Random.shuffle(members)))
+        }
+    }
+
+    feature("Selection") {
+        scenario("Slots are shared in proportion to the weights") {
+            val members = (0 until 3) map { i => new Member(1 << i) }
+            val t = table(members)
+            val counts = slots(t) groupBy identity mapValues (_.size)
+            for (m <- members) {
+                val share = counts(m).toDouble / t.size
+                share shouldBe (m.weight / 7.0 +- 0.01)
+            }
+        }
+
+        scenario("A hash selects the same element every time") {
+            val t = table(List.fill(5)(new Member(1)))
+            val hashes = List.fill(1000)(Random.nextInt())
+            hashes.map(t.select) shouldBe hashes.map(t.select)
+        }
+
+        scenario("Negative hashes select an element") {
+            val members = List.fill(5)(new Member(1))
+            members should contain (table(members).select(Int.MinValue))
+        }
+    }
+
+    feature("Disruption when the elements change") {
+        scenario("Removing an element moves few of the other slots") {
+            val members = List.fill(10)(new Member(1))
+            val before = slots(table(members))
+            val after = slots(table(members.tail))
+
+            val moved = (before zip after) count {
+                case (b, a) => (b ne members.head) && (b ne a)
+            }
+            // Only the slots of the removed element must move, a few others
+            // do in a Maglev table. Hashing modulo the number of elements
+            // would move about nine in ten.
+            moved.toDouble / before.size should be < 0.25
+            after foreach { _ should not be theSameInstanceAs (members.head) }
+        }
+
+        scenario("Adding an element takes its slots mostly from the others") {
+            val members = List.fill(10)(new Member(1))
+            val added = new Member(1)
+            val before = slots(table(members))
+            val after = slots(table(added :: members))
+
+            val moved = (before zip after) count {
+                case (b, a) => (a ne added) && (b ne a)
+            }
+            moved.toDouble / before.size should be < 0.25
+            after.count(_ eq added).toDouble / after.size shouldBe
+                (1 / 11.0 +- 0.01)
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.collection
+
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class TimingWheelTest extends FeatureSpec with Matchers {
+
+    def drain(wheel: TimingWheel[String], now: Long): List[String] = {
+        var keys = List[String]()
+        var key = wheel.poll(now)
+        while (key ne null) {
+            keys ::= key
+            key = wheel.poll(now)
+        }
+        keys.reverse
+    }
+
+    feature("Keys are handed out when their deadline passes") {
+        scenario("keys on the first level") {
+            val wheel = new TimingWheel[String](10, 0, bits = 4, levels = 3)
+            wheel.schedule("B", 50)
+            wheel.schedule("A", 20)
+
+            wheel.poll(19) should be (null)
+            drain(wheel, 20) should be (List("A"))
+            drain(wheel, 49) should be (Nil)
+            drain(wheel, 55) should be (List("B"))
+            wheel.size should be (0)
+        }
+
+        scenario("deadlines are rounded up to the next tick") {
+            val wheel = new TimingWheel[String](10, 0)
+            wheel.schedule("A", 11)
+
+            wheel.poll(19) should be (null)
+            wheel.poll(20) should be ("A")
+        }
+
+        scenario("keys whose deadline already passed") {
+            val wheel = new TimingWheel[String](10, 100)
+            wheel.schedule("A", 50)
+
+            wheel.size should be (1)
+            wheel.poll(100) should be ("A")
+        }
+
+        scenario("keys are cascaded from the upper levels") {
+            val wheel = new TimingWheel[String](1, 0, bits = 2, levels = 3)
+            wheel.schedule("A", 7)
+            wheel.schedule("B", 37)
+            wheel.schedule("C", 1000)
+
+            drain(wheel, 6) should be (Nil)
+            drain(wheel, 7) should be (List("A"))
+            drain(wheel, 36) should be (Nil)
+            drain(wheel, 37) should be (List("B"))
+            drain(wheel, 999) should be (Nil)
+            drain(wheel, 1000) should be (List("C"))
+        }
+
+        scenario("a wave of deadlines is handed out one key at a time") {
+            val wheel = new TimingWheel[String](10, 0)
+            (1 to 100) foreach { i => wheel.schedule(i.toString, 30) }
+
+            wheel.poll(30) should be ("1")
+            wheel.size should be (99)
+            drain(wheel, 40) should have size 99
+        }
+    }
+
+    feature("Random deadlines") {
+        scenario("every key is handed out by the first poll past its deadline") {
+            val wheel = new TimingWheel[String](1, 0, bits = 3, levels = 3)
+            val random = new Random(42)
+            val deadlines = (1 to 1000).map(i => i.toString ->
+                                                 (random.nextInt(2000) + 1L)).toMap
+            deadlines foreach { case (k, d) => wheel.schedule(k, d) }
+
+            var last = -1L
+            var now = 0L
+            while (now <= 2000) {
+                drain(wheel, now) foreach { k =>
+                    deadlines(k) should be > last
+                    deadlines(k) should be <= now
+                }
+                last = now
+                now += random.nextInt(3) + 1
+            }
+            wheel.size should be (0)
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.util.concurrent
+
+import java.lang.{Long => JLong}
+import java.nio.ByteBuffer
+
+import scala.collection.mutable
+import scala.concurrent.duration._
+
+import org.junit.runner.RunWith
+import org.scalatest.{OneInstancePerTest, Matchers, FeatureSpec}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.util.collection.Reducer
+
+@RunWith(classOf[JUnitRunner])
+class OffHeapExpirationMapTest extends FeatureSpec
+                               with Matchers
+                               with OneInstancePerTest {
+
+    object LongCodec extends OffHeapExpirationMap.Codec[JLong, JLong] {
+        override def keySize = 8
+        override def valueSize = 8
+        override def writeKey(key: JLong, buf: ByteBuffer, offset: Int): Unit =
+            buf.putLong(offset, key)
+        override def readKey(buf: ByteBuffer, offset: Int): JLong =
+            buf.getLong(offset)
+        override def writeValue(value: JLong, buf: ByteBuffer,
+                                offset: Int): Unit =
+            buf.putLong(offset, value)
+        override def readValue(buf: ByteBuffer, offset: Int): JLong =
+            buf.getLong(offset)
+    }
+
+    // Even keys expire after 10 millis, odd keys after 20 millis.
+    val map = new OffHeapExpirationMap[JLong, JLong](
+        LongCodec, (k: JLong) => if (k % 2 == 0) 10.millis else 20.millis, 16)
+
+    def expired(now: Long): Seq[Long] =
+        map.obliterateIdleEntries(now, List[Long](),
+            new Reducer[JLong, JLong, List[Long]]() {
+                override def apply(acc: List[Long], key: JLong,
+                                   value: JLong): List[Long] =
+                    key.longValue :: acc
+            }).reverse
+
+    feature("Normal operations") {
+        scenario("putAndRef") {
+            map.putAndRef(1L, 10L) should be (null)
+            map get 1L should be (10L)
+            map getRefCount 1L should be (1)
+
+            map.putAndRef(1L, 11L) should be (10L)
+            map get 1L should be (11L)
+            map getRefCount 1L should be (2)
+            map.size should be (1)
+        }
+
+        scenario("ref and unref") {
+            map.ref(1L) should be (null)
+            map.unref(1L, 0) should be (null)
+            map.putAndRef(1L, 10L)
+            map.ref(1L) should be (10L)
+            map getRefCount 1L should be (2)
+            map.unref(1L, 0) should be (10L)
+            map getRefCount 1L should be (1)
+            map.unref(1L, 0) should be (10L)
+            map getRefCount 1L should be (0)
+            map.unref(1L, 0) should be (10L)
+            map getRefCount 1L should be (0)
+        }
+
+        scenario("fold") {
+            for (i <- 1L to 3L)
+                map.putAndRef(i, i * 10)
+
+            map.fold(0L, new Reducer[JLong, JLong, Long]() {
+                override def apply(acc: Long, key: JLong, value: JLong) =
+                    acc + key + value
+            }) should be (66L)
+        }
+    }
+
+    feature("Expiration") {
+        scenario("referenced entries don't expire") {
+            map.putAndRef(1L, 10L)
+            expired(Long.MaxValue - 100) should be (Seq())
+            map get 1L should be (10L)
+        }
+
+        scenario("entries expire after their delay, in order") {
+            for (i <- 0L until 6L) {
+                map.putAndRef(i, i)
+                map.unref(i, i)
+            }
+
+            expired(9) should be (Seq())
+            expired(12) should be (Seq(0L, 2L))
+            expired(21) should be (Seq(4L, 1L))
+            expired(100) should be (Seq(3L, 5L))
+            map.size should be (0)
+            for (i <- 0L until 6L)
+                map get i should be (null)
+        }
+
+        scenario("a new reference resurrects an idle entry") {
+            map.putAndRef(1L, 10L)
+            map.unref(1L, 0)
+            map.ref(1L) should be (10L)
+            expired(100) should be (Seq())
+
+            map.unref(1L, 50)
+            expired(69) should be (Seq())
+            expired(70) should be (Seq(1L))
+        }
+
+        scenario("expired keys can be inserted again") {
+            map.putAndRef(2L, 20L)
+            map.unref(2L, 0)
+            expired(10) should be (Seq(2L))
+            map.putAndRef(2L, 21L) should be (null)
+            map get 2L should be (21L)
+            map getRefCount 2L should be (1)
+        }
+    }
+
+    feature("Growth") {
+        scenario("the table grows and keeps entries and expiration order") {
+            val n = 10000L
+            for (i <- 0L until n) {
+                map.putAndRef(i, i * 3)
+                if (i % 3 == 0)
+                    map.unref(i, i)
+            }
+            map.size should be (n)
+            map.capacity should be >= n.toInt
+
+            for (i <- 0L until n) {
+                map get i should be (i * 3)
+                map getRefCount i should be (if (i % 3 == 0) 0 else 1)
+            }
+
+            val evens = expired(n + 10).filter(_ % 2 == 0)
+            evens should be ((0L until n by 6).toSeq)
+        }
+
+        scenario("deleted slots are reclaimed") {
+            val seen = mutable.Set[Long]()
+            for (i <- 0L until 100000L) {
+                map.putAndRef(i, i)
+                map.unref(i, i)
+                seen ++= expired(i)
+            }
+            map.capacity should be <= 64
+            seen.size should be > 99000
+        }
+    }
+}
@@ -136,6 +136,51 @@ class TimedExpirationMapTest extends FeatureSpec
         }
     }
 
+    feature("Bounded expiration") {
+        val concat = new Reducer[String, String, String]() {
+            override def apply(acc: String, key: String,
+                               value: String): String = acc + key
+        }
+
+        scenario("obliterateIdleEntries expires at most maxEntries") {
+            List("A", "B", "C") foreach { k =>
+                map.putAndRef(k, "X")
+                map.unref(k, 0)
+            }
+
+            map.obliterateIdleEntries(1, "", concat, 2) should be ("AB")
+            map.obliterateIdleEntries(1, "", concat, 2) should be ("C")
+        }
+
+        scenario("entries are expired by deadline with a timing wheel") {
+            val wheelMap = new TimedExpirationMap[String, String](
+                Logger(NOPLogger.NOP_LOGGER),
+                k => if (k == "A") (100 millis) else (10 millis), 10)
+            List("A", "B") foreach { k =>
+                wheelMap.putAndRef(k, "X")
+                wheelMap.unref(k, 0)
+            }
+
+            wheelMap.obliterateIdleEntries(5, "", concat) should be ("")
+            wheelMap.obliterateIdleEntries(10, "", concat) should be ("B")
+            wheelMap.obliterateIdleEntries(99, "", concat) should be ("")
+            wheelMap.obliterateIdleEntries(100, "", concat) should be ("A")
+        }
+
+        scenario("referenced entries are not expired by the timing wheel") {
+            val wheelMap = new TimedExpirationMap[String, String](
+                Logger(NOPLogger.NOP_LOGGER), _ => 10 millis, 10)
+            List("A", "B") foreach { k =>
+                wheelMap.putAndRef(k, "X")
+                wheelMap.unref(k, 0)
+            }
+            wheelMap.ref("A")
+
+            wheelMap.obliterateIdleEntries(10, "", concat, 1) should be ("B")
+            wheelMap.get("A") should be ("X")
+        }
+    }
+
     feature("Correctness test") {
         scenario("control for reference count") {
             val keys = (0 to 5000) map { _.toString } toArray
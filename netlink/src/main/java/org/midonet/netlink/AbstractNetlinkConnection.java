@@ -16,11 +16,15 @@
 package org.midonet.netlink;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.SelectionKey;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.Set;
@@ -66,8 +70,16 @@ public abstract class AbstractNetlinkConnection {
     // assume one read per call.
     private int maxBatchIoOps = DEFAULT_MAX_BATCH_IO_OPS;
 
-    private ByteBuffer reply =
-        BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
+    /* The ring of buffers that datagrams are read into. Messages are
+     * processed before the next read, so the buffers are reused across reads.
+     * With more than one buffer, datagrams are read in batches with a single
+     * system call. */
+    private ByteBuffer[] replies = {
+        BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE) };
+
+    // Written by the reading thread only.
+    private long readCalls = 0;
+    private long datagramsRead = 0;
 
     private final BufferPool requestPool;
     private final NetlinkChannel channel;
@@ -133,6 +145,37 @@ public abstract class AbstractNetlinkConnection {
         return this.maxBatchIoOps;
     }
 
+    /** Sets how many datagrams are read from the channel with each system
+     *  call. Every datagram gets its own buffer, large enough for the biggest
+     *  netlink message. */
+    public synchronized void setMaxDatagramsPerRead(int max) {
+        if (max < 1)
+            throw new IllegalArgumentException();
+        ByteBuffer[] buffers = Arrays.copyOf(replies, max);
+        for (int i = replies.length; i < max; i++) {
+            buffers[i] = BytesUtil.instance.allocateDirect(NETLINK_READ_BUFSIZE);
+        }
+        replies = buffers;
+    }
+
+    public int getMaxDatagramsPerRead() {
+        return replies.length;
+    }
+
+    /** The number of reads from the channel that returned datagrams. */
+    public long getReadCalls() {
+        return readCalls;
+    }
+
+    /** The number of datagrams read from the channel. */
+    public long getDatagramsRead() {
+        return datagramsRead;
+    }
+
+    public double getDatagramsPerRead() {
+        return readCalls == 0 ? 0.0 : (double) datagramsRead / readCalls;
+    }
+
     public SelectorInputQueue<NetlinkRequest> getSendQueue() {
         return writeQueue;
     }
@@ -253,17 +296,25 @@ public abstract class AbstractNetlinkConnection {
     private void abortRequestQueueIsFull(NetlinkRequest req) {
         requestPool.release(req.releaseRequestPayload());
         String msg = "Too many pending netlink requests";
-        if (req.hasCallback()) {
-            /* Run the callback directly, because this runs out of the client's
-             * thread, not the channel's: it's the client that failed to
-             * put a request in the queue. */
-            req.failed(new NetlinkException(
-                NetlinkException.ERROR_SENDING_REQUEST, msg)).run();
-        } else {
-            log.info(msg);
+        for (NetlinkRequest part : partsOf(req)) {
+            if (part.hasCallback()) {
+                /* Run the callback directly, because this runs out of the
+                 * client's thread, not the channel's: it's the client that
+                 * failed to put a request in the queue. */
+                part.failed(new NetlinkException(
+                    NetlinkException.ERROR_SENDING_REQUEST, msg)).run();
+            } else {
+                log.info(msg);
+            }
         }
     }
 
+    private static NetlinkRequest[] partsOf(NetlinkRequest req) {
+        return (req instanceof NetlinkRequest.BatchNetlinkRequest)
+            ? ((NetlinkRequest.BatchNetlinkRequest) req).parts
+            : new NetlinkRequest[] { req };
+    }
+
     /*
      * Use blocking-write to send a batch of netlink requests and do
      * blocking reads until all their ACKs have been received back.
@@ -289,8 +340,10 @@ public abstract class AbstractNetlinkConnection {
             if (processWriteToChannel(r) <= 0)
                 break;
 
-            if (r.hasCallback())
-                ongoingTransaction.add(r);
+            for (NetlinkRequest part : partsOf(r)) {
+                if (part.hasCallback())
+                    ongoingTransaction.add(part);
+            }
         }
 
         try {
@@ -328,6 +381,11 @@ public abstract class AbstractNetlinkConnection {
         if (request == null)
             return 0;
 
+        if (request instanceof NetlinkRequest.BatchNetlinkRequest) {
+            return processBatchWriteToChannel(
+                (NetlinkRequest.BatchNetlinkRequest) request);
+        }
+
         ByteBuffer outBuf = request.releaseRequestPayload();
         if (outBuf == null)
             return 0;
@@ -357,11 +415,55 @@ public abstract class AbstractNetlinkConnection {
         return bytes;
     }
 
+    /* Writes all the messages of a batch with a single write() call. Each
+     * message gets its own sequence number, so that replies and errors are
+     * demultiplexed to the part that originated them. */
+    private int processBatchWriteToChannel(
+            final NetlinkRequest.BatchNetlinkRequest batch) {
+        ByteBuffer outBuf = batch.releaseRequestPayload();
+        if (outBuf == null)
+            return 0;
+
+        NetlinkRequest[] parts = batch.parts;
+        for (int i = 0; i < parts.length; i++) {
+            outBuf.position(batch.offsets[i]);
+            int seq = writeSeqToNetlinkRequest(parts[i], outBuf);
+            if (parts[i].hasCallback()) {
+                pendingRequests.put(seq, parts[i]);
+            }
+        }
+        outBuf.position(0);
+
+        log.trace("Sending batch of {} messages", parts.length);
+
+        int bytes = 0;
+        try {
+            bytes = channel.write(outBuf);
+            for (NetlinkRequest part : parts) {
+                if (part.hasCallback())
+                    expirationQueue.add(part);
+            }
+        } catch (IOException e) {
+            log.warn("NETLINK write() exception: {}", e);
+            for (NetlinkRequest part : parts) {
+                if (part.hasCallback()) {
+                    pendingRequests.remove(part.seq);
+                    dispatcher.submit(part.failed(new NetlinkException(
+                        NetlinkException.ERROR_SENDING_REQUEST, e)));
+                }
+            }
+        } finally {
+            requestPool.release(outBuf);
+        }
+        return bytes;
+    }
+
     public void handleReadEvent(final Bucket bucket) throws IOException {
         try {
             bucket.prepare();
-            for (int i = 0; i < maxBatchIoOps; i++) {
+            for (int i = 0; i < maxBatchIoOps; ) {
                 final int ret = processReadFromChannel(bucket);
+                i += ret;
                 if (ret <= 0) {
                     if (ret < 0) {
                         log.info("NETLINK read() error: {}",
@@ -369,6 +471,9 @@ public abstract class AbstractNetlinkConnection {
                     }
                     break;
                 }
+                // A short batch means that the socket has been drained.
+                if (ret < replies.length)
+                    break;
             }
         } catch (IOException e) {
             log.error("NETLINK read() exception: {}", e);
@@ -382,12 +487,33 @@ public abstract class AbstractNetlinkConnection {
 
     protected void endBatch() {}
 
+    /* Reads the next datagrams from the channel and processes the messages
+     * they contain. Returns the number of datagrams read. */
     private synchronized int processReadFromChannel(final Bucket bucket)
             throws IOException {
 
-        reply.clear();
-        int nbytes = channel.read(reply);
+        int datagrams;
+        if (replies.length == 1) {
+            replies[0].clear();
+            int nbytes = channel.read(replies[0]);
+            datagrams = (nbytes > 0) ? 1 : nbytes;
+        } else {
+            for (ByteBuffer reply : replies)
+                reply.clear();
+            datagrams = channel.readDatagrams(replies);
+        }
+
+        if (datagrams > 0) {
+            readCalls++;
+            datagramsRead += datagrams;
+        }
+        for (int i = 0; i < datagrams; i++) {
+            processMessages(replies[i], bucket);
+        }
+        return datagrams;
+    }
 
+    private void processMessages(final ByteBuffer reply, final Bucket bucket) {
         reply.flip(); // sets the effective final limit for any number of msgs
         reply.mark();
         int finalLimit = reply.limit();
@@ -456,7 +582,6 @@ public abstract class AbstractNetlinkConnection {
             reply.limit(finalLimit);
             reply.position(nextPosition);
         }
-        return nbytes;
     }
 
     private void processSuccessfulRequest(NetlinkRequest request) {
@@ -528,6 +653,120 @@ public abstract class AbstractNetlinkConnection {
         return seq;
     }
 
+    /** Serializes the payload of a netlink request into a send buffer. The
+     *  buffer is positioned after the netlink and generic netlink header
+     *  sections, and the implementation is expected to flip it when done. */
+    public interface RequestPayload {
+        ByteBuffer writeTo(ByteBuffer buf);
+    }
+
+    /** Packs netlink requests into as few send buffers as possible. Each
+     *  buffer is written to the channel with a single write() call, while
+     *  every message it contains keeps its own sequence number, callback and
+     *  timeout. A buffer is enqueued when it fills up and when send() is
+     *  called. Not thread-safe: a batch is meant to be filled and sent by a
+     *  single client thread. */
+    public final class RequestBatch {
+        private ByteBuffer buf = null;
+        private final List<NetlinkRequest> parts = new ArrayList<>();
+        private int[] offsets = new int[64];
+
+        public RequestBatch() {}
+
+        public <T> void add(NetlinkRequestContext ctx,
+                            int flags,
+                            RequestPayload payload,
+                            Callback<T> callback,
+                            Reader<T> reader,
+                            long timeoutMillis) {
+            if (buf == null) {
+                buf = requestPool.take();
+                buf.clear();
+            }
+
+            int offset = buf.position();
+            ByteBuffer message;
+            try {
+                message = writeMessage(offset, payload);
+            } catch (BufferOverflowException e) {
+                if (parts.isEmpty()) {
+                    message = writeLargeMessage(payload, e);
+                } else {
+                    send();
+                    buf = requestPool.take();
+                    buf.clear();
+                    offset = 0;
+                    try {
+                        message = writeMessage(offset, payload);
+                    } catch (BufferOverflowException tooLarge) {
+                        message = writeLargeMessage(payload, tooLarge);
+                    }
+                }
+            }
+
+            serializeNetlinkHeader(message, (short) flags, ctx);
+            // Messages are aligned to 4 bytes inside a batch.
+            int next = offset + ((message.limit() + 3) & ~3);
+            buf.position(Math.min(next, buf.capacity()));
+
+            if (parts.size() == offsets.length)
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            offsets[parts.size()] = offset;
+            parts.add(NetlinkRequest.makeSingle(callback, reader, null,
+                                                timeoutMillis));
+        }
+
+        public int size() {
+            return parts.size();
+        }
+
+        /** Enqueues the pending messages for writing. */
+        public void send() {
+            if (buf == null)
+                return;
+            if (parts.isEmpty()) {
+                requestPool.release(buf);
+            } else {
+                buf.flip();
+                enqueueRequest(NetlinkRequest.makeBatch(
+                    parts.toArray(new NetlinkRequest[parts.size()]),
+                    Arrays.copyOf(offsets, parts.size()), buf));
+            }
+            buf = null;
+            parts.clear();
+        }
+
+        private ByteBuffer writeMessage(int offset, RequestPayload payload) {
+            if (buf.capacity() - offset < NETLINK_HEADER_LEN)
+                throw new BufferOverflowException();
+            buf.limit(buf.capacity());
+            buf.position(offset);
+            ByteBuffer message = BytesUtil.instance.sliceOf(buf);
+            message.position(NETLINK_HEADER_LEN);
+            return payload.writeTo(message);
+        }
+
+        /* Writes a message that didn't fit in the empty batch buffer,
+         * trading the buffer for those of the larger size classes of the pool
+         * until the message fits. A message that doesn't fit in the largest
+         * buffers will never fit, let the client know. */
+        private ByteBuffer writeLargeMessage(RequestPayload payload,
+                                             BufferOverflowException e) {
+            while (buf.capacity() < requestPool.maxBufferSize()) {
+                int size = buf.capacity() * 2;
+                requestPool.release(buf);
+                buf = requestPool.take(size);
+                buf.clear();
+                try {
+                    return writeMessage(0, payload);
+                } catch (BufferOverflowException overflow) {
+                    e = overflow;
+                }
+            }
+            throw e;
+        }
+    }
+
     /** Obtains a send buffer from the internal buffer pool and offset the
      *  buffer position to reserve enough space for the netlink and generic
      *  netlink header sections. */
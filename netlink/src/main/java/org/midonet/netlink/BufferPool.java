@@ -16,33 +16,69 @@
 package org.midonet.netlink;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-import com.google.common.collect.MapMaker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * A pool of reusable, native I/O ready, byte buffers. All operations are
  * guaranteed to be thread-safe and non-blocking.
+ *
+ * Buffers come in size classes: class i holds buffers of bufSize << i bytes.
+ * take(size) hands out a buffer of the smallest class that fits, moving on to
+ * the larger classes when that one is exhausted, and only then falls back to
+ * a temporary heap buffer. Buffers are carved on demand out of slabs, direct
+ * regions of up to SLAB_SIZE bytes shared by several buffers of a class, so
+ * a pool commits native memory as it grows rather than up front.
+ *
+ * Free buffers are kept in a small per-thread cache, and beyond that in a
+ * lock-free stack per class. Before a class grows, threads steal the buffers
+ * cached by other threads, so buffers are never stranded in the cache of an
+ * idle or dead thread.
+ *
+ * If the logger of this class is at debug level when a pool is created, the
+ * pool records where each buffer was taken, warns about buffers released
+ * twice, and reports buffers held for longer than LEAK_THRESHOLD_MILLIS when
+ * it falls back to heap buffers.
  */
 public class BufferPool {
 
     private static final Logger log = LoggerFactory.getLogger(BufferPool.class);
 
-    /** dummy object used as the unique value in the concurrent buffer "set". */
-    private static final Object PRESENT = new Object();
+    private static final int SLAB_SIZE = 1 << 20;
+    private static final int CACHE_SIZE = 4;
+    private static final int CLASS_SHIFT = 24;
+    private static final int NONE = -1;
+
+    public static final long LEAK_THRESHOLD_MILLIS = 10000;
 
-    private final int maxBuffers;
     private final int bufSize;
+    private final SizeClass[] classes;
+    private final boolean leakDetection;
+    private final AtomicLong fallbacks = new AtomicLong(0);
 
-    private final ConcurrentMap<ByteBuffer, Object> bufferPool;
-    private final BlockingQueue<ByteBuffer> availPool;
-    private final AtomicInteger numBuffers;
+    /* Maps the buffers handed out by the pool to their class and index. An
+     * insert-only open addressing table keyed by identity: a ByteBuffer's
+     * hashCode() depends on the buffer's contents. */
+    private final AtomicReferenceArray<Entry> entries;
+
+    private static final class Entry {
+        final ByteBuffer buffer;
+        final int id;
+
+        Entry(ByteBuffer buffer, int id) {
+            this.buffer = buffer;
+            this.id = id;
+        }
+    }
 
     /**
      * @param minBuffers Initial number of buffers to allocate in the pool.
@@ -52,78 +88,337 @@ public class BufferPool {
      * @param bufSize
      */
     public BufferPool(int minBuffers, int maxBuffers, int bufSize) {
-        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0))
+        this(minBuffers, maxBuffers, bufSize, 1);
+    }
+
+    /**
+     * @param minBuffers Initial number of buffers of bufSize bytes.
+     * @param maxBuffers Maximum number of buffers of bufSize bytes. Each larger
+     *                   class holds half as many buffers as the previous
+     *                   one, and at least one.
+     * @param bufSize    The size of the buffers of the smallest class.
+     * @param numClasses The number of size classes, each one with buffers
+     *                   twice as large as the previous one.
+     */
+    public BufferPool(int minBuffers, int maxBuffers, int bufSize,
+                      int numClasses) {
+        if ((maxBuffers < minBuffers) || (maxBuffers <= 0) || (minBuffers < 0)
+                || (bufSize <= 0) || (numClasses <= 0)
+                || ((long) bufSize << (numClasses - 1)) > Integer.MAX_VALUE)
             throw new IllegalArgumentException();
 
-        this.maxBuffers = maxBuffers;
         this.bufSize = bufSize;
-        this.availPool = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
-
-        /* Use a weak-keys map so that keys behave as in an identity HashMap.
-        /*
-        /* An identity map is needed because a ByteBuffer's hashCode() depends
-        /* on the buffer's contents. A normal IdentityHashMap is not suitable
-        /* because there's no concurrent implementation of it. Thus the use
-        /* of the weak-keys concurrent map. */
-        this.bufferPool =
-            new MapMaker().initialCapacity(maxBuffers).weakKeys().makeMap();
-
-        numBuffers = new AtomicInteger(0);
+        this.leakDetection = log.isDebugEnabled();
+        this.classes = new SizeClass[numClasses];
+        int totalBuffers = 0;
+        for (int i = 0; i < numClasses; i++) {
+            classes[i] = new SizeClass(i, bufSize << i,
+                                       Math.max(1, maxBuffers >> i));
+            totalBuffers += classes[i].maxBuffers;
+        }
+        this.entries = new AtomicReferenceArray<>(
+            Integer.highestOneBit(totalBuffers) << 2);
+
+        SizeClass first = classes[0];
         do {
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            availPool.offer(buf);
-            bufferPool.put(buf, PRESENT);
-        } while (numBuffers.incrementAndGet() < minBuffers);
+            first.push(first.carve());
+            first.available.incrementAndGet();
+        } while (first.carved.get() < minBuffers);
     }
 
     /** Take a byte buffer from the pool. The caller is responsible of calling
      *  release() once for the returned buffer to return it to the pool.
      */
     public ByteBuffer take() {
-        ByteBuffer buffer = availPool.poll();
-        if (buffer != null)
-            return buffer;
-
-        if (numBuffers.incrementAndGet() <= maxBuffers) {
-            log.debug("increasing buffer pool size to {}", numBuffers.get());
-            ByteBuffer buf = BytesUtil.instance.allocateDirect(bufSize);
-            bufferPool.put(buf, PRESENT);
-            return buf;
-        } else {
-            numBuffers.decrementAndGet();
-            /* Temporary buffers are non-direct because the NIO library has its
-             * own cache for them, managing this case more cleverly than we
-             * we can from here. The library will get the buffer from its cache
-             * when a write is requested, so it will be able to release it
-             * immediately, whereas we would leave the task up to the garbage
-             * collector.
-             *
-             * The price we pay for allocating a non-direct buffer is one extra
-             * copy at write-time.
-             */
-            log.info("pool is empty, allocating a temporary buffer");
-            return  BytesUtil.instance.allocate(bufSize);
+        return take(bufSize);
+    }
+
+    /** Take a byte buffer of at least the given size from the pool. The
+     *  caller is responsible of calling release() once for the returned
+     *  buffer to return it to the pool.
+     */
+    public ByteBuffer take(int size) {
+        for (int i = classFor(size); i >= 0 && i < classes.length; i++) {
+            ByteBuffer buf = classes[i].take();
+            if (buf != null)
+                return buf;
         }
+
+        fallbacks.incrementAndGet();
+        if (leakDetection)
+            reportLeaks(TimeUnit.MILLISECONDS.toNanos(LEAK_THRESHOLD_MILLIS));
+        /* Temporary buffers are non-direct because the NIO library has its
+         * own cache for them, managing this case more cleverly than we
+         * we can from here. The library will get the buffer from its cache
+         * when a write is requested, so it will be able to release it
+         * immediately, whereas we would leave the task up to the garbage
+         * collector.
+         *
+         * The price we pay for allocating a non-direct buffer is one extra
+         * copy at write-time.
+         */
+        log.debug("pool is empty, allocating a temporary buffer");
+        return BytesUtil.instance.allocate(Math.max(size, bufSize));
     }
 
-    /** Release a buffer that was previously taken from the pool.
+    /** Release a buffer that was previously taken from the pool. Temporary
+     *  and foreign buffers are ignored.
      *
      *  NOTE: this method will assume that the given buffer is currently taken,
      *  callers must be careful not to call release() twice on the same buffer.
      */
     public void release(ByteBuffer buf) {
-        if (buf != null && bufferPool.containsKey(buf)) {
-            availPool.offer(buf);
+        if (buf == null)
+            return;
+        int id = idOf(buf);
+        if (id != NONE) {
+            SizeClass c = classes[id >>> CLASS_SHIFT];
+            c.release(id & ((1 << CLASS_SHIFT) - 1));
             log.trace("released buffer ({}/{} free buffers)",
-                     availPool.size(), numBuffers.get());
+                      c.available.get(), c.carved.get());
         }
     }
 
+    /** The number of free buffers, of all classes. */
     public int available() {
-        return availPool.size();
+        int n = 0;
+        for (SizeClass c : classes)
+            n += c.available.get();
+        return n;
     }
 
+    /** The number of buffers carved so far, of all classes. */
     public int allocated() {
-        return bufferPool.size();
+        int n = 0;
+        for (SizeClass c : classes)
+            n += c.carved.get();
+        return n;
+    }
+
+    /** The number of temporary heap buffers handed out so far. */
+    public long fallbacks() {
+        return fallbacks.get();
+    }
+
+    /** The size of the buffers of the largest class. */
+    public int maxBufferSize() {
+        return classes[classes.length - 1].bufSize;
+    }
+
+    /**
+     * Logs the buffers taken more than heldNanos ago and not released yet,
+     * along with where they were taken, and returns their number. Only works
+     * when leak detection is enabled.
+     */
+    public int reportLeaks(long heldNanos) {
+        if (!leakDetection)
+            return 0;
+        long now = System.nanoTime();
+        int leaks = 0;
+        for (SizeClass c : classes) {
+            int carved = c.carved.get();
+            for (int i = 0; i < carved; i++) {
+                Throwable taker = c.takers.get(i);
+                long held = now - c.takenAt.get(i);
+                if (taker != null && held > heldNanos) {
+                    leaks++;
+                    log.warn("buffer of {} bytes held for {} ms, taken at",
+                             c.bufSize, TimeUnit.NANOSECONDS.toMillis(held),
+                             taker);
+                }
+            }
+        }
+        return leaks;
+    }
+
+    private int classFor(int size) {
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i].bufSize >= size)
+                return i;
+        }
+        return NONE;
+    }
+
+    private void register(ByteBuffer buf, int id) {
+        int mask = entries.length() - 1;
+        int slot = System.identityHashCode(buf) & mask;
+        Entry entry = new Entry(buf, id);
+        while (!entries.compareAndSet(slot, null, entry))
+            slot = (slot + 1) & mask;
+    }
+
+    private int idOf(ByteBuffer buf) {
+        int mask = entries.length() - 1;
+        int slot = System.identityHashCode(buf) & mask;
+        Entry entry;
+        while ((entry = entries.get(slot)) != null) {
+            if (entry.buffer == buf)
+                return entry.id;
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private final class SizeClass {
+        final int index;
+        final int bufSize;
+        final int maxBuffers;
+        final int buffersPerSlab;
+
+        final AtomicReferenceArray<ByteBuffer> slabs;
+        final AtomicReferenceArray<ByteBuffer> buffers;
+        final AtomicInteger carved = new AtomicInteger(0);
+        final AtomicInteger available = new AtomicInteger(0);
+
+        /* A Treiber stack of free buffer indexes. The head holds a stamp in
+         * its upper half, against ABA, and the top index plus one in its
+         * lower half. Links are published by the CAS on the head. */
+        final AtomicLong head = new AtomicLong(0L);
+        final int[] next;
+
+        /* The slots of each cache are taken with an atomic swap, so that
+         * other threads can steal from it. */
+        final List<AtomicIntegerArray> caches = new CopyOnWriteArrayList<>();
+        final ThreadLocal<AtomicIntegerArray> cache =
+            new ThreadLocal<AtomicIntegerArray>() {
+                @Override
+                protected AtomicIntegerArray initialValue() {
+                    AtomicIntegerArray slots = new AtomicIntegerArray(CACHE_SIZE);
+                    for (int i = 0; i < CACHE_SIZE; i++)
+                        slots.set(i, NONE);
+                    caches.add(slots);
+                    return slots;
+                }
+            };
+
+        final AtomicReferenceArray<Throwable> takers;
+        final AtomicLongArray takenAt;
+
+        SizeClass(int index, int bufSize, int maxBuffers) {
+            this.index = index;
+            this.bufSize = bufSize;
+            this.maxBuffers = maxBuffers;
+            this.buffersPerSlab =
+                Math.max(1, Math.min(maxBuffers, SLAB_SIZE / bufSize));
+            this.slabs = new AtomicReferenceArray<>(
+                (maxBuffers + buffersPerSlab - 1) / buffersPerSlab);
+            this.buffers = new AtomicReferenceArray<>(maxBuffers);
+            this.next = new int[maxBuffers];
+            this.takers = leakDetection
+                ? new AtomicReferenceArray<Throwable>(maxBuffers) : null;
+            this.takenAt = leakDetection ? new AtomicLongArray(maxBuffers) : null;
+        }
+
+        ByteBuffer take() {
+            int i = takeFrom(cache.get());
+            if (i == NONE)
+                i = pop();
+            if (i == NONE)
+                i = steal();
+            if (i != NONE) {
+                available.decrementAndGet();
+            } else {
+                i = carve();
+                if (i == NONE)
+                    return null;
+            }
+
+            if (leakDetection) {
+                takers.set(i, new Throwable("buffer taken"));
+                takenAt.set(i, System.nanoTime());
+            }
+            return buffers.get(i);
+        }
+
+        void release(int i) {
+            if (leakDetection && takers.getAndSet(i, null) == null) {
+                log.warn("buffer of {} bytes released twice", bufSize,
+                         new Throwable("buffer released"));
+                return;
+            }
+            free(i);
+        }
+
+        void free(int i) {
+            available.incrementAndGet();
+            AtomicIntegerArray slots = cache.get();
+            for (int s = 0; s < CACHE_SIZE; s++) {
+                if (slots.get(s) == NONE && slots.compareAndSet(s, NONE, i))
+                    return;
+            }
+            push(i);
+        }
+
+        int takeFrom(AtomicIntegerArray slots) {
+            for (int s = 0; s < CACHE_SIZE; s++) {
+                if (slots.get(s) != NONE) {
+                    int i = slots.getAndSet(s, NONE);
+                    if (i != NONE)
+                        return i;
+                }
+            }
+            return NONE;
+        }
+
+        int steal() {
+            for (AtomicIntegerArray slots : caches) {
+                int i = takeFrom(slots);
+                if (i != NONE)
+                    return i;
+            }
+            return NONE;
+        }
+
+        void push(int i) {
+            long h;
+            do {
+                h = head.get();
+                next[i] = (int) h - 1;
+            } while (!head.compareAndSet(h, (((h >>> 32) + 1) << 32) | (i + 1)));
+        }
+
+        int pop() {
+            long h;
+            int top;
+            do {
+                h = head.get();
+                top = (int) h - 1;
+                if (top == NONE)
+                    return NONE;
+            } while (!head.compareAndSet(
+                         h, (((h >>> 32) + 1) << 32) | (next[top] + 1)));
+            return top;
+        }
+
+        /* Carves a new buffer out of its slab, allocating the slab if this
+         * is its first buffer. Returns NONE if the class is full. */
+        int carve() {
+            int n;
+            do {
+                n = carved.get();
+                if (n >= maxBuffers)
+                    return NONE;
+            } while (!carved.compareAndSet(n, n + 1));
+
+            int s = n / buffersPerSlab;
+            ByteBuffer slab = slabs.get(s);
+            if (slab == null) {
+                int count = Math.min(buffersPerSlab, maxBuffers - s * buffersPerSlab);
+                ByteBuffer fresh = BytesUtil.instance.allocateDirect(count * bufSize);
+                slab = slabs.compareAndSet(s, null, fresh) ? fresh : slabs.get(s);
+                log.debug("allocated slab {} of {} buffers of {} bytes",
+                          s, count, bufSize);
+            }
+
+            int offset = (n % buffersPerSlab) * bufSize;
+            ByteBuffer region = slab.duplicate();
+            region.limit(offset + bufSize);
+            region.position(offset);
+            ByteBuffer buf = BytesUtil.instance.sliceOf(region);
+            buffers.set(n, buf);
+            register(buf, (index << CLASS_SHIFT) | n);
+            log.debug("increasing buffer pool size to {}", n + 1);
+            return n;
+        }
     }
 }
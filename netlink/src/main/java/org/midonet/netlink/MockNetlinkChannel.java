@@ -18,10 +18,14 @@ package org.midonet.netlink;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 /** Mocking version of NetlinkChannel. */
 public class MockNetlinkChannel extends NetlinkChannel {
 
+    private final Queue<ByteBuffer> datagrams = new ArrayDeque<>();
+
     public MockNetlinkChannel(SelectorProvider provider,
                               NetlinkProtocol protocol) {
         super(provider, protocol);
@@ -49,8 +53,27 @@ public class MockNetlinkChannel extends NetlinkChannel {
     protected void closeFileDescriptor() {
     }
 
+    /** Queues a datagram to be returned by the following reads. */
+    public void queueDatagram(ByteBuffer datagram) {
+        datagrams.add(datagram);
+    }
+
     @Override
     public int read(ByteBuffer dst) throws IOException {
-        return dst.remaining();
+        ByteBuffer datagram = datagrams.poll();
+        if (datagram == null)
+            return dst.remaining();
+        int nbytes = datagram.remaining();
+        dst.put(datagram);
+        return nbytes;
+    }
+
+    @Override
+    public int readDatagrams(ByteBuffer[] dsts) throws IOException {
+        int n = 0;
+        while (n < dsts.length && !datagrams.isEmpty()) {
+            dsts[n++].put(datagrams.poll());
+        }
+        return n;
     }
 }
@@ -21,11 +21,14 @@ import java.nio.channels.Selector;
 import java.nio.channels.spi.SelectorProvider;
 
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.ptr.IntByReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.midonet.netlink.clib.cLibrary;
+import org.midonet.netlink.hacks.IOStatus;
 import org.midonet.netlink.hacks.IOUtil;
 
 /**
@@ -51,6 +54,11 @@ public class NetlinkChannel extends UnixChannel<Netlink.Address> {
 
     protected final NetlinkProtocol protocol;
 
+    /* Native headers passed to recvmmsg(), one per datagram and allocated for
+     * the largest batch requested so far. Guarded by recvLock. */
+    private cLibrary.MMsgHdr[] msgHdrs;
+    private cLibrary.IoVec[] ioVecs;
+
     protected NetlinkChannel(SelectorProvider provider,
                              NetlinkProtocol protocol) {
         super(provider);
@@ -168,4 +176,73 @@ public class NetlinkChannel extends UnixChannel<Netlink.Address> {
 
         state = ST_CONNECTED;
     }
+
+    /**
+     * Reads up to dsts.length datagrams with a single recvmmsg() system call,
+     * one datagram per buffer. As with read(), the position of each buffer
+     * that received a datagram is advanced by its length. The call only blocks
+     * until the first datagram is available, and the buffers must be direct.
+     *
+     * @return the number of datagrams read, 0 if none were available.
+     */
+    public int readDatagrams(ByteBuffer[] dsts) throws IOException {
+        synchronized (recvLock) {
+            ensureConnected();
+            int n = 0;
+            int nbytes = 0;
+            try {
+                if (!prepareRead())
+                    return 0;
+                prepareHeaders(dsts);
+                do {
+                    n = cLibrary.lib.recvmmsg(fdVal, msgHdrs[0].getPointer(),
+                                              dsts.length,
+                                              cLibrary.MSG_WAITFORONE, null);
+                } while (n < 0 && Native.getLastError() == cLibrary.EINTR
+                         && isOpen());
+
+                if (n < 0) {
+                    int errno = Native.getLastError();
+                    if (errno == cLibrary.EAGAIN) {
+                        nbytes = IOStatus.UNAVAILABLE;
+                        return 0;
+                    }
+                    throw new IOException("recvmmsg() failed: " +
+                                          cLibrary.lib.strerror(errno));
+                }
+
+                for (int i = 0; i < n; i++) {
+                    int len = (Integer) msgHdrs[i].readField("msg_len");
+                    dsts[i].position(dsts[i].position() + len);
+                    nbytes += len;
+                }
+                normalizeAndCountRxBytes(nbytes);
+                return n;
+            } finally {
+                finishRead(nbytes);
+            }
+        }
+    }
+
+    private void prepareHeaders(ByteBuffer[] dsts) {
+        if (msgHdrs == null || msgHdrs.length < dsts.length) {
+            msgHdrs = (cLibrary.MMsgHdr[])
+                new cLibrary.MMsgHdr().toArray(dsts.length);
+            ioVecs = (cLibrary.IoVec[])
+                new cLibrary.IoVec().toArray(dsts.length);
+            for (int i = 0; i < dsts.length; i++) {
+                msgHdrs[i].msg_hdr.msg_iov = ioVecs[i].getPointer();
+                msgHdrs[i].msg_hdr.msg_iovlen = new NativeLong(1);
+                msgHdrs[i].write();
+            }
+        }
+
+        for (int i = 0; i < dsts.length; i++) {
+            ByteBuffer dst = dsts[i];
+            Pointer base = Native.getDirectBufferPointer(dst);
+            ioVecs[i].iov_base = base.share(dst.position());
+            ioVecs[i].iov_len = new NativeLong(dst.remaining());
+            ioVecs[i].write();
+        }
+    }
 }
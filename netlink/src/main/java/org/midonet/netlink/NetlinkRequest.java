@@ -169,6 +169,16 @@ public abstract class NetlinkRequest implements Runnable {
         return new MultiAnswerNetlinkRequest(cb, func, data, timeoutMillis);
     }
 
+    /** Factory method to create a NetlinkRequest which carries several
+     *  netlink messages packed in a single buffer, so that they are written
+     *  to the channel at once. The messages start at the given offsets, and
+     *  each of them is answered independently, through the matching part. */
+    public static NetlinkRequest makeBatch(NetlinkRequest[] parts,
+                                           int[] offsets,
+                                           ByteBuffer data) {
+        return new BatchNetlinkRequest(parts, offsets, data);
+    }
+
     static class SingleAnswerNetlinkRequest extends NetlinkRequest {
         public SingleAnswerNetlinkRequest(Callback<Object> callback,
                                           Reader<Object> reader,
@@ -210,6 +220,23 @@ public abstract class NetlinkRequest implements Runnable {
         }
     }
 
+    static class BatchNetlinkRequest extends NetlinkRequest {
+        final NetlinkRequest[] parts;
+        final int[] offsets;
+
+        public BatchNetlinkRequest(NetlinkRequest[] parts, int[] offsets,
+                                   ByteBuffer data) {
+            super(null, null, data, 0);
+            this.parts = parts;
+            this.offsets = offsets;
+        }
+        @Override
+        public void addAnswerFragment(ByteBuffer buf) {
+            throw new UnsupportedOperationException(
+                "answers are delivered to the parts of a batch");
+        }
+    }
+
     // A null value is interpreted by the comparator as a netlinkrequest with
     // infinite timeout, and is therefore "larger" than any non-null request.
     public static final Comparator<NetlinkRequest> comparator =
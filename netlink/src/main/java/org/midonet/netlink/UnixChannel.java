@@ -215,7 +215,7 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
         return false;
     }
 
-    private boolean prepareRead() {
+    protected boolean prepareRead() {
         begin();
         if (isOpen()) {
             readerThread = NativeThread.current();
@@ -230,13 +230,13 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
         assert IOStatus.check(txBytes);
     }
 
-    private void finishRead(int rxBytes) throws AsynchronousCloseException {
+    protected void finishRead(int rxBytes) throws AsynchronousCloseException {
         readerThread = 0;
         end((rxBytes > 0) || (rxBytes == IOStatus.UNAVAILABLE));
         assert IOStatus.check(rxBytes);
     }
 
-    private int normalizeAndCountRxBytes(int readBytes) {
+    protected int normalizeAndCountRxBytes(int readBytes) {
         readBytes = IOStatus.normalize(readBytes);
         rxBytes += readBytes;
         return readBytes;
@@ -253,7 +253,7 @@ public abstract class UnixChannel<Address> extends AbstractSelectableChannel
             throw new ClosedChannelException();
     }
 
-    private void ensureConnected() throws ClosedChannelException {
+    protected void ensureConnected() throws ClosedChannelException {
         synchronized (stateLock) {
             ensureOpen();
             if (!isConnected())
@@ -19,6 +19,8 @@ import java.nio.ByteBuffer;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Pointer;
 import com.sun.jna.Structure;
 import com.sun.jna.Structure.ByValue;
 import com.sun.jna.ptr.IntByReference;
@@ -49,6 +51,26 @@ public interface cLibrary extends Library {
         public UnixPathByVal sun_path;
     }
 
+    public static class IoVec extends Structure {
+        public Pointer iov_base;
+        public NativeLong iov_len;
+    }
+
+    public static class MsgHdr extends Structure {
+        public Pointer msg_name;
+        public int msg_namelen;
+        public Pointer msg_iov;
+        public NativeLong msg_iovlen;
+        public Pointer msg_control;
+        public NativeLong msg_controllen;
+        public int msg_flags;
+    }
+
+    public static class MMsgHdr extends Structure {
+        public MsgHdr msg_hdr;
+        public int msg_len;
+    }
+
     public static final int AF_UNIX = 1;
     public static final int AF_INET = 2;
     public static final int AF_INET6 = 10;
@@ -79,6 +101,12 @@ public interface cLibrary extends Library {
     public static final int SO_RCVBUF = 8;
     public static final int SO_RCVBUFFORCE = 33;
 
+    public static final int MSG_TRUNC = 0x20;
+    public static final int MSG_WAITFORONE = 0x10000;
+
+    public static final int EINTR = 4;
+    public static final int EAGAIN = 11;
+
     public static final int NETLINK_ADD_MEMBERSHIP = 1;
     public static final int NETLINK_DROP_MEMBERSHIP = 2;
     public static final int NETLINK_BROADCAST_ERROR = 4;
@@ -108,6 +136,8 @@ public interface cLibrary extends Library {
 
     int recv(int fd, ByteBuffer buf, int len, int flags);
 
+    int recvmmsg(int fd, Pointer msgvec, int vlen, int flags, Pointer timeout);
+
     int getpagesize();
 
     int close(long l);
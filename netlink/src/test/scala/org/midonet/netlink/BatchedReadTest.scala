@@ -0,0 +1,117 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.netlink
+
+import java.nio.ByteBuffer
+
+import scala.collection.mutable.ListBuffer
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.Netlink.Address
+import org.midonet.util.Bucket
+
+@RunWith(classOf[JUnitRunner])
+class BatchedReadTest extends FeatureSpec
+                      with ShouldMatchers
+                      with OneInstancePerTest {
+
+    val channel = new MockNetlinkChannel(Netlink.selectorProvider,
+                                         NetlinkProtocol.NETLINK_GENERIC)
+
+    {
+        channel.connect(new Address(0))
+    }
+
+    val notifications = ListBuffer[Int]()
+    val batches = ListBuffer[Int]()
+
+    val conn = new AbstractNetlinkConnection(channel,
+                                             new BufferPool(1, 8, 0x1000)) {
+        override def handleNotification(`type`: Short, cmd: Byte, seq: Int,
+                                        pid: Int, buf: ByteBuffer): Unit =
+            notifications += buf.getInt()
+
+        override def endBatch(): Unit = batches += notifications.size
+    }
+
+    /* Queues a datagram carrying an upcall for each of the given ids. */
+    def upcalls(ids: Int*): Unit = {
+        val size = NetlinkMessage.GENL_HEADER_SIZE + 4
+        val buf = BytesUtil.instance.allocate(size * ids.size)
+        for (id <- ids) {
+            NetlinkMessage.writeHeader(buf, size, 0x20, 0, 0, 0, 1, 1)
+            buf.position(buf.position() + NetlinkMessage.GENL_HEADER_SIZE)
+            buf.putInt(id)
+        }
+        buf.flip()
+        channel.queueDatagram(buf)
+    }
+
+    feature("Datagrams are read in batches") {
+        scenario("A batch is delivered before the end of the read event") {
+            conn.setMaxDatagramsPerRead(4)
+            (1 to 5) foreach { upcalls(_) }
+
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+
+            notifications should be (1 to 5)
+            batches should be (List(5))
+            conn.getReadCalls should be (2)
+            conn.getDatagramsRead should be (5)
+            conn.getDatagramsPerRead should be (2.5)
+        }
+
+        scenario("A datagram can carry several messages") {
+            conn.setMaxDatagramsPerRead(2)
+            upcalls(1, 2)
+            upcalls(3)
+
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+
+            notifications should be (1 to 3)
+            conn.getReadCalls should be (1)
+            conn.getDatagramsRead should be (2)
+        }
+
+        scenario("Read events are bounded by the maximum batch size") {
+            conn.setMaxDatagramsPerRead(4)
+            conn.setMaxBatchIoOps(8)
+            (1 to 12) foreach { upcalls(_) }
+
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+            notifications should be (1 to 8)
+
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+            notifications should be (1 to 12)
+            batches should be (List(8, 12))
+        }
+
+        scenario("Datagrams are read one at a time by default") {
+            conn.getMaxDatagramsPerRead should be (1)
+            conn.setMaxBatchIoOps(1)
+            (1 to 2) foreach { upcalls(_) }
+
+            conn.handleReadEvent(Bucket.BOTTOMLESS)
+
+            notifications should be (List(1))
+            conn.getReadCalls should be (1)
+        }
+    }
+}
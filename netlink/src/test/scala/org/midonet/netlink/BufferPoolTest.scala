@@ -131,6 +131,55 @@ class BufferPoolTest extends FunSpec with Matchers {
             }
         }
 
+        describe("with size classes") {
+            it("should hand out buffers of the smallest class that fits") {
+                val pool = new BufferPool(1,8,128,3)
+                pool.maxBufferSize shouldBe 512
+                pool.take.capacity shouldBe 128
+                pool.take(129).capacity shouldBe 256
+                pool.take(300).capacity shouldBe 512
+                pool.take(1000).isDirect shouldBe false
+                pool.fallbacks shouldBe 1
+            }
+
+            it("should move on to larger classes when a class is exhausted") {
+                val pool = new BufferPool(2,2,128,2)
+                List.fill(2) { pool.take }
+                val buf = pool.take
+                buf.capacity shouldBe 256
+                buf.isDirect shouldBe true
+                pool.fallbacks shouldBe 0
+                pool.take.isDirect shouldBe false
+                pool.fallbacks shouldBe 1
+            }
+
+            it("should recycle buffers of every class") {
+                val pool = new BufferPool(1,4,128,3)
+                val bufs = List(pool.take(128), pool.take(256), pool.take(512))
+                pool.allocated shouldBe 3
+                pool.available shouldBe 0
+                bufs foreach refAndReleaseFrom(pool)
+                pool.available shouldBe 3
+                val again = List(pool.take(128), pool.take(256), pool.take(512))
+                again zip bufs foreach { case (a, b) => a should be theSameInstanceAs b }
+            }
+        }
+
+        describe("when buffers are released by another thread") {
+            it("should reuse them before growing") {
+                val pool = new BufferPool(4,8,128)
+                val bufs = List.fill(4) { pool.take }
+                val releaser = new Thread(new Runnable() {
+                    def run() { bufs foreach refAndReleaseFrom(pool) }
+                })
+                releaser.start()
+                releaser.join()
+                val again = List.fill(4) { pool.take }
+                bufs foreach { b => again.exists(_ eq b) shouldBe true }
+                pool.allocated shouldBe 4
+            }
+        }
+
         def checkAllocs(pool: BufferPool, nAlloc: Int, nAvail: Int) {
             pool.allocated shouldBe nAlloc
             pool.available shouldBe nAvail
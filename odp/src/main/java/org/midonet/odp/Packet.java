@@ -31,12 +31,20 @@ import org.midonet.odp.flows.FlowActions;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
  * via a kernel notification.
  *
+ * The payload of an upcall is kept as the frame received from the kernel and
+ * only parsed into an {@link Ethernet} the first time getEthernet() is called,
+ * which packets matching a flow that was already simulated never do. Once
+ * parsed, the Ethernet is the packet's content and getData() serializes it,
+ * so that changes made to it by the simulation are seen when executing it.
+ * This laziness makes the class *NOT* thread safe.
+ *
  * @see FlowMatch
  * @see OvsDatapathConnection#packetsExecute(Datapath, Packet)
  * @see OvsDatapathConnection#datapathsSetNotificationHandler(Datapath, Callback)
@@ -54,6 +62,7 @@ public class Packet implements AttributeHandler {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] data;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -71,11 +80,20 @@ public class Packet implements AttributeHandler {
     }
 
     public Ethernet getEthernet() {
+        if (eth == null && data != null) {
+            try {
+                eth = Ethernet.deserialize(data);
+            } catch (MalformedPacketException e) {
+                // use() checked the headers which deserialize() rejects.
+                throw new IllegalStateException("Malformed packet", e);
+            }
+            data = null;
+        }
         return eth;
     }
 
     public byte[] getData() {
-        return eth.serialize();
+        return (eth != null) ? eth.serialize() : data;
     }
 
     public FlowMatch getMatch() {
@@ -101,11 +119,13 @@ public class Packet implements AttributeHandler {
     }
 
     public void processUserspaceKeys() {
-        FlowMatches.addUserspaceKeys(eth, match);
+        // Only ICMP keys are replaced, don't parse other packets for nothing.
+        if (match.hasKey(OpenVSwitch.FlowKey.Attr.ICMP))
+            FlowMatches.addUserspaceKeys(getEthernet(), match);
     }
 
     public void generateFlowKeysFromPayload() {
-        match = FlowMatches.fromEthernetPacket(eth);
+        match = FlowMatches.fromEthernetPacket(getEthernet());
     }
 
     @Override
@@ -116,7 +136,7 @@ public class Packet implements AttributeHandler {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.getEthernet(), that.getEthernet())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -124,7 +144,7 @@ public class Packet implements AttributeHandler {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(getEthernet());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -135,7 +155,7 @@ public class Packet implements AttributeHandler {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + getEthernet() +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
@@ -150,7 +170,7 @@ public class Packet implements AttributeHandler {
         int datapathIndex = buf.getInt(); // ignored
         Packet packet = new Packet();
         NetlinkMessage.scanAttributes(buf, packet);
-        if (packet.eth == null)
+        if (packet.data == null)
             return null;
         return packet;
     }
@@ -159,15 +179,13 @@ public class Packet implements AttributeHandler {
         switch(NetlinkMessage.unnest(id)) {
 
             case Attr.Packet:
-                ByteOrder originalOrder = buf.order();
-                try {
-                    this.eth = new Ethernet();
-                    this.eth.deserialize(buf);
-                } catch (Exception e) {
-                    log.warn("Dropping malformed packet", e);
-                    this.eth = null;
-                } finally {
-                    buf.order(originalOrder);
+                if (isWellFormed(buf)) {
+                    this.data = new byte[buf.remaining()];
+                    buf.get(this.data);
+                } else {
+                    log.warn("Dropping malformed packet of {} bytes",
+                             buf.remaining());
+                    this.data = null;
                 }
                 break;
 
@@ -181,12 +199,37 @@ public class Packet implements AttributeHandler {
         }
     }
 
+    /* Checks the headers that Ethernet.deserialize() would reject, without
+     * moving the position of the buffer. */
+    private static boolean isWellFormed(ByteBuffer buf) {
+        int pos = buf.position();
+        int end = buf.limit();
+        if (end - pos < Ethernet.MIN_HEADER_LEN)
+            return false;
+        ByteOrder originalOrder = buf.order();
+        buf.order(ByteOrder.BIG_ENDIAN);
+        try {
+            int typePos = pos + 12;
+            short etherType = buf.getShort(typePos);
+            while (etherType == Ethernet.VLAN_TAGGED_FRAME ||
+                   etherType == Ethernet.PROVIDER_BRIDGING_TAG) {
+                typePos += 4;
+                if (typePos + 2 > end)
+                    return false;
+                etherType = buf.getShort(typePos);
+            }
+            return true;
+        } finally {
+            buf.order(originalOrder);
+        }
+    }
+
     /** Prepares an ovs request for executing and a packet with the given list
      *  of actions. */
     public static ByteBuffer execRequest(ByteBuffer buf, int datapathId,
                                          Iterable<FlowKey> keys,
                                          Iterable<FlowAction> actions,
-                                         Ethernet packet) {
+                                         byte[] packet) {
         buf.putInt(datapathId);
         // TODO(pino): find out why ovs_packet_cmd_execute throws an
         // EINVAL if we put the PACKET attribute right after the
@@ -199,7 +242,7 @@ public class Packet implements AttributeHandler {
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions,
                                     actions, FlowActions.writer);
 
-        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.serialize());
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet);
 
         buf.flip();
         return buf;
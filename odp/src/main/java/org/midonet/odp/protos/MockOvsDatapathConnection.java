@@ -308,6 +308,37 @@ public class MockOvsDatapathConnection extends OvsDatapathConnection {
         }
     }
 
+    @Override
+    protected FlowBatch _doFlowsBatch(@Nonnull final Datapath datapath,
+                                      final long timeoutMillis) {
+        return new FlowBatch() {
+            int size = 0;
+
+            @Override
+            public void create(@Nonnull Flow flow, Callback<Flow> callback) {
+                _doFlowsCreate(datapath, flow, callback, timeoutMillis);
+                size++;
+            }
+
+            @Override
+            public void delete(@Nonnull Iterable<FlowKey> keys,
+                               @Nonnull Callback<Flow> callback) {
+                _doFlowsDelete(datapath, keys, callback, timeoutMillis);
+                size++;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public void send() {
+                size = 0;
+            }
+        };
+    }
+
     @Override
     protected void _doFlowsGet(@Nonnull Datapath datapath, @Nonnull FlowMatch match, @Nonnull Callback<Flow> callback, long timeout) {
         if(flowsTable.containsKey(match)){
@@ -595,6 +595,65 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
                                            @Nonnull final Callback<Flow> callback,
                                            final long timeout);
 
+    /**
+     * A batch of flow operations against a datapath. Flow creations and
+     * deletions added to a batch are packed together into as few netlink
+     * send buffers as possible and written with one system call per buffer,
+     * instead of one per flow. Each operation is still answered, or timed
+     * out, independently through its own callback. Buffers are enqueued as
+     * they fill up and when send() is called. Not thread-safe.
+     */
+    public interface FlowBatch {
+
+        /**
+         * Adds the creation of a flow to the batch.
+         *
+         * @param flow     the flow that we want to install
+         * @param callback a callback which will receive the installed flow,
+         *                 or null for a fire-and-forget creation
+         */
+        void create(@Nonnull Flow flow, @Nullable Callback<Flow> callback);
+
+        /**
+         * Adds the deletion of a flow to the batch.
+         *
+         * @param keys     the flow keys of the flow that we want to delete
+         * @param callback a callback which will receive the deleted flow
+         */
+        void delete(@Nonnull Iterable<FlowKey> keys,
+                    @Nonnull Callback<Flow> callback);
+
+        /** The number of operations added since the last send(). */
+        int size();
+
+        /** Enqueues all the pending operations for writing. */
+        void send();
+    }
+
+    /**
+     * Creates a batch of flow operations against a datapath.
+     *
+     * @param datapath the datapath
+     */
+    public FlowBatch flowsBatch(@Nonnull final Datapath datapath) {
+        return flowsBatch(datapath, DEF_REPLY_TIMEOUT);
+    }
+
+    /**
+     * Creates a batch of flow operations against a datapath.
+     *
+     * @param datapath      the datapath
+     * @param timeoutMillis the amount of time we should wait for the response
+     *                      to each of the operations of the batch
+     */
+    public FlowBatch flowsBatch(@Nonnull final Datapath datapath,
+                                long timeoutMillis) {
+        return _doFlowsBatch(datapath, timeoutMillis);
+    }
+
+    protected abstract FlowBatch _doFlowsBatch(@Nonnull final Datapath datapath,
+                                               final long timeoutMillis);
+
     /**
      * Callback based api for retrieving a flow.
      *
@@ -397,6 +397,90 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
     }
 
 
+    @Override
+    protected FlowBatch _doFlowsBatch(@Nonnull final Datapath datapath,
+                                      final long timeoutMillis) {
+        final int datapathId = datapath.getIndex();
+        final RequestBatch requests = new RequestBatch();
+
+        return new FlowBatch() {
+            @Override
+            public void create(@Nonnull final Flow flow,
+                               Callback<Flow> callback) {
+                if (datapathId == 0) {
+                    propagateError(callback,
+                        new OvsDatapathInvalidParametersException(
+                            "The datapath to create flows in needs a valid " +
+                            "datapath id"));
+                    return;
+                }
+
+                // allows to see failing flow create requests if debug
+                // logging is on.
+                if (callback == null && log.isDebugEnabled()) {
+                    callback = new LoggingCallback<Flow>() {
+                        public String requestString() { return "flow create"; }
+                        public String dataString() { return flow.toString(); }
+                    };
+                }
+
+                short flags = NLFlag.REQUEST | NLFlag.New.CREATE;
+                if (callback != null) {
+                    flags |= NLFlag.ECHO;
+                }
+
+                requests.add(
+                    flowFamily.contextNew,
+                    flags,
+                    new RequestPayload() {
+                        @Override
+                        public ByteBuffer writeTo(ByteBuffer buf) {
+                            return flow.describeOneRequest(buf, datapathId);
+                        }
+                    },
+                    callback,
+                    Flow.deserializer,
+                    timeoutMillis);
+            }
+
+            @Override
+            public void delete(@Nonnull final Iterable<FlowKey> keys,
+                               @Nonnull Callback<Flow> callback) {
+                if (datapathId == 0) {
+                    callback.onError(
+                        new OvsDatapathInvalidParametersException(
+                            "The datapath to delete flows from needs a " +
+                            "valid datapath id"));
+                    return;
+                }
+
+                requests.add(
+                    flowFamily.contextDel,
+                    NLFlag.REQUEST | NLFlag.ECHO,
+                    new RequestPayload() {
+                        @Override
+                        public ByteBuffer writeTo(ByteBuffer buf) {
+                            return Flow.selectOneRequest(buf, datapathId, keys);
+                        }
+                    },
+                    callback,
+                    Flow.deserializer,
+                    timeoutMillis);
+            }
+
+            @Override
+            public int size() {
+                return requests.size();
+            }
+
+            @Override
+            public void send() {
+                requests.send();
+            }
+        };
+    }
+
+
     @Override
     protected void _doFlowsFlush(@Nonnull final Datapath datapath,
                                  @Nonnull final Callback<Boolean> callback,
@@ -533,7 +617,7 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
             packetFamily.contextExec,
             flags,
             Packet.execRequest(getBuffer(), datapathId, keys,
-                               actions, packet.getEthernet()),
+                               actions, packet.getData()),
             callback,
             alwaysTrueReader,
             timeoutMillis);
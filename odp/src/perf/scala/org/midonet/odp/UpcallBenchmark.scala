@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp
+
+import java.nio.{ByteOrder, ByteBuffer}
+import java.util.{Arrays, List => JList}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, Benchmark, Scope, State, Fork, Measurement, Warmup, OutputTimeUnit, Mode, BenchmarkMode}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.netlink.NetlinkMessage
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.flows.{FlowAction, FlowActions, FlowKeys}
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+/**
+ * Measures the handling of an upcall on the path of a packet that matches a
+ * known flow: reading it from the netlink buffer, processing its userspace
+ * keys and preparing the request that executes it. The same path is measured
+ * with the Ethernet frame being parsed, as happens when it is simulated.
+ *
+ * The allocation rate is reported by running with the GC profiler, e.g.
+ * ./gradlew :odp:benchmarks '-Pjmh=.*Upcall.* -prof gc'
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class UpcallBenchmark {
+
+    val upcall = ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder())
+    val request = ByteBuffer.allocateDirect(4096).order(ByteOrder.nativeOrder())
+    val actions: JList[FlowAction] = Arrays.asList(FlowActions.output(2))
+
+    @JmhSetup
+    def setup(): Unit = {
+        val frame = ({ eth addr MAC.random -> MAC.random } <<
+                     { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+                     { udp ports 5003 ---> 53 } << payload("payload")).packet
+        val keys = FlowMatches.fromEthernetPacket(frame).getKeys
+        upcall.putInt(1)
+        NetlinkMessage.writeAttrSeq(upcall, Attr.Key, keys, FlowKeys.writer)
+        NetlinkMessage.writeRawAttribute(upcall, Attr.Packet, frame.serialize())
+        upcall.flip()
+    }
+
+    private def receive(): Packet = {
+        upcall.rewind()
+        val packet = Packet.buildFrom(upcall)
+        packet.processUserspaceKeys()
+        packet
+    }
+
+    private def execute(packet: Packet): ByteBuffer = {
+        request.clear()
+        Packet.execRequest(request, 1, packet.getMatch.getKeys, actions,
+                           packet.getData)
+    }
+
+    @Benchmark
+    def knownFlow(): ByteBuffer = execute(receive())
+
+    @Benchmark
+    def simulatedFlow(bh: Blackhole): ByteBuffer = {
+        val packet = receive()
+        bh.consume(packet.getEthernet)
+        execute(packet)
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.odp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.netlink.NetlinkMessage;
+import org.midonet.odp.OpenVSwitch.Packet.Attr;
+import org.midonet.odp.flows.FlowKey;
+import org.midonet.odp.flows.FlowKeyICMP;
+import org.midonet.odp.flows.FlowKeyICMPEcho;
+import org.midonet.odp.flows.FlowKeys;
+import org.midonet.packets.Data;
+import org.midonet.packets.Ethernet;
+import org.midonet.packets.ICMP;
+import org.midonet.packets.IPv4;
+import org.midonet.packets.MAC;
+
+public class PacketTest {
+
+    private static Ethernet frame(short etherType) {
+        Ethernet eth = new Ethernet()
+            .setSourceMACAddress(MAC.random())
+            .setDestinationMACAddress(MAC.random())
+            .setEtherType(etherType);
+        eth.setPayload(new Data().setData(new byte[] {1, 2, 3, 4}));
+        return eth;
+    }
+
+    private static Ethernet icmpEchoFrame() {
+        ICMP icmp = new ICMP();
+        icmp.setEchoRequest((short) 7, (short) 1, new byte[] {1, 2, 3});
+        IPv4 ip = new IPv4().setSourceAddress(0x0a000001)
+                            .setDestinationAddress(0x0a000002)
+                            .setProtocol(ICMP.PROTOCOL_NUMBER);
+        ip.setPayload(icmp);
+        Ethernet eth = frame(IPv4.ETHERTYPE);
+        eth.setPayload(ip);
+        return eth;
+    }
+
+    /* Builds the payload of an upcall from the kernel. */
+    private static Packet upcall(byte[] data, FlowMatch match) {
+        ByteBuffer buf = ByteBuffer.allocate(1024)
+                                   .order(ByteOrder.nativeOrder());
+        buf.putInt(1);
+        NetlinkMessage.writeAttrSeq(buf, Attr.Key, match.getKeys(),
+                                    FlowKeys.writer);
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, data);
+        buf.flip();
+        return Packet.buildFrom(buf);
+    }
+
+    @Test
+    public void testPayloadIsParsedOnDemand() throws Exception {
+        Ethernet eth = frame((short) 0x88b5);
+        byte[] data = eth.serialize();
+        Packet packet = upcall(data, FlowMatches.fromEthernetPacket(eth));
+
+        Assert.assertArrayEquals(data, packet.getData());
+        Assert.assertEquals(eth, packet.getEthernet());
+
+        // Once parsed, changes to the frame are executed.
+        MAC mac = MAC.random();
+        packet.getEthernet().setDestinationMACAddress(mac);
+        Assert.assertEquals(mac, Ethernet.deserialize(packet.getData())
+                                         .getDestinationMACAddress());
+    }
+
+    @Test
+    public void testMalformedPayloadsAreDropped() throws Exception {
+        Ethernet eth = frame((short) 0x88b5);
+        byte[] data = eth.serialize();
+        FlowMatch match = FlowMatches.fromEthernetPacket(eth);
+
+        Assert.assertNull(upcall(Arrays.copyOf(data, 10), match));
+
+        // A VLAN tag without the ethertype that follows it.
+        byte[] truncated = Arrays.copyOf(data, 16);
+        truncated[12] = (byte) 0x81;
+        truncated[13] = 0x00;
+        Assert.assertNull(upcall(truncated, match));
+    }
+
+    @Test
+    public void testUserspaceKeys() {
+        // The kernel only knows the type and code of ICMP messages.
+        Ethernet eth = icmpEchoFrame();
+        FlowMatch match = new FlowMatch();
+        for (FlowKey key : FlowMatches.fromEthernetPacket(eth).getKeys()) {
+            match.addKey((key instanceof FlowKeyICMP)
+                ? FlowKeys.icmp(ICMP.TYPE_ECHO_REQUEST, ICMP.CODE_NONE)
+                : key);
+        }
+        Assert.assertFalse(match.isUserSpaceOnly());
+        Packet packet = upcall(eth.serialize(), match);
+        packet.processUserspaceKeys();
+
+        Assert.assertTrue(packet.getMatch().isUserSpaceOnly());
+        boolean found = false;
+        for (FlowKey key : packet.getMatch().getKeys())
+            found |= key instanceof FlowKeyICMPEcho;
+        Assert.assertTrue(found);
+    }
+}
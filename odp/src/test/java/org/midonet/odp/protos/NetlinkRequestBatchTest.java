@@ -0,0 +1,236 @@
+/*
+ * Copyright 2014 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp.protos;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.powermock.api.mockito.PowerMockito;
+
+import org.midonet.netlink.AbstractNetlinkConnection;
+import org.midonet.netlink.BufferPool;
+import org.midonet.netlink.Callback;
+import org.midonet.netlink.NLFlag;
+import org.midonet.netlink.NLMessageType;
+import org.midonet.netlink.Netlink;
+import org.midonet.netlink.NetlinkChannel;
+import org.midonet.netlink.NetlinkRequestContext;
+import org.midonet.netlink.exceptions.NetlinkException;
+import org.midonet.util.Bucket;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+public class NetlinkRequestBatchTest {
+
+    static final int HEADER_LEN = 20;
+
+    static final NetlinkRequestContext ctx = new NetlinkRequestContext() {
+        public short commandFamily() { return 0x10; }
+        public byte command() { return 1; }
+        public byte version() { return 1; }
+    };
+
+    NetlinkChannel channel = PowerMockito.mock(NetlinkChannel.class);
+    List<ByteBuffer> writes = new ArrayList<>();
+    ByteBuffer reply;
+    BatchingConnection connection;
+
+    /* Results of the requests, by payload value: true for a success, and the
+     * error code for a failure. */
+    Map<Integer, Object> results = new HashMap<>();
+
+    class BatchingConnection extends AbstractNetlinkConnection {
+        BatchingConnection() {
+            super(channel, new BufferPool(4, 16, 0x1000));
+        }
+
+        RequestBatch newBatch() {
+            return new RequestBatch();
+        }
+
+        @Override
+        protected void handleNotification(short type, byte cmd, int seq,
+                                          int pid, ByteBuffer buffer) {
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        PowerMockito.when(channel.getRemoteAddress())
+                    .thenReturn(new Netlink.Address(0));
+        PowerMockito.when(channel.getLocalAddress())
+                    .thenReturn(new Netlink.Address(294));
+
+        PowerMockito.when(channel.write(Matchers.<ByteBuffer>any())).then(
+            new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    ByteBuffer buf = (ByteBuffer) invocation.getArguments()[0];
+                    ByteBuffer copy = ByteBuffer.allocate(buf.remaining())
+                                                .order(ByteOrder.nativeOrder());
+                    copy.put(buf).flip();
+                    writes.add(copy);
+                    return copy.limit();
+                }
+            });
+
+        PowerMockito.when(channel.read(Matchers.<ByteBuffer>any())).then(
+            new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) {
+                    ByteBuffer buf = (ByteBuffer) invocation.getArguments()[0];
+                    buf.put(reply);
+                    return buf.position();
+                }
+            });
+
+        connection = new BatchingConnection();
+        connection.bypassSendQueue(true);
+        connection.setMaxBatchIoOps(1);
+    }
+
+    private void addRequests(AbstractNetlinkConnection.RequestBatch batch,
+                             int count) {
+        for (int i = 0; i < count; i++) {
+            final int value = i;
+            batch.add(ctx, NLFlag.REQUEST | NLFlag.ACK,
+                new AbstractNetlinkConnection.RequestPayload() {
+                    @Override
+                    public ByteBuffer writeTo(ByteBuffer buf) {
+                        buf.putInt(value);
+                        buf.flip();
+                        return buf;
+                    }
+                },
+                new Callback<Boolean>() {
+                    @Override
+                    public void onSuccess(Boolean data) {
+                        assertThat(results.put(value, data), is((Object) null));
+                    }
+
+                    @Override
+                    public void onError(NetlinkException e) {
+                        assertThat(results.put(value, e.getErrorCodeEnum()),
+                                   is((Object) null));
+                    }
+                },
+                AbstractNetlinkConnection.alwaysTrueReader,
+                1000);
+        }
+    }
+
+    /* Parses the written messages, returning their sequence numbers by
+     * payload value. */
+    private Map<Integer, Integer> writtenMessages() {
+        Map<Integer, Integer> seqs = new HashMap<>();
+        for (ByteBuffer buf : writes) {
+            while (buf.remaining() >= HEADER_LEN) {
+                int start = buf.position();
+                int len = buf.getInt(start);
+                int seq = buf.getInt(start + 8);
+                int value = buf.getInt(start + HEADER_LEN);
+                assertThat(len, equalTo(HEADER_LEN + 4));
+                assertThat(seqs.put(value, seq), is((Integer) null));
+                buf.position(Math.min(buf.limit(), start + ((len + 3) & ~3)));
+            }
+        }
+        return seqs;
+    }
+
+    /* Acks the even requests and fails the odd ones. */
+    private void replyTo(Map<Integer, Integer> seqs) throws Exception {
+        reply = ByteBuffer.allocate(seqs.size() * 36)
+                          .order(ByteOrder.nativeOrder());
+        for (Map.Entry<Integer, Integer> e : seqs.entrySet()) {
+            reply.putInt(36);
+            reply.putShort(NLMessageType.ERROR);
+            reply.putShort((short) 0);
+            reply.putInt(e.getValue());
+            reply.putInt(294);
+            reply.putInt(e.getKey() % 2 == 0 ? 0 : -2);
+            reply.putInt(HEADER_LEN + 4);
+            reply.putShort(ctx.commandFamily());
+            reply.putShort((short) 0);
+            reply.putInt(e.getValue());
+            reply.putInt(294);
+        }
+        reply.flip();
+        connection.handleReadEvent(Bucket.BOTTOMLESS);
+    }
+
+    private void assertResults(int count) {
+        assertThat(results.size(), equalTo(count));
+        for (int i = 0; i < count; i++) {
+            Object expected = (i % 2 == 0)
+                ? Boolean.TRUE : NetlinkException.ErrorCode.ENOENT;
+            assertThat(results.get(i), equalTo(expected));
+        }
+    }
+
+    @Test
+    public void testBatchIsWrittenAtOnce() throws Exception {
+        AbstractNetlinkConnection.RequestBatch batch = connection.newBatch();
+        addRequests(batch, 100);
+        assertThat(writes.size(), equalTo(0));
+        batch.send();
+
+        assertThat(writes.size(), equalTo(1));
+        Map<Integer, Integer> seqs = writtenMessages();
+        assertThat(seqs.size(), equalTo(100));
+        Set<Integer> distinct = new HashSet<>(seqs.values());
+        assertThat(distinct.size(), equalTo(100));
+
+        replyTo(seqs);
+        assertResults(100);
+    }
+
+    @Test
+    public void testBatchSpillsOverFullBuffers() throws Exception {
+        AbstractNetlinkConnection.RequestBatch batch = connection.newBatch();
+        addRequests(batch, 500);
+        batch.send();
+
+        assertThat(writes.size(), greaterThan(1));
+        Map<Integer, Integer> seqs = writtenMessages();
+        assertThat(seqs.size(), equalTo(500));
+        assertThat(new HashSet<>(seqs.values()).size(), equalTo(500));
+
+        replyTo(seqs);
+        assertResults(500);
+    }
+
+    @Test
+    public void testEmptyBatchWritesNothing() throws Exception {
+        AbstractNetlinkConnection.RequestBatch batch = connection.newBatch();
+        batch.send();
+        assertThat(writes.size(), equalTo(0));
+        assertThat(batch.size(), equalTo(0));
+    }
+}